@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+
+/**
+ * Forming the keys of the sub-records of a LargeList and a TimeSeries,
+ * including the digest computed by each Key.
+ *
+ * @author peter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubKeyBenchmark {
+
+	private LargeList largeList;
+	private TimeSeries timeSeries;
+	private Value stringValue;
+	private Value mapValue;
+	private long timeStamp;
+
+	@Setup
+	public void setup() {
+		Key top = new Key("test", "collections", "top-record-1");
+		this.largeList = new LargeList(null, null, top, "list");
+		this.timeSeries = new TimeSeries(top, TimeSeries.DefaultBucketSize);
+		this.stringValue = Value.get("element-000042");
+		Map<String, Object> element = new HashMap<String, Object>();
+		element.put("key", "element-000042");
+		element.put("value", 42L);
+		this.mapValue = Value.get(element);
+		this.timeStamp = 1500000000123L;
+	}
+
+	@Benchmark
+	public Key largeListString() {
+		return this.largeList.makeSubKey(this.stringValue);
+	}
+
+	@Benchmark
+	public Key largeListMap() {
+		return this.largeList.makeSubKey(this.mapValue);
+	}
+
+	@Benchmark
+	public Key timeSeries() {
+		return this.timeSeries.formSubrecordKey(this.timeStamp++);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.model;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.helper.Utils;
+
+/**
+ * Parsing the "Info" responses read by each catalog refresh. The namespace and
+ * set benchmarks parse into existing objects, as a refresh does.
+ *
+ * @author peter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InfoParserBenchmark {
+
+	private static final String NAMESPACE = "objects=1048576;sub-objects=0;master-objects=524288;master-sub-objects=0;"
+			+ "prole-objects=524288;prole-sub-objects=0;expired-objects=12;evicted-objects=0;set-deleted-objects=0;"
+			+ "nsup-cycle-duration=3;nsup-cycle-sleep-pct=0;used-bytes-memory=201326592;data-used-bytes-memory=134217728;"
+			+ "index-used-bytes-memory=67108864;sindex-used-bytes-memory=4194304;free-pct-memory=81;max-void-time=236718392;"
+			+ "non-expirable-objects=1048564;current-time=236631992;stop-writes=false;hwm-breached=false;"
+			+ "available-bin-names=32700;used-bytes-disk=268435456;free-pct-disk=96;available_pct=94;"
+			+ "memory-size=1073741824;high-water-disk-pct=50;high-water-memory-pct=60;evict-tenths-pct=5;"
+			+ "evict-hist-buckets=10000;stop-writes-pct=90;cold-start-evict-ttl=4294967295;repl-factor=2;"
+			+ "default-ttl=2592000;max-ttl=0;conflict-resolution-policy=generation;single-bin=false;ldt-enabled=false;"
+			+ "ldt-page-size=8192;enable-xdr=false;sets-enable-xdr=true;ns-forward-xdr-writes=false;"
+			+ "allow-nonxdr-writes=true;allow-xdr-writes=true;disallow-null-setname=false;total-bytes-memory=1073741824;"
+			+ "read-consistency-level-override=off;write-commit-level-override=off;migrate-order=5;"
+			+ "migrate-sleep=1;total-bytes-disk=4294967296;defrag-lwm-pct=50;defrag-queue-min=0;defrag-sleep=1000;"
+			+ "defrag-startup-minimum=10;flush-max-ms=1000;fsync-max-sec=0;max-write-cache=67108864;"
+			+ "min-avail-pct=5;post-write-queue=256;data-in-memory=true;file=/opt/aerospike/data/test.dat;"
+			+ "filesize=4294967296;writethreads=1;writecache=67108864;obj-size-hist-max=100;type=device";
+	private static final String SETS = "ns=test:set=users:objects=524288:tombstones=0:memory_data_bytes=67108864:"
+			+ "device_data_bytes=0:truncate_lut=0:stop-writes-count=0:set-enable-xdr=use-default:disable-eviction=false;"
+			+ "ns=test:set=orders:objects=262144:tombstones=0:memory_data_bytes=33554432:"
+			+ "device_data_bytes=0:truncate_lut=0:stop-writes-count=0:set-enable-xdr=use-default:disable-eviction=false;"
+			+ "ns=test:set=events:objects=262144:tombstones=0:memory_data_bytes=33554432:"
+			+ "device_data_bytes=0:truncate_lut=0:stop-writes-count=0:set-enable-xdr=use-default:disable-eviction=false;";
+	private static final String INDEX = "ns=test:set=users:indexname=age_idx:num_bins=1:bins=age:type=NUMERIC:"
+			+ "indextype=NONE:path=age:sync_state=synced:state=RW";
+	private static final String MODULE = "filename=as_utility.lua;hash=4a1f2c4e0b6d8a21b3f87cbe7e6d51a0c3bd9e21;type=LUA";
+
+	private Namespace namespace;
+
+	@Setup
+	public void setup() {
+		this.namespace = new Namespace("test");
+		this.namespace.mergeNamespaceInfo("BB9020011AC4202", NAMESPACE);
+		this.namespace.mergeSets("BB9020011AC4202", SETS);
+	}
+
+	@Benchmark
+	public Namespace namespaceRefresh() {
+		this.namespace.mergeNamespaceInfo("BB9020011AC4202", NAMESPACE);
+		return this.namespace;
+	}
+
+	@Benchmark
+	public Namespace setsRefresh() {
+		this.namespace.mergeSets("BB9020011AC4202", SETS);
+		return this.namespace;
+	}
+
+	@Benchmark
+	public Index index() {
+		return new Index(INDEX);
+	}
+
+	@Benchmark
+	public Map<String, String> toMap() {
+		return Utils.toMap(MODULE);
+	}
+
+	@Benchmark
+	public long parseLong() {
+		return InfoParser.parseLong(NAMESPACE, 8, 15, -1L);
+	}
+}
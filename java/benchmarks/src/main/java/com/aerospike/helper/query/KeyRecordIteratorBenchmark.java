@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding the maps returned by the as_utility Lua functions into KeyRecords.
+ * The iterator takes the meta data out of each map, so every invocation decodes
+ * fresh copies; {@link #copyOnly(Blackhole)} measures the copying alone.
+ *
+ * @author peter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyRecordIteratorBenchmark {
+
+	@Param({ "4", "32" })
+	public int bins;
+
+	private static final int RECORDS = 100;
+
+	private final List<Map<String, Object>> templates = new ArrayList<Map<String, Object>>(RECORDS);
+
+	@Setup
+	public void setup() {
+		for (int i = 0; i < RECORDS; i++) {
+			Map<String, Object> map = new HashMap<String, Object>();
+			for (int b = 0; b < this.bins; b++) {
+				map.put("bin" + b, (b % 2 == 0) ? (Object) Long.valueOf(i * b) : (Object) ("value-" + i + "-" + b));
+			}
+			Map<String, Object> meta = new HashMap<String, Object>();
+			meta.put("digest", new byte[20]);
+			meta.put("generation", Long.valueOf(1));
+			meta.put("set_name", "users");
+			meta.put("expiry", Long.valueOf(0));
+			map.put("meta_data", meta);
+			this.templates.add(map);
+		}
+	}
+
+	private Iterator<Object> copies() {
+		List<Object> copies = new ArrayList<Object>(RECORDS);
+		for (Map<String, Object> template : this.templates)
+			copies.add(new HashMap<String, Object>(template));
+		return copies.iterator();
+	}
+
+	@Benchmark
+	public void copyOnly(Blackhole blackhole) {
+		Iterator<Object> results = copies();
+		while (results.hasNext())
+			blackhole.consume(results.next());
+	}
+
+	@Benchmark
+	public void decode(Blackhole blackhole) {
+		KeyRecordIterator iterator = new KeyRecordIterator("test", copies());
+		while (iterator.hasNext())
+			blackhole.consume(iterator.next());
+	}
+}
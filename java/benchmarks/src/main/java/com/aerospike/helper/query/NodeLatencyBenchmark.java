@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.Statement;
+
+/**
+ * Latency of the QueryEngine against an InMemoryCluster, a loopback stand-in
+ * of a server from the test jar of the helper, with one node slower than the
+ * others. A primary key select waits for the node of its key, a batch read and
+ * a query wait for the slowest node.
+ *
+ * @author peter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeLatencyBenchmark {
+
+	private static final String NAMESPACE = "test";
+	private static final String SET_NAME = "users";
+	private static final int RECORDS = 1000;
+	private static final int BATCH = 30;
+
+	@Param({ "3" })
+	public int nodes;
+
+	@Param({ "0", "1" })
+	public long latencyMillis;
+
+	@Param({ "0", "10" })
+	public long slowNodeMillis;
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+	private BatchPolicy batchPolicy;
+	private Key[] batchKeys;
+	private int next;
+
+	@Setup
+	public void setup() {
+		this.cluster = new InMemoryCluster(this.nodes, NAMESPACE);
+		this.cluster.createIndex(NAMESPACE, SET_NAME, "age_idx", "age", IndexType.NUMERIC);
+		this.engine = this.cluster.newQueryEngine();
+		for (int i = 0; i < RECORDS; i++) {
+			this.engine.insert(NAMESPACE, SET_NAME, new Key(NAMESPACE, SET_NAME, i), Arrays.asList(new Bin("name", "user" + i), new Bin("age", i % 100)));
+		}
+		this.engine.refreshCluster();
+		this.batchKeys = new Key[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			this.batchKeys[i] = new Key(NAMESPACE, SET_NAME, i);
+		}
+		// the nodes are read in parallel
+		this.batchPolicy = new BatchPolicy();
+		this.batchPolicy.maxConcurrentThreads = 0;
+		this.cluster.setLatency(this.latencyMillis, TimeUnit.MILLISECONDS);
+		this.cluster.setLatency(this.nodes - 1, this.latencyMillis + this.slowNodeMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(NAMESPACE);
+		stmt.setSetName(SET_NAME);
+		return stmt;
+	}
+
+	private static void drain(KeyRecordIterator iterator, Blackhole blackhole) throws IOException {
+		try {
+			while (iterator.hasNext())
+				blackhole.consume(iterator.next());
+		} finally {
+			iterator.close();
+		}
+	}
+
+	@Benchmark
+	public void keySelect(Blackhole blackhole) throws IOException {
+		int id = this.next++ % RECORDS;
+		drain(this.engine.select(statement(), new KeyQualifier(Value.get(id))), blackhole);
+	}
+
+	@Benchmark
+	public void batchGet(Blackhole blackhole) {
+		blackhole.consume(this.engine.client.get(this.batchPolicy, this.batchKeys));
+	}
+
+	@Benchmark
+	public void indexQuery(Blackhole blackhole) throws IOException {
+		drain(this.engine.select(statement(), new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(42))), blackhole);
+	}
+
+	@Benchmark
+	public void luaQuery(Blackhole blackhole) throws IOException {
+		drain(this.engine.select(statement(), new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(42)), new Qualifier("name", Qualifier.FilterOperation.ENDS_WITH, Value.get("2"))), blackhole);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Value;
+import com.aerospike.client.policy.ClientPolicy;
+import com.aerospike.client.query.PredExp;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.model.CatalogSnapshot;
+import com.aerospike.helper.model.CatalogSnapshotStore;
+import com.aerospike.helper.model.Index;
+import com.aerospike.helper.model.Module;
+import com.aerospike.helper.model.Namespace;
+
+/**
+ * Query planning: translating qualifiers to PredExp and Lua, and finding indexed bins.
+ * No cluster is needed, the catalog is restored from a file.
+ *
+ * @author peter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QualifierBenchmark {
+
+	private static final String[] INDEXES = {
+			"ns=test:set=users:indexname=age_idx:bin=age:type=NUMERIC:sync_state=synced:state=RW",
+			"ns=test:set=users:indexname=name_idx:bin=name:type=STRING:sync_state=synced:state=RW",
+			"ns=test:set=orders:indexname=total_idx:bin=total:type=NUMERIC:sync_state=synced:state=RW" };
+
+	private QueryEngine engine;
+	private Statement stmt;
+	private Qualifier simple;
+	private Qualifier nested;
+	private Qualifier indexed;
+	private Qualifier unindexed;
+	private Qualifier[] qualifiers;
+
+	@Setup
+	public void setup() throws IOException {
+		this.simple = new Qualifier("age", Qualifier.FilterOperation.BETWEEN, Value.get(18), Value.get(65));
+		this.nested = new Qualifier(Qualifier.FilterOperation.AND,
+				new Qualifier("color", Qualifier.FilterOperation.EQ, Value.get("blue")),
+				new Qualifier(Qualifier.FilterOperation.OR,
+						new Qualifier("size", Qualifier.FilterOperation.GT, Value.get(10)),
+						new Qualifier("size", Qualifier.FilterOperation.LT, Value.get(2))));
+		this.indexed = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(42));
+		this.unindexed = new Qualifier("city", Qualifier.FilterOperation.EQ, Value.get("Denver"));
+		this.qualifiers = new Qualifier[] { this.simple, this.nested,
+				new Qualifier("name", Qualifier.FilterOperation.START_WITH, true, Value.get("Bo")) };
+
+		this.stmt = new Statement();
+		this.stmt.setNamespace("test");
+		this.stmt.setSetName("users");
+
+		Map<String, Index> indexes = new TreeMap<String, Index>();
+		for (String info : INDEXES) {
+			Index index = new Index(info);
+			indexes.put(index.toKeyString(), index);
+		}
+		File file = File.createTempFile("catalog", ".bin");
+		file.deleteOnExit();
+		CatalogSnapshotStore.save(new CatalogSnapshot(new TreeMap<String, Namespace>(), indexes,
+				new TreeMap<String, Module>(), "", System.currentTimeMillis()), file);
+		this.engine = new QueryEngine();
+		this.engine.catalog = new ClusterCatalog(new AerospikeClient(new ClientPolicy()) {
+		}, null);
+		this.engine.catalog.restore(file);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.engine.catalog.close();
+	}
+
+	@Benchmark
+	public List<PredExp> toPredExpSimple() throws PredExpException {
+		return this.simple.toPredExp();
+	}
+
+	@Benchmark
+	public List<PredExp> toPredExpNested() throws PredExpException {
+		return this.nested.toPredExp();
+	}
+
+	@Benchmark
+	public String luaFilterStringSimple() {
+		return this.simple.luaFilterString();
+	}
+
+	@Benchmark
+	public String luaFilterStringNested() {
+		return this.nested.luaFilterString();
+	}
+
+	@Benchmark
+	public String buildFilterFunction() {
+		return this.engine.buildFilterFunction(this.qualifiers);
+	}
+
+	@Benchmark
+	public boolean isIndexedBinHit() {
+		return this.engine.isIndexedBin(this.stmt, this.indexed);
+	}
+
+	@Benchmark
+	public boolean isIndexedBinMiss() {
+		return this.engine.isIndexedBin(this.stmt, this.unindexed);
+	}
+
+	@Benchmark
+	public QueryPlan plan() {
+		return this.engine.plan(this.stmt, false, this.indexed, this.simple, this.unindexed);
+	}
+}
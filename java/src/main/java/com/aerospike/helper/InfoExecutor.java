@@ -0,0 +1,216 @@
+/* Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Info;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.InfoPolicy;
+
+/**
+ * Sends "Info" commands to the nodes of a cluster.
+ * <p>
+ * Commands are sent to all nodes concurrently using the pooled connections of
+ * each {@link Node}, several commands can be sent to a node in one round-trip.
+ * Results are returned per node, keyed by node name. A node that fails or does
+ * not answer within the policy timeout is logged and left out of the results.
+ *
+ * @author peter
+ */
+public class InfoExecutor implements Closeable {
+
+	public static final int DEFAULT_TIMEOUT = 1000; // In milliseconds
+
+	private static Logger log = Logger.getLogger(InfoExecutor.class);
+
+	/*
+	 * created on first use, idle threads of the cached pool end after a minute
+	 */
+	private static final class Shared {
+		static final ExecutorService POOL = Executors.newCachedThreadPool(Utils.daemonThreadFactory("aerospike-helper-info-shared"));
+	}
+
+	private final AerospikeClient client;
+	private final InfoPolicy policy;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+
+	/**
+	 * Creates an InfoExecutor with its own thread pool
+	 *
+	 * @param client An instance of AerospikeClient
+	 * @param policy The InfoPolicy, pass in null for the default timeout
+	 */
+	public InfoExecutor(AerospikeClient client, InfoPolicy policy) {
+		this(client, policy, Executors.newCachedThreadPool(Utils.daemonThreadFactory("aerospike-helper-info")), true);
+	}
+
+	/**
+	 * Creates an InfoExecutor that runs on an existing thread pool. The pool is not shut down by {@link #close()}.
+	 *
+	 * @param client   An instance of AerospikeClient
+	 * @param policy   The InfoPolicy, pass in null for the default timeout
+	 * @param executor The thread pool to send the commands from
+	 */
+	public InfoExecutor(AerospikeClient client, InfoPolicy policy, ExecutorService executor) {
+		this(client, policy, executor, false);
+	}
+
+	/**
+	 * A thread pool of daemon threads shared by the InfoExecutors that are created for a
+	 * single request, such as those of {@link Utils#infoAll(AerospikeClient, String)}.
+	 * It must not be shut down.
+	 *
+	 * @return The shared thread pool
+	 */
+	public static ExecutorService sharedExecutor() {
+		return Shared.POOL;
+	}
+
+	private InfoExecutor(AerospikeClient client, InfoPolicy policy, ExecutorService executor, boolean ownExecutor) {
+		this.client = client;
+		this.policy = policy;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+	}
+
+	/**
+	 * Sends one or more commands to a single node in one round-trip
+	 *
+	 * @param node     The node to send the commands to
+	 * @param commands The Info commands
+	 * @return A map of command to response
+	 */
+	public Map<String, String> request(Node node, String... commands) {
+		return Info.request(this.policy, node, commands);
+	}
+
+	/**
+	 * Sends a single command to all nodes concurrently
+	 *
+	 * @param command The Info command
+	 * @return A map of node name to response
+	 */
+	public Map<String, String> infoAll(String command) {
+		Map<String, Map<String, String>> responses = requestAll(command);
+		Map<String, String> results = new LinkedHashMap<String, String>(responses.size() * 2);
+		for (Map.Entry<String, Map<String, String>> entry : responses.entrySet()) {
+			results.put(entry.getKey(), entry.getValue().get(command));
+		}
+		return results;
+	}
+
+	/**
+	 * Sends one or more commands to all nodes concurrently, one round-trip per node
+	 *
+	 * @param commands The Info commands
+	 * @return A map of node name to a map of command to response
+	 */
+	public Map<String, Map<String, String>> requestAll(final String... commands) {
+		Node[] nodes = this.client.getNodes();
+		List<Callable<Map<String, String>>> calls = new ArrayList<Callable<Map<String, String>>>(nodes.length);
+		for (final Node node : nodes) {
+			calls.add(new Callable<Map<String, String>>() {
+				@Override
+				public Map<String, String> call() {
+					return request(node, commands);
+				}
+			});
+		}
+		return invokeAll(nodes, calls);
+	}
+
+	/**
+	 * Sends a different set of commands to each node concurrently, one round-trip per node
+	 *
+	 * @param commands A map of node name to the Info commands for that node
+	 * @return A map of node name to a map of command to response
+	 */
+	public Map<String, Map<String, String>> requestEach(final Map<String, String[]> commands) {
+		Node[] nodes = this.client.getNodes();
+		List<Node> targets = new ArrayList<Node>(nodes.length);
+		List<Callable<Map<String, String>>> calls = new ArrayList<Callable<Map<String, String>>>(nodes.length);
+		for (final Node node : nodes) {
+			final String[] nodeCommands = commands.get(node.getName());
+			if (nodeCommands == null || nodeCommands.length == 0)
+				continue;
+			targets.add(node);
+			calls.add(new Callable<Map<String, String>>() {
+				@Override
+				public Map<String, String> call() {
+					return request(node, nodeCommands);
+				}
+			});
+		}
+		return invokeAll(targets.toArray(new Node[targets.size()]), calls);
+	}
+
+	private Map<String, Map<String, String>> invokeAll(Node[] nodes, List<Callable<Map<String, String>>> calls) {
+		List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>(calls.size());
+		for (Callable<Map<String, String>> call : calls) {
+			futures.add(this.executor.submit(call));
+		}
+		Map<String, Map<String, String>> results = new LinkedHashMap<String, Map<String, String>>(nodes.length * 2);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout());
+		for (int i = 0; i < futures.size(); i++) {
+			Future<Map<String, String>> future = futures.get(i);
+			try {
+				long remaining = Math.max(0, deadline - System.nanoTime());
+				results.put(nodes[i].getName(), future.get(remaining, TimeUnit.NANOSECONDS));
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				log.warn("Info request timed out on " + nodes[i]);
+			} catch (ExecutionException e) {
+				log.warn("Info request failed on " + nodes[i], e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Future<Map<String, String>> pending : futures)
+					pending.cancel(true);
+				break;
+			}
+		}
+		return results;
+	}
+
+	private int timeout() {
+		int timeout = (this.policy == null) ? 0 : this.policy.timeout;
+		return (timeout > 0) ? timeout : DEFAULT_TIMEOUT;
+	}
+
+	/**
+	 * Shuts down the thread pool, if it was created by this InfoExecutor
+	 */
+	@Override
+	public void close() {
+		if (this.ownExecutor)
+			this.executor.shutdownNow();
+	}
+}
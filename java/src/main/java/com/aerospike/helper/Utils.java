@@ -20,10 +20,10 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.aerospike.client.AerospikeClient;
-import com.aerospike.client.Info;
-import com.aerospike.client.cluster.Node;
 import com.aerospike.helper.model.NameValuePair;
 
 public class Utils {
@@ -51,17 +51,28 @@ public class Utils {
 	}
 
 	/**
-	 * Sends an "Info" command to all nodes in the cluster
+	 * Sends an "Info" command to all nodes in the cluster, from the shared
+	 * thread pool of {@link InfoExecutor#sharedExecutor()}
 	 *
 	 * @param client AerospikeClient instance
 	 * @param cmd	Info command to be sent to the cluster
 	 * @return A string containing the results from all nodes in the cluster
 	 */
 	public static String infoAll(AerospikeClient client, String cmd) {
-		Node[] nodes = client.getNodes();
+		return infoAll(new InfoExecutor(client, null, InfoExecutor.sharedExecutor()), cmd);
+	}
+
+	/**
+	 * Sends an "Info" command to all nodes in the cluster
+	 *
+	 * @param executor The InfoExecutor to send the command with
+	 * @param cmd	  Info command to be sent to the cluster
+	 * @return A string containing the results from all nodes in the cluster
+	 */
+	public static String infoAll(InfoExecutor executor, String cmd) {
 		StringBuilder results = new StringBuilder();
-		for (Node node : nodes) {
-			results.append(Info.request(node.getHost().name, node.getHost().port, cmd)).append("\n");
+		for (String result : executor.infoAll(cmd).values()) {
+			results.append(result).append("\n");
 		}
 		return results.toString();
 	}
@@ -105,6 +116,25 @@ public class Utils {
 		return list;
 	}
 
+	/**
+	 * Creates a ThreadFactory for named daemon threads
+	 *
+	 * @param prefix The prefix of the thread names
+	 * @return A ThreadFactory
+	 */
+	public static ThreadFactory daemonThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
 	/**
 	 * Concatenates 2 arrays with the same type
 	 *
@@ -28,6 +28,7 @@ import com.aerospike.client.Record;
 import com.aerospike.client.Value;
 import com.aerospike.client.cdt.ListOperation;
 import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.helper.metrics.QueryMetrics;
 
 /**
  * An implementation of LargeList using standard KV operations.
@@ -48,12 +49,15 @@ import com.aerospike.client.policy.WritePolicy;
 @Deprecated
 public class LargeList {
 	public static final String ListElementBinName = "__ListElement";
+	private static final QueryMetrics.Operation READ = QueryMetrics.Operation.LARGE_LIST_READ;
+	private static final QueryMetrics.Operation WRITE = QueryMetrics.Operation.LARGE_LIST_WRITE;
 
 	private AerospikeClient client;
 	private WritePolicy policy;
 	private Key key;
 	private Value binName;
 	private String binNameString;
+	private QueryMetrics metrics;
 
 	/**
 	 * Initialize large list operator.
@@ -73,8 +77,27 @@ public class LargeList {
 		this.binNameString = this.binName.toString();
 	}
 
+	/**
+	 * Sets the metrics that list operations are recorded in
+	 *
+	 * @param metrics The QueryMetrics, or null to disable metrics
+	 */
+	public void setMetrics(QueryMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private long start() {
+		return (this.metrics == null) ? 0L : System.nanoTime();
+	}
+
+	private void record(QueryMetrics.Operation operation, long start, long returned, long touched, Throwable error) {
+		QueryMetrics current = this.metrics;
+		if (current != null)
+			current.record(operation, QueryMetrics.Path.KEY, System.nanoTime() - start, returned, touched, error);
+	}
+
 	@SuppressWarnings("rawtypes")
-	private Key makeSubKey(Value value) {
+	Key makeSubKey(Value value) {
 		Key subKey;
 		String valueString;
 		if (value instanceof Value.MapValue) {
@@ -179,6 +202,17 @@ public class LargeList {
 	 * @param value value to add
 	 */
 	public void add(Value value) {
+		long start = start();
+		try {
+			addValue(value);
+		} catch (RuntimeException e) {
+			record(WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(WRITE, start, 0, 1, null);
+	}
+
+	private void addValue(Value value) {
 		Key subKey = makeSubKey(value);
 
 		client.put(this.policy, subKey, new Bin(ListElementBinName, value));
@@ -222,8 +256,19 @@ public class LargeList {
 	 * @param value value to update
 	 */
 	public void update(Value value) {
-		if (size() == 0) {
-			add(value);
+		long start = start();
+		try {
+			updateValue(value);
+		} catch (RuntimeException e) {
+			record(WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(WRITE, start, 0, 1, null);
+	}
+
+	private void updateValue(Value value) {
+		if (sizeOf() == 0) {
+			addValue(value);
 		} else {
 			Key subKey = makeSubKey(value);
 			client.put(this.policy, subKey, new Bin(ListElementBinName, value));
@@ -262,6 +307,17 @@ public class LargeList {
 	 * @param value The value to value to delete
 	 */
 	public void remove(Value value) {
+		long start = start();
+		try {
+			removeValue(value);
+		} catch (RuntimeException e) {
+			record(WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(WRITE, start, 0, 1, null);
+	}
+
+	private void removeValue(Value value) {
 		Key subKey = makeSubKey(value);
 		List<byte[]> digestList = getDigestList();
 		int index = digestList.indexOf(subKey.digest);
@@ -275,6 +331,17 @@ public class LargeList {
 	 * @param values A list of values to delete
 	 */
 	public void remove(List<Value> values) {
+		long start = start();
+		try {
+			removeValues(values);
+		} catch (RuntimeException e) {
+			record(WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(WRITE, start, 0, values.size(), null);
+	}
+
+	private void removeValues(List<Value> values) {
 		Key[] keys = makeSubKeys(values);
 		List<byte[]> digestList = getDigestList();
 
@@ -303,6 +370,19 @@ public class LargeList {
 	 * @return count of entries removed
 	 */
 	public int remove(Value begin, Value end) {
+		long start = start();
+		int result;
+		try {
+			result = removeRange(begin, end);
+		} catch (RuntimeException e) {
+			record(WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(WRITE, start, 0, result, null);
+		return result;
+	}
+
+	private int removeRange(Value begin, Value end) {
 		List<byte[]> digestList = getDigestList();
 		Key beginKey = makeSubKey(begin);
 		Key endKey = makeSubKey(end);
@@ -326,6 +406,19 @@ public class LargeList {
 	 * @return true if value exists
 	 */
 	public boolean exists(Value keyValue) {
+		long start = start();
+		boolean result;
+		try {
+			result = existsValue(keyValue);
+		} catch (RuntimeException e) {
+			record(READ, start, 0, 0, e);
+			throw e;
+		}
+		record(READ, start, result ? 1 : 0, 0, null);
+		return result;
+	}
+
+	private boolean existsValue(Value keyValue) {
 		Key subKey = makeSubKey(keyValue);
 		return client.exists(this.policy, subKey);
 	}
@@ -353,6 +446,19 @@ public class LargeList {
 	 */
 	@SuppressWarnings("serial")
 	public List<?> find(Value value) throws AerospikeException {
+		long start = start();
+		List<?> result;
+		try {
+			result = findValue(value);
+		} catch (RuntimeException e) {
+			record(READ, start, 0, 0, e);
+			throw e;
+		}
+		record(READ, start, (result == null) ? 0 : result.size(), 0, null);
+		return result;
+	}
+
+	private List<?> findValue(Value value) throws AerospikeException {
 		Key subKey = makeSubKey(value);
 		Record record = client.get(this.policy, subKey, ListElementBinName);
 		if (record != null) {
@@ -386,6 +492,19 @@ public class LargeList {
 	 * @return list of entries selected
 	 */
 	public List<?> findFrom(Value begin, int count) throws AerospikeException {
+		long start = start();
+		List<?> result;
+		try {
+			result = findValues(begin, count);
+		} catch (RuntimeException e) {
+			record(READ, start, 0, 0, e);
+			throw e;
+		}
+		record(READ, start, result.size(), 0, null);
+		return result;
+	}
+
+	private List<?> findValues(Value begin, int count) throws AerospikeException {
 		List<byte[]> digestList = getDigestList();
 		Key beginKey = makeSubKey(begin);
 		int start = digestList.indexOf(beginKey.digest);
@@ -402,6 +521,19 @@ public class LargeList {
 	 * @return list of entries selected
 	 */
 	public List<?> range(Value begin, Value end) {
+		long start = start();
+		List<?> result;
+		try {
+			result = rangeValues(begin, end);
+		} catch (RuntimeException e) {
+			record(READ, start, 0, 0, e);
+			throw e;
+		}
+		record(READ, start, result.size(), 0, null);
+		return result;
+	}
+
+	private List<?> rangeValues(Value begin, Value end) {
 		List<Object> results = new ArrayList<Object>();
 		Key[] elementKeys = getElementKeys();
 		if (elementKeys != null && elementKeys.length > 0) {
@@ -469,6 +601,19 @@ public class LargeList {
 	}
 
 	public List<?> scan() {
+		long start = start();
+		List<?> result;
+		try {
+			result = scanValues();
+		} catch (RuntimeException e) {
+			record(READ, start, 0, 0, e);
+			throw e;
+		}
+		record(READ, start, result.size(), 0, null);
+		return result;
+	}
+
+	private List<?> scanValues() {
 		List<Object> results = new ArrayList<Object>();
 		Key[] elementKeys = getElementKeys();
 		if (elementKeys != null && elementKeys.length > 0) {
@@ -501,6 +646,17 @@ public class LargeList {
 	 * Delete bin containing the list.
 	 */
 	public void destroy() {
+		long start = start();
+		try {
+			destroyList();
+		} catch (RuntimeException e) {
+			record(WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(WRITE, start, 0, 0, null);
+	}
+
+	private void destroyList() {
 		List<byte[]> digestList = getDigestList();
 
 		client.put(this.policy, this.key, Bin.asNull(this.binNameString));
@@ -517,6 +673,19 @@ public class LargeList {
 	 * @return size of list.
 	 */
 	public int size() {
+		long start = start();
+		int result;
+		try {
+			result = sizeOf();
+		} catch (RuntimeException e) {
+			record(READ, start, 0, 0, e);
+			throw e;
+		}
+		record(READ, start, 0, 0, null);
+		return result;
+	}
+
+	private int sizeOf() {
 		Record record = client.operate(this.policy, this.key, ListOperation.size(this.binNameString));
 		if (record != null) {
 			return record.getInt(this.binNameString);
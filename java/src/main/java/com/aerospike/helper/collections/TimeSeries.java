@@ -29,6 +29,7 @@ import com.aerospike.client.Record;
 import com.aerospike.client.Value;
 import com.aerospike.client.cdt.ListOperation;
 import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.helper.metrics.QueryMetrics;
 
 /**
  * This class provides a TimeSeries collection for a "top record"
@@ -54,6 +55,7 @@ public class TimeSeries {
 	private Key key;
 	private String binName;
 	private long bucketSize; // Bucket size in milliseconds
+	private QueryMetrics metrics;
 
 	/**
 	 * Private constructor for test only
@@ -89,22 +91,70 @@ public class TimeSeries {
 		}
 	}
 
+	/**
+	 * Sets the metrics that time series operations are recorded in
+	 *
+	 * @param metrics The QueryMetrics, or null to disable metrics
+	 */
+	public void setMetrics(QueryMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private long start() {
+		return (this.metrics == null) ? 0L : System.nanoTime();
+	}
+
+	private void record(QueryMetrics.Operation operation, long start, long returned, long touched, Throwable error) {
+		QueryMetrics current = this.metrics;
+		if (current != null)
+			current.record(operation, QueryMetrics.Path.KEY, System.nanoTime() - start, returned, touched, error);
+	}
+
 	public void add(long timeStamp, Value value) {
-		Key subKey = formSubrecordKey(timeStamp);
-		this.client.operate(this.policy, subKey, ListOperation.append(valueBin, Value.get(new Entry(timeStamp, value).toMap())));
+		long start = start();
+		try {
+			Key subKey = formSubrecordKey(timeStamp);
+			this.client.operate(this.policy, subKey, ListOperation.append(valueBin, Value.get(new Entry(timeStamp, value).toMap())));
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, 1, null);
 	}
 
 	public void add(List<Map<String, Object>> values) {
-		for (Map<String, Object> entry : values) {
-			if (entry.containsKey(tsKey) && entry.containsKey(tsValue)) {
-				Key subKey = formSubrecordKey((Long) entry.get(tsKey));
-				this.client.operate(this.policy, subKey, ListOperation.append(valueBin, Value.get(entry)));
+		long start = start();
+		long count = 0;
+		try {
+			for (Map<String, Object> entry : values) {
+				if (entry.containsKey(tsKey) && entry.containsKey(tsValue)) {
+					Key subKey = formSubrecordKey((Long) entry.get(tsKey));
+					this.client.operate(this.policy, subKey, ListOperation.append(valueBin, Value.get(entry)));
+					count++;
+				}
 			}
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, count, e);
+			throw e;
 		}
+		record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, count, null);
 	}
 
-	@SuppressWarnings("unchecked")
 	public Value find(long timeStamp) {
+		long start = start();
+		Value result;
+		try {
+			result = findValue(timeStamp);
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.TIME_SERIES_READ, start, 0, 0, e);
+			throw e;
+		}
+		record(QueryMetrics.Operation.TIME_SERIES_READ, start, (result == null) ? 0 : 1, 0, null);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Value findValue(long timeStamp) {
 		Key subKey = formSubrecordKey(timeStamp);
 		Record record = this.client.get(this.policy, subKey);
 		if (record != null){
@@ -120,6 +170,18 @@ public class TimeSeries {
 	 * clear all elements from the TimeSeries associated with a Key
 	 */
 	public void clear() {
+		long start = start();
+		int deleted;
+		try {
+			deleted = clearAll();
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, deleted, null);
+	}
+
+	private int clearAll() {
 		Record record = this.client.get(null, key, tailBin, topBin);
 		long tail = record.getLong(tailBin);
 		long top = record.getLong(topBin);
@@ -127,14 +189,23 @@ public class TimeSeries {
 		for (Key key : subKeys) {
 			this.client.delete(null, key);
 		}
+		return subKeys.size();
 	}
 
 	/**
 	 * Destroy the TimeSeries associated with a Key
 	 */
 	public void destroy() {
-		clear();
-		this.client.operate(null, key, Operation.put(Bin.asNull(binName)));
+		long start = start();
+		int deleted;
+		try {
+			deleted = clearAll();
+			this.client.operate(null, key, Operation.put(Bin.asNull(binName)));
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, 0, e);
+			throw e;
+		}
+		record(QueryMetrics.Operation.TIME_SERIES_WRITE, start, 0, deleted + 1, null);
 	}
 
 	/**
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.policy.ClientPolicy;
+import com.aerospike.helper.InfoExecutor;
+import com.aerospike.helper.load.CollectionLayout.Operation;
+import com.aerospike.helper.metrics.LatencyHistogram;
+
+/**
+ * Measures the collection layouts of {@link CollectionLayout} against a
+ * server: {@link com.aerospike.helper.collections.LargeList} and
+ * {@link com.aerospike.helper.collections.TimeSeries} against lists and maps
+ * in a single record, for the same elements.
+ * <p>
+ * For each layout and size the collection is filled with the elements 0 to
+ * size-1 in random order, then finds, ranges, scans and removes are run on it
+ * and it is destroyed. Each operation is timed, and the server round-trips it
+ * made are counted from the namespace statistics, so the benchmark should be
+ * the only client of the namespace.
+ *
+ * @author peter
+ */
+public class CollectionBenchmark {
+
+	private static Logger log = Logger.getLogger(CollectionBenchmark.class);
+
+	/**
+	 * The measurements of one operation on one layout and size
+	 */
+	public static final class Result {
+		private final String layout;
+		private final long size;
+		private final Operation operation;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private long count;
+		private long errors;
+		private String error;
+		private long elapsedNanos;
+		private ServerTransactions transactions;
+
+		Result(String layout, long size, Operation operation) {
+			this.layout = layout;
+			this.size = size;
+			this.operation = operation;
+		}
+
+		public String getLayout() {
+			return this.layout;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+
+		public Operation getOperation() {
+			return this.operation;
+		}
+
+		/**
+		 * @return The latencies of the operations that succeeded
+		 */
+		public LatencyHistogram getLatency() {
+			return this.latency;
+		}
+
+		/**
+		 * @return The operations run, including those that failed
+		 */
+		public long getCount() {
+			return this.count;
+		}
+
+		public long getErrors() {
+			return this.errors;
+		}
+
+		/**
+		 * @return The first error, null if there was none
+		 */
+		public String getError() {
+			return this.error;
+		}
+
+		public long getElapsedNanos() {
+			return this.elapsedNanos;
+		}
+
+		public double getThroughput() {
+			return (this.elapsedNanos <= 0) ? 0.0 : this.count * 1e9 / this.elapsedNanos;
+		}
+
+		/**
+		 * @return The server transactions of all the operations, null if they were not counted
+		 */
+		public ServerTransactions getTransactions() {
+			return this.transactions;
+		}
+
+		/**
+		 * @return The server round-trips per operation, -1 if they were not counted
+		 */
+		public double getRoundTripsPerOperation() {
+			return (this.transactions == null || this.count == 0) ? -1 : (double) this.transactions.getRoundTrips() / this.count;
+		}
+
+		/**
+		 * @return The records read or written per operation, -1 if they were not counted
+		 */
+		public double getRecordsPerOperation() {
+			return (this.transactions == null || this.count == 0) ? -1 : (double) this.transactions.getRecords() / this.count;
+		}
+	}
+
+	/*
+	 * one operation of a measurement
+	 */
+	private interface Step {
+		void run(int i);
+	}
+
+	public static final long[] DEFAULT_SIZES = { 10, 100, 1000, 10000, 100000, 1000000 };
+
+	private final AerospikeClient client;
+	private final InfoExecutor info;
+
+	public String namespace = "test";
+	public String setName = "collections";
+	public List<String> layouts = CollectionLayout.NAMES;
+	public long[] sizes = DEFAULT_SIZES;
+	/** Finds and removes per layout and size, removes are limited to half the elements */
+	public int operations = 1000;
+	/** Ranges and scans per layout and size */
+	public int scans = 10;
+	public int rangeWidth = 100;
+	public int bucketSize = CollectionLayout.DEFAULT_BUCKET_SIZE;
+	public long seed = 1;
+	/** Receives the results of each layout and size as they complete, may be null */
+	public PrintStream out = System.out;
+
+	/**
+	 * @param client The AerospikeClient
+	 * @param info   The InfoExecutor to count round-trips with, null to not count them
+	 */
+	public CollectionBenchmark(AerospikeClient client, InfoExecutor info) {
+		this.client = client;
+		this.info = info;
+	}
+
+	/**
+	 * Runs every layout at every size
+	 *
+	 * @return The results
+	 */
+	public List<Result> run() {
+		List<Result> results = new ArrayList<Result>();
+		if (this.out != null)
+			this.out.print(header());
+		for (long size : this.sizes) {
+			for (String layout : this.layouts) {
+				List<Result> layoutResults = run(layout, size);
+				if (this.out != null)
+					this.out.print(toText(layoutResults, false));
+				results.addAll(layoutResults);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs one layout at one size
+	 *
+	 * @param name The layout name, one of {@link CollectionLayout#NAMES}
+	 * @param size The number of elements
+	 * @return The results, one per operation the layout has
+	 */
+	public List<Result> run(String name, long size) {
+		Key key = new Key(this.namespace, this.setName, "bench-" + name + "-" + size);
+		final CollectionLayout layout = CollectionLayout.create(name, this.client, null, key, this.bucketSize);
+		try {
+			layout.destroy();
+		} catch (RuntimeException e) {
+			log.debug("Nothing to destroy for " + key, e);
+		}
+		final Random random = new Random(this.seed);
+		final long[] elements = shuffled((int) size, random);
+		final int width = (int) Math.min(this.rangeWidth, size);
+		List<Result> results = new ArrayList<Result>();
+
+		Result add = measure(layout, size, Operation.ADD, elements.length, new Step() {
+			@Override
+			public void run(int i) {
+				layout.add(elements[i]);
+			}
+		});
+		results.add(add);
+		if (add.errors == 0) {
+			if (layout.supports(Operation.FIND)) {
+				results.add(measure(layout, size, Operation.FIND, this.operations, new Step() {
+					@Override
+					public void run(int i) {
+						layout.find(elements[random.nextInt(elements.length)]);
+					}
+				}));
+			}
+			if (layout.supports(Operation.RANGE)) {
+				results.add(measure(layout, size, Operation.RANGE, this.scans, new Step() {
+					@Override
+					public void run(int i) {
+						long low = random.nextInt(elements.length - width + 1);
+						layout.range(low, low + width - 1);
+					}
+				}));
+			}
+			if (layout.supports(Operation.SCAN)) {
+				results.add(measure(layout, size, Operation.SCAN, this.scans, new Step() {
+					@Override
+					public void run(int i) {
+						layout.scan();
+					}
+				}));
+			}
+			if (layout.supports(Operation.REMOVE)) {
+				results.add(measure(layout, size, Operation.REMOVE, (int) Math.min(this.operations, size / 2), new Step() {
+					@Override
+					public void run(int i) {
+						layout.remove(elements[i]);
+					}
+				}));
+			}
+		}
+		results.add(measure(layout, size, Operation.DESTROY, 1, new Step() {
+			@Override
+			public void run(int i) {
+				layout.destroy();
+			}
+		}));
+		return results;
+	}
+
+	private static long[] shuffled(int size, Random random) {
+		long[] elements = new long[size];
+		for (int i = 0; i < size; i++) {
+			elements[i] = i;
+		}
+		for (int i = size - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			long swap = elements[i];
+			elements[i] = elements[j];
+			elements[j] = swap;
+		}
+		return elements;
+	}
+
+	private ServerTransactions transactions() {
+		return (this.info == null) ? null : ServerTransactions.read(this.info, this.namespace);
+	}
+
+	/*
+	 * an add that fails, such as for a record that is too big, stops the adds
+	 */
+	private Result measure(CollectionLayout layout, long size, Operation operation, int count, Step step) {
+		Result result = new Result(layout.getName(), size, operation);
+		ServerTransactions before = transactions();
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long begin = System.nanoTime();
+			result.count++;
+			try {
+				step.run(i);
+				result.latency.record(System.nanoTime() - begin);
+			} catch (RuntimeException e) {
+				log.debug(layout + " " + operation.label() + " failed", e);
+				result.errors++;
+				if (result.error == null)
+					result.error = e.toString();
+				if (operation == Operation.ADD)
+					break;
+			}
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		if (before != null)
+			result.transactions = transactions().minus(before);
+		return result;
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String perOperation(double value) {
+		return (value < 0) ? "-" : String.format(Locale.ROOT, "%.2f", value);
+	}
+
+	private static String header() {
+		return String.format(Locale.ROOT, "%-16s %8s %-8s %8s %6s %10s %9s %9s %9s %9s %8s %8s%n",
+				"layout", "size", "op", "count", "errors", "ops/s", "mean ms", "p50 ms", "p99 ms", "max ms", "rt/op", "rec/op");
+	}
+
+	/**
+	 * @param results The results
+	 * @return A table of the results, latencies in milliseconds
+	 */
+	public static String toText(List<Result> results) {
+		return toText(results, true);
+	}
+
+	private static String toText(List<Result> results, boolean header) {
+		StringBuilder sb = new StringBuilder();
+		if (header)
+			sb.append(header());
+		for (Result result : results) {
+			LatencyHistogram latency = result.latency;
+			sb.append(String.format(Locale.ROOT, "%-16s %8d %-8s %8d %6d %10.1f %9s %9s %9s %9s %8s %8s%n",
+					result.layout, result.size, result.operation.label(), result.count, result.errors, result.getThroughput(),
+					millis((long) latency.getMeanNanos()), millis(latency.percentile(50)), millis(latency.percentile(99)),
+					millis(latency.getMaxNanos()), perOperation(result.getRoundTripsPerOperation()),
+					perOperation(result.getRecordsPerOperation())));
+			if (result.error != null && result.operation == Operation.ADD)
+				sb.append(String.format("%-16s %8d stopped after %d elements: %s%n", result.layout, result.size,
+						result.count - 1, result.error));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param results The results
+	 * @return The results as a JSON array, latencies in milliseconds
+	 */
+	public static String toJson(List<Result> results) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			LatencyHistogram latency = result.latency;
+			if (i > 0)
+				sb.append(",");
+			sb.append("{\"layout\":\"").append(result.layout).append("\"");
+			sb.append(",\"size\":").append(result.size);
+			sb.append(",\"operation\":\"").append(result.operation.label()).append("\"");
+			sb.append(",\"count\":").append(result.count);
+			sb.append(",\"errors\":").append(result.errors);
+			sb.append(",\"throughput\":").append(String.format(Locale.ROOT, "%.3f", result.getThroughput()));
+			sb.append(",\"latency\":{\"mean\":").append(millis((long) latency.getMeanNanos()));
+			sb.append(",\"p50\":").append(millis(latency.percentile(50)));
+			sb.append(",\"p99\":").append(millis(latency.percentile(99)));
+			sb.append(",\"max\":").append(millis(latency.getMaxNanos())).append("}");
+			if (result.transactions != null) {
+				sb.append(",\"round_trips\":").append(result.transactions.getRoundTrips());
+				sb.append(",\"records\":").append(result.transactions.getRecords());
+			}
+			if (result.error != null)
+				sb.append(",\"error\":\"").append(result.error.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+			sb.append("}");
+		}
+		return sb.append("]").toString();
+	}
+
+	private static long[] parseSizes(String value) {
+		String[] parts = value.split(",");
+		long[] sizes = new long[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			sizes[i] = Long.parseLong(parts[i].trim());
+			if (sizes[i] < 1)
+				throw new IllegalArgumentException("A size must be at least 1: " + value);
+		}
+		return sizes;
+	}
+
+	private static Options options() {
+		Options options = new Options();
+		options.addOption("h", "host", true, "Server host (default: 127.0.0.1)");
+		options.addOption("p", "port", true, "Server port (default: 3000)");
+		options.addOption("n", "namespace", true, "Namespace (default: test)");
+		options.addOption("s", "set", true, "Set name (default: collections)");
+		options.addOption("l", "layouts", true, "Layouts to measure (default: " + String.join(",", CollectionLayout.NAMES) + ")");
+		options.addOption("z", "sizes", true, "Element counts (default: 10,100,1000,10000,100000,1000000)");
+		options.addOption("o", "operations", true, "Finds and removes per layout and size (default: 1000)");
+		options.addOption("c", "scans", true, "Ranges and scans per layout and size (default: 10)");
+		options.addOption("w", "width", true, "Elements per range (default: 100)");
+		options.addOption("b", "bucket", true, "Elements per record of the bucketed map (default: 1000)");
+		options.addOption("j", "json", true, "File to write the JSON results to, - for standard out");
+		options.addOption("u", "usage", false, "Print this message");
+		return options;
+	}
+
+	/**
+	 * Runs the benchmark from the command line, use -u for the options
+	 *
+	 * @param args The command line
+	 * @throws Exception if the run fails
+	 */
+	public static void main(String[] args) throws Exception {
+		Options options = options();
+		CommandLine cl;
+		try {
+			CommandLineParser parser = new PosixParser();
+			cl = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp(CollectionBenchmark.class.getName(), options);
+			System.exit(1);
+			return;
+		}
+		if (cl.hasOption("u")) {
+			new HelpFormatter().printHelp(CollectionBenchmark.class.getName(), options);
+			return;
+		}
+		AerospikeClient client = new AerospikeClient(new ClientPolicy(), cl.getOptionValue("h", "127.0.0.1"),
+				Integer.parseInt(cl.getOptionValue("p", "3000")));
+		InfoExecutor info = new InfoExecutor(client, null);
+		try {
+			CollectionBenchmark benchmark = new CollectionBenchmark(client, info);
+			benchmark.namespace = cl.getOptionValue("n", benchmark.namespace);
+			benchmark.setName = cl.getOptionValue("s", benchmark.setName);
+			if (cl.hasOption("l")) {
+				benchmark.layouts = Arrays.asList(cl.getOptionValue("l").split(","));
+				for (String layout : benchmark.layouts) {
+					if (!CollectionLayout.NAMES.contains(layout))
+						throw new IllegalArgumentException("Unknown layout " + layout + ", expected one of " + CollectionLayout.NAMES);
+				}
+			}
+			if (cl.hasOption("z"))
+				benchmark.sizes = parseSizes(cl.getOptionValue("z"));
+			benchmark.operations = Integer.parseInt(cl.getOptionValue("o", Integer.toString(benchmark.operations)));
+			benchmark.scans = Integer.parseInt(cl.getOptionValue("c", Integer.toString(benchmark.scans)));
+			benchmark.rangeWidth = Integer.parseInt(cl.getOptionValue("w", Integer.toString(benchmark.rangeWidth)));
+			benchmark.bucketSize = Integer.parseInt(cl.getOptionValue("b", Integer.toString(benchmark.bucketSize)));
+			List<Result> results = benchmark.run();
+			String json = cl.getOptionValue("j");
+			if ("-".equals(json)) {
+				System.out.println(toJson(results));
+			} else if (json != null) {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(json), StandardCharsets.UTF_8);
+				try {
+					writer.write(toJson(results));
+				} finally {
+					writer.close();
+				}
+			}
+		} finally {
+			info.close();
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.ListOperation;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapOrder;
+import com.aerospike.client.cdt.MapPolicy;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.cdt.MapWriteMode;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.helper.collections.LargeList;
+import com.aerospike.helper.collections.TimeSeries;
+
+/**
+ * A way of storing a collection of long elements, measured by the
+ * {@link CollectionBenchmark}. Each layout is stored under one top Key.
+ *
+ * @author peter
+ */
+public abstract class CollectionLayout {
+
+	/**
+	 * The operations on a collection
+	 */
+	public enum Operation {
+		ADD, FIND, RANGE, REMOVE, SCAN, DESTROY;
+
+		public String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * The layouts, by name
+	 */
+	public static final List<String> NAMES = Arrays.asList("largelist", "timeseries", "cdtlist", "cdtmap", "cdtmap-bucketed");
+
+	public static final String BIN_NAME = "elements";
+	public static final int DEFAULT_BUCKET_SIZE = 1000;
+
+	protected final AerospikeClient client;
+	protected final WritePolicy policy;
+	protected final Key key;
+
+	protected CollectionLayout(AerospikeClient client, WritePolicy policy, Key key) {
+		this.client = client;
+		this.policy = policy;
+		this.key = key;
+	}
+
+	/**
+	 * Creates a layout by name
+	 *
+	 * @param name       One of {@link #NAMES}
+	 * @param client     The AerospikeClient
+	 * @param policy     The WritePolicy, null for the defaults
+	 * @param key        The top Key of the collection
+	 * @param bucketSize Elements per record of the bucketed layout
+	 * @return The layout
+	 */
+	public static CollectionLayout create(String name, AerospikeClient client, WritePolicy policy, Key key, int bucketSize) {
+		switch (name) {
+			case "largelist":
+				return new LargeListLayout(client, policy, key);
+			case "timeseries":
+				return new TimeSeriesLayout(client, policy, key);
+			case "cdtlist":
+				return new CdtListLayout(client, policy, key);
+			case "cdtmap":
+				return new CdtMapLayout(client, policy, key);
+			case "cdtmap-bucketed":
+				return new BucketedMapLayout(client, policy, key, bucketSize);
+			default:
+				throw new IllegalArgumentException("Unknown layout " + name + ", expected one of " + NAMES);
+		}
+	}
+
+	public abstract String getName();
+
+	/**
+	 * @param operation An operation
+	 * @return true if the layout has the operation
+	 */
+	public boolean supports(Operation operation) {
+		return true;
+	}
+
+	public abstract void add(long element);
+
+	public abstract boolean find(long element);
+
+	/**
+	 * @param low  The lowest element (inclusive)
+	 * @param high The highest element (inclusive)
+	 * @return The number of elements in the range
+	 */
+	public abstract int range(long low, long high);
+
+	public abstract void remove(long element);
+
+	/**
+	 * @return The number of elements read
+	 */
+	public abstract int scan();
+
+	public abstract void destroy();
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	private static int size(Object value) {
+		if (value instanceof Collection)
+			return ((Collection<?>) value).size();
+		if (value instanceof Map)
+			return ((Map<?, ?>) value).size();
+		return 0;
+	}
+
+	/**
+	 * A {@link LargeList}: a top record with the list of element digests and a sub record per element
+	 */
+	static class LargeListLayout extends CollectionLayout {
+		@SuppressWarnings("deprecation")
+		private final LargeList list;
+
+		@SuppressWarnings("deprecation")
+		LargeListLayout(AerospikeClient client, WritePolicy policy, Key key) {
+			super(client, policy, key);
+			this.list = new LargeList(client, policy, key, BIN_NAME);
+		}
+
+		@Override
+		public String getName() {
+			return "largelist";
+		}
+
+		@Override
+		public void add(long element) {
+			this.list.add(Value.get(element));
+		}
+
+		@Override
+		public boolean find(long element) {
+			return this.list.find(Value.get(element)) != null;
+		}
+
+		@Override
+		public int range(long low, long high) {
+			return this.list.range(Value.get(low), Value.get(high)).size();
+		}
+
+		@Override
+		public void remove(long element) {
+			this.list.remove(Value.get(element));
+		}
+
+		@Override
+		public int scan() {
+			return this.list.scan().size();
+		}
+
+		@Override
+		public void destroy() {
+			this.list.destroy();
+			this.client.delete(this.policy, this.key);
+		}
+	}
+
+	/**
+	 * A {@link TimeSeries}, the element is the time stamp in milliseconds.
+	 * TimeSeries has no range, remove or scan.
+	 */
+	static class TimeSeriesLayout extends CollectionLayout {
+		private TimeSeries series;
+
+		TimeSeriesLayout(AerospikeClient client, WritePolicy policy, Key key) {
+			super(client, policy, key);
+		}
+
+		/*
+		 * created on first use, its constructor writes the configuration to the top record
+		 */
+		private TimeSeries series() {
+			if (this.series == null)
+				this.series = new TimeSeries(this.client, this.policy, this.key, BIN_NAME);
+			return this.series;
+		}
+
+		@Override
+		public String getName() {
+			return "timeseries";
+		}
+
+		@Override
+		public boolean supports(Operation operation) {
+			return operation == Operation.ADD || operation == Operation.FIND || operation == Operation.DESTROY;
+		}
+
+		@Override
+		public void add(long element) {
+			series().add(element, Value.get(element));
+		}
+
+		@Override
+		public boolean find(long element) {
+			return series().find(element) != null;
+		}
+
+		@Override
+		public int range(long low, long high) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void remove(long element) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int scan() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void destroy() {
+			series().destroy();
+			this.client.delete(this.policy, this.key);
+		}
+	}
+
+	/**
+	 * A list bin in one record. Finds and ranges read the whole list and search it here,
+	 * a remove reads the list to find the index of the element.
+	 */
+	static class CdtListLayout extends CollectionLayout {
+
+		CdtListLayout(AerospikeClient client, WritePolicy policy, Key key) {
+			super(client, policy, key);
+		}
+
+		@Override
+		public String getName() {
+			return "cdtlist";
+		}
+
+		private List<?> read() {
+			Record record = this.client.get(this.policy, this.key, BIN_NAME);
+			List<?> list = (record == null) ? null : (List<?>) record.getValue(BIN_NAME);
+			return (list == null) ? Collections.emptyList() : list;
+		}
+
+		@Override
+		public void add(long element) {
+			this.client.operate(this.policy, this.key, ListOperation.append(BIN_NAME, Value.get(element)));
+		}
+
+		@Override
+		public boolean find(long element) {
+			return read().contains(element);
+		}
+
+		@Override
+		public int range(long low, long high) {
+			int count = 0;
+			for (Object value : read()) {
+				long element = (Long) value;
+				if (element >= low && element <= high)
+					count++;
+			}
+			return count;
+		}
+
+		@Override
+		public void remove(long element) {
+			int index = read().indexOf(element);
+			if (index >= 0)
+				this.client.operate(this.policy, this.key, ListOperation.remove(BIN_NAME, index));
+		}
+
+		@Override
+		public int scan() {
+			return read().size();
+		}
+
+		@Override
+		public void destroy() {
+			this.client.delete(this.policy, this.key);
+		}
+	}
+
+	/**
+	 * A key ordered map bin in one record, from element to element
+	 */
+	static class CdtMapLayout extends CollectionLayout {
+		protected static final MapPolicy MAP_POLICY = new MapPolicy(MapOrder.KEY_ORDERED, MapWriteMode.UPDATE);
+
+		CdtMapLayout(AerospikeClient client, WritePolicy policy, Key key) {
+			super(client, policy, key);
+		}
+
+		@Override
+		public String getName() {
+			return "cdtmap";
+		}
+
+		protected Key keyOf(long element) {
+			return this.key;
+		}
+
+		@Override
+		public void add(long element) {
+			this.client.operate(this.policy, keyOf(element), MapOperation.put(MAP_POLICY, BIN_NAME, Value.get(element), Value.get(element)));
+		}
+
+		@Override
+		public boolean find(long element) {
+			Record record = this.client.operate(this.policy, keyOf(element), MapOperation.getByKey(BIN_NAME, Value.get(element), MapReturnType.VALUE));
+			return record != null && record.getValue(BIN_NAME) != null;
+		}
+
+		@Override
+		public int range(long low, long high) {
+			return count(this.key, low, high);
+		}
+
+		protected int count(Key key, long low, long high) {
+			// the end of a key range is exclusive
+			Record record = this.client.operate(this.policy, key, MapOperation.getByKeyRange(BIN_NAME, Value.get(low), Value.get(high + 1), MapReturnType.COUNT));
+			return (record == null) ? 0 : (int) record.getLong(BIN_NAME);
+		}
+
+		@Override
+		public void remove(long element) {
+			this.client.operate(this.policy, keyOf(element), MapOperation.removeByKey(BIN_NAME, Value.get(element), MapReturnType.NONE));
+		}
+
+		@Override
+		public int scan() {
+			Record record = this.client.operate(this.policy, this.key, MapOperation.getByIndexRange(BIN_NAME, 0, MapReturnType.KEY_VALUE));
+			return (record == null) ? 0 : size(record.getValue(BIN_NAME));
+		}
+
+		@Override
+		public void destroy() {
+			this.client.delete(this.policy, this.key);
+		}
+	}
+
+	/**
+	 * Key ordered maps of up to bucketSize consecutive elements, one record per bucket,
+	 * keyed like the sub records of a TimeSeries
+	 */
+	static class BucketedMapLayout extends CdtMapLayout {
+		private final int bucketSize;
+		private long highestBucket = -1;
+
+		BucketedMapLayout(AerospikeClient client, WritePolicy policy, Key key, int bucketSize) {
+			super(client, policy, key);
+			this.bucketSize = bucketSize;
+		}
+
+		@Override
+		public String getName() {
+			return "cdtmap-bucketed";
+		}
+
+		private Key bucketKey(long bucket) {
+			return new Key(this.key.namespace, this.key.setName, this.key.userKey.toString() + "::" + Long.toHexString(bucket));
+		}
+
+		@Override
+		protected Key keyOf(long element) {
+			return bucketKey(element / this.bucketSize);
+		}
+
+		@Override
+		public void add(long element) {
+			super.add(element);
+			this.highestBucket = Math.max(this.highestBucket, element / this.bucketSize);
+		}
+
+		@Override
+		public int range(long low, long high) {
+			int count = 0;
+			for (long bucket = low / this.bucketSize; bucket <= high / this.bucketSize; bucket++) {
+				count += count(bucketKey(bucket), low, high);
+			}
+			return count;
+		}
+
+		private Key[] bucketKeys() {
+			Key[] keys = new Key[(int) (this.highestBucket + 1)];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = bucketKey(i);
+			}
+			return keys;
+		}
+
+		@Override
+		public int scan() {
+			int count = 0;
+			for (Record record : this.client.get(null, bucketKeys(), BIN_NAME)) {
+				if (record != null)
+					count += size(record.getValue(BIN_NAME));
+			}
+			return count;
+		}
+
+		@Override
+		public void destroy() {
+			if (this.highestBucket < 0) {
+				// left by another instance, the buckets are consecutive
+				for (long bucket = 0; this.client.delete(this.policy, bucketKey(bucket)); bucket++)
+					;
+				return;
+			}
+			for (Key bucket : bucketKeys()) {
+				this.client.delete(this.policy, bucket);
+			}
+			this.highestBucket = -1;
+		}
+	}
+}
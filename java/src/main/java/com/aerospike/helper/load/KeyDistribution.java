@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+import java.util.Random;
+
+/**
+ * Chooses the key of the next operation from a key space of
+ * <code>0 .. keys-1</code>.
+ *
+ * @author peter
+ */
+public abstract class KeyDistribution {
+
+	public static final double DEFAULT_THETA = 0.99;
+	public static final double DEFAULT_HOT_FRACTION = 0.1;
+	public static final double DEFAULT_HOT_PROBABILITY = 0.9;
+
+	protected final long keys;
+
+	protected KeyDistribution(long keys) {
+		if (keys < 1)
+			throw new IllegalArgumentException("The key space needs at least one key");
+		this.keys = keys;
+	}
+
+	public long getKeys() {
+		return this.keys;
+	}
+
+	/**
+	 * @param random The random source of the calling thread
+	 * @return The next key
+	 */
+	public abstract long next(Random random);
+
+	/**
+	 * @param keys The number of keys
+	 * @return A distribution where every key is equally likely
+	 */
+	public static KeyDistribution uniform(long keys) {
+		return new Uniform(keys);
+	}
+
+	/**
+	 * A Zipfian distribution, key 0 is the most popular. Keys are spread over the
+	 * cluster by their digest, so the popular keys are not clustered on a node.
+	 *
+	 * @param keys  The number of keys
+	 * @param theta The skew, between 0 and 1 exclusive
+	 * @return The distribution
+	 */
+	public static KeyDistribution zipfian(long keys, double theta) {
+		return new Zipfian(keys, theta);
+	}
+
+	/**
+	 * @param keys           The number of keys
+	 * @param hotFraction    The fraction of the keys that are hot
+	 * @param hotProbability The probability that an operation uses a hot key
+	 * @return A distribution with a uniformly used hot set and cold set
+	 */
+	public static KeyDistribution hotSet(long keys, double hotFraction, double hotProbability) {
+		return new HotSet(keys, hotFraction, hotProbability);
+	}
+
+	/**
+	 * Parses "uniform", "zipfian[:theta]" or "hotset[:hotFraction[:hotProbability]]"
+	 *
+	 * @param spec The distribution
+	 * @param keys The number of keys
+	 * @return The distribution
+	 */
+	public static KeyDistribution parse(String spec, long keys) {
+		String[] parts = spec.trim().toLowerCase().split(":");
+		try {
+			if (parts[0].equals("uniform") && parts.length == 1)
+				return uniform(keys);
+			if (parts[0].equals("zipfian") && parts.length <= 2)
+				return zipfian(keys, parts.length > 1 ? Double.parseDouble(parts[1]) : DEFAULT_THETA);
+			if (parts[0].equals("hotset") && parts.length <= 3)
+				return hotSet(keys, parts.length > 1 ? Double.parseDouble(parts[1]) : DEFAULT_HOT_FRACTION,
+						parts.length > 2 ? Double.parseDouble(parts[2]) : DEFAULT_HOT_PROBABILITY);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid key distribution: " + spec, e);
+		}
+		throw new IllegalArgumentException("Invalid key distribution: " + spec);
+	}
+
+	/*
+	 * a uniform key from lower to upper exclusive
+	 */
+	static long uniform(Random random, long lower, long upper) {
+		long bound = upper - lower;
+		if (bound <= Integer.MAX_VALUE)
+			return lower + random.nextInt((int) bound);
+		return lower + (long) (random.nextDouble() * bound);
+	}
+
+	static final class Uniform extends KeyDistribution {
+
+		Uniform(long keys) {
+			super(keys);
+		}
+
+		@Override
+		public long next(Random random) {
+			return uniform(random, 0, this.keys);
+		}
+
+		@Override
+		public String toString() {
+			return "uniform";
+		}
+	}
+
+	/*
+	 * the generator of Gray et al, "Quickly Generating Billion-Record Synthetic
+	 * Databases", SIGMOD 1994, as used by YCSB
+	 */
+	static final class Zipfian extends KeyDistribution {
+		private final double theta;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+		private final double half;
+
+		Zipfian(long keys, double theta) {
+			super(keys);
+			if (theta <= 0.0 || theta >= 1.0)
+				throw new IllegalArgumentException("Zipfian theta must be between 0 and 1 exclusive: " + theta);
+			this.theta = theta;
+			this.zetan = zeta(keys, theta);
+			this.alpha = 1.0 / (1.0 - theta);
+			this.eta = (1.0 - Math.pow(2.0 / keys, 1.0 - theta)) / (1.0 - zeta(2, theta) / this.zetan);
+			this.half = 1.0 + Math.pow(0.5, theta);
+		}
+
+		private static double zeta(long n, double theta) {
+			double sum = 0.0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1.0 / Math.pow(i, theta);
+			}
+			return sum;
+		}
+
+		@Override
+		public long next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * this.zetan;
+			if (uz < 1.0 || this.keys == 1)
+				return 0;
+			if (uz < this.half)
+				return 1;
+			long key = (long) (this.keys * Math.pow(this.eta * u - this.eta + 1.0, this.alpha));
+			return Math.min(key, this.keys - 1);
+		}
+
+		@Override
+		public String toString() {
+			return "zipfian:" + this.theta;
+		}
+	}
+
+	static final class HotSet extends KeyDistribution {
+		private final double hotFraction;
+		private final double hotProbability;
+		private final long hotKeys;
+
+		HotSet(long keys, double hotFraction, double hotProbability) {
+			super(keys);
+			if (hotFraction <= 0.0 || hotFraction > 1.0 || hotProbability < 0.0 || hotProbability > 1.0)
+				throw new IllegalArgumentException("Invalid hot set: " + hotFraction + ":" + hotProbability);
+			this.hotFraction = hotFraction;
+			this.hotProbability = hotProbability;
+			this.hotKeys = Math.max(1, (long) (keys * hotFraction));
+		}
+
+		@Override
+		public long next(Random random) {
+			if (this.hotKeys == this.keys || random.nextDouble() < this.hotProbability)
+				return uniform(random, 0, this.hotKeys);
+			return uniform(random, this.hotKeys, this.keys);
+		}
+
+		@Override
+		public String toString() {
+			return "hotset:" + this.hotFraction + ":" + this.hotProbability;
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.policy.ClientPolicy;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.Statement;
+import com.aerospike.client.task.IndexTask;
+import com.aerospike.helper.Utils;
+import com.aerospike.helper.query.KeyQualifier;
+import com.aerospike.helper.query.KeyRecordIterator;
+import com.aerospike.helper.query.Qualifier;
+import com.aerospike.helper.query.QueryEngine;
+
+/**
+ * Drives a mix of operations through a {@link QueryEngine} from many threads
+ * and reports their throughput and latency.
+ * <p>
+ * With a target rate the load is open loop: operation <i>n</i> is scheduled
+ * to start at <code>n / targetRate</code> seconds, whether or not the
+ * operations before it have completed, and its latency is measured from that
+ * time. Without a target rate each thread starts its next operation when the
+ * previous one completes.
+ * <p>
+ * Records are keyed by a long from 0 to keys-1 and have the bins "id", "name"
+ * ("user&lt;id&gt;") and "age" (id modulo the distinct ages). The secondary
+ * index operations need an index on "age", see {@link #createIndex()}.
+ *
+ * @author peter
+ */
+public class LoadGenerator {
+
+	public static final String ID_BIN = "id";
+	public static final String NAME_BIN = "name";
+	public static final String AGE_BIN = "age";
+	public static final String UPDATED_BIN = "updated";
+	public static final String LIST_BIN = "list";
+	public static final String AGE_INDEX = "load_age_idx";
+
+	private static Logger log = Logger.getLogger(LoadGenerator.class);
+
+	private final QueryEngine engine;
+	private final AerospikeClient client;
+
+	public String namespace = "test";
+	public String setName = "load";
+	public long keys = 100000;
+	public int distinctAges = 100;
+	public int listElements = 1000;
+	public int threads = 16;
+	/** Scheduled operations per second, 0 to run each thread as fast as it can */
+	public double targetRate = 1000;
+	public long durationMillis = 60000;
+	/** Milliseconds between interval reports, 0 for none */
+	public long reportIntervalMillis = 10000;
+	public WorkloadMix mix = WorkloadMix.parse("key_select=100");
+	public KeyDistribution distribution;
+	public PrintStream out = System.out;
+
+	private final AtomicLong nextInsert = new AtomicLong();
+
+	/**
+	 * @param engine The QueryEngine to run the operations through
+	 * @param client The AerospikeClient for the collection operations, may be null if the mix has none
+	 */
+	public LoadGenerator(QueryEngine engine, AerospikeClient client) {
+		this.engine = engine;
+		this.client = client;
+	}
+
+	private Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(this.namespace);
+		stmt.setSetName(this.setName);
+		return stmt;
+	}
+
+	private Key key(long id) {
+		return new Key(this.namespace, this.setName, id);
+	}
+
+	private long age(long id) {
+		return id % this.distinctAges;
+	}
+
+	private static String name(long id) {
+		return "user" + id;
+	}
+
+	private Bin[] bins(long id) {
+		return new Bin[] { new Bin(ID_BIN, id), new Bin(NAME_BIN, name(id)), new Bin(AGE_BIN, age(id)) };
+	}
+
+	/**
+	 * Writes the records of the key space, records that exist are left alone
+	 *
+	 * @return The records written
+	 */
+	public long populate() {
+		long written = 0;
+		for (long id = 0; id < this.keys; id++) {
+			try {
+				this.engine.insert(this.namespace, this.setName, key(id), Arrays.asList(bins(id)));
+				written++;
+			} catch (AerospikeException e) {
+				if (e.getResultCode() != 5) // KEY_EXISTS_ERROR
+					throw e;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Creates the index on the "age" bin used by the secondary index operations, and waits for it
+	 */
+	public void createIndex() {
+		if (this.client == null)
+			throw new IllegalStateException("Creating an index needs an AerospikeClient");
+		if (this.engine.getIndex(String.join(":", this.namespace, this.setName, AGE_BIN)) == null) {
+			IndexTask task = this.client.createIndex(null, this.namespace, this.setName, AGE_INDEX, AGE_BIN, IndexType.NUMERIC);
+			task.waitTillComplete();
+			this.engine.refreshIndexes();
+		}
+	}
+
+	/**
+	 * Runs the workload for the configured duration
+	 *
+	 * @return The LoadReport
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public LoadReport run() throws InterruptedException {
+		if (this.mix.hasCollections() && this.client == null)
+			throw new IllegalStateException("Collection operations need an AerospikeClient");
+		final KeyDistribution keys = (this.distribution == null) ? KeyDistribution.uniform(this.keys) : this.distribution;
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(this.durationMillis);
+		final long interval = (this.targetRate > 0) ? (long) (1e9 / this.targetRate) : 0;
+		final AtomicLong sequence = new AtomicLong();
+		final LoadReport report = new LoadReport(this.mix, this.targetRate, start);
+		this.nextInsert.compareAndSet(0, this.keys);
+
+		ScheduledExecutorService reporter = null;
+		if (this.reportIntervalMillis > 0 && this.out != null) {
+			reporter = Executors.newSingleThreadScheduledExecutor(Utils.daemonThreadFactory("aerospike-helper-load-report"));
+			reporter.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					out.print(report.interval());
+				}
+			}, this.reportIntervalMillis, this.reportIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(this.threads, Utils.daemonThreadFactory("aerospike-helper-load"));
+		for (int i = 0; i < this.threads; i++) {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					Random random = ThreadLocalRandom.current();
+					while (true) {
+						long intended;
+						if (interval > 0) {
+							intended = start + sequence.getAndIncrement() * interval;
+							if (intended >= end)
+								break;
+							long wait = intended - System.nanoTime();
+							if (wait > 0)
+								LockSupport.parkNanos(wait);
+						} else {
+							intended = System.nanoTime();
+							if (intended >= end)
+								break;
+						}
+						LoadOperation operation = mix.pick(random);
+						long begin = System.nanoTime();
+						Throwable error = null;
+						try {
+							execute(operation, keys.next(random), random);
+						} catch (RuntimeException e) {
+							log.debug("Error running " + operation.label(), e);
+							error = e;
+						}
+						report.record(operation, intended, begin, System.nanoTime(), error);
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		/*
+		 * open loop operations scheduled before the end still run, a
+		 * saturated cluster makes the run overrun its duration
+		 */
+		while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+			log.debug("Waiting for " + (sequence.get() - report.getCount()) + " scheduled operations");
+		}
+		report.finish(System.nanoTime());
+		if (reporter != null)
+			reporter.shutdownNow();
+		return report;
+	}
+
+	/**
+	 * Runs one operation
+	 *
+	 * @param operation The operation
+	 * @param id        The key chosen by the distribution
+	 * @param random    The random source of the calling thread
+	 */
+	protected void execute(LoadOperation operation, long id, Random random) {
+		Qualifier age = new Qualifier(AGE_BIN, Qualifier.FilterOperation.EQ, Value.get(age(id)));
+		switch (operation) {
+			case KEY_SELECT:
+				drain(this.engine.select(statement(), new KeyQualifier(Value.get(id))));
+				break;
+			case SINDEX_SELECT:
+				drain(this.engine.select(statement(), age));
+				break;
+			case PREDEXP_SELECT:
+				drain(this.engine.select(statement(), age,
+						new Qualifier(NAME_BIN, Qualifier.FilterOperation.EQ, Value.get(name(id)))));
+				break;
+			case LUA_SELECT:
+				drain(this.engine.select(statement(), age,
+						new Qualifier(NAME_BIN, Qualifier.FilterOperation.START_WITH, false, Value.get(name(id)))));
+				break;
+			case INSERT:
+				long newId = this.nextInsert.getAndIncrement();
+				this.engine.insert(this.namespace, this.setName, key(newId), Arrays.asList(bins(newId)));
+				break;
+			case UPDATE:
+				try {
+					this.engine.update(statement(), Arrays.asList(new Bin(UPDATED_BIN, System.currentTimeMillis())), new KeyQualifier(Value.get(id)));
+				} catch (AerospikeException e) {
+					// deleted by a concurrent DELETE between the read and the write
+					if (e.getResultCode() != 2) // KEY_NOT_FOUND_ERROR
+						throw e;
+				}
+				break;
+			case DELETE:
+				this.engine.delete(statement(), new KeyQualifier(Value.get(id)));
+				break;
+			case LIST_ADD:
+				list(id).add(Value.get(random.nextInt(this.listElements)));
+				break;
+			case LIST_FIND:
+				list(id).find(Value.get(random.nextInt(this.listElements)));
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported operation " + operation);
+		}
+	}
+
+	/*
+	 * the deprecated LargeList is the collection the list operations measure,
+	 * it is named in full because an import cannot suppress the warning
+	 */
+	@SuppressWarnings("deprecation")
+	private com.aerospike.helper.collections.LargeList list(long id) {
+		com.aerospike.helper.collections.LargeList list = new com.aerospike.helper.collections.LargeList(this.client, null, key(id), LIST_BIN);
+		list.setMetrics(this.engine.getMetrics());
+		return list;
+	}
+
+	private static void drain(KeyRecordIterator results) {
+		try {
+			while (results.hasNext()) {
+				results.next();
+			}
+		} finally {
+			try {
+				results.close();
+			} catch (IOException e) {
+				log.debug("Error closing query results", e);
+			}
+		}
+	}
+
+	private static Options options() {
+		Options options = new Options();
+		options.addOption("h", "host", true, "Server host (default: 127.0.0.1)");
+		options.addOption("p", "port", true, "Server port (default: 3000)");
+		options.addOption("n", "namespace", true, "Namespace (default: test)");
+		options.addOption("s", "set", true, "Set name (default: load)");
+		options.addOption("k", "keys", true, "Number of keys (default: 100000)");
+		options.addOption("w", "workload", true, "Operation mix, e.g. key_select=70,update=20,insert=10 (default: key_select=100)");
+		options.addOption("D", "distribution", true, "Key distribution: uniform, zipfian[:theta] or hotset[:fraction[:probability]] (default: uniform)");
+		options.addOption("t", "threads", true, "Threads (default: 16)");
+		options.addOption("r", "rate", true, "Target operations per second, 0 for closed loop (default: 1000)");
+		options.addOption("d", "duration", true, "Duration in seconds (default: 60)");
+		options.addOption("i", "interval", true, "Seconds between interval reports, 0 for none (default: 10)");
+		options.addOption("j", "json", true, "File to write the JSON report to, - for standard out");
+		options.addOption("P", "populate", false, "Write the records of the key space before the run");
+		options.addOption("I", "index", false, "Create the index on the age bin before the run");
+		options.addOption("u", "usage", false, "Print this message");
+		return options;
+	}
+
+	/**
+	 * Runs a load test from the command line, use -u for the options
+	 *
+	 * @param args The command line
+	 * @throws Exception if the run fails
+	 */
+	public static void main(String[] args) throws Exception {
+		Options options = options();
+		CommandLine cl;
+		try {
+			CommandLineParser parser = new PosixParser();
+			cl = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp(LoadGenerator.class.getName(), options);
+			System.exit(1);
+			return;
+		}
+		if (cl.hasOption("u")) {
+			new HelpFormatter().printHelp(LoadGenerator.class.getName(), options);
+			return;
+		}
+		AerospikeClient client = new AerospikeClient(new ClientPolicy(), cl.getOptionValue("h", "127.0.0.1"),
+				Integer.parseInt(cl.getOptionValue("p", "3000")));
+		QueryEngine engine = new QueryEngine(client);
+		try {
+			LoadGenerator generator = new LoadGenerator(engine, client);
+			generator.namespace = cl.getOptionValue("n", generator.namespace);
+			generator.setName = cl.getOptionValue("s", generator.setName);
+			generator.keys = Long.parseLong(cl.getOptionValue("k", Long.toString(generator.keys)));
+			generator.mix = WorkloadMix.parse(cl.getOptionValue("w", "key_select=100"));
+			generator.distribution = KeyDistribution.parse(cl.getOptionValue("D", "uniform"), generator.keys);
+			generator.threads = Integer.parseInt(cl.getOptionValue("t", Integer.toString(generator.threads)));
+			generator.targetRate = Double.parseDouble(cl.getOptionValue("r", Double.toString(generator.targetRate)));
+			generator.durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(cl.getOptionValue("d", "60")));
+			generator.reportIntervalMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(cl.getOptionValue("i", "10")));
+			if (cl.hasOption("I"))
+				generator.createIndex();
+			if (cl.hasOption("P"))
+				System.out.println("populated " + generator.populate() + " records");
+			System.out.println("workload " + generator.mix + ", keys " + generator.distribution + ", "
+					+ generator.threads + " threads");
+			LoadReport report = generator.run();
+			System.out.print(report.toText());
+			String json = cl.getOptionValue("j");
+			if ("-".equals(json)) {
+				System.out.println(report.toJson());
+			} else if (json != null) {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(json), StandardCharsets.UTF_8);
+				try {
+					writer.write(report.toJson());
+				} finally {
+					writer.close();
+				}
+			}
+		} finally {
+			engine.close();
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+/**
+ * The operations a {@link LoadGenerator} can run
+ *
+ * @author peter
+ */
+public enum LoadOperation {
+	/** select by primary key */
+	KEY_SELECT,
+	/** select by a secondary index Filter only */
+	SINDEX_SELECT,
+	/** select by a secondary index Filter and a PredExp qualifier */
+	PREDEXP_SELECT,
+	/** select by a secondary index Filter and a qualifier evaluated in Lua */
+	LUA_SELECT,
+	/** insert a new record */
+	INSERT,
+	/** update a record by primary key */
+	UPDATE,
+	/** delete a record by primary key */
+	DELETE,
+	/** add an element to the LargeList of a record */
+	LIST_ADD,
+	/** find an element in the LargeList of a record */
+	LIST_FIND;
+
+	/**
+	 * @return true if the operation needs an AerospikeClient, not only a QueryEngine
+	 */
+	public boolean isCollection() {
+		return this == LIST_ADD || this == LIST_FIND;
+	}
+
+	/**
+	 * @return The name used in workload mixes and reports
+	 */
+	public String label() {
+		return name().toLowerCase();
+	}
+
+	/**
+	 * @param label The name used in workload mixes
+	 * @return The operation
+	 */
+	public static LoadOperation fromLabel(String label) {
+		try {
+			return valueOf(label.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown operation: " + label, e);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.aerospike.helper.metrics.LatencyHistogram;
+
+/**
+ * The results of a {@link LoadGenerator} run.
+ * <p>
+ * The latency of an operation is measured from the time it was scheduled to
+ * start, not from when a thread got round to it, so operations delayed by slow
+ * ones before them are not under reported (coordinated omission). The service
+ * time, from the actual start, is kept separately.
+ *
+ * @author peter
+ */
+public class LoadReport {
+
+	/**
+	 * The counts and latencies of one operation
+	 */
+	public static final class OperationStats {
+		private final LoadOperation operation;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LatencyHistogram service = new LatencyHistogram();
+		private final LatencyHistogram interval = new LatencyHistogram();
+		private final LongAdder errors = new LongAdder();
+
+		OperationStats(LoadOperation operation) {
+			this.operation = operation;
+		}
+
+		public LoadOperation getOperation() {
+			return this.operation;
+		}
+
+		/**
+		 * @return The latencies from the scheduled start
+		 */
+		public LatencyHistogram getLatency() {
+			return this.latency;
+		}
+
+		/**
+		 * @return The latencies from the actual start
+		 */
+		public LatencyHistogram getServiceTime() {
+			return this.service;
+		}
+
+		public long getCount() {
+			return this.latency.getCount();
+		}
+
+		public long getErrors() {
+			return this.errors.sum();
+		}
+	}
+
+	private final Map<LoadOperation, OperationStats> operations = new EnumMap<LoadOperation, OperationStats>(LoadOperation.class);
+	private final double targetRate;
+	private final long startNanos;
+	private volatile long endNanos;
+	private long intervalStartNanos;
+
+	/**
+	 * @param mix        The operations that are reported
+	 * @param targetRate The scheduled operations per second, 0 if not rate limited
+	 * @param startNanos The start of the run
+	 */
+	LoadReport(WorkloadMix mix, double targetRate, long startNanos) {
+		for (LoadOperation operation : mix.getShares().keySet()) {
+			this.operations.put(operation, new OperationStats(operation));
+		}
+		this.targetRate = targetRate;
+		this.startNanos = startNanos;
+		this.intervalStartNanos = startNanos;
+	}
+
+	/**
+	 * @param operation     The operation
+	 * @param intendedNanos When the operation was scheduled to start
+	 * @param startNanos    When the operation started
+	 * @param endNanos      When the operation completed
+	 * @param error         The error of the operation, or null
+	 */
+	void record(LoadOperation operation, long intendedNanos, long startNanos, long endNanos, Throwable error) {
+		OperationStats stats = this.operations.get(operation);
+		stats.latency.record(endNanos - intendedNanos);
+		stats.interval.record(endNanos - intendedNanos);
+		stats.service.record(endNanos - startNanos);
+		if (error != null)
+			stats.errors.increment();
+	}
+
+	void finish(long endNanos) {
+		this.endNanos = endNanos;
+	}
+
+	public OperationStats get(LoadOperation operation) {
+		return this.operations.get(operation);
+	}
+
+	public Collection<OperationStats> getOperations() {
+		return Collections.unmodifiableCollection(this.operations.values());
+	}
+
+	/**
+	 * @return The operations completed
+	 */
+	public long getCount() {
+		long count = 0;
+		for (OperationStats stats : this.operations.values()) {
+			count += stats.getCount();
+		}
+		return count;
+	}
+
+	public long getErrors() {
+		long errors = 0;
+		for (OperationStats stats : this.operations.values()) {
+			errors += stats.getErrors();
+		}
+		return errors;
+	}
+
+	public double getTargetRate() {
+		return this.targetRate;
+	}
+
+	/**
+	 * @return Nanoseconds from the start to the end of the run, or until now while it runs
+	 */
+	public long getElapsedNanos() {
+		long end = this.endNanos;
+		return ((end == 0) ? System.nanoTime() : end) - this.startNanos;
+	}
+
+	/**
+	 * @return The completed operations per second
+	 */
+	public double getThroughput() {
+		long nanos = getElapsedNanos();
+		return (nanos <= 0) ? 0.0 : getCount() * 1e9 / nanos;
+	}
+
+	/**
+	 * Formats the operations completed since the previous interval and starts a new interval.
+	 * Latencies recorded while the interval is read may be counted in the next one.
+	 *
+	 * @return One line per operation
+	 */
+	synchronized String interval() {
+		long now = System.nanoTime();
+		double seconds = (now - this.intervalStartNanos) / 1e9;
+		long elapsed = TimeUnit.NANOSECONDS.toSeconds(now - this.startNanos);
+		this.intervalStartNanos = now;
+		StringBuilder sb = new StringBuilder();
+		for (OperationStats stats : this.operations.values()) {
+			LatencyHistogram histogram = stats.interval;
+			sb.append(String.format(Locale.ROOT, "%5ds %-15s %10.1f ops/s  p50=%s p99=%s p99.9=%s max=%s ms%n",
+					elapsed, stats.operation.label(), (seconds <= 0) ? 0.0 : histogram.getCount() / seconds,
+					millis(histogram.percentile(50)), millis(histogram.percentile(99)),
+					millis(histogram.percentile(99.9)), millis(histogram.getMaxNanos())));
+			histogram.reset();
+		}
+		return sb.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * @return The summary of the run as text
+	 */
+	public String toText() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "elapsed %.1f s, %d operations, %d errors, %.1f ops/s",
+				getElapsedNanos() / 1e9, getCount(), getErrors(), getThroughput()));
+		if (this.targetRate > 0)
+			sb.append(String.format(Locale.ROOT, " (target %.1f ops/s)", this.targetRate));
+		sb.append(String.format("%n"));
+		for (OperationStats stats : this.operations.values()) {
+			LatencyHistogram histogram = stats.latency;
+			sb.append(String.format(Locale.ROOT, "%-15s count=%d errors=%d mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s ms (service p99=%s ms)%n",
+					stats.operation.label(), stats.getCount(), stats.getErrors(),
+					millis((long) histogram.getMeanNanos()), millis(histogram.percentile(50)), millis(histogram.percentile(90)),
+					millis(histogram.percentile(99)), millis(histogram.percentile(99.9)), millis(histogram.getMaxNanos()),
+					millis(stats.service.percentile(99))));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The summary of the run as a JSON object, latencies are in milliseconds
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"elapsed_ms\":").append(TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()));
+		sb.append(",\"target_rate\":").append(this.targetRate);
+		sb.append(",\"throughput\":").append(String.format(Locale.ROOT, "%.3f", getThroughput()));
+		sb.append(",\"count\":").append(getCount());
+		sb.append(",\"errors\":").append(getErrors());
+		sb.append(",\"operations\":{");
+		boolean first = true;
+		for (OperationStats stats : this.operations.values()) {
+			if (!first)
+				sb.append(",");
+			first = false;
+			sb.append("\"").append(stats.operation.label()).append("\":{");
+			sb.append("\"count\":").append(stats.getCount());
+			sb.append(",\"errors\":").append(stats.getErrors());
+			sb.append(",\"latency\":");
+			appendJson(sb, stats.latency);
+			sb.append(",\"service_time\":");
+			appendJson(sb, stats.service);
+			sb.append("}");
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+
+	private static void appendJson(StringBuilder sb, LatencyHistogram histogram) {
+		sb.append("{\"mean\":").append(millis((long) histogram.getMeanNanos()));
+		sb.append(",\"p50\":").append(millis(histogram.percentile(50)));
+		sb.append(",\"p90\":").append(millis(histogram.percentile(90)));
+		sb.append(",\"p99\":").append(millis(histogram.percentile(99)));
+		sb.append(",\"p99_9\":").append(millis(histogram.percentile(99.9)));
+		sb.append(",\"max\":").append(millis(histogram.getMaxNanos()));
+		sb.append("}");
+	}
+
+	@Override
+	public String toString() {
+		return toText();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+import java.util.Map;
+
+import com.aerospike.helper.InfoExecutor;
+import com.aerospike.helper.model.InfoParser;
+
+/**
+ * Counts of the transactions the nodes of a cluster have served, read from
+ * the namespace and node statistics. The difference between two readings
+ * taken around a benchmark is the number of server round-trips the
+ * benchmark made, provided nothing else uses the namespace meanwhile.
+ * <p>
+ * A single record transaction (read, write, operate, delete or UDF) is one
+ * round-trip. A batch is one round-trip to each node it reads from, and
+ * reads one record per key. The counters are those of server 3.9 and later.
+ *
+ * @author peter
+ */
+public final class ServerTransactions {
+
+	private static final String[] TRANSACTION_PREFIXES = { "client_read_", "client_write_", "client_delete_", "client_udf_", "client_tsvc_" };
+	private static final String[] BATCH_RECORD_PREFIXES = { "batch_sub_read_", "batch_sub_tsvc_" };
+	private static final String BATCH = "batch_index_initiate";
+
+	public static final ServerTransactions NONE = new ServerTransactions(0, 0, 0);
+
+	private final long transactions;
+	private final long batches;
+	private final long batchRecords;
+
+	ServerTransactions(long transactions, long batches, long batchRecords) {
+		this.transactions = transactions;
+		this.batches = batches;
+		this.batchRecords = batchRecords;
+	}
+
+	/**
+	 * Reads the counters of a namespace from every node
+	 *
+	 * @param info      The InfoExecutor to query the nodes with
+	 * @param namespace The namespace
+	 * @return The counters totalled across the nodes
+	 */
+	public static ServerTransactions read(InfoExecutor info, String namespace) {
+		String namespaceCommand = "namespace/" + namespace;
+		ServerTransactions total = NONE;
+		for (Map<String, String> responses : info.requestAll(namespaceCommand, "statistics").values()) {
+			total = total.plus(parse(responses.get(namespaceCommand), responses.get("statistics")));
+		}
+		return total;
+	}
+
+	/**
+	 * Parses the counters of one node
+	 *
+	 * @param namespaceInfo  The response to "namespace/&lt;namespace&gt;"
+	 * @param statisticsInfo The response to "statistics"
+	 * @return The counters of the node
+	 */
+	static ServerTransactions parse(String namespaceInfo, String statisticsInfo) {
+		final long[] counts = new long[3];
+		InfoParser.parse(namespaceInfo, ';', '=', new InfoParser.Visitor() {
+			@Override
+			public void pair(String name, String source, int valueStart, int valueEnd) {
+				if (valueStart < 0)
+					return;
+				if (startsWithAny(name, TRANSACTION_PREFIXES))
+					counts[0] += InfoParser.parseLong(source, valueStart, valueEnd, 0);
+				else if (startsWithAny(name, BATCH_RECORD_PREFIXES))
+					counts[2] += InfoParser.parseLong(source, valueStart, valueEnd, 0);
+			}
+		});
+		String batches = InfoParser.value(statisticsInfo, ';', '=', BATCH);
+		if (batches != null)
+			counts[1] = InfoParser.parseLong(batches, 0, batches.length(), 0);
+		return new ServerTransactions(counts[0], counts[1], counts[2]);
+	}
+
+	private static boolean startsWithAny(String name, String[] prefixes) {
+		for (String prefix : prefixes) {
+			if (name.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	public ServerTransactions plus(ServerTransactions other) {
+		return new ServerTransactions(this.transactions + other.transactions, this.batches + other.batches,
+				this.batchRecords + other.batchRecords);
+	}
+
+	public ServerTransactions minus(ServerTransactions other) {
+		return new ServerTransactions(this.transactions - other.transactions, this.batches - other.batches,
+				this.batchRecords - other.batchRecords);
+	}
+
+	/**
+	 * @return The single record transactions
+	 */
+	public long getTransactions() {
+		return this.transactions;
+	}
+
+	/**
+	 * @return The batch requests, counting each node a batch is sent to
+	 */
+	public long getBatches() {
+		return this.batches;
+	}
+
+	/**
+	 * @return The records read by batches
+	 */
+	public long getBatchRecords() {
+		return this.batchRecords;
+	}
+
+	/**
+	 * @return The requests sent to the nodes
+	 */
+	public long getRoundTrips() {
+		return this.transactions + this.batches;
+	}
+
+	/**
+	 * @return The records read or written
+	 */
+	public long getRecords() {
+		return this.transactions + this.batchRecords;
+	}
+
+	@Override
+	public String toString() {
+		return getRoundTrips() + " round-trips, " + getRecords() + " records";
+	}
+}
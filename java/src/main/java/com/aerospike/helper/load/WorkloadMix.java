@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.load;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The share of each operation in a workload, for example
+ * <code>key_select=70,update=20,insert=10</code>. The weights do not need to add
+ * up to 100, each operation is chosen in proportion to its weight.
+ *
+ * @author peter
+ */
+public final class WorkloadMix {
+
+	private final LoadOperation[] operations;
+	private final double[] cumulative;
+	private final Map<LoadOperation, Double> shares;
+
+	private WorkloadMix(Map<LoadOperation, Double> weights) {
+		double total = 0.0;
+		for (double weight : weights.values()) {
+			total += weight;
+		}
+		if (total <= 0.0)
+			throw new IllegalArgumentException("A workload needs at least one operation with a positive weight");
+		List<LoadOperation> chosen = new ArrayList<LoadOperation>();
+		List<Double> bounds = new ArrayList<Double>();
+		Map<LoadOperation, Double> normalized = new EnumMap<LoadOperation, Double>(LoadOperation.class);
+		double sum = 0.0;
+		for (Map.Entry<LoadOperation, Double> entry : weights.entrySet()) {
+			if (entry.getValue() <= 0.0)
+				continue;
+			sum += entry.getValue() / total;
+			chosen.add(entry.getKey());
+			bounds.add(sum);
+			normalized.put(entry.getKey(), entry.getValue() / total);
+		}
+		this.operations = chosen.toArray(new LoadOperation[chosen.size()]);
+		this.cumulative = new double[bounds.size()];
+		for (int i = 0; i < this.cumulative.length; i++) {
+			this.cumulative[i] = bounds.get(i);
+		}
+		this.cumulative[this.cumulative.length - 1] = 1.0;
+		this.shares = Collections.unmodifiableMap(normalized);
+	}
+
+	/**
+	 * @param spec Comma separated operation=weight pairs
+	 * @return The WorkloadMix
+	 */
+	public static WorkloadMix parse(String spec) {
+		Map<LoadOperation, Double> weights = new EnumMap<LoadOperation, Double>(LoadOperation.class);
+		for (String pair : spec.split(",")) {
+			if (pair.trim().isEmpty())
+				continue;
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected operation=weight: " + pair);
+			LoadOperation operation = LoadOperation.fromLabel(pair.substring(0, eq));
+			double weight;
+			try {
+				weight = Double.parseDouble(pair.substring(eq + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid weight: " + pair, e);
+			}
+			if (weight < 0.0)
+				throw new IllegalArgumentException("Negative weight: " + pair);
+			Double previous = weights.get(operation);
+			weights.put(operation, (previous == null) ? weight : previous + weight);
+		}
+		return new WorkloadMix(weights);
+	}
+
+	/**
+	 * @param random The random source of the calling thread
+	 * @return The next operation
+	 */
+	public LoadOperation pick(Random random) {
+		double u = random.nextDouble();
+		for (int i = 0; i < this.cumulative.length; i++) {
+			if (u < this.cumulative[i])
+				return this.operations[i];
+		}
+		return this.operations[this.operations.length - 1];
+	}
+
+	/**
+	 * @return The share of each operation, adding up to 1
+	 */
+	public Map<LoadOperation, Double> getShares() {
+		return this.shares;
+	}
+
+	public boolean contains(LoadOperation operation) {
+		return this.shares.containsKey(operation);
+	}
+
+	/**
+	 * @return true if the mix has an operation on a collection
+	 */
+	public boolean hasCollections() {
+		for (LoadOperation operation : this.operations) {
+			if (operation.isCollection())
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<LoadOperation, Double> entry : this.shares.entrySet()) {
+			if (sb.length() > 0)
+				sb.append(",");
+			sb.append(entry.getKey().label()).append("=").append(Math.round(entry.getValue() * 1000) / 10.0);
+		}
+		return sb.toString();
+	}
+}
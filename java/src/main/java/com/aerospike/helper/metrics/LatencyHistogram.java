@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram with power of two buckets.
+ * <p>
+ * Bucket 0 counts zero latencies, bucket i counts latencies from
+ * 2<sup>i-1</sup> to 2<sup>i</sup>-1 nanoseconds. Recording is a
+ * few atomic increments and never blocks.
+ *
+ * @author peter
+ */
+public final class LatencyHistogram {
+
+	public static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanos The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		this.buckets.incrementAndGet(bucket(nanos));
+		this.count.increment();
+		this.total.add(nanos);
+		long current;
+		while (nanos > (current = this.max.get()) && !this.max.compareAndSet(current, nanos)) {
+			// retry
+		}
+	}
+
+	/**
+	 * @param nanos A latency in nanoseconds
+	 * @return The bucket the latency is counted in
+	 */
+	public static int bucket(long nanos) {
+		return (nanos <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	/**
+	 * @param bucket The bucket
+	 * @return The highest latency, in nanoseconds, counted in the bucket
+	 */
+	public static long upperBound(int bucket) {
+		if (bucket <= 0)
+			return 0L;
+		if (bucket >= 63)
+			return Long.MAX_VALUE;
+		return (1L << bucket) - 1;
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	public long getTotalNanos() {
+		return this.total.sum();
+	}
+
+	public long getMaxNanos() {
+		return this.max.get();
+	}
+
+	/**
+	 * @return The mean latency in nanoseconds, or 0 if nothing was recorded
+	 */
+	public double getMeanNanos() {
+		long n = getCount();
+		return (n == 0) ? 0.0 : (double) getTotalNanos() / n;
+	}
+
+	/**
+	 * Estimates a percentile as the upper bound of the bucket it falls in,
+	 * capped at the maximum recorded latency
+	 *
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The latency in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long percentile(double percentile) {
+		long[] counts = getBuckets();
+		long n = 0;
+		for (long c : counts)
+			n += c;
+		if (n == 0)
+			return 0L;
+		long rank = (long) Math.ceil(n * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), getMaxNanos());
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * @return A copy of the bucket counts
+	 */
+	public long[] getBuckets() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Clears the histogram. Latencies recorded while clearing may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets.set(i, 0L);
+		}
+		this.count.reset();
+		this.total.reset();
+		this.max.set(0L);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and latency histogram of one operation type on one execution path.
+ * Counters are striped so concurrent updates do not contend.
+ *
+ * @author peter
+ */
+public final class OperationMetrics {
+
+	private final QueryMetrics.Operation operation;
+	private final QueryMetrics.Path path;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder recordsReturned = new LongAdder();
+	private final LongAdder recordsTouched = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	OperationMetrics(QueryMetrics.Operation operation, QueryMetrics.Path path) {
+		this.operation = operation;
+		this.path = path;
+	}
+
+	void record(long nanos, long returned, long touched, boolean error) {
+		this.count.increment();
+		if (error)
+			this.errors.increment();
+		if (returned > 0)
+			this.recordsReturned.add(returned);
+		if (touched > 0)
+			this.recordsTouched.add(touched);
+		this.latency.record(nanos);
+	}
+
+	public QueryMetrics.Operation getOperation() {
+		return this.operation;
+	}
+
+	public QueryMetrics.Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * @return The number of operations, including failed ones
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	public long getErrors() {
+		return this.errors.sum();
+	}
+
+	public long getRecordsReturned() {
+		return this.recordsReturned.sum();
+	}
+
+	/**
+	 * Records read by a select are not counted, the server does not report how
+	 * many records a query scanned.
+	 *
+	 * @return The number of records written or deleted
+	 */
+	public long getRecordsTouched() {
+		return this.recordsTouched.sum();
+	}
+
+	public LatencyHistogram getLatency() {
+		return this.latency;
+	}
+
+	void reset() {
+		this.count.reset();
+		this.errors.reset();
+		this.recordsReturned.reset();
+		this.recordsTouched.reset();
+		this.latency.reset();
+	}
+
+	@Override
+	public String toString() {
+		return QueryMetrics.name(this.operation, this.path);
+	}
+}
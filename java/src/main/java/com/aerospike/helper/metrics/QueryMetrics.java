@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts operations, records and latencies for each operation type and
+ * execution path, such as a select that fell back to the Lua filter.
+ * <p>
+ * All counters are created up front, recording an operation takes no
+ * locks and allocates nothing. The metrics can be read directly, through
+ * {@link MetricsListener}s, or over JMX.
+ *
+ * @author peter
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+	public static final String JMX_DOMAIN = "com.aerospike.helper";
+
+	private static Logger log = Logger.getLogger(QueryMetrics.class);
+
+	/**
+	 * The type of operation
+	 */
+	public enum Operation {
+		SELECT,
+		INSERT,
+		UPDATE,
+		DELETE,
+		LARGE_LIST_READ,
+		LARGE_LIST_WRITE,
+		TIME_SERIES_READ,
+		TIME_SERIES_WRITE
+	}
+
+	/**
+	 * How an operation found its records. A query using a secondary index
+	 * Filter is counted as SINDEX when the index is the only qualifier, and
+	 * as PREDEXP or LUA when other qualifiers are evaluated that way.
+	 */
+	public enum Path {
+		/** Single record or collection access by primary key */
+		KEY,
+		/** Secondary index query */
+		SINDEX,
+		/** Query or scan filtered by predicate expressions */
+		PREDEXP,
+		/** Query or scan filtered by the as_utility Lua stream UDF */
+		LUA,
+		/** Query or scan filtered by PredExp where possible and by the client for the rest */
+		CLIENT,
+		/** Query or scan without a filter */
+		SCAN,
+		/** The qualifiers cannot match, nothing is read */
+		NONE,
+		/** The operation failed before a path was chosen */
+		UNKNOWN
+	}
+
+	private final Map<Operation, Map<Path, OperationMetrics>> metrics = new EnumMap<Operation, Map<Path, OperationMetrics>>(Operation.class);
+	private final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+	private ObjectName objectName;
+
+	public QueryMetrics() {
+		for (Operation operation : Operation.values()) {
+			Map<Path, OperationMetrics> paths = new EnumMap<Path, OperationMetrics>(Path.class);
+			for (Path path : Path.values()) {
+				paths.put(path, new OperationMetrics(operation, path));
+			}
+			this.metrics.put(operation, paths);
+		}
+	}
+
+	/**
+	 * Records a completed operation
+	 *
+	 * @param operation       The operation type
+	 * @param path            The execution path, null if it was not chosen
+	 * @param nanos           The latency in nanoseconds
+	 * @param recordsReturned The number of records returned
+	 * @param recordsTouched  The number of records written or deleted, 0 for a select
+	 * @param error           The error, or null if the operation succeeded
+	 */
+	public void record(Operation operation, Path path, long nanos, long recordsReturned, long recordsTouched, Throwable error) {
+		if (path == null)
+			path = Path.UNKNOWN;
+		this.metrics.get(operation).get(path).record(nanos, recordsReturned, recordsTouched, error != null);
+		for (MetricsListener listener : this.listeners) {
+			try {
+				listener.operationCompleted(operation, path, nanos, recordsReturned, recordsTouched, error);
+			} catch (RuntimeException e) {
+				log.warn("MetricsListener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * @param operation The operation type
+	 * @param path      The execution path
+	 * @return The metrics of the operation type on the path
+	 */
+	public OperationMetrics get(Operation operation, Path path) {
+		return this.metrics.get(operation).get(path);
+	}
+
+	/**
+	 * @return The metrics of all operation types and paths that have been recorded
+	 */
+	public List<OperationMetrics> getRecorded() {
+		List<OperationMetrics> result = new ArrayList<OperationMetrics>();
+		for (Map<Path, OperationMetrics> paths : this.metrics.values()) {
+			for (OperationMetrics one : paths.values()) {
+				if (one.getCount() > 0)
+					result.add(one);
+			}
+		}
+		return result;
+	}
+
+	public void addListener(MetricsListener listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(MetricsListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server as
+	 * com.aerospike.helper:type=QueryMetrics,name=&lt;name&gt;
+	 *
+	 * @param name The name that distinguishes these metrics
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName newName = new ObjectName(JMX_DOMAIN + ":type=QueryMetrics,name=" + ObjectName.quote(name));
+		server.registerMBean(this, newName);
+		this.objectName = newName;
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered
+	 */
+	public synchronized void unregisterMBean() {
+		if (this.objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+		} catch (JMException e) {
+			log.warn("Cannot unregister " + this.objectName, e);
+		}
+		this.objectName = null;
+	}
+
+	static String name(Operation operation, Path path) {
+		return operation.name().toLowerCase() + "." + path.name().toLowerCase();
+	}
+
+	@Override
+	public Map<String, Long> getCounts() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (OperationMetrics one : getRecorded())
+			result.put(one.toString(), one.getCount());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getErrors() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (OperationMetrics one : getRecorded())
+			result.put(one.toString(), one.getErrors());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getRecordsReturned() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (OperationMetrics one : getRecorded())
+			result.put(one.toString(), one.getRecordsReturned());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getRecordsTouched() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (OperationMetrics one : getRecorded())
+			result.put(one.toString(), one.getRecordsTouched());
+		return result;
+	}
+
+	@Override
+	public Map<String, Double> getMeanLatencyMillis() {
+		Map<String, Double> result = new TreeMap<String, Double>();
+		for (OperationMetrics one : getRecorded())
+			result.put(one.toString(), one.getLatency().getMeanNanos() / 1000000.0);
+		return result;
+	}
+
+	@Override
+	public Map<String, Double> getP99LatencyMillis() {
+		Map<String, Double> result = new TreeMap<String, Double>();
+		for (OperationMetrics one : getRecorded())
+			result.put(one.toString(), one.getLatency().percentile(99.0) / 1000000.0);
+		return result;
+	}
+
+	@Override
+	public Map<String, Double> getMaxLatencyMillis() {
+		Map<String, Double> result = new TreeMap<String, Double>();
+		for (OperationMetrics one : getRecorded())
+			result.put(one.toString(), one.getLatency().getMaxNanos() / 1000000.0);
+		return result;
+	}
+
+	/**
+	 * Clears all counters and histograms
+	 */
+	@Override
+	public void reset() {
+		for (Map<Path, OperationMetrics> paths : this.metrics.values()) {
+			for (OperationMetrics one : paths.values())
+				one.reset();
+		}
+	}
+}
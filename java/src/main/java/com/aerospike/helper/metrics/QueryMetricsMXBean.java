@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link QueryMetrics}. Each map is keyed by
+ * operation.path, for example "select.lua", and only holds
+ * the operations that have been recorded.
+ *
+ * @author peter
+ */
+public interface QueryMetricsMXBean {
+
+	Map<String, Long> getCounts();
+
+	Map<String, Long> getErrors();
+
+	Map<String, Long> getRecordsReturned();
+
+	Map<String, Long> getRecordsTouched();
+
+	Map<String, Double> getMeanLatencyMillis();
+
+	Map<String, Double> getP99LatencyMillis();
+
+	Map<String, Double> getMaxLatencyMillis();
+
+	void reset();
+}
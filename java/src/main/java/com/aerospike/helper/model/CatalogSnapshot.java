@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class represents a point in time view of the cluster
+ * metadata: namespaces, sets, secondary indexes and UDF modules.
+ * <p>
+ * A snapshot is never modified once it is published, a refresh builds
+ * a new snapshot and swaps it in. Readers can hold on to a snapshot
+ * without any locking.
+ *
+ * @author peter
+ */
+public final class CatalogSnapshot {
+
+	/**
+	 * The snapshot used before the first refresh has completed
+	 */
+	public static final CatalogSnapshot EMPTY = new CatalogSnapshot(
+			new TreeMap<String, Namespace>(),
+			new TreeMap<String, Index>(),
+			new TreeMap<String, Module>(),
+			"", 0L);
+
+	private final Map<String, Namespace> namespaces;
+	private final Map<String, Index> indexes;
+	private final Map<String, Module> modules;
+	private final String membership;
+	private final long timestamp;
+
+	public CatalogSnapshot(Map<String, Namespace> namespaces, Map<String, Index> indexes,
+			Map<String, Module> modules, String membership, long timestamp) {
+		this.namespaces = Collections.unmodifiableMap(new TreeMap<String, Namespace>(namespaces));
+		this.indexes = Collections.unmodifiableMap(new TreeMap<String, Index>(indexes));
+		this.modules = Collections.unmodifiableMap(new TreeMap<String, Module>(modules));
+		this.membership = membership;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Creates a copy of this snapshot with the namespaces replaced
+	 *
+	 * @param newNamespaces Namespaces keyed by name
+	 * @param newMembership The membership the namespaces were read from
+	 * @return A new snapshot
+	 */
+	public CatalogSnapshot withNamespaces(Map<String, Namespace> newNamespaces, String newMembership) {
+		return new CatalogSnapshot(newNamespaces, this.indexes, this.modules, newMembership, System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a copy of this snapshot with the indexes replaced
+	 *
+	 * @param newIndexes Indexes keyed by namespace:set:bin
+	 * @return A new snapshot
+	 */
+	public CatalogSnapshot withIndexes(Map<String, Index> newIndexes) {
+		return new CatalogSnapshot(this.namespaces, newIndexes, this.modules, this.membership, System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a copy of this snapshot with the modules replaced
+	 *
+	 * @param newModules Modules keyed by file name
+	 * @return A new snapshot
+	 */
+	public CatalogSnapshot withModules(Map<String, Module> newModules) {
+		return new CatalogSnapshot(this.namespaces, this.indexes, newModules, this.membership, System.currentTimeMillis());
+	}
+
+	public Namespace getNamespace(String name) {
+		return this.namespaces.get(name);
+	}
+
+	public Collection<Namespace> getNamespaces() {
+		return this.namespaces.values();
+	}
+
+	/**
+	 * Gets an index by its key
+	 *
+	 * @param key The key = namespace:set:bin built from the indexed Bin
+	 * @return An Index model object, or null
+	 */
+	public Index getIndex(String key) {
+		return this.indexes.get(key);
+	}
+
+	public Map<String, Index> getIndexes() {
+		return this.indexes;
+	}
+
+	public Module getModule(String name) {
+		return this.modules.get(name);
+	}
+
+	public Map<String, Module> getModules() {
+		return this.modules;
+	}
+
+	/**
+	 * The sorted, comma separated node names of the cluster
+	 * at the time the namespaces were read
+	 *
+	 * @return the membership string
+	 */
+	public String getMembership() {
+		return this.membership;
+	}
+
+	/**
+	 * @return the time, in milliseconds, this snapshot was built
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * @return true if this snapshot has been loaded from the cluster
+	 */
+	public boolean isLoaded() {
+		return this.timestamp > 0;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Saves a {@link CatalogSnapshot} to a local file and loads it back, so a new
+ * process can plan queries before it has read the catalog from the cluster.
+ * <p>
+ * Only what query planning needs is kept: the namespace and set names, the
+ * index definitions and the module names and hashes. Statistics and UDF
+ * source are not saved.
+ *
+ * @author peter
+ */
+public final class CatalogSnapshotStore {
+
+	private static final int MAGIC = 0x41534843; // "ASHC"
+	private static final int VERSION = 1;
+
+	private static Logger log = Logger.getLogger(CatalogSnapshotStore.class);
+
+	private CatalogSnapshotStore() {
+	}
+
+	/**
+	 * Saves a snapshot. The file is replaced atomically, a reader never sees a partial file.
+	 *
+	 * @param snapshot The snapshot to save
+	 * @param file     The file to save to
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void save(CatalogSnapshot snapshot, File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(snapshot.getTimestamp());
+				out.writeUTF(snapshot.getMembership());
+
+				out.writeInt(snapshot.getNamespaces().size());
+				for (Namespace namespace : snapshot.getNamespaces()) {
+					out.writeUTF(namespace.getName());
+					out.writeInt(namespace.getSets().size());
+					for (Set set : namespace.getSets()) {
+						out.writeUTF(set.getName());
+					}
+				}
+
+				out.writeInt(snapshot.getIndexes().size());
+				for (Index index : snapshot.getIndexes().values()) {
+					out.writeUTF(index.toInfoString());
+				}
+
+				out.writeInt(snapshot.getModules().size());
+				for (Module module : snapshot.getModules().values()) {
+					out.writeUTF(module.toPackageInfo());
+				}
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			if (temp.exists())
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Loads a snapshot
+	 *
+	 * @param file The file to load from
+	 * @return The snapshot, or null if the file does not exist or cannot be read
+	 */
+	public static CatalogSnapshot load(File file) {
+		if (!file.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					log.warn("Ignoring catalog file " + file + ", unknown format");
+					return null;
+				}
+				long timestamp = in.readLong();
+				String membership = in.readUTF();
+
+				Map<String, Namespace> namespaces = new TreeMap<String, Namespace>();
+				int namespaceCount = in.readInt();
+				for (int i = 0; i < namespaceCount; i++) {
+					Namespace namespace = new Namespace(in.readUTF());
+					int setCount = in.readInt();
+					for (int j = 0; j < setCount; j++) {
+						namespace.addSet("ns=" + namespace.getName() + ":set=" + in.readUTF());
+					}
+					namespaces.put(namespace.getName(), namespace);
+				}
+
+				Map<String, Index> indexes = new TreeMap<String, Index>();
+				int indexCount = in.readInt();
+				for (int i = 0; i < indexCount; i++) {
+					Index index = new Index(in.readUTF());
+					indexes.put(index.toKeyString(), index);
+				}
+
+				Map<String, Module> modules = new TreeMap<String, Module>();
+				int moduleCount = in.readInt();
+				for (int i = 0; i < moduleCount; i++) {
+					Module module = new Module(in.readUTF());
+					modules.put(module.getName(), module);
+				}
+				return new CatalogSnapshot(namespaces, indexes, modules, membership, timestamp);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.warn("Cannot read catalog file " + file, e);
+			return null;
+		}
+	}
+}
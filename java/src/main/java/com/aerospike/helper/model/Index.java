@@ -61,20 +61,36 @@ public class Index {
 	public void setIndexInfo(String info) {
 		//ns=phobos_sindex:set=longevity:indexname=str_100_idx:num_bins=1:bins=str_100_bin:type=TEXT:sync_state=synced:state=RW;
 		//ns=test:set=Customers:indexname=mail_index_userss:bin=email:type=STRING:indextype=LIST:path=email:sync_state=synced:state=RW
-		if (!info.isEmpty()) {
-			String[] parts = info.split(":");
-			for (String part : parts) {
-				kvPut(part);
-			}
+		if (values == null) {
+			values = new HashMap<String, String>();
 		}
+		InfoParser.parse(info, ':', '=', new InfoParser.Visitor() {
+			@Override
+			public void pair(String name, String source, int valueStart, int valueEnd) {
+				values.put(name, InfoParser.reuse(values.get(name), source, valueStart, valueEnd));
+			}
+		});
 	}
 
-	private void kvPut(String kv) {
-		if (values == null) {
-			values = new HashMap<String, String>();
+	/**
+	 * @return The index definition as an "info" string, as read by {@link #setIndexInfo(String)}
+	 */
+	public String toInfoString() {
+		StringJoiner joiner = new StringJoiner(":");
+		for (Map.Entry<String, String> entry : this.values.entrySet()) {
+			joiner.add(entry.getValue() == null ? entry.getKey() : entry.getKey() + "=" + entry.getValue());
 		}
-		String[] kvParts = kv.split("=");
-		this.values.put(kvParts[0], kvParts.length == 1 ? null : kvParts[1]);
+		return joiner.toString();
+	}
+
+	/**
+	 * Compares the definition and state of two indexes
+	 *
+	 * @param other The Index to compare with
+	 * @return true if all values are equal
+	 */
+	public boolean sameAs(Index other) {
+		return other != null && this.values.equals(other.values);
 	}
 
 	@Override
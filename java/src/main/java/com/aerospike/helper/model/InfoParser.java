@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Single pass tokenizer for "Info" responses of the form
+ * <code>name1=value1;name2=value2</code>.
+ * <p>
+ * Values are not copied, the {@link Visitor} is given the bounds of each value
+ * in the source string. Names are interned in a bounded shared map, so the
+ * statistics of every node and refresh hold one copy of each name.
+ *
+ * @author peter
+ */
+public final class InfoParser {
+
+	/**
+	 * Receives the name/value pairs of an Info string
+	 */
+	public interface Visitor {
+		/**
+		 * Called for each name/value pair
+		 *
+		 * @param name       The interned name
+		 * @param source     The Info string
+		 * @param valueStart Index of the first character of the value, or -1 if the pair has no value
+		 * @param valueEnd   Index after the last character of the value
+		 */
+		void pair(String name, String source, int valueStart, int valueEnd);
+	}
+
+	private static final int MAX_NAMES = 8192;
+	private static final ConcurrentMap<String, String> NAMES = new ConcurrentHashMap<String, String>(1024);
+
+	private InfoParser() {
+	}
+
+	/**
+	 * Parses an Info string
+	 *
+	 * @param source         Info string from a node
+	 * @param pairSeparator  The separator between pairs, usually ';' or ':'
+	 * @param valueSeparator The separator between name and value, usually '='
+	 * @param visitor        Receives each pair
+	 */
+	public static void parse(String source, char pairSeparator, char valueSeparator, Visitor visitor) {
+		if (source == null)
+			return;
+		parse(source, 0, source.length(), pairSeparator, valueSeparator, visitor);
+	}
+
+	/**
+	 * Parses part of an Info string, such as one set in a list of sets
+	 *
+	 * @param source         Info string from a node
+	 * @param from           Index of the first character to parse
+	 * @param to             Index after the last character to parse
+	 * @param pairSeparator  The separator between pairs, usually ';' or ':'
+	 * @param valueSeparator The separator between name and value, usually '='
+	 * @param visitor        Receives each pair
+	 */
+	public static void parse(String source, int from, int to, char pairSeparator, char valueSeparator, Visitor visitor) {
+		int start = from;
+		while (start < to) {
+			int end = source.indexOf(pairSeparator, start);
+			if (end < 0 || end > to)
+				end = to;
+			if (end > start) {
+				int eq = source.indexOf(valueSeparator, start);
+				if (eq < 0 || eq > end) {
+					visitor.pair(intern(source, start, end), source, -1, end);
+				} else {
+					visitor.pair(intern(source, start, eq), source, eq + 1, end);
+				}
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Finds the value of a name without parsing the whole string
+	 *
+	 * @param source         Info string from a node
+	 * @param pairSeparator  The separator between pairs
+	 * @param valueSeparator The separator between name and value
+	 * @param name           The name to find
+	 * @return The value, or null if the name is not present
+	 */
+	public static String value(String source, char pairSeparator, char valueSeparator, String name) {
+		if (source == null)
+			return null;
+		return value(source, 0, source.length(), pairSeparator, valueSeparator, name);
+	}
+
+	/**
+	 * Finds the value of a name in part of an Info string
+	 *
+	 * @param source         Info string from a node
+	 * @param from           Index of the first character to search
+	 * @param to             Index after the last character to search
+	 * @param pairSeparator  The separator between pairs
+	 * @param valueSeparator The separator between name and value
+	 * @param name           The name to find
+	 * @return The value, or null if the name is not present
+	 */
+	public static String value(String source, int from, int to, char pairSeparator, char valueSeparator, String name) {
+		int nameLength = name.length();
+		int start = from;
+		while (start < to) {
+			int end = source.indexOf(pairSeparator, start);
+			if (end < 0 || end > to)
+				end = to;
+			if (end - start > nameLength && source.charAt(start + nameLength) == valueSeparator
+					&& source.regionMatches(start, name, 0, nameLength)) {
+				return source.substring(start + nameLength + 1, end);
+			}
+			start = end + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a long from part of a string without allocating
+	 *
+	 * @param source       The string
+	 * @param start        Index of the first character
+	 * @param end          Index after the last character
+	 * @param defaultValue Returned if the characters are not a number
+	 * @return the parsed number or the default value
+	 */
+	public static long parseLong(String source, int start, int end, long defaultValue) {
+		if (start < 0 || start >= end)
+			return defaultValue;
+		boolean negative = false;
+		int i = start;
+		if (source.charAt(i) == '-') {
+			negative = true;
+			i++;
+			if (i == end)
+				return defaultValue;
+		}
+		if (end - i > 19)
+			return defaultValue;
+		long result = 0;
+		for (; i < end; i++) {
+			int digit = source.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return defaultValue;
+			result = result * 10 + digit;
+			if (result < 0)
+				return defaultValue; // overflow
+		}
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Compares part of a string with another string without allocating
+	 *
+	 * @param value  The string to compare with, may be null
+	 * @param source The string
+	 * @param start  Index of the first character
+	 * @param end    Index after the last character
+	 * @return true if the characters are equal
+	 */
+	public static boolean regionEquals(String value, String source, int start, int end) {
+		return value != null && value.length() == end - start && source.regionMatches(start, value, 0, end - start);
+	}
+
+	/**
+	 * Returns the part of a string, reusing the previous value if the characters are unchanged
+	 *
+	 * @param previous The previous value, may be null
+	 * @param source   The string
+	 * @param start    Index of the first character, or -1 for no value
+	 * @param end      Index after the last character
+	 * @return The value
+	 */
+	public static String reuse(String previous, String source, int start, int end) {
+		if (start < 0)
+			return null;
+		if (regionEquals(previous, source, start, end))
+			return previous;
+		return source.substring(start, end);
+	}
+
+	/**
+	 * Interns part of a string in the name map. Once the map holds
+	 * 8192 names, new names are returned without being interned.
+	 *
+	 * @param source The string
+	 * @param start  Index of the first character
+	 * @param end    Index after the last character
+	 * @return The interned name
+	 */
+	public static String intern(String source, int start, int end) {
+		String name = source.substring(start, end);
+		String interned = NAMES.get(name);
+		if (interned != null)
+			return interned;
+		if (NAMES.size() >= MAX_NAMES)
+			return name; // do not grow without bound
+		interned = NAMES.putIfAbsent(name, name);
+		return (interned != null) ? interned : name;
+	}
+}
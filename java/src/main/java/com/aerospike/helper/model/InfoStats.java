@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for the statistics of a cluster object read from "Info" strings.
+ * <p>
+ * Known counters are held in a primitive array, every other statistic is held
+ * as a string keyed by its interned name. Parsing an Info string into an existing
+ * instance allocates nothing for counters, nor for values that have not changed.
+ *
+ * @author peter
+ */
+public abstract class InfoStats {
+
+	private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+	protected final long[] counters;
+	protected final Map<String, String> values = new LinkedHashMap<String, String>();
+	private boolean adding;
+
+	private final InfoParser.Visitor visitor = new InfoParser.Visitor() {
+		@Override
+		public void pair(String name, String source, int valueStart, int valueEnd) {
+			int index = counterIndex(name);
+			if (index >= 0) {
+				long value = InfoParser.parseLong(source, valueStart, valueEnd, NOT_A_NUMBER);
+				if (value != NOT_A_NUMBER) {
+					counters[index] = adding ? counters[index] + value : value;
+					return;
+				}
+			}
+			values.put(name, InfoParser.reuse(values.get(name), source, valueStart, valueEnd));
+		}
+	};
+
+	protected InfoStats(int counterCount) {
+		this.counters = new long[counterCount];
+	}
+
+	/**
+	 * @param name The interned statistic name
+	 * @return The counter index of the name, or -1 if the name is not a counter
+	 */
+	protected abstract int counterIndex(String name);
+
+	/**
+	 * @param index The counter index
+	 * @return The name of the counter
+	 */
+	protected abstract String counterName(int index);
+
+	/**
+	 * Replaces the statistics with those in an Info string
+	 *
+	 * @param info          Info string from a node
+	 * @param pairSeparator The separator between statistics
+	 */
+	public void setInfo(String info, char pairSeparator) {
+		if (info != null)
+			setInfo(info, 0, info.length(), pairSeparator);
+	}
+
+	/**
+	 * Replaces the statistics with those in part of an Info string
+	 *
+	 * @param info          Info string from a node
+	 * @param from          Index of the first character to parse
+	 * @param to            Index after the last character to parse
+	 * @param pairSeparator The separator between statistics
+	 */
+	public void setInfo(String info, int from, int to, char pairSeparator) {
+		this.adding = false;
+		InfoParser.parse(info, from, to, pairSeparator, '=', this.visitor);
+	}
+
+	/**
+	 * Adds the counters in an Info string to the current counters,
+	 * other statistics are replaced
+	 *
+	 * @param info          Info string from a node
+	 * @param pairSeparator The separator between statistics
+	 */
+	public void mergeInfo(String info, char pairSeparator) {
+		if (info != null)
+			mergeInfo(info, 0, info.length(), pairSeparator);
+	}
+
+	/**
+	 * Adds the counters in part of an Info string to the current counters,
+	 * other statistics are replaced
+	 *
+	 * @param info          Info string from a node
+	 * @param from          Index of the first character to parse
+	 * @param to            Index after the last character to parse
+	 * @param pairSeparator The separator between statistics
+	 */
+	public void mergeInfo(String info, int from, int to, char pairSeparator) {
+		this.adding = true;
+		InfoParser.parse(info, from, to, pairSeparator, '=', this.visitor);
+	}
+
+	/**
+	 * Adds the counters of another instance to this one, other statistics are replaced
+	 *
+	 * @param other The statistics to add
+	 */
+	public void add(InfoStats other) {
+		for (int i = 0; i < this.counters.length; i++) {
+			this.counters[i] += other.counters[i];
+		}
+		this.values.putAll(other.values);
+	}
+
+	/**
+	 * Sets all counters to zero
+	 */
+	public void clear() {
+		Arrays.fill(this.counters, 0L);
+	}
+
+	/**
+	 * Gets a statistic that is not a counter
+	 *
+	 * @param name The statistic name
+	 * @return The value, or null
+	 */
+	public String getValue(String name) {
+		return this.values.get(name);
+	}
+
+	/**
+	 * Creates a list of all statistics, counters are Long values
+	 *
+	 * @param parent The parent object of the NameValuePairs
+	 * @return The List of NameValuePairs
+	 */
+	public List<NameValuePair> toNameValuePairs(Object parent) {
+		List<NameValuePair> result = new ArrayList<NameValuePair>(this.counters.length + this.values.size());
+		for (int i = 0; i < this.counters.length; i++) {
+			result.add(new NameValuePair(parent, counterName(i), this.counters[i]));
+		}
+		for (Map.Entry<String, String> entry : this.values.entrySet()) {
+			result.add(new NameValuePair(parent, entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+}
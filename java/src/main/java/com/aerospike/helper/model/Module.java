@@ -3,6 +3,7 @@ package com.aerospike.helper.model;
 import gnu.crypto.util.Base64;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -16,6 +17,10 @@ import org.apache.log4j.Logger;
 /**
  * This class represents a UDF module
  * registered with the cluster
+ * <p>
+ * The source of a module is fetched only when it is asked for, through a
+ * {@link SourceLoader}, and is held softly so it can be reclaimed under
+ * memory pressure and fetched again.
  *
  * @author peter
  */
@@ -23,10 +28,22 @@ public class Module {
 
 	private static Logger log = Logger.getLogger(Module.class);
 
+	/**
+	 * Fetches the "udf-get" detail string of a module from the cluster
+	 */
+	public interface SourceLoader {
+		/**
+		 * @param module The module to fetch
+		 * @return The detail Info string, or null if it cannot be fetched
+		 */
+		String load(Module module);
+	}
+
 	private String name;
 	protected Map<String, String> values;
-	private String source;
+	private SoftReference<String> source;
 	private List<Function> functions;
+	private SourceLoader loader;
 
 	private static final Pattern fn_name = Pattern.compile("function\\s+([a-zA-Z_$][a-zA-Z\\d_$]*\\(.*\\))");
 
@@ -58,6 +75,29 @@ public class Module {
 		return null;
 	}
 
+	/**
+	 * @return The generation hash from "udf-list", which changes when the module is re-registered
+	 */
+	public String getHash() {
+		return (this.values == null) ? null : this.values.get("hash");
+	}
+
+	/**
+	 * Sets the loader used to fetch the source the first time it is asked for
+	 *
+	 * @param loader The SourceLoader
+	 */
+	public synchronized void setSourceLoader(SourceLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * @return The module as a "udf-list" entry, as read by {@link #setPackageInfo(String)}
+	 */
+	public String toPackageInfo() {
+		return "filename=" + this.name + ",hash=" + getHash() + ",type=" + this.values.get("type");
+	}
+
 	public void setPackageInfo(String info) {
 		//filename=a_test_udf.lua,hash=874473d6583f6c4d16ce5ff3e14f2dca75bee062,type=LUA
 		if (!info.isEmpty()) {
@@ -73,8 +113,10 @@ public class Module {
 	}
 
 	private void kvPut(String kv, Map<String, String> map) {
-		String[] kvParts = kv.split("=");
-		map.put(kvParts[0], kvParts[1]);
+		// split on the first '=' only, base64 values end with '=' padding
+		int eq = kv.indexOf('=');
+		if (eq > 0)
+			map.put(kv.substring(0, eq), kv.substring(eq + 1));
 	}
 
 	public void setDetailInfo(String info) {
@@ -85,11 +127,11 @@ public class Module {
 		}
 		try {
 			String code = "";
-			// key name change
+			// key name change, the encoded content is not kept in the values
 			if (values.containsKey("recordContent"))
-				code = values.get("recordContent");
+				code = values.remove("recordContent");
 			else
-				code = values.get("content");
+				code = values.remove("content");
 			//code = code.substring(0, code.length()-2);
 			if (code != null)
 				setSource(new String(Base64.decode(code)));
@@ -113,12 +155,34 @@ public class Module {
 		return result;
 	}
 
-	public String getSource() {
-		return source;
+	/**
+	 * Gets the source of the module, fetching it from the cluster if it is not held
+	 *
+	 * @return The Lua source, or null if it is not available
+	 */
+	public synchronized String getSource() {
+		String code = (this.source == null) ? null : this.source.get();
+		if (code == null && this.loader != null) {
+			String detail = this.loader.load(this);
+			if (detail != null) {
+				setDetailInfo(detail);
+				code = this.source.get();
+			}
+		}
+		return code;
+	}
+
+	/**
+	 * @return The functions declared in the module, fetching the source if needed
+	 */
+	public synchronized List<Function> getFunctions() {
+		if (this.functions == null)
+			getSource();
+		return this.functions;
 	}
 
-	public void setSource(String source) {
-		this.source = source;
+	public synchronized void setSource(String source) {
+		this.source = new SoftReference<String>(source);
 		Matcher matcher = fn_name.matcher(source);
 		functions = new ArrayList<Function>();
 		while (matcher.find()) {
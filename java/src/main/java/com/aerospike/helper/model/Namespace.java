@@ -16,11 +16,12 @@
  */
 package com.aerospike.helper.model;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,7 +34,8 @@ import java.util.Map;
 public class Namespace {
 	protected String name;
 	protected Map<String, Set> sets;
-	protected Map<String, NameValuePair> values;
+	protected final NamespaceStats stats = new NamespaceStats();
+	protected final Map<String, NamespaceStats> nodeStats = new LinkedHashMap<String, NamespaceStats>();
 	protected java.util.Set<String> dontMerge = new HashSet<String>(Arrays.asList("available-bin-names",
 			"cold-start-evict-ttl",
 			"current-time",
@@ -51,7 +53,6 @@ public class Namespace {
 
 	public Namespace(String name) {
 		this.name = name;
-		values = new HashMap<String, NameValuePair>();
 	}
 
 	@Override
@@ -68,9 +69,9 @@ public class Namespace {
 	public void addSet(String setData) {
 		if (sets == null)
 			sets = new HashMap<String, Set>();
-		Set newSet = new Set(this, setData);
-		Set existingSet = sets.get(newSet.getName());
+		Set existingSet = sets.get(Set.nameFromInfo(setData, 0, setData.length()));
 		if (existingSet == null) {
+			Set newSet = new Set(this, setData);
 			sets.put(newSet.getName(), newSet);
 		} else {
 			existingSet.setInfo(setData);
@@ -80,15 +81,47 @@ public class Namespace {
 	public void mergeSet(String setData) {
 		if (sets == null)
 			sets = new HashMap<String, Set>();
-		Set newSet = new Set(this, setData);
-		Set existingSet = sets.get(newSet.getName());
+		Set existingSet = sets.get(Set.nameFromInfo(setData, 0, setData.length()));
 		if (existingSet == null) {
+			Set newSet = new Set(this, setData);
 			sets.put(newSet.getName(), newSet);
 		} else {
 			existingSet.mergeSetInfo(setData);
 		}
 	}
 
+	/**
+	 * Merges the statistics of all sets on a node, as returned by the "sets/&lt;namespace&gt;" command
+	 *
+	 * @param node     The name of the node
+	 * @param setsData Info string from the node
+	 */
+	public void mergeSets(String node, String setsData) {
+		if (setsData == null)
+			return;
+		if (sets == null)
+			sets = new HashMap<String, Set>();
+		int length = setsData.length();
+		int start = 0;
+		while (start < length) {
+			int end = setsData.indexOf(';', start);
+			if (end < 0)
+				end = length;
+			if (end > start) {
+				String setName = Set.nameFromInfo(setsData, start, end);
+				Set set = sets.get(setName);
+				if (set == null) {
+					set = new Set(this, "");
+					set.mergeSetInfo(node, setsData, start, end);
+					sets.put(set.getName(), set);
+				} else {
+					set.mergeSetInfo(node, setsData, start, end);
+				}
+			}
+			start = end + 1;
+		}
+	}
+
 	public Collection<Set> getSets() {
 		if (sets == null)
 			sets = new HashMap<String, Set>();
@@ -108,55 +141,47 @@ public class Namespace {
 	}
 
 	public List<NameValuePair> getValues() {
-		List<NameValuePair> result = new ArrayList<NameValuePair>();
-		if (this.values != null) {
-			java.util.Set<String> keys = this.values.keySet();
-			for (String key : keys) {
-				NameValuePair nvp = this.values.get(key);
-				result.add(nvp);
-			}
-		}
-		return result;
-	}
-
-	public void setInfo(String info, Map<String, NameValuePair> map, boolean merge) {
-		/*
-		type=device;objects=0;master-objects=0;prole-objects=0;expired-objects=0;evicted-objects=0; \
-		set-deleted-objects=0;set-evicted-objects=0;used-bytes-memory=18688;data-used-bytes-memory=0; \
-		index-used-bytes-memory=0;sindex-used-bytes-memory=18688;free-pct-memory=99;max-void-time=0; \
-		min-evicted-ttl=0;max-evicted-ttl=0;non-expirable-objects=0;current-time=137899728; \
-		stop-writes=false;hwm-breached=false;available-bin-names=32767;ldt_reads=0;ldt_read_success=0; \
-		ldt_deletes=0;ldt_delete_success=0;ldt_writes=0;ldt_write_success=0;ldt_updates=0;ldt_errors=0; \
-		used-bytes-disk=0;free-pct-disk=100;available_pct=99;sets-enable-xdr=true;memory-size=4294967296; \
-		low-water-pct=0;high-water-disk-pct=50;high-water-memory-pct=60;evict-tenths-pct=5; \
-		stop-writes-pct=90;cold-start-evict-ttl=4294967295;repl-factor=1;default-ttl=2592000;max-ttl=0; \
-		conflict-resolution-policy=generation;allow_versions=false;single-bin=false;enable-xdr=false; \
-		disallow-null-setname=false;total-bytes-memory=4294967296;total-bytes-disk=4294967296; \
-		defrag-period=10;defrag-max-blocks=4000;defrag-lwm-pct=45;write-smoothing-period=0; \
-		defrag-startup-minimum=10;max-write-cache=67108864;min-avail-pct=5;post-write-queue=0; \
-		data-in-memory=true;load-at-startup=true;file=/opt/aerospike/test.data;filesize=4294967296; \
-		writethreads=1;writecache=67108864;obj-size-hist-max=100
-		 */
+		return this.stats.toNameValuePairs(this);
+	}
+
+	/**
+	 * Gets the statistics of this namespace totalled across the cluster
+	 *
+	 * @return the NamespaceStats
+	 */
+	public NamespaceStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * Gets the statistics of this namespace on each node
+	 *
+	 * @return A map of node name to NamespaceStats
+	 */
+	public Map<String, NamespaceStats> getNodeStats() {
+		return Collections.unmodifiableMap(this.nodeStats);
+	}
+
+	/**
+	 * @deprecated use {@link #setNamespaceInfo(String)}, {@link #mergeNamespaceInfo(String)} and {@link #getStats()}
+	 */
+	@Deprecated
+	public void setInfo(String info, final Map<String, NameValuePair> map, final boolean merge) {
 		if (map == null)
 			return;
 
-		if (info.isEmpty())
-			return;
-		String[] parts = info.split(";");
-
-		for (String part : parts) {
-			String[] kv = part.split("=");
-			String key = kv[0];
-			String value = kv[1];
-			NameValuePair storedValue = map.get(key);
-			if (storedValue == null) {
-				storedValue = new NameValuePair(this, key, value);
-				map.put(key, storedValue);
-			} else {
-				if (merge && !dontMerge.contains(key)) {
+		InfoParser.parse(info, ';', '=', new InfoParser.Visitor() {
+			@Override
+			public void pair(String key, String source, int valueStart, int valueEnd) {
+				String value = InfoParser.reuse(null, source, valueStart, valueEnd);
+				NameValuePair storedValue = map.get(key);
+				if (storedValue == null) {
+					storedValue = new NameValuePair(Namespace.this, key, value);
+					map.put(key, storedValue);
+				} else if (merge && !dontMerge.contains(key)) {
 					try {
-						Long newValue = Long.parseLong(value);
-						Long oldValue = Long.parseLong(storedValue.value.toString());
+						long newValue = Long.parseLong(value);
+						long oldValue = Long.parseLong(storedValue.value.toString());
 						storedValue.value = Long.toString(oldValue + newValue);
 					} catch (NumberFormatException e) {
 						storedValue.value = value;
@@ -165,19 +190,58 @@ public class Namespace {
 					storedValue.value = value;
 				}
 			}
-		}
+		});
 	}
 
 	public void setNamespaceInfo(String info) {
-		setInfo(info, values, false);
+		//type=device;objects=0;master-objects=0;prole-objects=0;expired-objects=0;evicted-objects=0;used-bytes-memory=18688;...
+		this.stats.setInfo(info, ';');
 	}
 
 	public void mergeNamespaceInfo(String info) {
-		setInfo(info, values, true);
+		this.stats.mergeInfo(info, ';');
+	}
+
+	/**
+	 * Sets the statistics of a node and recomputes the cluster totals
+	 *
+	 * @param node The name of the node
+	 * @param info Info string from the node
+	 */
+	public void mergeNamespaceInfo(String node, String info) {
+		NamespaceStats nodeValues = this.nodeStats.get(node);
+		if (nodeValues == null) {
+			nodeValues = new NamespaceStats();
+			this.nodeStats.put(node, nodeValues);
+		}
+		nodeValues.setInfo(info, ';');
+		this.stats.clear();
+		for (NamespaceStats values : this.nodeStats.values()) {
+			this.stats.add(values);
+		}
+	}
+
+	/**
+	 * Forgets the statistics of a node that has left the cluster
+	 *
+	 * @param node The name of the node
+	 */
+	public void removeNode(String node) {
+		if (this.nodeStats.remove(node) != null) {
+			this.stats.clear();
+			for (NamespaceStats values : this.nodeStats.values()) {
+				this.stats.add(values);
+			}
+		}
+		if (this.sets != null) {
+			for (Set set : this.sets.values()) {
+				set.removeNode(node);
+			}
+		}
 	}
 
 	public Set findSet(String tableName) {
-		return this.sets.get(tableName);
+		return (this.sets == null) ? null : this.sets.get(tableName);
 	}
 
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Statistics of a namespace, on one node or totalled across the cluster
+ *
+ * @author peter
+ */
+public class NamespaceStats extends InfoStats {
+
+	/**
+	 * The namespace counters. Each counter lists the names used by
+	 * the different server versions.
+	 */
+	public enum Counter {
+		OBJECTS("objects"),
+		MASTER_OBJECTS("master-objects", "master_objects"),
+		PROLE_OBJECTS("prole-objects", "prole_objects"),
+		TOMBSTONES("tombstones"),
+		NON_EXPIRABLE_OBJECTS("non-expirable-objects", "non_expirable_objects"),
+		EXPIRED_OBJECTS("expired-objects", "expired_objects"),
+		EVICTED_OBJECTS("evicted-objects", "evicted_objects"),
+		USED_BYTES_MEMORY("used-bytes-memory", "memory_used_bytes"),
+		DATA_USED_BYTES_MEMORY("data-used-bytes-memory", "memory_used_data_bytes"),
+		INDEX_USED_BYTES_MEMORY("index-used-bytes-memory", "memory_used_index_bytes"),
+		SINDEX_USED_BYTES_MEMORY("sindex-used-bytes-memory", "memory_used_sindex_bytes"),
+		TOTAL_BYTES_MEMORY("total-bytes-memory", "memory-size"),
+		USED_BYTES_DISK("used-bytes-disk", "device_used_bytes"),
+		TOTAL_BYTES_DISK("total-bytes-disk", "device_total_bytes");
+
+		private final String[] names;
+
+		Counter(String... names) {
+			this.names = names;
+		}
+
+		@Override
+		public String toString() {
+			return this.names[0];
+		}
+	}
+
+	private static final Counter[] COUNTERS = Counter.values();
+	private static final Map<String, Integer> INDEXES = new HashMap<String, Integer>();
+
+	static {
+		for (Counter counter : COUNTERS) {
+			for (String name : counter.names) {
+				INDEXES.put(name, counter.ordinal());
+			}
+		}
+	}
+
+	public NamespaceStats() {
+		super(COUNTERS.length);
+	}
+
+	public long get(Counter counter) {
+		return this.counters[counter.ordinal()];
+	}
+
+	@Override
+	protected int counterIndex(String name) {
+		Integer index = INDEXES.get(name);
+		return (index == null) ? -1 : index;
+	}
+
+	@Override
+	protected String counterName(int index) {
+		return COUNTERS[index].toString();
+	}
+}
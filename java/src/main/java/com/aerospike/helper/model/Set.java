@@ -16,8 +16,8 @@
  */
 package com.aerospike.helper.model;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,7 +29,8 @@ import java.util.Map;
 public class Set {
     private Namespace parent;
     private String name;
-    protected Map<String, NameValuePair> values;
+    protected final SetStats stats = new SetStats();
+    protected final Map<String, SetStats> nodeStats = new LinkedHashMap<String, SetStats>();
 
     public Set(Namespace parent, String info) {
         this.parent = parent;
@@ -55,26 +56,23 @@ public class Set {
         return toString();
     }
 
+    /**
+     * Reads the set name from part of an Info string
+     *
+     * @param info Info string from a node
+     * @param from Index of the first character of the set
+     * @param to   Index after the last character of the set
+     * @return The set name, or null
+     */
+    public static String nameFromInfo(String info, int from, int to) {
+        String setName = InfoParser.value(info, from, to, ':', '=', "set");
+        return (setName == null) ? InfoParser.value(info, from, to, ':', '=', "set_name") : setName;
+    }
+
     public void setInfo(String info) {
         //ns_name=test:set_name=demo:n_objects=1:set-stop-write-count=0:set-evict-hwm-count=0:set-enable-xdr=use-default:set-delete=false
         if (!info.isEmpty()) {
-            String[] parts = info.split(":");
-            if (values == null) {
-                values = new HashMap<String, NameValuePair>();
-            }
-
-            for (String part : parts) {
-                String[] kv = part.split("=");
-                String key = kv[0];
-                String value = kv[1];
-                NameValuePair storedValue = values.get(key);
-                if (storedValue == null) {
-                    storedValue = new NameValuePair(this, key, value);
-                    values.put(key, storedValue);
-                } else {
-                    storedValue.value = value;
-                }
-            }
+            this.stats.setInfo(info, ':');
             applySetName();
         }
     }
@@ -82,56 +80,90 @@ public class Set {
     public void mergeSetInfo(String info) {
 	//ns=test:set=selector:objects=1000:memory_data_bytes=0:deleting=false:stop-writes-count=0:set-enable-xdr=use-default:disable-eviction=false
         if (!info.isEmpty()) {
-            String[] parts = info.split(":");
-            if (values == null) {
-                values = new HashMap<String, NameValuePair>();
-            }
-
-            for (String part : parts) {
-                String[] kv = part.split("=");
-                String key = kv[0];
-                String value = kv[1];
-                NameValuePair storedValue = values.get(key);
-                if (storedValue == null) {
-                    storedValue = new NameValuePair(this, key, value);
-                    values.put(key, storedValue);
-                } else {
-                    try {
-                        Long newValue = Long.parseLong(value);
-                        Long oldValue = Long.parseLong(storedValue.value.toString());
-                        storedValue.value = Long.toString(oldValue + newValue);
-                    } catch (NumberFormatException e) {
-                        storedValue.value = value;
-                    }
-                }
-            }
+            this.stats.mergeInfo(info, ':');
             applySetName();
         }
     }
 
+    /**
+     * Sets the statistics of a node from part of an Info string and recomputes the cluster totals
+     *
+     * @param node The name of the node
+     * @param info Info string from the node
+     * @param from Index of the first character of the set
+     * @param to   Index after the last character of the set
+     */
+    public void mergeSetInfo(String node, String info, int from, int to) {
+        SetStats nodeValues = this.nodeStats.get(node);
+        if (nodeValues == null) {
+            nodeValues = new SetStats();
+            this.nodeStats.put(node, nodeValues);
+        }
+        nodeValues.setInfo(info, from, to, ':');
+        totalNodes();
+        applySetName();
+    }
+
+    /**
+     * Forgets the statistics of a node that has left the cluster
+     *
+     * @param node The name of the node
+     */
+    public void removeNode(String node) {
+        if (this.nodeStats.remove(node) != null)
+            totalNodes();
+    }
+
+    private void totalNodes() {
+        this.stats.clear();
+        for (SetStats values : this.nodeStats.values()) {
+            this.stats.add(values);
+        }
+    }
+
+    /**
+     * @deprecated the values are parsed into {@link #getStats()}
+     */
+    @Deprecated
     public void setValues(Map<String, NameValuePair> newValues) {
-        this.values = newValues;
+        StringBuilder info = new StringBuilder();
+        for (NameValuePair nvp : newValues.values()) {
+            if (info.length() > 0)
+                info.append(':');
+            info.append(nvp.getName()).append('=').append(nvp.getValue());
+        }
+        this.stats.setInfo(info.toString(), ':');
+        applySetName();
     }
 
     public List<NameValuePair> getValues() {
-        List<NameValuePair> result = new ArrayList<NameValuePair>();
-        java.util.Set<String> keys = this.values.keySet();
-        for (String key : keys) {
-            NameValuePair nvp = this.values.get(key);
-            result.add(nvp);
-        }
-        return result;
+        return this.stats.toNameValuePairs(this);
+    }
+
+    /**
+     * Gets the statistics of this set totalled across the cluster
+     *
+     * @return the SetStats
+     */
+    public SetStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Gets the statistics of this set on each node
+     *
+     * @return A map of node name to SetStats
+     */
+    public Map<String, SetStats> getNodeStats() {
+        return Collections.unmodifiableMap(this.nodeStats);
     }
 
     public void clear() {
-        java.util.Set<String> keys = this.values.keySet();
-        for (String key : keys) {
-            NameValuePair nvp = this.values.get(key);
-            nvp.clear();
-        }
+        this.stats.clear();
     }
 
     private void applySetName(){
-        this.name = values.get("set") == null ? (String)values.get("set_name").value : (String)values.get("set").value;
+        String setName = this.stats.getValue("set");
+        this.name = (setName == null) ? this.stats.getValue("set_name") : setName;
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Statistics of a set, on one node or totalled across the cluster
+ *
+ * @author peter
+ */
+public class SetStats extends InfoStats {
+
+	/**
+	 * The set counters. Each counter lists the names used by
+	 * the different server versions.
+	 */
+	public enum Counter {
+		OBJECTS("objects", "n_objects"),
+		TOMBSTONES("tombstones"),
+		MEMORY_DATA_BYTES("memory_data_bytes", "n-bytes-memory"),
+		DEVICE_DATA_BYTES("device_data_bytes");
+
+		private final String[] names;
+
+		Counter(String... names) {
+			this.names = names;
+		}
+
+		@Override
+		public String toString() {
+			return this.names[0];
+		}
+	}
+
+	private static final Counter[] COUNTERS = Counter.values();
+	private static final Map<String, Integer> INDEXES = new HashMap<String, Integer>();
+
+	static {
+		for (Counter counter : COUNTERS) {
+			for (String name : counter.names) {
+				INDEXES.put(name, counter.ordinal());
+			}
+		}
+	}
+
+	public SetStats() {
+		super(COUNTERS.length);
+	}
+
+	public long get(Counter counter) {
+		return this.counters[counter.ordinal()];
+	}
+
+	@Override
+	protected int counterIndex(String name) {
+		Integer index = INDEXES.get(name);
+		return (index == null) ? -1 : index;
+	}
+
+	@Override
+	protected String counterName(int index) {
+		return COUNTERS[index].toString();
+	}
+}
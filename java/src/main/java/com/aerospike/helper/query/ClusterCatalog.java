@@ -0,0 +1,444 @@
+/* Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.InfoPolicy;
+import com.aerospike.helper.InfoExecutor;
+import com.aerospike.helper.Utils;
+import com.aerospike.helper.model.CatalogSnapshot;
+import com.aerospike.helper.model.CatalogSnapshotStore;
+import com.aerospike.helper.model.Index;
+import com.aerospike.helper.model.Module;
+import com.aerospike.helper.model.Namespace;
+import com.aerospike.helper.model.SindexStats;
+
+/**
+ * Holds the cluster catalog (namespaces, sets, indexes and modules) as an
+ * immutable {@link CatalogSnapshot} that is swapped atomically on refresh.
+ * <p>
+ * Reads never lock. Refreshes are serialized against each other, query the
+ * nodes in parallel, and are run periodically by a background scheduler.
+ * A change in cluster membership triggers an early refresh.
+ *
+ * @author peter
+ */
+public class ClusterCatalog implements Closeable {
+
+	public static final long DEFAULT_REFRESH_INTERVAL = 60000; // In milliseconds
+	public static final long MEMBERSHIP_CHECK_INTERVAL = 1000; // In milliseconds
+	private static final String NAMESPACE_PREFIX = "namespace/";
+	private static final String SETS_PREFIX = "sets/";
+
+	private static Logger log = Logger.getLogger(ClusterCatalog.class);
+
+	private final AerospikeClient client;
+	private final AtomicReference<CatalogSnapshot> snapshot = new AtomicReference<CatalogSnapshot>(CatalogSnapshot.EMPTY);
+	private final Object refreshLock = new Object();
+	private final InfoExecutor info;
+	private ScheduledExecutorService scheduler;
+	private boolean started;
+	private volatile File snapshotFile;
+	private CompletableFuture<CatalogSnapshot> initialLoad;
+
+	/*
+	 * fetches module source from the first node that answers
+	 */
+	private final Module.SourceLoader sourceLoader = new Module.SourceLoader() {
+		@Override
+		public String load(Module module) {
+			String command = "udf-get:filename=" + module.getName();
+			for (Node node : client.getNodes()) {
+				try {
+					String detail = info.request(node, command).get(command);
+					if (detail != null)
+						return detail;
+				} catch (AerospikeException e) {
+					log.debug("Error geting UDF source from " + node, e);
+				}
+			}
+			log.warn("Cannot fetch the source of UDF module " + module.getName());
+			return null;
+		}
+	};
+
+	public ClusterCatalog(AerospikeClient client, InfoPolicy infoPolicy) {
+		this.client = client;
+		this.info = new InfoExecutor(client, infoPolicy);
+	}
+
+	/**
+	 * Gets the current snapshot. This never blocks.
+	 *
+	 * @return the current CatalogSnapshot
+	 */
+	public CatalogSnapshot get() {
+		return this.snapshot.get();
+	}
+
+	/**
+	 * Starts the background refresh of the catalog
+	 *
+	 * @param refreshInterval The interval, in milliseconds, between full refreshes
+	 */
+	public synchronized void start(long refreshInterval) {
+		if (this.started)
+			return;
+		this.started = true;
+		scheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refreshQuietly();
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+		scheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (!membership().equals(get().getMembership())) {
+					log.info("Cluster membership changed, refreshing catalog");
+					refreshQuietly();
+				}
+			}
+		}, MEMBERSHIP_CHECK_INTERVAL, MEMBERSHIP_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Refreshes the whole catalog in the background. Until it completes,
+	 * {@link #get()} returns the previous, possibly empty, snapshot.
+	 *
+	 * @return A future completed with the loaded snapshot, or with the refresh error
+	 */
+	public synchronized CompletableFuture<CatalogSnapshot> load() {
+		final CompletableFuture<CatalogSnapshot> future = new CompletableFuture<CatalogSnapshot>();
+		scheduler().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.complete(refresh());
+				} catch (RuntimeException e) {
+					log.error("Error loading cluster catalog", e);
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Starts the first load of the catalog in the background. Later calls return
+	 * the same future, so users sharing the catalog load it only once.
+	 *
+	 * @return A future completed with the loaded snapshot, or with the refresh error
+	 */
+	public synchronized CompletableFuture<CatalogSnapshot> loadOnce() {
+		if (this.initialLoad == null)
+			this.initialLoad = load();
+		return this.initialLoad;
+	}
+
+	/**
+	 * Loads the catalog if it has not been loaded before, waiting for a
+	 * load already started by another user
+	 *
+	 * @return the loaded CatalogSnapshot
+	 * @throws ClusterRefreshError if the catalog cannot be loaded
+	 */
+	public CatalogSnapshot loadNow() {
+		CompletableFuture<CatalogSnapshot> pending;
+		synchronized (this) {
+			if (this.initialLoad == null) {
+				CatalogSnapshot loaded = refresh();
+				this.initialLoad = CompletableFuture.completedFuture(loaded);
+				return loaded;
+			}
+			pending = this.initialLoad;
+		}
+		pending.join();
+		return get();
+	}
+
+	private ScheduledExecutorService scheduler() {
+		if (this.scheduler == null)
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(Utils.daemonThreadFactory("aerospike-helper-catalog"));
+		return this.scheduler;
+	}
+
+	/**
+	 * Refreshes the whole catalog from the cluster
+	 *
+	 * @return the new CatalogSnapshot
+	 */
+	public CatalogSnapshot refresh() {
+		synchronized (this.refreshLock) {
+			refreshNamespaces();
+			refreshIndexes();
+			refreshModules();
+			save();
+			return get();
+		}
+	}
+
+	/**
+	 * Saves the snapshot to a local file after each full refresh
+	 *
+	 * @param file The file, or null to stop saving
+	 */
+	public void persistTo(File file) {
+		this.snapshotFile = file;
+	}
+
+	/**
+	 * Loads a snapshot saved by a previous process, if the catalog has not been
+	 * read from the cluster yet. The restored snapshot should be validated with
+	 * {@link #load()}, which replaces only what has changed.
+	 *
+	 * @param file The file saved by {@link #persistTo(File)}
+	 * @return true if a snapshot was restored
+	 */
+	public boolean restore(File file) {
+		CatalogSnapshot restored = CatalogSnapshotStore.load(file);
+		if (restored == null)
+			return false;
+		for (Module module : restored.getModules().values()) {
+			module.setSourceLoader(this.sourceLoader);
+		}
+		return this.snapshot.compareAndSet(CatalogSnapshot.EMPTY, restored);
+	}
+
+	private void save() {
+		File file = this.snapshotFile;
+		if (file == null)
+			return;
+		try {
+			CatalogSnapshotStore.save(get(), file);
+		} catch (IOException e) {
+			log.warn("Cannot save catalog to " + file, e);
+		}
+	}
+
+	private void refreshQuietly() {
+		try {
+			refresh();
+		} catch (RuntimeException e) {
+			log.error("Error refreshing cluster catalog", e);
+		}
+	}
+
+	/**
+	 * Refreshes the Namespace and Set information, querying all nodes in parallel.
+	 * Each node is sent one request for its namespace list and one request for the
+	 * details of all its namespaces.
+	 */
+	public void refreshNamespaces() {
+		synchronized (this.refreshLock) {
+			String membership = membership();
+			Map<String, String> namespaceLists = this.info.infoAll("namespaces");
+			Map<String, String[]> commands = new HashMap<String, String[]>(namespaceLists.size() * 2);
+			for (Map.Entry<String, String> entry : namespaceLists.entrySet()) {
+				commands.put(entry.getKey(), namespaceCommands(entry.getValue()));
+			}
+			Map<String, Map<String, String>> responses = this.info.requestEach(commands);
+			/*
+			 * merge the node results in node order, Namespace objects are
+			 * only touched by this thread until the snapshot is published
+			 */
+			Map<String, Namespace> namespaces = new TreeMap<String, Namespace>();
+			for (Map.Entry<String, Map<String, String>> entry : responses.entrySet()) {
+				Map<String, String> nodeInfo = entry.getValue();
+				String[] nodeCommands = commands.get(entry.getKey());
+				for (int i = 0; i < nodeCommands.length; i += 2) {
+					String name = nodeCommands[i].substring(NAMESPACE_PREFIX.length());
+					Namespace ns = namespaces.get(name);
+					if (ns == null) {
+						ns = new Namespace(name);
+						namespaces.put(name, ns);
+					}
+					mergeNamespaceData(ns, entry.getKey(), nodeInfo.get(nodeCommands[i]), nodeInfo.get(nodeCommands[i + 1]));
+				}
+			}
+			this.snapshot.set(get().withNamespaces(namespaces, membership));
+		}
+	}
+
+	/*
+	 * builds the pairs of "namespace/<ns>" and "sets/<ns>" commands for a namespace list
+	 */
+	private static String[] namespaceCommands(String namespaceString) {
+		if (namespaceString == null || namespaceString.isEmpty())
+			return new String[0];
+		String[] namespaceList = namespaceString.split(";");
+		String[] commands = new String[namespaceList.length * 2];
+		for (int i = 0; i < namespaceList.length; i++) {
+			commands[i * 2] = NAMESPACE_PREFIX + namespaceList[i];
+			commands[i * 2 + 1] = SETS_PREFIX + namespaceList[i];
+		}
+		return commands;
+	}
+
+	/**
+	 * Reads the Namespace and Set information of a single node into a Namespace
+	 *
+	 * @param node      The node to read from
+	 * @param namespace The Namespace to merge into
+	 */
+	public void refreshNamespaceData(Node node, Namespace namespace) {
+		Map<String, String> nodeInfo = this.info.request(node, NAMESPACE_PREFIX + namespace, SETS_PREFIX + namespace);
+		mergeNamespaceData(namespace, node.getName(), nodeInfo.get(NAMESPACE_PREFIX + namespace), nodeInfo.get(SETS_PREFIX + namespace));
+	}
+
+	static void mergeNamespaceData(Namespace namespace, String node, String nameSpaceString, String setsString) {
+		if (nameSpaceString != null)
+			namespace.mergeNamespaceInfo(node, nameSpaceString);
+		namespace.mergeSets(node, setsString);
+	}
+
+	/**
+	 * Refreshes the Index information from the first node that answers.
+	 * An Index whose definition and state are unchanged is carried over
+	 * from the current snapshot.
+	 */
+	public void refreshIndexes() {
+		synchronized (this.refreshLock) {
+			Map<String, Index> indexes = new TreeMap<String, Index>();
+			Node[] nodes = this.client.getNodes();
+			for (Node node : nodes) {
+				if (node.isActive()) {
+					try {
+						String indexString = this.info.request(node, "sindex").get("sindex");
+						if (indexString != null && !indexString.isEmpty()) {
+							String[] indexList = indexString.split(";");
+							Map<String, Index> previous = get().getIndexes();
+							for (String oneIndexString : indexList) {
+								Index index = new Index(oneIndexString);
+								String key = index.toKeyString();
+								Index existing = previous.get(key);
+								indexes.put(key, index.sameAs(existing) ? existing : index);
+							}
+						}
+						this.snapshot.set(get().withIndexes(indexes));
+						return;
+					} catch (AerospikeException e) {
+						log.error("Error geting Index informaton", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the statistics of a secondary index from all nodes. These are not part
+	 * of the snapshot, they are read each time they are asked for.
+	 *
+	 * @param namespace The namespace of the index
+	 * @param indexName The name of the index
+	 * @return The statistics added over all nodes that answered
+	 */
+	public SindexStats sindexStats(String namespace, String indexName) {
+		SindexStats stats = new SindexStats();
+		for (String nodeStats : this.info.infoAll("sindex/" + namespace + "/" + indexName).values()) {
+			stats.mergeInfo(nodeStats, ';');
+		}
+		return stats;
+	}
+
+	/**
+	 * Refreshes the UDF Module information from the first node that answers.
+	 * Only the module list is read, a module whose hash is unchanged is carried
+	 * over from the current snapshot. The source of a module is fetched the first
+	 * time it is asked for.
+	 *
+	 * @throws ClusterRefreshError if no node returned the module list
+	 */
+	public void refreshModules() {
+		synchronized (this.refreshLock) {
+			Node[] nodes = this.client.getNodes();
+			for (Node node : nodes) {
+				try {
+					String packagesString = this.info.request(node, "udf-list").get("udf-list");
+					this.snapshot.set(get().withModules(mergeModules(get().getModules(), packagesString)));
+					return;
+				} catch (AerospikeException e) {
+					log.debug("Error geting UDF modules from " + node, e);
+				}
+			}
+			throw new ClusterRefreshError("Cannot find UDF modules");
+		}
+	}
+
+	/*
+	 * builds the module map from a "udf-list" response, reusing the previous
+	 * Module of each name whose hash has not changed
+	 */
+	Map<String, Module> mergeModules(Map<String, Module> previous, String packagesString) {
+		Map<String, Module> modules = new TreeMap<String, Module>();
+		if (packagesString == null || packagesString.isEmpty())
+			return modules;
+		for (String packageString : packagesString.split(";")) {
+			Module module = new Module(packageString);
+			Module existing = previous.get(module.getName());
+			if (existing != null && existing.getHash() != null && existing.getHash().equals(module.getHash())) {
+				module = existing;
+			} else {
+				module.setSourceLoader(this.sourceLoader);
+			}
+			modules.put(module.getName(), module);
+		}
+		return modules;
+	}
+
+	/**
+	 * @return the sorted, comma separated names of the active nodes
+	 */
+	protected String membership() {
+		Node[] nodes = this.client.getNodes();
+		String[] names = new String[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			names[i] = nodes[i].getName();
+		}
+		Arrays.sort(names);
+		return String.join(",", names);
+	}
+
+	/**
+	 * Stops the background refresh. The last snapshot remains readable.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.scheduler != null) {
+			this.scheduler.shutdownNow();
+			this.scheduler = null;
+		}
+		this.started = false;
+		this.info.close();
+	}
+}
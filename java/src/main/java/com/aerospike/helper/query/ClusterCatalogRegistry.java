@@ -0,0 +1,122 @@
+/* Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.io.File;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.policy.InfoPolicy;
+
+/**
+ * Shares one {@link ClusterCatalog} between all the QueryEngines that use the
+ * same AerospikeClient, so the cluster metadata is held and refreshed once.
+ * <p>
+ * Catalogs are reference counted, a catalog is closed when the last engine
+ * using it releases it. The file a catalog is saved to belongs to the shared
+ * catalog, all the engines of a client must use the same file.
+ *
+ * @author peter
+ */
+public final class ClusterCatalogRegistry {
+
+	private static final class Entry {
+		final ClusterCatalog catalog;
+		File catalogFile;
+		int references;
+
+		Entry(ClusterCatalog catalog) {
+			this.catalog = catalog;
+		}
+	}
+
+	private static final Map<AerospikeClient, Entry> catalogs = new IdentityHashMap<AerospikeClient, Entry>();
+
+	private ClusterCatalogRegistry() {
+	}
+
+	/**
+	 * Gets the catalog of a client, creating it if this is the first user.
+	 * Each call must be matched by a call to {@link #release(ClusterCatalog)}.
+	 *
+	 * @param client     An instance of AerospikeClient
+	 * @param infoPolicy The InfoPolicy used if the catalog is created
+	 * @return The shared ClusterCatalog
+	 */
+	public static synchronized ClusterCatalog acquire(AerospikeClient client, InfoPolicy infoPolicy) {
+		return acquire(client, infoPolicy, null);
+	}
+
+	/**
+	 * Gets the catalog of a client, creating it if this is the first user, and
+	 * saves it to a file. The first user that passes a file sets it for the
+	 * shared catalog.
+	 * Each call must be matched by a call to {@link #release(ClusterCatalog)}.
+	 *
+	 * @param client      An instance of AerospikeClient
+	 * @param infoPolicy  The InfoPolicy used if the catalog is created
+	 * @param catalogFile The file to save the catalog to, may be null
+	 * @return The shared ClusterCatalog
+	 * @throws IllegalArgumentException if the catalog is already saved to another file
+	 */
+	public static synchronized ClusterCatalog acquire(AerospikeClient client, InfoPolicy infoPolicy, File catalogFile) {
+		Entry entry = catalogs.get(client);
+		if (entry != null && catalogFile != null && entry.catalogFile != null
+				&& !entry.catalogFile.getAbsoluteFile().equals(catalogFile.getAbsoluteFile()))
+			throw new IllegalArgumentException("The catalog of this client is saved to " + entry.catalogFile + ", not " + catalogFile);
+		if (entry == null) {
+			entry = new Entry(new ClusterCatalog(client, infoPolicy));
+			catalogs.put(client, entry);
+		}
+		if (catalogFile != null && entry.catalogFile == null) {
+			entry.catalogFile = catalogFile;
+			entry.catalog.persistTo(catalogFile);
+		}
+		entry.references++;
+		return entry.catalog;
+	}
+
+	/**
+	 * Releases a catalog, closing it when it has no more users
+	 *
+	 * @param catalog The ClusterCatalog from {@link #acquire(AerospikeClient, InfoPolicy)}
+	 */
+	public static synchronized void release(ClusterCatalog catalog) {
+		Iterator<Entry> it = catalogs.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.catalog == catalog) {
+				if (--entry.references == 0) {
+					it.remove();
+					catalog.close();
+				}
+				return;
+			}
+		}
+		catalog.close(); // not shared
+	}
+
+	/**
+	 * @param client An instance of AerospikeClient
+	 * @return The number of users of the client's catalog, 0 if there is none
+	 */
+	public static synchronized int references(AerospikeClient client) {
+		Entry entry = catalogs.get(client);
+		return (entry == null) ? 0 : entry.references;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+
+/**
+ * The progress of a {@link ResumableScan}: the digest modulo shards of the
+ * query that have been read, and the last digest returned from the shard that
+ * was being read. A token is immutable and is encoded as a short URL safe
+ * string, so it can be stored as a checkpoint or handed to the client of a
+ * paginated API.
+ *
+ * @author peter
+ * @see QueryEngine#resume(com.aerospike.client.query.Statement, ContinuationToken, Qualifier...)
+ */
+public final class ContinuationToken {
+
+	private static final byte VERSION = 1;
+	private static final int DIGEST_SIZE = 20;
+
+	private final int shards;
+	private final BitSet done;
+	private final int shard;
+	private final byte[] digest;
+
+	ContinuationToken(int shards, BitSet done, int shard, byte[] digest) {
+		this.shards = shards;
+		this.done = done;
+		this.shard = shard;
+		this.digest = digest;
+	}
+
+	/**
+	 * @param shards The number of digest modulo shards to divide the query into
+	 * @return The token of a query that has not started
+	 * @throws IllegalArgumentException if shards is less than 1
+	 */
+	public static ContinuationToken start(int shards) {
+		if (shards < 1)
+			throw new IllegalArgumentException("The shard count must be at least 1: " + shards);
+		return new ContinuationToken(shards, new BitSet(shards), -1, null);
+	}
+
+	/**
+	 * @return The number of digest modulo shards the query is divided into
+	 */
+	public int getShards() {
+		return this.shards;
+	}
+
+	/**
+	 * @return The number of shards that have not been read to the end
+	 */
+	public int getRemainingShards() {
+		return this.shards - this.done.cardinality();
+	}
+
+	/**
+	 * @return true if every record has been read
+	 */
+	public boolean isComplete() {
+		return getRemainingShards() == 0;
+	}
+
+	BitSet done() {
+		return (BitSet) this.done.clone();
+	}
+
+	/*
+	 * the shard that was being read, or -1
+	 */
+	int shard() {
+		return this.shard;
+	}
+
+	/*
+	 * the last digest returned from the shard that was being read, or null
+	 */
+	byte[] digest() {
+		return this.digest;
+	}
+
+	/**
+	 * @return The token as a URL safe string
+	 */
+	public String encode() {
+		byte[] bits = this.done.toByteArray();
+		ByteBuffer buffer = ByteBuffer.allocate(13 + bits.length + ((this.shard < 0) ? 0 : DIGEST_SIZE));
+		buffer.put(VERSION);
+		buffer.putInt(this.shards);
+		buffer.putInt(bits.length);
+		buffer.put(bits);
+		buffer.putInt(this.shard);
+		if (this.shard >= 0)
+			buffer.put(this.digest);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+	}
+
+	/**
+	 * @param token A string returned by {@link #encode()}
+	 * @return The token
+	 * @throws IllegalArgumentException if the string is not a token
+	 */
+	public static ContinuationToken decode(String token) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(token));
+			if (buffer.get() != VERSION)
+				throw new IllegalArgumentException("Unknown continuation token version: " + token);
+			int shards = buffer.getInt();
+			byte[] bits = new byte[buffer.getInt()];
+			buffer.get(bits);
+			int shard = buffer.getInt();
+			byte[] digest = null;
+			if (shard >= 0) {
+				digest = new byte[DIGEST_SIZE];
+				buffer.get(digest);
+			}
+			BitSet done = BitSet.valueOf(bits);
+			if (shards < 1 || shard >= shards || done.length() > shards || buffer.hasRemaining())
+				throw new IllegalArgumentException("Invalid continuation token: " + token);
+			return new ContinuationToken(shards, done, shard, digest);
+		} catch (BufferUnderflowException | NegativeArraySizeException e) {
+			throw new IllegalArgumentException("Invalid continuation token: " + token, e);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ContinuationToken))
+			return false;
+		ContinuationToken other = (ContinuationToken) obj;
+		return this.shards == other.shards && this.done.equals(other.done) && this.shard == other.shard && Arrays.equals(this.digest, other.digest);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * this.shards + this.done.hashCode()) + this.shard;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.shards - getRemainingShards()).append(" of ").append(this.shards).append(" shards read");
+		if (this.shard >= 0)
+			sb.append(", shard ").append(this.shard).append(" in progress");
+		return sb.toString();
+	}
+}
@@ -15,6 +15,8 @@
  */
 package com.aerospike.helper.query;
 
+import java.util.Map;
+
 import com.aerospike.client.Key;
 import com.aerospike.client.Value;
 
@@ -26,17 +28,17 @@ import com.aerospike.client.Value;
 public class KeyQualifier extends Qualifier {
 
 	private static final long serialVersionUID = 2430949321378171078L;
-	
-	boolean hasDigest = false;
+
+	private final byte[] digest;
 
 	public KeyQualifier(Value value) {
 		super(QueryEngine.Meta.KEY.toString(), FilterOperation.EQ, value);
+		this.digest = null;
 	}
 
 	public KeyQualifier(byte[] digest) {
 		super(QueryEngine.Meta.KEY.toString(), FilterOperation.EQ, null);
-		this.internalMap.put("digest", digest);
-		this.hasDigest = true;
+		this.digest = digest.clone();
 	}
 
 	@Override
@@ -44,14 +46,24 @@ public class KeyQualifier extends Qualifier {
 		return "digest";
 	}
 
+	@Override
+	protected Map<String, Object> toMap() {
+		Map<String, Object> map = super.toMap();
+		if (this.digest != null)
+			map.put("digest", this.digest.clone());
+		return map;
+	}
+
+	/**
+	 * @return A copy of the digest, or null if the qualifier has a user key
+	 */
 	public byte[] getDigest() {
-		return (byte[]) this.internalMap.get("digest");
+		return (this.digest == null) ? null : this.digest.clone();
 	}
 
 	public Key makeKey(String namespace, String set) {
-		if (hasDigest) {
-			byte[] digest = getDigest();
-			return new Key(namespace, digest, null, null);
+		if (this.digest != null) {
+			return new Key(namespace, this.digest.clone(), null, null);
 		} else {
 			return new Key(namespace, set, getValue1());
 		}
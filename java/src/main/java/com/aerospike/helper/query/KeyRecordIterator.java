@@ -17,9 +17,16 @@ package com.aerospike.helper.query;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.HashMap;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.apache.log4j.Logger;
 
@@ -28,6 +35,7 @@ import com.aerospike.client.Record;
 import com.aerospike.client.query.KeyRecord;
 import com.aerospike.client.query.RecordSet;
 import com.aerospike.client.query.ResultSet;
+import com.aerospike.helper.metrics.QueryMetrics;
 
 /**
  * Iterator for traversing a collection of KeyRecords
@@ -40,7 +48,20 @@ public class KeyRecordIterator implements Iterator<KeyRecord>, Closeable {
 	private static final String DIGEST = "digest";
 	private static final String EXPIRY = "expiry";
 	private static final String GENERATION = "generation";
+	/**
+	 * The batch size of {@link #forEachBatch(Consumer)}
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int ROW_DIGEST = 0;
+	private static final int ROW_GENERATION = 1;
+	private static final int ROW_EXPIRY = 2;
+	private static final int ROW_VALUES = 3;
 	private static Logger log = Logger.getLogger(KeyRecordIterator.class);
+	/*
+	 * the queues the receive threads of the client fill, null if the client keeps them elsewhere
+	 */
+	private static final Field RECORD_QUEUE = queueField(RecordSet.class);
+	private static final Field RESULT_QUEUE = queueField(ResultSet.class);
 	private RecordSet recordSet;
 	private ResultSet resultSet;
 	private Iterator<KeyRecord> recordSetIterator;
@@ -48,6 +69,23 @@ public class KeyRecordIterator implements Iterator<KeyRecord>, Closeable {
 	private String namespace;
 	private KeyRecord singleRecord;
 	private Integer closeLock = new Integer(0);
+	private QueryMetrics.Path path;
+	private QueryPlan plan;
+	private QueryMetrics metrics;
+	private SlowQueryLog slowQueryLog;
+	private QueryMetrics.Operation operation;
+	private boolean instrumented;
+	private long startNanos;
+	private long firstRecordNanos = -1;
+	private long returned;
+	private boolean completed;
+	private Predicate<Record> filter;
+	private Collection<String> extraBins;
+	private long scanned;
+	private KeyRecord next;
+	private String setName;
+	private List<String> fields;
+	private BlockingQueue<?> queue;
 
 	public KeyRecordIterator(String namespace) {
 		super();
@@ -62,18 +100,189 @@ public class KeyRecordIterator implements Iterator<KeyRecord>, Closeable {
 	public KeyRecordIterator(String namespace, RecordSet recordSet) {
 		this(namespace);
 		this.recordSet = recordSet;
-		this.recordSetIterator = recordSet.iterator();
+		this.recordSetIterator = records(recordSet);
+		this.queue = queue(RECORD_QUEUE, recordSet);
 	}
 
 	public KeyRecordIterator(String namespace, ResultSet resultSet) {
 		this(namespace);
 		this.resultSet = resultSet;
-		this.resultSetIterator = resultSet.iterator();
+		this.resultSetIterator = results(resultSet);
+		this.queue = queue(RESULT_QUEUE, resultSet);
+	}
+
+	private static Field queueField(Class<?> type) {
+		try {
+			Field field = type.getDeclaredField("queue");
+			if (!BlockingQueue.class.isAssignableFrom(field.getType()))
+				return null;
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			log.debug("No queue in " + type.getName() + ", batches wait until they are full");
+			return null;
+		} catch (SecurityException e) {
+			log.debug("No access to the queue of " + type.getName() + ", batches wait until they are full");
+			return null;
+		}
+	}
+
+	private static BlockingQueue<?> queue(Field field, Object set) {
+		if (field == null)
+			return null;
+		try {
+			return (BlockingQueue<?>) field.get(set);
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * reads one record at a time, the iterator of the client waits for the
+	 * record after the one it returns
+	 */
+	private static Iterator<KeyRecord> records(final RecordSet recordSet) {
+		return new Iterator<KeyRecord>() {
+			private Boolean more;
+
+			@Override
+			public boolean hasNext() {
+				if (this.more == null)
+					this.more = recordSet.next();
+				return this.more;
+			}
+
+			@Override
+			public KeyRecord next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				this.more = null;
+				return new KeyRecord(recordSet.getKey(), recordSet.getRecord());
+			}
+		};
+	}
+
+	private static Iterator<Object> results(final ResultSet resultSet) {
+		return new Iterator<Object>() {
+			private Boolean more;
+
+			@Override
+			public boolean hasNext() {
+				if (this.more == null)
+					this.more = resultSet.next();
+				return this.more;
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				this.more = null;
+				return resultSet.getObject();
+			}
+		};
+	}
+
+	/*
+	 * iterates over maps in the format returned by the as_utility Lua functions
+	 */
+	KeyRecordIterator(String namespace, Iterator<Object> results) {
+		this(namespace);
+		this.resultSetIterator = results;
+	}
+
+	/*
+	 * iterates over records that are already read
+	 */
+	static KeyRecordIterator of(String namespace, Iterator<KeyRecord> records) {
+		KeyRecordIterator iterator = new KeyRecordIterator(namespace);
+		iterator.recordSetIterator = records;
+		return iterator;
+	}
+
+	/**
+	 * @return How the records are found, null if not known
+	 */
+	public QueryMetrics.Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * @return The plan the query was run with, null if not known
+	 */
+	public QueryPlan getPlan() {
+		return this.plan;
+	}
+
+	KeyRecordIterator path(QueryMetrics.Path path) {
+		this.path = path;
+		return this;
+	}
+
+	KeyRecordIterator plan(QueryPlan plan) {
+		this.plan = plan;
+		this.path = plan.getPath();
+		return this;
+	}
+
+	/*
+	 * decodes compact rows, the fields are the bin names of rows without their
+	 * own names, the set name is the set of every row
+	 */
+	KeyRecordIterator rows(String setName, List<String> fields) {
+		this.setName = setName;
+		this.fields = fields;
+		return this;
+	}
+
+	/*
+	 * returns only the records that match the filter, the extra bins were
+	 * read for the filter and are removed from the records it returns
+	 */
+	KeyRecordIterator filter(Predicate<Record> filter, Collection<String> extraBins) {
+		this.filter = filter;
+		this.extraBins = extraBins;
+		return this;
+	}
+
+	/*
+	 * the records read by the filter stage: the records read by the client
+	 * filter, otherwise the records returned
+	 */
+	long getScanned() {
+		return (this.filter != null) ? this.scanned : this.returned;
+	}
+
+	/*
+	 * records the operation in the metrics and the slow query log when the
+	 * iterator is exhausted, fails or is closed
+	 */
+	KeyRecordIterator instrument(QueryMetrics metrics, SlowQueryLog slowQueryLog, QueryMetrics.Operation operation, long startNanos) {
+		this.metrics = metrics;
+		this.slowQueryLog = slowQueryLog;
+		this.operation = operation;
+		this.startNanos = startNanos;
+		this.instrumented = metrics != null || slowQueryLog != null;
+		return this;
+	}
 
+	/*
+	 * touched counts writes and deletes, a select has none
+	 */
+	private void complete(Throwable error) {
+		if (this.instrumented && !this.completed) {
+			this.completed = true;
+			long nanos = System.nanoTime() - this.startNanos;
+			if (this.metrics != null)
+				this.metrics.record(this.operation, this.path, nanos, this.returned, 0, error);
+			if (this.slowQueryLog != null)
+				this.slowQueryLog.record(this.operation, this.path, this.plan, nanos, this.firstRecordNanos, this.returned, 0, error);
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
+		complete(null);
 		synchronized (closeLock) {
 			if (recordSet != null)
 				recordSet.close();
@@ -86,6 +295,67 @@ public class KeyRecordIterator implements Iterator<KeyRecord>, Closeable {
 
 	@Override
 	public boolean hasNext() {
+		if (!this.instrumented)
+			return more();
+		try {
+			boolean more = more();
+			if (!more)
+				complete(null);
+			return more;
+		} catch (RuntimeException e) {
+			complete(e);
+			throw e;
+		}
+	}
+
+	private boolean more() {
+		while (this.next == null && available())
+			accept(read());
+		return this.next != null;
+	}
+
+	/*
+	 * true if a record is ready without waiting for the server, the records
+	 * the client has received are taken from its queue. Without access to
+	 * the queue it waits as more() does.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean buffered() {
+		if (this.queue == null)
+			return more();
+		while (this.next == null) {
+			Object result = this.queue.poll();
+			if (result == null)
+				return false;
+			if (result == RecordSet.END || result == ResultSet.END) {
+				// put the end back, the set reads it itself to report a failed query
+				((BlockingQueue<Object>) this.queue).offer(result);
+				return false;
+			}
+			accept((result instanceof KeyRecord) ? (KeyRecord) result : decode(result));
+		}
+		return true;
+	}
+
+	/*
+	 * keeps a record as the next one if it passes the filter
+	 */
+	private void accept(KeyRecord keyRecord) {
+		if (keyRecord == null)
+			return;
+		if (this.filter == null) {
+			this.next = keyRecord;
+			return;
+		}
+		this.scanned++;
+		if (this.filter.test(keyRecord.record)) {
+			if (this.extraBins != null && keyRecord.record.bins != null)
+				keyRecord.record.bins.keySet().removeAll(this.extraBins);
+			this.next = keyRecord;
+		}
+	}
+
+	private boolean available() {
 		if (this.recordSetIterator != null)
 			return this.recordSetIterator.hasNext();
 		else if (this.resultSetIterator != null)
@@ -96,28 +366,101 @@ public class KeyRecordIterator implements Iterator<KeyRecord>, Closeable {
 			return false;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public KeyRecord next() {
+		KeyRecord keyRecord = take();
+		if (keyRecord != null)
+			returned(1);
+		return keyRecord;
+	}
+
+	/**
+	 * Reads up to max records
+	 *
+	 * @param max The most records to return
+	 * @return A new list of the records, empty when there are no more records
+	 */
+	public List<KeyRecord> nextBatch(int max) {
+		List<KeyRecord> batch = new ArrayList<KeyRecord>(Math.min(max, DEFAULT_BATCH_SIZE));
+		nextBatch(batch, max);
+		return batch;
+	}
+
+	/**
+	 * Reads up to max records into a list that can be reused for every batch.
+	 * Waits for the first record, then adds only the records the client has
+	 * already received, so a batch can be smaller than max before the end of
+	 * the results. A batch is empty only at the end.
+	 *
+	 * @param batch The list to clear and fill
+	 * @param max   The most records to add
+	 * @return The number of records added, 0 when there are no more records
+	 * @throws IllegalArgumentException if max is less than 1
+	 */
+	public int nextBatch(List<KeyRecord> batch, int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("The batch size must be at least 1: " + max);
+		batch.clear();
+		try {
+			while (batch.size() < max && (batch.isEmpty() ? more() : buffered()))
+				batch.add(take());
+		} catch (RuntimeException e) {
+			if (!batch.isEmpty())
+				returned(batch.size());
+			complete(e);
+			throw e;
+		}
+		if (!batch.isEmpty())
+			returned(batch.size());
+		if (batch.isEmpty())
+			complete(null);
+		return batch.size();
+	}
+
+	/**
+	 * Passes the remaining records to the consumer in batches of up to {@value #DEFAULT_BATCH_SIZE}
+	 *
+	 * @param consumer Called for each batch, the list is reused for the next batch
+	 */
+	public void forEachBatch(Consumer<List<KeyRecord>> consumer) {
+		forEachBatch(DEFAULT_BATCH_SIZE, consumer);
+	}
+
+	/**
+	 * Passes the remaining records to the consumer in batches
+	 *
+	 * @param batchSize The most records in a batch
+	 * @param consumer  Called for each batch, the list is reused for the next batch
+	 */
+	public void forEachBatch(int batchSize, Consumer<List<KeyRecord>> consumer) {
+		List<KeyRecord> batch = new ArrayList<KeyRecord>(batchSize);
+		while (nextBatch(batch, batchSize) > 0)
+			consumer.accept(batch);
+	}
+
+	/*
+	 * the next record that passes the filter, without counting it
+	 */
+	private KeyRecord take() {
+		more();
+		KeyRecord keyRecord = this.next;
+		this.next = null;
+		return keyRecord;
+	}
+
+	private void returned(int count) {
+		if (this.instrumented && this.returned == 0)
+			this.firstRecordNanos = System.nanoTime() - this.startNanos;
+		this.returned += count;
+	}
+
+	private KeyRecord read() {
 		KeyRecord keyRecord = null;
 
 		if (this.recordSetIterator != null) {
 			keyRecord = this.recordSetIterator.next();
 		} else if (this.resultSetIterator != null) {
-			Map<String, Object> map = (Map<String, Object>) this.resultSetIterator.next();
-			Map<String, Object> meta = (Map<String, Object>) map.get(META_DATA);
-			map.remove(META_DATA);
-			Map<String, Object> binMap = new HashMap<String, Object>(map);
-			if (log.isDebugEnabled()) {
-				for (Map.Entry<String, Object> entry : map.entrySet()) {
-					log.debug(entry.getKey() + " = " + entry.getValue());
-				}
-			}
-			Long generation = (Long) meta.get(GENERATION);
-			Long ttl = (Long) meta.get(EXPIRY);
-			Record record = new Record(binMap, generation.intValue(), ttl.intValue());
-			Key key = new Key(namespace, (byte[]) meta.get(DIGEST), (String) meta.get(SET_NAME), null);
-			keyRecord = new KeyRecord(key, record);
+			keyRecord = decode(this.resultSetIterator.next());
 		} else if (singleRecord != null) {
 			keyRecord = singleRecord;
 			singleRecord = null;
@@ -125,6 +468,41 @@ public class KeyRecordIterator implements Iterator<KeyRecord>, Closeable {
 		return keyRecord;
 	}
 
+	/*
+	 * a map or a compact row returned by the as_utility Lua functions
+	 */
+	@SuppressWarnings("unchecked")
+	private KeyRecord decode(Object result) {
+		if (result instanceof List)
+			return row((List<Object>) result);
+		Map<String, Object> map = (Map<String, Object>) result;
+		Map<String, Object> meta = (Map<String, Object>) map.get(META_DATA);
+		// the bins are a view of the result map, they are not copied
+		Map<String, Object> bins = new LuaRecordBins(map, META_DATA);
+		if (log.isDebugEnabled())
+			log.debug(bins);
+		Record record = new Record(bins, ((Number) meta.get(GENERATION)).intValue(), ((Number) meta.get(EXPIRY)).intValue());
+		Key key = new Key(namespace, (byte[]) meta.get(DIGEST), (String) meta.get(SET_NAME), null);
+		return new KeyRecord(key, record);
+	}
+
+	/*
+	 * a compact row: digest, generation, expiry, then the values of the fields,
+	 * or a list of bin names and their values
+	 */
+	private KeyRecord row(List<Object> row) {
+		Map<String, Object> bins = null;
+		if (row.size() > ROW_VALUES) {
+			if (this.fields != null)
+				bins = new PositionalBins(this.fields, row, ROW_VALUES);
+			else
+				bins = new PositionalBins((List<?>) row.get(ROW_VALUES), row, ROW_VALUES + 1);
+		}
+		Record record = new Record(bins, ((Number) row.get(ROW_GENERATION)).intValue(), ((Number) row.get(ROW_EXPIRY)).intValue());
+		Key key = new Key(this.namespace, (byte[]) row.get(ROW_DIGEST), this.setName, null);
+		return new KeyRecord(key, record);
+	}
+
 	@Override
 	public void remove() {
 
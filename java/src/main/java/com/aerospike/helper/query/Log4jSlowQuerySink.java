@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes slow queries to a log4j category. Operations over the threshold are
+ * logged as warnings, sampled operations as info.
+ *
+ * @author peter
+ */
+public class Log4jSlowQuerySink implements SlowQuerySink {
+
+	public static final String DEFAULT_CATEGORY = "com.aerospike.helper.slowquery";
+
+	private final Logger logger;
+
+	public Log4jSlowQuerySink() {
+		this(DEFAULT_CATEGORY);
+	}
+
+	/**
+	 * @param category The log4j category to log to
+	 */
+	public Log4jSlowQuerySink(String category) {
+		this.logger = Logger.getLogger(category);
+	}
+
+	@Override
+	public void write(SlowQuery query) {
+		if (query.isSampled()) {
+			if (this.logger.isInfoEnabled())
+				this.logger.info(query);
+		} else {
+			this.logger.warn(query);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The bins of a record returned by the as_utility Lua functions, a view of the
+ * result map without its meta data entry. Nothing is copied, reading a bin is
+ * a lookup in the result map.
+ *
+ * @author peter
+ */
+final class LuaRecordBins extends AbstractMap<String, Object> {
+
+	private final Map<String, Object> map;
+	private final String metaData;
+	private Set<Map.Entry<String, Object>> entries;
+
+	LuaRecordBins(Map<String, Object> map, String metaData) {
+		this.map = map;
+		this.metaData = metaData;
+	}
+
+	@Override
+	public Object get(Object key) {
+		return this.metaData.equals(key) ? null : this.map.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return !this.metaData.equals(key) && this.map.containsKey(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (this.metaData.equals(key))
+			throw new IllegalArgumentException("Reserved bin name: " + key);
+		return this.map.put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return this.metaData.equals(key) ? null : this.map.remove(key);
+	}
+
+	@Override
+	public int size() {
+		return this.map.containsKey(this.metaData) ? this.map.size() - 1 : this.map.size();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		Set<Map.Entry<String, Object>> result = this.entries;
+		if (result == null) {
+			result = new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new Entries(LuaRecordBins.this.map.entrySet().iterator());
+				}
+
+				@Override
+				public int size() {
+					return LuaRecordBins.this.size();
+				}
+			};
+			this.entries = result;
+		}
+		return result;
+	}
+
+	/*
+	 * the entries of the result map, skipping the meta data
+	 */
+	private final class Entries implements Iterator<Map.Entry<String, Object>> {
+		private final Iterator<Map.Entry<String, Object>> iterator;
+		private Map.Entry<String, Object> next;
+
+		Entries(Iterator<Map.Entry<String, Object>> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (this.next == null && this.iterator.hasNext()) {
+				Map.Entry<String, Object> entry = this.iterator.next();
+				if (!LuaRecordBins.this.metaData.equals(entry.getKey()))
+					this.next = entry;
+			}
+			return this.next != null;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, Object> entry = this.next;
+			this.next = null;
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (this.next != null)
+				throw new IllegalStateException("remove() must follow next()");
+			this.iterator.remove();
+		}
+	}
+}
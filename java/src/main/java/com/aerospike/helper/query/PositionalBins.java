@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The bins of a compact result row of the as_utility Lua functions: the bin
+ * names and, from an offset in the row, their values in the same order. A bin
+ * that the record does not have has a null value and is left out. The row is
+ * read in place until the bins are changed, then they are copied.
+ *
+ * @author peter
+ */
+final class PositionalBins extends AbstractMap<String, Object> {
+
+	private final List<?> names;
+	private final List<?> row;
+	private final int offset;
+	private Map<String, Object> copy;
+	private int size = -1;
+
+	PositionalBins(List<?> names, List<?> row, int offset) {
+		this.names = names;
+		this.row = row;
+		this.offset = offset;
+	}
+
+	private int indexOf(Object key) {
+		int index = this.names.indexOf(key);
+		return (index < 0 || this.offset + index >= this.row.size()) ? -1 : this.offset + index;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (this.copy != null)
+			return this.copy.get(key);
+		int index = indexOf(key);
+		return (index < 0) ? null : this.row.get(index);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (this.copy != null)
+			return this.copy.containsKey(key);
+		return get(key) != null;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return copy().put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return copy().remove(key);
+	}
+
+	@Override
+	public int size() {
+		if (this.copy != null)
+			return this.copy.size();
+		if (this.size < 0) {
+			int count = 0;
+			for (int i = 0; i < this.names.size(); i++) {
+				if (value(i) != null)
+					count++;
+			}
+			this.size = count;
+		}
+		return this.size;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (this.copy != null)
+			return this.copy.entrySet();
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				if (PositionalBins.this.copy != null)
+					return PositionalBins.this.copy.entrySet().iterator();
+				return new Entries();
+			}
+
+			@Override
+			public int size() {
+				return PositionalBins.this.size();
+			}
+		};
+	}
+
+	private Object value(int i) {
+		int index = this.offset + i;
+		return (index < this.row.size()) ? this.row.get(index) : null;
+	}
+
+	private Map<String, Object> copy() {
+		if (this.copy == null) {
+			Map<String, Object> bins = new HashMap<String, Object>();
+			for (int i = 0; i < this.names.size(); i++) {
+				Object value = value(i);
+				if (value != null)
+					bins.put((String) this.names.get(i), value);
+			}
+			this.copy = bins;
+		}
+		return this.copy;
+	}
+
+	/*
+	 * the bins with a value, read only
+	 */
+	private final class Entries implements Iterator<Map.Entry<String, Object>> {
+		private int next = -1;
+
+		Entries() {
+			advance();
+		}
+
+		private void advance() {
+			do {
+				this.next++;
+			} while (this.next < PositionalBins.this.names.size() && value(this.next) == null);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next < PositionalBins.this.names.size();
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, Object> entry = new SimpleImmutableEntry<String, Object>((String) PositionalBins.this.names.get(this.next), value(this.next));
+			advance();
+			return entry;
+		}
+	}
+}
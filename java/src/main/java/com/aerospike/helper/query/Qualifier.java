@@ -30,11 +30,17 @@
  */
 package com.aerospike.helper.query;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,6 +66,13 @@ import com.aerospike.client.query.PredExp;
  * <li>START_WITH - A string that starts with</li>
  * <li>ENDS_WITH - A string that ends with</li>
  * </ul><p>
+ * A Qualifier is immutable, so one qualifier tree can be built once and used by
+ * any number of queries and threads. How a query uses it, such as which qualifier
+ * becomes the secondary index Filter, is kept in the {@link QueryPlan}. The
+ * {@link Map} interface is a read-only view kept for compatibility.
+ * <p>
+ * The built in qualifiers serialize to a compact form that writes the operation,
+ * field and values directly.
  *
  * @author Peter Milne
  */
@@ -71,25 +84,30 @@ public class Qualifier implements Map<String, Object>, Serializable {
 	private static final String VALUE1 = "value1";
 	private static final String QUALIFIERS = "qualifiers";
 	private static final String OPERATION = "operation";
-	private static final String AS_FILTER = "queryAsFilter";
-	protected Map<String, Object> internalMap;
+
+	private final String field;
+	private final FilterOperation operation;
+	private final boolean ignoreCase;
+	private final Value value1;
+	private final Value value2;
+	private final Qualifier[] qualifiers;
+	private transient Map<String, Object> view;
 
 	public enum FilterOperation {
 		EQ, GT, GTEQ, LT, LTEQ, NOTEQ, BETWEEN, START_WITH, ENDS_WITH, CONTAINING, IN,
 		LIST_CONTAINS, MAP_KEYS_CONTAINS, MAP_VALUES_CONTAINS,
 		LIST_BETWEEN, MAP_KEYS_BETWEEN, MAP_VALUES_BETWEEN, GEO_WITHIN,
-		OR, AND
+		OR, AND,
+		/** True if its single qualifier is false */
+		NOT
 	}
 
 	public Qualifier() {
-		super();
-		internalMap = new HashMap<String, Object>();
+		this(null, null, false, null, null, null);
 	}
 
 	public Qualifier(FilterOperation operation, Qualifier... qualifiers) {
-		this();
-		internalMap.put(QUALIFIERS, qualifiers);
-		internalMap.put(OPERATION, operation);
+		this(null, operation, false, null, null, (qualifiers == null) ? null : qualifiers.clone());
 	}
 	
 	public Qualifier(String field, FilterOperation operation, Value value1) {
@@ -97,44 +115,76 @@ public class Qualifier implements Map<String, Object>, Serializable {
 	}
 	
 	public Qualifier(String field, FilterOperation operation, Boolean ignoreCase, Value value1) {
-		this();
-		internalMap.put(FIELD, field);
-		internalMap.put(OPERATION, operation);
-		internalMap.put(VALUE1, value1);
-		internalMap.put(IGNORE_CASE, ignoreCase);
+		this(field, operation, Boolean.TRUE.equals(ignoreCase), value1, null, null);
 	}
 
 	public Qualifier(String field, FilterOperation operation, Value value1, Value value2) {
-		this(field, operation, Boolean.FALSE, value1);
-		internalMap.put(VALUE2, value2);
+		this(field, operation, false, value1, value2, null);
+	}
+
+	Qualifier(String field, FilterOperation operation, boolean ignoreCase, Value value1, Value value2, Qualifier[] qualifiers) {
+		this.field = field;
+		this.operation = operation;
+		this.ignoreCase = ignoreCase;
+		this.value1 = value1;
+		this.value2 = value2;
+		this.qualifiers = qualifiers;
 	}
 
 	public FilterOperation getOperation() {
-		return (FilterOperation) internalMap.get(OPERATION);
+		return this.operation;
 	}
 
 	public String getField() {
-		return (String) internalMap.get(FIELD);
+		return this.field;
 	}
 
+	/**
+	 * @return true if a string comparison ignores case
+	 */
+	public boolean isIgnoreCase() {
+		return this.ignoreCase;
+	}
+
+	/**
+	 * Has no effect, the qualifier used as the secondary index Filter is chosen by the {@link QueryPlan}
+	 *
+	 * @param queryAsFilter Ignored
+	 * @deprecated Qualifiers are immutable, see {@link QueryPlan#getFilterQualifier()}
+	 */
+	@Deprecated
 	public void asFilter(Boolean queryAsFilter) {
-		internalMap.put(AS_FILTER, queryAsFilter);
 	}
 
+	/**
+	 * @return false, the qualifier used as the secondary index Filter is chosen by the {@link QueryPlan}
+	 * @deprecated Qualifiers are immutable, see {@link QueryPlan#getFilterQualifier()}
+	 */
+	@Deprecated
 	public Boolean queryAsFilter() {
-		return internalMap.containsKey(AS_FILTER) && (Boolean) internalMap.get(AS_FILTER);
+		return Boolean.FALSE;
 	}
 
+	/**
+	 * @return A copy of the qualifiers of an AND or OR, or null
+	 */
 	public Qualifier[] getQualifiers() {
-		return (Qualifier[]) internalMap.get(QUALIFIERS);
+		return (this.qualifiers == null) ? null : this.qualifiers.clone();
+	}
+
+	/*
+	 * the qualifiers of an AND or OR without copying them
+	 */
+	Qualifier[] qualifiers() {
+		return this.qualifiers;
 	}
 
 	public Value getValue1() {
-		return (Value) internalMap.get(VALUE1);
+		return this.value1;
 	}
 
 	public Value getValue2() {
-		return (Value) internalMap.get(VALUE2);
+		return this.value2;
 	}
 
 	public Filter asFilter() {
@@ -153,7 +203,7 @@ public class Qualifier implements Map<String, Object>, Serializable {
 			case LT:
 				return Filter.range(getField(), Long.MIN_VALUE, getValue1().toLong()-1);
 			case LTEQ:
-				return Filter.range(getField(),  Long.MIN_VALUE, getValue1().toLong()+1);
+				return Filter.range(getField(), Long.MIN_VALUE, getValue1().toLong());
 			case LIST_CONTAINS:
 				return collectionContains(IndexCollectionType.LIST);
 			case MAP_KEYS_CONTAINS:
@@ -197,15 +247,19 @@ public class Qualifier implements Map<String, Object>, Serializable {
 		List<PredExp> rs = new ArrayList<PredExp>();
 		switch(getOperation()){
 		case AND:
-			Qualifier[] qs = (Qualifier[])get(QUALIFIERS);
+			Qualifier[] qs = this.qualifiers;
 			for(Qualifier q : qs) rs.addAll(q.toPredExp());
 			rs.add(PredExp.and(qs.length));
 			break;
 		case OR:
-			qs = (Qualifier[])get(QUALIFIERS);
+			qs = this.qualifiers;
 			for(Qualifier q : qs) rs.addAll(q.toPredExp());
 			rs.add(PredExp.or(qs.length));
 			break;
+		case NOT:
+			rs.addAll(this.qualifiers[0].toPredExp());
+			rs.add(PredExp.not());
+			break;
 		case IN: // Conver IN to a collection of or as Aerospike has not support for IN query
 			Value val = getValue1();
 			int valType = val.getType();
@@ -300,13 +354,24 @@ public class Qualifier implements Map<String, Object>, Serializable {
 			case AND:
 				return new StringBuffer()
 						.append("(")
-						.append(Arrays.asList((Qualifier[])get(QUALIFIERS)).stream().map(Qualifier::luaFilterString).collect(Collectors.joining(" and ")))
+						.append(Arrays.asList(this.qualifiers).stream().map(Qualifier::luaFilterString).collect(Collectors.joining(" and ")))
 						.append(")").toString();
 			case OR:
 				return new StringBuffer()
 						.append("(")
-						.append(Arrays.asList((Qualifier[])get(QUALIFIERS)).stream().map(Qualifier::luaFilterString).collect(Collectors.joining(" or ")))
+						.append(Arrays.asList(this.qualifiers).stream().map(Qualifier::luaFilterString).collect(Collectors.joining(" or ")))
 						.append(")").toString();
+			case NOT:
+				return String.format("not (%s)", this.qualifiers[0].luaFilterString());
+			case IN:
+				List<?> inList = (List<?>) getValue1().getObject();
+				if (inList.isEmpty())
+					return "false";
+				String field = luaFieldString(getField());
+				List<String> equals = new ArrayList<String>(inList.size());
+				for (Object value : inList)
+					equals.add(String.format("%s == %s", field, luaValueString(Value.get(value))));
+				return "(" + String.join(" or ", equals) + ")";
 			case EQ:
 				return String.format("%s == %s", luaFieldString(getField()), value1);
 			case LIST_CONTAINS:
@@ -339,7 +404,7 @@ public class Qualifier implements Map<String, Object>, Serializable {
 				value2 = luaValueString(getValue2());
 				return String.format("rangeValue(%s, %s, %s)", luaFieldString(getField()), value1, value2);
 			case START_WITH:
-				if((Boolean) internalMap.get(IGNORE_CASE))
+				if(this.ignoreCase)
 					return String.format("string.upper(string.sub(%s,1,string.len(%s)))==%s", luaFieldString(getField()), value1, value1.toUpperCase());
 				else
 					return String.format("string.sub(%s,1,string.len(%s))==%s", luaFieldString(getField()), value1, value1);
@@ -350,7 +415,7 @@ public class Qualifier implements Map<String, Object>, Serializable {
 						value1,
 						value1);
 			case CONTAINING:
-				if((Boolean) internalMap.get(IGNORE_CASE))
+				if(this.ignoreCase)
 					return String.format("string.find(string.upper(%s), %s)", luaFieldString(getField()), value1.toUpperCase());
 				else
 					return String.format("string.find(%s, %s)", luaFieldString(getField()), value1);
@@ -394,112 +459,123 @@ public class Qualifier implements Map<String, Object>, Serializable {
 	}
 
 
+	/**
+	 * The entries of the Map view, subclasses add their own
+	 *
+	 * @return A new map of the qualifier's properties
+	 */
+	protected Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		if (this.qualifiers != null)
+			map.put(QUALIFIERS, this.qualifiers.clone());
+		if (this.field != null)
+			map.put(FIELD, this.field);
+		if (this.operation != null)
+			map.put(OPERATION, this.operation);
+		if (this.value1 != null)
+			map.put(VALUE1, this.value1);
+		if (this.value2 != null)
+			map.put(VALUE2, this.value2);
+		if (this.field != null)
+			map.put(IGNORE_CASE, this.ignoreCase);
+		return map;
+	}
+
+	/**
+	 * Replaces the protected internalMap field of earlier versions, which was removed
+	 * when the Qualifier became immutable. The returned map is read-only, subclasses
+	 * that stored their own entries in internalMap should override {@link #toMap()}.
+	 *
+	 * @return The read-only Map view of the qualifier
+	 * @deprecated Use the Map methods of the Qualifier or override {@link #toMap()}
+	 */
+	@Deprecated
+	protected Map<String, Object> getInternalMap() {
+		return view();
+	}
+
 	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#size()
+	 * built on first use, the unmodifiable wrapper makes the racy publication safe
 	 */
+	private Map<String, Object> view() {
+		Map<String, Object> result = this.view;
+		if (result == null) {
+			result = Collections.unmodifiableMap(toMap());
+			this.view = result;
+		}
+		return result;
+	}
+
 	@Override
 	public int size() {
-		return internalMap.size();
+		return view().size();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#isEmpty()
-	 */
 	@Override
 	public boolean isEmpty() {
-		return internalMap.isEmpty();
+		return view().isEmpty();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#containsKey(java.lang.Object)
-	 */
 	@Override
 	public boolean containsKey(java.lang.Object key) {
-		return internalMap.containsKey(key);
+		return view().containsKey(key);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#containsValue(java.lang.Object)
-	 */
 	@Override
 	public boolean containsValue(java.lang.Object value) {
-		return internalMap.containsValue(value);
+		return view().containsValue(value);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#get(java.lang.Object)
-	 */
 	@Override
 	public Object get(java.lang.Object key) {
-		return internalMap.get(key);
+		return view().get(key);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#put(java.lang.Object, java.lang.Object)
+	/**
+	 * @throws UnsupportedOperationException always, a Qualifier is immutable
 	 */
 	@Override
 	public Object put(String key, Object value) {
-		return internalMap.put(key, value);
+		throw new UnsupportedOperationException("A Qualifier is immutable");
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#remove(java.lang.Object)
+	/**
+	 * @throws UnsupportedOperationException always, a Qualifier is immutable
 	 */
 	@Override
 	public Object remove(java.lang.Object key) {
-		return internalMap.remove(key);
+		throw new UnsupportedOperationException("A Qualifier is immutable");
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#putAll(java.util.Map)
+	/**
+	 * @throws UnsupportedOperationException always, a Qualifier is immutable
 	 */
 	@Override
 	public void putAll(Map<? extends String, ? extends Object> m) {
-		internalMap.putAll(m);
+		throw new UnsupportedOperationException("A Qualifier is immutable");
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#clear()
+	/**
+	 * @throws UnsupportedOperationException always, a Qualifier is immutable
 	 */
 	@Override
 	public void clear() {
-		internalMap.clear();
+		throw new UnsupportedOperationException("A Qualifier is immutable");
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#keySet()
-	 */
 	@Override
 	public Set<String> keySet() {
-		return internalMap.keySet();
+		return view().keySet();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#values()
-	 */
 	@Override
 	public Collection<Object> values() {
-		return internalMap.values();
+		return view().values();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.util.Map#entrySet()
-	 */
 	@Override
 	public Set<java.util.Map.Entry<String, Object>> entrySet() {
-		return internalMap.entrySet();
+		return view().entrySet();
 	}
 
 	@Override
@@ -507,4 +583,256 @@ public class Qualifier implements Map<String, Object>, Serializable {
 		String output = String.format("%s:%s:%s:%s", getField(), getOperation(), getValue1(), getValue2());
 		return output;
 	}
+
+	/**
+	 * Replaces the built in qualifiers with their compact form when serialized.
+	 * Other subclasses are serialized with their fields.
+	 *
+	 * @return The object to serialize
+	 * @throws ObjectStreamException never
+	 */
+	protected Object writeReplace() throws ObjectStreamException {
+		return SerializedForm.supports(this) ? new SerializedForm(this) : this;
+	}
+
+	/**
+	 * The serialized form of the built in qualifiers: a kind, the operation, the
+	 * field of a bin qualifier, the values by type and the nested qualifiers.
+	 */
+	static final class SerializedForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private static final byte QUALIFIER = 0;
+		private static final byte KEY = 1;
+		private static final byte KEY_DIGEST = 2;
+		private static final byte GENERATION = 3;
+		private static final byte EXPIRY = 4;
+		private static final byte TTL = 5;
+		private static final byte OTHER = 6;
+		private static final byte ABSENT = -1;
+
+		private static final byte NO_VALUE = 0;
+		private static final byte LONG = 1;
+		private static final byte DOUBLE = 2;
+		private static final byte STRING = 3;
+		private static final byte BYTES = 4;
+		private static final byte GEOJSON = 5;
+		private static final byte NULL = 6;
+		private static final byte OBJECT = 7;
+
+		/*
+		 * writeUTF is limited to 65535 bytes, a character takes at most 3
+		 */
+		private static final int MAX_UTF_CHARS = 65535 / 3;
+
+		private static final FilterOperation[] OPERATIONS = FilterOperation.values();
+
+		private Qualifier qualifier;
+
+		public SerializedForm() {
+		}
+
+		SerializedForm(Qualifier qualifier) {
+			this.qualifier = qualifier;
+		}
+
+		@SuppressWarnings("deprecation")
+		static boolean supports(Qualifier qualifier) {
+			Class<?> type = qualifier.getClass();
+			return type == Qualifier.class || type == KeyQualifier.class || type == GenerationQualifier.class
+					|| type == ExpiryQualifier.class || type == TTLQualifier.class;
+		}
+
+		@SuppressWarnings("deprecation")
+		private static byte kind(Qualifier qualifier) {
+			Class<?> type = qualifier.getClass();
+			if (type == KeyQualifier.class)
+				return (((KeyQualifier) qualifier).getDigest() != null) ? KEY_DIGEST : KEY;
+			if (type == GenerationQualifier.class)
+				return GENERATION;
+			if (type == ExpiryQualifier.class)
+				return EXPIRY;
+			if (type == TTLQualifier.class)
+				return TTL;
+			return QUALIFIER;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			write(out, this.qualifier);
+		}
+
+		private static void write(ObjectOutput out, Qualifier qualifier) throws IOException {
+			if (qualifier == null) {
+				out.writeByte(ABSENT);
+				return;
+			}
+			if (!supports(qualifier)) {
+				// a subclass nested in an AND or OR
+				out.writeByte(OTHER);
+				out.writeObject(qualifier);
+				return;
+			}
+			byte kind = kind(qualifier);
+			out.writeByte(kind);
+			out.writeByte((qualifier.operation == null) ? ABSENT : qualifier.operation.ordinal());
+			switch (kind) {
+				case KEY_DIGEST:
+					byte[] digest = ((KeyQualifier) qualifier).getDigest();
+					out.writeShort(digest.length);
+					out.write(digest);
+					return;
+				case KEY:
+				case GENERATION:
+				case EXPIRY:
+				case TTL:
+					writeValue(out, qualifier.value1);
+					return;
+				default:
+					break;
+			}
+			out.writeBoolean(qualifier.ignoreCase);
+			out.writeBoolean(qualifier.field != null);
+			if (qualifier.field != null)
+				out.writeUTF(qualifier.field);
+			writeValue(out, qualifier.value1);
+			writeValue(out, qualifier.value2);
+			if (qualifier.qualifiers == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(qualifier.qualifiers.length);
+				for (Qualifier nested : qualifier.qualifiers) {
+					write(out, nested);
+				}
+			}
+		}
+
+		private static void writeValue(ObjectOutput out, Value value) throws IOException {
+			if (value == null) {
+				out.writeByte(NO_VALUE);
+				return;
+			}
+			Object object = value.getObject();
+			switch (value.getType()) {
+				case ParticleType.NULL:
+					if (object == null) {
+						out.writeByte(NULL);
+						return;
+					}
+					break;
+				case ParticleType.INTEGER:
+					if (object instanceof Long) {
+						out.writeByte(LONG);
+						out.writeLong((Long) object);
+						return;
+					}
+					break;
+				case ParticleType.DOUBLE:
+					if (object instanceof Double) {
+						out.writeByte(DOUBLE);
+						out.writeDouble((Double) object);
+						return;
+					}
+					break;
+				case ParticleType.STRING:
+				case ParticleType.GEOJSON:
+					if (object instanceof String && ((String) object).length() <= MAX_UTF_CHARS) {
+						out.writeByte((value.getType() == ParticleType.STRING) ? STRING : GEOJSON);
+						out.writeUTF((String) object);
+						return;
+					}
+					break;
+				case ParticleType.BLOB:
+					if (object instanceof byte[]) {
+						byte[] bytes = (byte[]) object;
+						out.writeByte(BYTES);
+						out.writeInt(bytes.length);
+						out.write(bytes);
+						return;
+					}
+					break;
+				default:
+					break;
+			}
+			out.writeByte(OBJECT);
+			out.writeObject(object);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			this.qualifier = read(in);
+		}
+
+		@SuppressWarnings("deprecation")
+		private static Qualifier read(ObjectInput in) throws IOException, ClassNotFoundException {
+			byte kind = in.readByte();
+			if (kind == ABSENT)
+				return null;
+			if (kind == OTHER)
+				return (Qualifier) in.readObject();
+			byte ordinal = in.readByte();
+			FilterOperation operation = (ordinal == ABSENT) ? null : OPERATIONS[ordinal];
+			switch (kind) {
+				case KEY_DIGEST:
+					byte[] digest = new byte[in.readUnsignedShort()];
+					in.readFully(digest);
+					return new KeyQualifier(digest);
+				case KEY:
+					return new KeyQualifier(readValue(in));
+				case GENERATION:
+					return new GenerationQualifier(operation, readValue(in));
+				case EXPIRY:
+					return new ExpiryQualifier(operation, readValue(in));
+				case TTL:
+					return new TTLQualifier(readValue(in));
+				case QUALIFIER:
+					break;
+				default:
+					throw new IOException("Unknown qualifier kind " + kind);
+			}
+			boolean ignoreCase = in.readBoolean();
+			String field = in.readBoolean() ? in.readUTF() : null;
+			Value value1 = readValue(in);
+			Value value2 = readValue(in);
+			int count = in.readInt();
+			Qualifier[] qualifiers = null;
+			if (count >= 0) {
+				qualifiers = new Qualifier[count];
+				for (int i = 0; i < count; i++) {
+					qualifiers[i] = read(in);
+				}
+			}
+			return new Qualifier(field, operation, ignoreCase, value1, value2, qualifiers);
+		}
+
+		private static Value readValue(ObjectInput in) throws IOException, ClassNotFoundException {
+			byte type = in.readByte();
+			switch (type) {
+				case NO_VALUE:
+					return null;
+				case NULL:
+					return Value.getAsNull();
+				case LONG:
+					return Value.get(in.readLong());
+				case DOUBLE:
+					return Value.get(in.readDouble());
+				case STRING:
+					return Value.get(in.readUTF());
+				case GEOJSON:
+					return Value.getAsGeoJSON(in.readUTF());
+				case BYTES:
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					return Value.get(bytes);
+				case OBJECT:
+					return Value.get(in.readObject());
+				default:
+					throw new IOException("Unknown value type " + type);
+			}
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return this.qualifier;
+		}
+	}
 }
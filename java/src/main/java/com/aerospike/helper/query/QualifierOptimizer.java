@@ -0,0 +1,615 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import com.aerospike.client.Value;
+import com.aerospike.client.command.ParticleType;
+import com.aerospike.client.query.Filter;
+import com.aerospike.helper.query.Qualifier.FilterOperation;
+
+/**
+ * Rewrites qualifiers before a query is planned, so that more of them can be
+ * used as the secondary index Filter and fewer are evaluated on the server.
+ * The rewritten qualifiers select the same records:
+ * <ul>
+ * <li>nested ANDs and ORs are flattened, the qualifiers of a query are an AND</li>
+ * <li>a NOT of an AND or OR is pushed inward, a double NOT is removed</li>
+ * <li>integer comparisons of a bin in an AND are merged into one range</li>
+ * <li>integer comparisons of a bin in an OR are merged into ranges, EQs into an IN</li>
+ * <li>duplicated qualifiers are removed</li>
+ * <li>an AND that cannot match, like {@code age > 30} and {@code age < 20}, becomes
+ * {@link #matchesNothing(Qualifier[]) nothing}</li>
+ * </ul>
+ * A NOT of a comparison is kept as it is: a comparison with a missing bin is
+ * false, so {@code NOT(age > 30)} is not the same as {@code age <= 30}.
+ * Only the qualifiers of bins are merged, comparisons with meta data are kept.
+ * A merged range keeps strict bounds, {@code age > 30} does not become
+ * {@code age >= 31}, so that it also holds for a bin with double values. The EQs
+ * of an indexed bin are not merged into an IN, which cannot be a Filter.
+ *
+ * @author peter
+ */
+public final class QualifierOptimizer {
+
+	private static final Qualifier[] NO_QUALIFIERS = new Qualifier[0];
+
+	/*
+	 * an OR of nothing is false
+	 */
+	private static final Qualifier NOTHING = new Qualifier(FilterOperation.OR, NO_QUALIFIERS);
+
+	private QualifierOptimizer() {
+	}
+
+	/**
+	 * Rewrites the qualifiers of a query, without secondary indexes
+	 *
+	 * @param qualifiers The qualifiers, all of which must match
+	 * @return The rewritten qualifiers, all of which must match. A single qualifier that
+	 * matches nothing if the qualifiers contradict each other.
+	 */
+	public static Qualifier[] optimize(Qualifier... qualifiers) {
+		return optimize(null, qualifiers);
+	}
+
+	/**
+	 * Rewrites the qualifiers of a query
+	 *
+	 * @param indexed    Tests whether a bin has a secondary index, null if none has
+	 * @param qualifiers The qualifiers, all of which must match
+	 * @return The rewritten qualifiers, all of which must match. A single qualifier that
+	 * matches nothing if the qualifiers contradict each other.
+	 */
+	public static Qualifier[] optimize(Predicate<String> indexed, Qualifier... qualifiers) {
+		if (qualifiers == null || qualifiers.length == 0)
+			return NO_QUALIFIERS;
+		Qualifier result = simplify(new Qualifier(FilterOperation.AND, qualifiers), indexed);
+		if (isFalse(result))
+			return new Qualifier[] { NOTHING };
+		if (result.getOperation() == FilterOperation.AND && result.qualifiers() != null)
+			return result.qualifiers().clone();
+		return new Qualifier[] { result };
+	}
+
+	/**
+	 * Builds one index range from the integer bounds of a bin in an AND, such as the
+	 * AND of a merged range. A numeric secondary index holds integers only, so strict
+	 * bounds become included ones: {@code age > 24 AND age < 30} is the range 25 to 29.
+	 *
+	 * @param indexed    The integer bound of the indexed bin that is the Filter
+	 * @param qualifiers The qualifiers of the AND
+	 * @return The range of the bin, or null if the qualifier is not an integer bound
+	 */
+	static Filter indexRange(Qualifier indexed, Qualifier[] qualifiers) {
+		String field = indexed.getField();
+		if (!isIntegerBound(field, indexed))
+			return null;
+		Range range = null;
+		for (Qualifier qualifier : qualifiers) {
+			if (!isIntegerBound(field, qualifier))
+				continue;
+			Range bounds = bounds(qualifier);
+			if (range == null)
+				range = bounds;
+			else
+				range.intersect(bounds);
+		}
+		long low = (range.lowIncluded || range.low == Long.MAX_VALUE) ? range.low : range.low + 1;
+		long high = (range.highIncluded || range.high == Long.MIN_VALUE) ? range.high : range.high - 1;
+		return Filter.range(field, low, high);
+	}
+
+	/**
+	 * @param field     A bin
+	 * @param qualifier A qualifier, or null
+	 * @return true if the qualifier is an integer bound of the bin
+	 */
+	static boolean isIntegerBound(String field, Qualifier qualifier) {
+		return qualifier != null && field.equals(qualifier.getField()) && bounds(qualifier) != null;
+	}
+
+	/**
+	 * @param qualifiers The rewritten qualifiers
+	 * @return true if the qualifiers cannot match any record
+	 */
+	public static boolean matchesNothing(Qualifier[] qualifiers) {
+		return qualifiers != null && qualifiers.length == 1 && isFalse(qualifiers[0]);
+	}
+
+	/**
+	 * Compares qualifiers by value. Qualifiers of other classes than the built in
+	 * ones are only the same as themselves.
+	 *
+	 * @param a A qualifier
+	 * @param b Another qualifier
+	 * @return true if both select the same records in the same way
+	 */
+	static boolean same(Qualifier a, Qualifier b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null || a.getClass() != b.getClass() || !Qualifier.SerializedForm.supports(a))
+			return false;
+		if (a.getOperation() != b.getOperation() || a.isIgnoreCase() != b.isIgnoreCase()
+				|| !Objects.equals(a.getField(), b.getField())
+				|| !same(a.getValue1(), b.getValue1()) || !same(a.getValue2(), b.getValue2()))
+			return false;
+		if (a instanceof KeyQualifier && !Arrays.equals(((KeyQualifier) a).getDigest(), ((KeyQualifier) b).getDigest()))
+			return false;
+		return same(a.qualifiers(), b.qualifiers());
+	}
+
+	static boolean same(Qualifier[] a, Qualifier[] b) {
+		if (a == null || b == null)
+			return a == b;
+		if (a.length != b.length)
+			return false;
+		for (int i = 0; i < a.length; i++) {
+			if (!same(a[i], b[i]))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean same(Value a, Value b) {
+		if (a == null || b == null)
+			return a == b;
+		return a.getType() == b.getType() && Objects.deepEquals(a.getObject(), b.getObject());
+	}
+
+	private static Qualifier simplify(Qualifier qualifier, Predicate<String> indexed) {
+		FilterOperation operation = qualifier.getOperation();
+		if (operation == null)
+			return qualifier;
+		switch (operation) {
+			case AND:
+			case OR:
+				if (qualifier.qualifiers() == null)
+					return qualifier;
+				List<Qualifier> operands = new ArrayList<Qualifier>();
+				for (Qualifier operand : qualifier.qualifiers()) {
+					if (operand == null)
+						continue;
+					Qualifier simplified = simplify(operand, indexed);
+					if (simplified.getOperation() == operation && simplified.qualifiers() != null)
+						operands.addAll(Arrays.asList(simplified.qualifiers()));
+					else
+						operands.add(simplified);
+				}
+				return (operation == FilterOperation.AND) ? and(operands) : or(operands, indexed);
+			case NOT:
+				return not(qualifier, indexed);
+			case IN:
+				if (!isBinComparison(qualifier))
+					return qualifier;
+				List<?> values = list(qualifier.getValue1());
+				if (values == null)
+					return qualifier;
+				if (values.isEmpty())
+					return NOTHING;
+				if (values.size() == 1)
+					return new Qualifier(qualifier.getField(), FilterOperation.EQ, Value.get(values.get(0)));
+				return qualifier;
+			default:
+				return qualifier;
+		}
+	}
+
+	private static Qualifier not(Qualifier qualifier, Predicate<String> indexed) {
+		Qualifier[] operands = qualifier.qualifiers();
+		if (operands == null || operands.length != 1 || operands[0] == null)
+			return qualifier;
+		Qualifier operand = simplify(operands[0], indexed);
+		FilterOperation operation = operand.getOperation();
+		if (operation == FilterOperation.NOT && operand.qualifiers() != null && operand.qualifiers().length == 1)
+			return operand.qualifiers()[0];
+		if ((operation == FilterOperation.AND || operation == FilterOperation.OR) && operand.qualifiers() != null) {
+			// De Morgan: NOT(a AND b) is NOT(a) OR NOT(b)
+			Qualifier[] negated = new Qualifier[operand.qualifiers().length];
+			for (int i = 0; i < negated.length; i++)
+				negated[i] = new Qualifier(FilterOperation.NOT, operand.qualifiers()[i]);
+			FilterOperation dual = (operation == FilterOperation.AND) ? FilterOperation.OR : FilterOperation.AND;
+			return simplify(new Qualifier(dual, negated), indexed);
+		}
+		return (operand == operands[0]) ? qualifier : new Qualifier(FilterOperation.NOT, operand);
+	}
+
+	private static Qualifier and(List<Qualifier> operands) {
+		List<Qualifier> result = new ArrayList<Qualifier>();
+		for (Qualifier operand : operands) {
+			if (isFalse(operand))
+				return NOTHING;
+			if (!isTrue(operand) && !contains(result, operand))
+				result.add(operand);
+		}
+		result = intersect(result);
+		if (result == null)
+			return NOTHING;
+		return combine(FilterOperation.AND, result);
+	}
+
+	private static Qualifier or(List<Qualifier> operands, Predicate<String> indexed) {
+		List<Qualifier> result = new ArrayList<Qualifier>();
+		for (Qualifier operand : operands) {
+			if (isTrue(operand))
+				return new Qualifier(FilterOperation.AND, NO_QUALIFIERS);
+			if (!isFalse(operand) && !contains(result, operand))
+				result.add(operand);
+		}
+		return combine(FilterOperation.OR, unite(result, indexed));
+	}
+
+	private static Qualifier combine(FilterOperation operation, List<Qualifier> operands) {
+		if (operands.size() == 1)
+			return operands.get(0);
+		return new Qualifier(operation, operands.toArray(new Qualifier[operands.size()]));
+	}
+
+	/*
+	 * merges the integer comparisons of each bin into one range, null if a range
+	 * is empty or a bin must equal two different strings
+	 */
+	private static List<Qualifier> intersect(List<Qualifier> operands) {
+		Map<String, Range> ranges = new LinkedHashMap<String, Range>();
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		Map<String, Object> strings = new LinkedHashMap<String, Object>();
+		for (Qualifier operand : operands) {
+			Range bounds = bounds(operand);
+			if (bounds != null) {
+				Range range = ranges.get(operand.getField());
+				if (range == null) {
+					ranges.put(operand.getField(), bounds);
+					counts.put(operand.getField(), 1);
+				} else {
+					range.intersect(bounds);
+					counts.put(operand.getField(), counts.get(operand.getField()) + 1);
+				}
+			} else if (isStringEqual(operand)) {
+				Object previous = strings.put(operand.getField(), operand.getValue1().getObject());
+				if (previous != null && !previous.equals(operand.getValue1().getObject()))
+					return null;
+			}
+		}
+		for (Map.Entry<String, Range> entry : ranges.entrySet()) {
+			// a bin cannot be both an integer and a string
+			if (entry.getValue().isEmpty() || strings.containsKey(entry.getKey()))
+				return null;
+		}
+		List<Qualifier> result = new ArrayList<Qualifier>(operands.size());
+		Set<String> merged = new LinkedHashSet<String>();
+		for (Qualifier operand : operands) {
+			if (bounds(operand) == null || counts.get(operand.getField()) == 1) {
+				result.add(operand);
+			} else if (merged.add(operand.getField())) {
+				Qualifier range = range(operand.getField(), ranges.get(operand.getField()));
+				if (range.getOperation() == FilterOperation.AND)
+					result.addAll(Arrays.asList(range.qualifiers()));
+				else
+					result.add(range);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * merges the integer comparisons of each bin into the fewest ranges, or an IN of
+	 * the values if they are all single values, and the string EQs into an IN. The
+	 * EQs of an indexed bin are kept.
+	 */
+	private static List<Qualifier> unite(List<Qualifier> operands, Predicate<String> indexed) {
+		Map<String, List<Range>> ranges = new LinkedHashMap<String, List<Range>>();
+		Map<String, Set<Object>> strings = new LinkedHashMap<String, Set<Object>>();
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (Qualifier operand : operands) {
+			List<Range> bounds = integerValues(operand);
+			Set<Object> values = stringValues(operand);
+			if (bounds == null && values == null)
+				continue;
+			String field = operand.getField();
+			Integer count = counts.get(field);
+			counts.put(field, (count == null) ? 1 : count + 1);
+			if (bounds != null) {
+				if (!ranges.containsKey(field))
+					ranges.put(field, new ArrayList<Range>());
+				ranges.get(field).addAll(bounds);
+			} else {
+				if (!strings.containsKey(field))
+					strings.put(field, new LinkedHashSet<Object>());
+				strings.get(field).addAll(values);
+			}
+		}
+		List<Qualifier> result = new ArrayList<Qualifier>(operands.size());
+		Set<String> merged = new LinkedHashSet<String>();
+		for (Qualifier operand : operands) {
+			String field = operand.getField();
+			Integer count = counts.get(field);
+			if ((integerValues(operand) == null && stringValues(operand) == null) || count == null) {
+				result.add(operand);
+			} else if (count == 1) {
+				// an empty range or IN matches nothing
+				if (!isEmpty(integerValues(operand)) || !isEmpty(stringValues(operand)))
+					result.add(operand);
+			} else if (merged.add(field)) {
+				boolean keepEquals = indexed != null && indexed.test(field);
+				if (ranges.containsKey(field))
+					result.addAll(union(field, ranges.get(field), keepEquals));
+				if (strings.containsKey(field))
+					result.addAll(in(field, new ArrayList<Object>(strings.get(field)), keepEquals));
+			}
+		}
+		return result;
+	}
+
+	private static List<Qualifier> union(String field, List<Range> ranges, boolean keepEquals) {
+		List<Range> sorted = new ArrayList<Range>();
+		for (Range range : ranges) {
+			if (!range.isEmpty())
+				sorted.add(range.copy());
+		}
+		Collections.sort(sorted, new Comparator<Range>() {
+			@Override
+			public int compare(Range a, Range b) {
+				int result = Long.compare(a.low, b.low);
+				return (result != 0) ? result : Boolean.compare(b.lowIncluded, a.lowIncluded);
+			}
+		});
+		List<Range> union = new ArrayList<Range>();
+		boolean points = true;
+		for (Range range : sorted) {
+			Range last = union.isEmpty() ? null : union.get(union.size() - 1);
+			if (last != null && last.reaches(range)) {
+				last.extend(range);
+			} else {
+				union.add(range);
+			}
+		}
+		for (Range range : union)
+			points &= range.isPoint();
+		if (points && union.size() > 1) {
+			List<Object> values = new ArrayList<Object>(union.size());
+			for (Range range : union)
+				values.add(range.low);
+			return in(field, values, keepEquals);
+		}
+		List<Qualifier> result = new ArrayList<Qualifier>(union.size());
+		for (Range range : union)
+			result.add(range(field, range));
+		return result;
+	}
+
+	private static List<Qualifier> in(String field, List<Object> values, boolean keepEquals) {
+		if (values.isEmpty())
+			return Collections.emptyList();
+		if (values.size() == 1 || keepEquals) {
+			List<Qualifier> equals = new ArrayList<Qualifier>(values.size());
+			for (Object value : values)
+				equals.add(new Qualifier(field, FilterOperation.EQ, Value.get(value)));
+			return equals;
+		}
+		return Collections.singletonList(new Qualifier(field, FilterOperation.IN, Value.get(values)));
+	}
+
+	/*
+	 * one qualifier for a range, an AND if both bounds are set and one is strict
+	 */
+	private static Qualifier range(String field, Range range) {
+		if (range.isPoint())
+			return new Qualifier(field, FilterOperation.EQ, Value.get(range.low));
+		Qualifier low = new Qualifier(field, range.lowIncluded ? FilterOperation.GTEQ : FilterOperation.GT, Value.get(range.low));
+		if (!range.hasHigh())
+			return low;
+		Qualifier high = new Qualifier(field, range.highIncluded ? FilterOperation.LTEQ : FilterOperation.LT, Value.get(range.high));
+		if (!range.hasLow())
+			return high;
+		if (range.lowIncluded && range.highIncluded)
+			return new Qualifier(field, FilterOperation.BETWEEN, Value.get(range.low), Value.get(range.high));
+		return new Qualifier(FilterOperation.AND, low, high);
+	}
+
+	/*
+	 * the range of an integer comparison of a bin, or null
+	 */
+	private static Range bounds(Qualifier qualifier) {
+		if (!isBinComparison(qualifier) || !isInteger(qualifier.getValue1()))
+			return null;
+		long value = qualifier.getValue1().toLong();
+		switch (qualifier.getOperation()) {
+			case EQ:
+				return new Range(value, true, value, true);
+			case GT:
+				return new Range(value, false, Long.MAX_VALUE, true);
+			case GTEQ:
+				return new Range(value, true, Long.MAX_VALUE, true);
+			case LT:
+				return new Range(Long.MIN_VALUE, true, value, false);
+			case LTEQ:
+				return new Range(Long.MIN_VALUE, true, value, true);
+			case BETWEEN:
+				return isInteger(qualifier.getValue2()) ? new Range(value, true, qualifier.getValue2().toLong(), true) : null;
+			default:
+				return null;
+		}
+	}
+
+	/*
+	 * the ranges of an integer comparison or an IN of integers, or null
+	 */
+	private static List<Range> integerValues(Qualifier qualifier) {
+		Range bounds = bounds(qualifier);
+		if (bounds != null)
+			return Collections.singletonList(bounds);
+		if (!isBinComparison(qualifier) || qualifier.getOperation() != FilterOperation.IN)
+			return null;
+		List<?> values = list(qualifier.getValue1());
+		if (values == null || values.isEmpty())
+			return null;
+		List<Range> result = new ArrayList<Range>(values.size());
+		for (Object value : values) {
+			if (!(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte))
+				return null;
+			long v = ((Number) value).longValue();
+			result.add(new Range(v, true, v, true));
+		}
+		return result;
+	}
+
+	/*
+	 * the values of a string EQ or an IN of strings, or null
+	 */
+	private static Set<Object> stringValues(Qualifier qualifier) {
+		if (isStringEqual(qualifier))
+			return Collections.singleton(qualifier.getValue1().getObject());
+		if (!isBinComparison(qualifier) || qualifier.getOperation() != FilterOperation.IN)
+			return null;
+		List<?> values = list(qualifier.getValue1());
+		if (values == null)
+			return null;
+		Set<Object> result = new LinkedHashSet<Object>();
+		for (Object value : values) {
+			if (!(value instanceof String))
+				return null;
+			result.add(value);
+		}
+		return result;
+	}
+
+	private static boolean isEmpty(List<Range> ranges) {
+		if (ranges == null)
+			return true;
+		for (Range range : ranges) {
+			if (!range.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isEmpty(Set<Object> values) {
+		return values == null || values.isEmpty();
+	}
+
+	private static boolean isStringEqual(Qualifier qualifier) {
+		return isBinComparison(qualifier) && qualifier.getOperation() == FilterOperation.EQ && !qualifier.isIgnoreCase()
+				&& qualifier.getValue1() != null && qualifier.getValue1().getType() == ParticleType.STRING;
+	}
+
+	/*
+	 * only the comparisons of the Qualifier class read a bin by its name
+	 */
+	private static boolean isBinComparison(Qualifier qualifier) {
+		return qualifier.getClass() == Qualifier.class && qualifier.getField() != null
+				&& qualifier.getOperation() != null && qualifier.qualifiers() == null;
+	}
+
+	private static boolean isInteger(Value value) {
+		return value != null && value.getType() == ParticleType.INTEGER;
+	}
+
+	private static List<?> list(Value value) {
+		return (value != null && value.getObject() instanceof List) ? (List<?>) value.getObject() : null;
+	}
+
+	private static boolean contains(List<Qualifier> qualifiers, Qualifier qualifier) {
+		for (Qualifier q : qualifiers) {
+			if (same(q, qualifier))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isTrue(Qualifier qualifier) {
+		return qualifier.getOperation() == FilterOperation.AND && qualifier.qualifiers() != null && qualifier.qualifiers().length == 0;
+	}
+
+	private static boolean isFalse(Qualifier qualifier) {
+		return qualifier.getOperation() == FilterOperation.OR && qualifier.qualifiers() != null && qualifier.qualifiers().length == 0;
+	}
+
+	/*
+	 * the values allowed by integer comparisons of a bin, a bound is only included
+	 * if a comparison includes it. Long.MIN_VALUE and Long.MAX_VALUE included are
+	 * no bound.
+	 */
+	private static final class Range {
+		long low;
+		boolean lowIncluded;
+		long high;
+		boolean highIncluded;
+
+		Range(long low, boolean lowIncluded, long high, boolean highIncluded) {
+			this.low = low;
+			this.lowIncluded = lowIncluded;
+			this.high = high;
+			this.highIncluded = highIncluded;
+		}
+
+		Range copy() {
+			return new Range(this.low, this.lowIncluded, this.high, this.highIncluded);
+		}
+
+		boolean hasLow() {
+			return this.low != Long.MIN_VALUE || !this.lowIncluded;
+		}
+
+		boolean hasHigh() {
+			return this.high != Long.MAX_VALUE || !this.highIncluded;
+		}
+
+		boolean isEmpty() {
+			return this.low > this.high || (this.low == this.high && !(this.lowIncluded && this.highIncluded));
+		}
+
+		boolean isPoint() {
+			return this.low == this.high && this.lowIncluded && this.highIncluded;
+		}
+
+		void intersect(Range other) {
+			if (other.low > this.low || (other.low == this.low && !other.lowIncluded)) {
+				this.low = other.low;
+				this.lowIncluded = other.lowIncluded;
+			}
+			if (other.high < this.high || (other.high == this.high && !other.highIncluded)) {
+				this.high = other.high;
+				this.highIncluded = other.highIncluded;
+			}
+		}
+
+		/*
+		 * true if this range and a range that does not start before it leave no gap
+		 */
+		boolean reaches(Range other) {
+			return other.low < this.high || (other.low == this.high && (this.highIncluded || other.lowIncluded));
+		}
+
+		void extend(Range other) {
+			if (other.high > this.high || (other.high == this.high && other.highIncluded)) {
+				this.high = other.high;
+				this.highIncluded = other.highIncluded;
+			}
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.helper.query.Qualifier.FilterOperation;
+
+/**
+ * Compiles qualifiers into a Predicate that the client evaluates on the records
+ * returned by the server, instead of the Lua filter of the as_utility module.
+ * The values of the qualifiers are converted once, when the Predicate is built.
+ * <p>
+ * Records are compared the way the Lua filter compares them: numbers by value,
+ * strings lexically, a comparison with a missing bin or between a number and a
+ * string is false, except NOTEQ. The meta data qualifiers compare the record
+ * generation and time to live. Key qualifiers, GEO_WITHIN and qualifier classes
+ * other than the built in ones are not supported, these are evaluated in Lua.
+ *
+ * @author peter
+ */
+public final class QualifierPredicates {
+
+	private static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+	private QualifierPredicates() {
+	}
+
+	/**
+	 * @param qualifiers Qualifiers, nulls are ignored
+	 * @return true if all of the qualifiers can be compiled
+	 */
+	public static boolean supports(Qualifier... qualifiers) {
+		for (Qualifier qualifier : qualifiers) {
+			if (qualifier != null && !supports(qualifier))
+				return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static boolean supports(Qualifier qualifier) {
+		Class<?> type = qualifier.getClass();
+		if (type != Qualifier.class && type != GenerationQualifier.class && type != ExpiryQualifier.class && type != TTLQualifier.class)
+			return false;
+		FilterOperation operation = qualifier.getOperation();
+		if (operation == null)
+			return false;
+		switch (operation) {
+			case AND:
+			case OR:
+			case NOT:
+				return qualifier.qualifiers() != null && (operation != FilterOperation.NOT || qualifier.qualifiers().length == 1)
+						&& supports(qualifier.qualifiers());
+			case GEO_WITHIN:
+				return false;
+			case IN:
+				return qualifier.getField() != null && qualifier.getValue1() != null && qualifier.getValue1().getObject() instanceof List;
+			case BETWEEN:
+			case LIST_BETWEEN:
+			case MAP_KEYS_BETWEEN:
+			case MAP_VALUES_BETWEEN:
+				return qualifier.getField() != null && qualifier.getValue1() != null && qualifier.getValue2() != null;
+			default:
+				return qualifier.getField() != null && qualifier.getValue1() != null;
+		}
+	}
+
+	/**
+	 * Compiles qualifiers that must all match
+	 *
+	 * @param qualifiers Qualifiers, nulls are ignored
+	 * @return The Predicate
+	 * @throws IllegalArgumentException if a qualifier is not {@link #supports(Qualifier...) supported}
+	 */
+	public static Predicate<Record> compile(Qualifier... qualifiers) {
+		List<Predicate<Record>> predicates = new ArrayList<Predicate<Record>>(qualifiers.length);
+		for (Qualifier qualifier : qualifiers) {
+			if (qualifier != null)
+				predicates.add(compile(qualifier));
+		}
+		return (predicates.size() == 1) ? predicates.get(0) : and(predicates);
+	}
+
+	private static Predicate<Record> compile(Qualifier qualifier) {
+		if (!supports(qualifier))
+			throw new IllegalArgumentException("Cannot be evaluated by the client: " + qualifier);
+		switch (qualifier.getOperation()) {
+			case AND:
+				return compile(qualifier.qualifiers());
+			case OR:
+				List<Predicate<Record>> predicates = new ArrayList<Predicate<Record>>(qualifier.qualifiers().length);
+				for (Qualifier operand : qualifier.qualifiers()) {
+					if (operand != null)
+						predicates.add(compile(operand));
+				}
+				return or(predicates);
+			case NOT:
+				return compile(qualifier.qualifiers()[0]).negate();
+			default:
+				return comparison(qualifier);
+		}
+	}
+
+	private static Predicate<Record> and(final List<Predicate<Record>> predicates) {
+		@SuppressWarnings("unchecked")
+		final Predicate<Record>[] operands = (Predicate<Record>[]) predicates.toArray(new Predicate<?>[predicates.size()]);
+		return new Predicate<Record>() {
+			@Override
+			public boolean test(Record record) {
+				for (Predicate<Record> operand : operands) {
+					if (!operand.test(record))
+						return false;
+				}
+				return true;
+			}
+		};
+	}
+
+	private static Predicate<Record> or(final List<Predicate<Record>> predicates) {
+		@SuppressWarnings("unchecked")
+		final Predicate<Record>[] operands = (Predicate<Record>[]) predicates.toArray(new Predicate<?>[predicates.size()]);
+		return new Predicate<Record>() {
+			@Override
+			public boolean test(Record record) {
+				for (Predicate<Record> operand : operands) {
+					if (operand.test(record))
+						return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/*
+	 * reads the compared value of a record
+	 */
+	private abstract static class Comparison implements Predicate<Record> {
+		private final String bin;
+		private final boolean generation;
+
+		@SuppressWarnings("deprecation")
+		Comparison(Qualifier qualifier) {
+			this.generation = qualifier instanceof GenerationQualifier;
+			boolean ttl = qualifier instanceof ExpiryQualifier || qualifier instanceof TTLQualifier;
+			this.bin = (this.generation || ttl) ? null : qualifier.getField();
+		}
+
+		@Override
+		public boolean test(Record record) {
+			Object value;
+			if (this.bin != null)
+				value = (record.bins == null) ? null : record.bins.get(this.bin);
+			else if (this.generation)
+				value = (long) record.generation;
+			else
+				value = (long) record.getTimeToLive();
+			return matches(value);
+		}
+
+		abstract boolean matches(Object value);
+	}
+
+	private static Predicate<Record> comparison(Qualifier qualifier) {
+		final FilterOperation operation = qualifier.getOperation();
+		final Object value1 = value(qualifier.getValue1());
+		final Object value2 = value(qualifier.getValue2());
+		switch (operation) {
+			case EQ:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return compare(value, value1) == 0;
+					}
+				};
+			case NOTEQ:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return compare(value, value1) != 0;
+					}
+				};
+			case GT:
+			case GTEQ:
+			case LT:
+			case LTEQ:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						int order = compare(value, value1);
+						if (order == INCOMPARABLE)
+							return false;
+						switch (operation) {
+							case GT:
+								return order > 0;
+							case GTEQ:
+								return order >= 0;
+							case LT:
+								return order < 0;
+							default:
+								return order <= 0;
+						}
+					}
+				};
+			case BETWEEN:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return between(value, value1, value2);
+					}
+				};
+			case IN:
+				final List<Object> values = new ArrayList<Object>((List<?>) value1);
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return value != null && contains(values, value);
+					}
+				};
+			case START_WITH:
+			case ENDS_WITH:
+			case CONTAINING:
+				if (!(value1 instanceof String))
+					return never();
+				final boolean ignoreCase = qualifier.isIgnoreCase();
+				final String text = ignoreCase ? ((String) value1).toUpperCase() : (String) value1;
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						if (!(value instanceof String))
+							return false;
+						String field = ignoreCase ? ((String) value).toUpperCase() : (String) value;
+						switch (operation) {
+							case START_WITH:
+								return field.startsWith(text);
+							case ENDS_WITH:
+								return field.endsWith(text);
+							default:
+								return field.contains(text);
+						}
+					}
+				};
+			case LIST_CONTAINS:
+			case MAP_VALUES_CONTAINS:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return contains(values(value), value1);
+					}
+				};
+			case MAP_KEYS_CONTAINS:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return (value instanceof Map) && contains(((Map<?, ?>) value).keySet(), value1);
+					}
+				};
+			case LIST_BETWEEN:
+			case MAP_VALUES_BETWEEN:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return anyBetween(values(value), value1, value2);
+					}
+				};
+			case MAP_KEYS_BETWEEN:
+				return new Comparison(qualifier) {
+					@Override
+					boolean matches(Object value) {
+						return (value instanceof Map) && anyBetween(((Map<?, ?>) value).keySet(), value1, value2);
+					}
+				};
+			default:
+				throw new IllegalArgumentException("Cannot be evaluated by the client: " + qualifier);
+		}
+	}
+
+	private static Predicate<Record> never() {
+		return new Predicate<Record>() {
+			@Override
+			public boolean test(Record record) {
+				return false;
+			}
+		};
+	}
+
+	private static Object value(Value value) {
+		return (value == null) ? null : value.getObject();
+	}
+
+	private static Collection<?> values(Object value) {
+		if (value instanceof List)
+			return (List<?>) value;
+		if (value instanceof Map)
+			return ((Map<?, ?>) value).values();
+		return null;
+	}
+
+	private static boolean contains(Collection<?> collection, Object value) {
+		if (collection == null)
+			return false;
+		for (Object element : collection) {
+			if (compare(element, value) == 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean anyBetween(Collection<?> collection, Object low, Object high) {
+		if (collection == null)
+			return false;
+		for (Object element : collection) {
+			if (between(element, low, high))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean between(Object value, Object low, Object high) {
+		int lower = compare(value, low);
+		int upper = compare(value, high);
+		return lower != INCOMPARABLE && upper != INCOMPARABLE && lower >= 0 && upper <= 0;
+	}
+
+	private static boolean isIntegral(Object value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+
+	/*
+	 * orders numbers by value and strings lexically, anything else is only equal to itself
+	 */
+	static int compare(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number) {
+			if (isIntegral(a) && isIntegral(b))
+				return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof String && b instanceof String)
+			return Integer.signum(((String) a).compareTo((String) b));
+		if (a instanceof byte[] && b instanceof byte[])
+			return Arrays.equals((byte[]) a, (byte[]) b) ? 0 : INCOMPARABLE;
+		if (a != null && a.equals(b))
+			return 0;
+		return INCOMPARABLE;
+	}
+}
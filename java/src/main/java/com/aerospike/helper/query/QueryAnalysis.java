@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plan of a query together with what happened when it was run.
+ *
+ * @author peter
+ * @see QueryEngine#analyze(com.aerospike.client.query.Statement, Qualifier...)
+ */
+public class QueryAnalysis {
+
+	/**
+	 * The records read and selected on one node
+	 */
+	public static final class NodeCounts {
+		private final long scanned;
+		private final long returned;
+
+		public NodeCounts(long scanned, long returned) {
+			this.scanned = scanned;
+			this.returned = returned;
+		}
+
+		/**
+		 * @return The records read by the filter stage, after the secondary index Filter and the PredExp
+		 */
+		public long getScanned() {
+			return this.scanned;
+		}
+
+		/**
+		 * @return The records that passed the qualifiers
+		 */
+		public long getReturned() {
+			return this.returned;
+		}
+
+		@Override
+		public String toString() {
+			return "scanned=" + this.scanned + " returned=" + this.returned;
+		}
+	}
+
+	private final QueryPlan plan;
+	private final long wallNanos;
+	private final long firstRecordNanos;
+	private final long recordsReturned;
+	private final Map<String, NodeCounts> nodes = new LinkedHashMap<String, NodeCounts>();
+
+	QueryAnalysis(QueryPlan plan, long wallNanos, long firstRecordNanos, long recordsReturned) {
+		this.plan = plan;
+		this.wallNanos = wallNanos;
+		this.firstRecordNanos = firstRecordNanos;
+		this.recordsReturned = recordsReturned;
+	}
+
+	void addNode(String node, NodeCounts counts) {
+		this.nodes.put(node, counts);
+	}
+
+	public QueryPlan getPlan() {
+		return this.plan;
+	}
+
+	/**
+	 * @return Nanoseconds from starting the query to reading its last record
+	 */
+	public long getWallNanos() {
+		return this.wallNanos;
+	}
+
+	/**
+	 * @return Nanoseconds from starting the query to reading its first record, or -1 if there were no records
+	 */
+	public long getFirstRecordNanos() {
+		return this.firstRecordNanos;
+	}
+
+	/**
+	 * @return The records read by the client
+	 */
+	public long getRecordsReturned() {
+		return this.recordsReturned;
+	}
+
+	/**
+	 * @return The records scanned and returned on each node, keyed by node name
+	 */
+	public Map<String, NodeCounts> getNodes() {
+		return Collections.unmodifiableMap(this.nodes);
+	}
+
+	/**
+	 * @return The records scanned on all nodes
+	 */
+	public long getRecordsScanned() {
+		long total = 0;
+		for (NodeCounts counts : this.nodes.values())
+			total += counts.getScanned();
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(this.plan.toString());
+		sb.append("\n  wall: ").append(TimeUnit.NANOSECONDS.toMillis(this.wallNanos)).append(" ms");
+		if (this.firstRecordNanos >= 0)
+			sb.append(", first record: ").append(TimeUnit.NANOSECONDS.toMillis(this.firstRecordNanos)).append(" ms");
+		sb.append("\n  records returned: ").append(this.recordsReturned);
+		for (Map.Entry<String, NodeCounts> entry : this.nodes.entrySet())
+			sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+		return sb.toString();
+	}
+}
@@ -16,26 +16,40 @@
 package com.aerospike.helper.query;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.log4j.Logger;
 
 import com.aerospike.client.AerospikeClient;
 import com.aerospike.client.AerospikeException;
 import com.aerospike.client.Bin;
-import com.aerospike.client.Info;
 import com.aerospike.client.Key;
 import com.aerospike.client.Language;
 import com.aerospike.client.Record;
 import com.aerospike.client.Value;
 import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.ClientPolicy;
 import com.aerospike.client.policy.InfoPolicy;
 import com.aerospike.client.policy.QueryPolicy;
 import com.aerospike.client.policy.RecordExistsAction;
@@ -48,9 +62,15 @@ import com.aerospike.client.query.ResultSet;
 import com.aerospike.client.query.Statement;
 import com.aerospike.client.task.ExecuteTask;
 import com.aerospike.client.task.RegisterTask;
+import com.aerospike.helper.InfoExecutor;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.model.CatalogSnapshot;
 import com.aerospike.helper.model.Index;
 import com.aerospike.helper.model.Module;
 import com.aerospike.helper.model.Namespace;
+import com.aerospike.helper.model.NamespaceStats;
+import com.aerospike.helper.model.SetStats;
+import com.aerospike.helper.model.SindexStats;
 
 /**
  * This class provides a multi-filter query engine that
@@ -67,14 +87,62 @@ public class QueryEngine implements Closeable {
 	protected static final String AS_UTILITY_PATH = QUERY_MODULE + ".lua";
 	protected static Logger log = Logger.getLogger(QueryEngine.class);
 	protected AerospikeClient client;
-	protected Map<String, Index> indexCache;
-	protected Map<String, Module> moduleCache;
-	protected TreeMap<String, Namespace> namespaceCache;
+	private boolean ownsClient;
+	protected ClusterCatalog catalog;
+	private CompletableFuture<CatalogSnapshot> ready;
+	private volatile boolean udfRegistered;
+	protected QueryMetrics metrics = new QueryMetrics();
+	protected SlowQueryLog slowQueryLog;
 	
 	public WritePolicy updatePolicy;
 	public WritePolicy insertPolicy;
 	public InfoPolicy infoPolicy;
 	public QueryPolicy queryPolicy;
+	/**
+	 * Set to false to plan queries with the qualifiers as they are given
+	 *
+	 * @see QualifierOptimizer
+	 */
+	public boolean optimizeQualifiers = true;
+	/**
+	 * Where the qualifiers that cannot be sent as PredExp are evaluated
+	 */
+	public ResidualMode residualMode = ResidualMode.AUTO;
+	/**
+	 * The bandwidth between the cluster and this client, used to choose the {@link #residualMode}
+	 */
+	public long networkBytesPerSecond = 125000000L;
+	/**
+	 * The server time to pass a record through the Lua filter, used to choose the {@link #residualMode}
+	 */
+	public long luaNanosPerRecord = 10000L;
+	/**
+	 * Set to false to have the Lua filter return a map for each record instead of a compact row
+	 */
+	public boolean compactResults = true;
+	/**
+	 * The most digest modulo shards a parallel {@link #stream(Statement, Qualifier...)} splits
+	 * the scan of a node into, a power of two
+	 */
+	public int streamShards = 8;
+	/**
+	 * The number of digest modulo shards {@link #resume(Statement, ContinuationToken, Qualifier...)}
+	 * divides a query into when it starts without a token. A scan splits the shards further
+	 * when a shard holds too many pages.
+	 */
+	public int resumableShards = 64;
+
+	/**
+	 * Where the qualifiers that cannot be sent as PredExp are evaluated
+	 */
+	public enum ResidualMode {
+		/** In the Lua filter of the as_utility module, only matching records are returned */
+		LUA,
+		/** By the client, the server returns every record that passes the Filter and PredExp */
+		CLIENT,
+		/** By the client if reading the extra records costs less than the Lua filter */
+		AUTO
+	}
 
 	public enum Meta {
 		KEY,
@@ -108,25 +176,136 @@ public class QueryEngine implements Closeable {
 		setClient(client);
 	}
 
+	/**
+	 * The Query engine is constructed by passing in an existing
+	 * AerospikeClient instance
+	 *
+	 * @param client     An instance of Aerospike client
+	 * @param asyncStart Set to true to load the cluster catalog and register the UDF module in the background
+	 * @see #whenReady()
+	 */
+	public QueryEngine(AerospikeClient client, boolean asyncStart) {
+		this();
+		setClient(client, asyncStart);
+	}
+
+	/**
+	 * The Query engine is constructed by passing in an existing
+	 * AerospikeClient instance and a file to persist the cluster catalog in
+	 *
+	 * @param client      An instance of Aerospike client
+	 * @param asyncStart  Set to true to load the cluster catalog and register the UDF module in the background
+	 * @param catalogFile The file to restore the catalog from and save it to
+	 * @see #setClient(AerospikeClient, boolean, File)
+	 */
+	public QueryEngine(AerospikeClient client, boolean asyncStart, File catalogFile) {
+		this();
+		setClient(client, asyncStart, catalogFile);
+	}
+
+	/**
+	 * The Query engine is constructed with an AerospikeClient of its own, which
+	 * is closed by {@link #close()}
+	 *
+	 * @param policy   The ClientPolicy, null for the defaults
+	 * @param hostname The host name of a seed node
+	 * @param port     The port of the seed node
+	 */
+	public QueryEngine(ClientPolicy policy, String hostname, int port) {
+		this();
+		AerospikeClient client = new AerospikeClient(policy, hostname, port);
+		try {
+			setClient(client);
+		} catch (RuntimeException e) {
+			client.close();
+			throw e;
+		}
+		this.ownsClient = true;
+	}
+
 	public QueryEngine() {
 		super();
 		Value.UseDoubleType = true; // Note: this supports the Double particle type
 	}
 
 	/**
-	 * Sets the AerospikeClient
+	 * Sets the AerospikeClient. The client is not closed by {@link #close()}, it
+	 * may be shared with other QueryEngines.
 	 *
 	 * @param client An instance of AerospikeClient
 	 */
 	public void setClient(AerospikeClient client) {
+		setClient(client, false);
+	}
+
+	/**
+	 * Sets the AerospikeClient. With an asynchronous start this returns immediately,
+	 * the catalog is loaded and the UDF module registered in the background. Until then
+	 * queries are planned without secondary indexes.
+	 *
+	 * @param client     An instance of AerospikeClient
+	 * @param asyncStart Set to true to load the cluster catalog and register the UDF module in the background
+	 */
+	public void setClient(AerospikeClient client, boolean asyncStart) {
+		setClient(client, asyncStart, null);
+	}
+
+	/**
+	 * Sets the AerospikeClient, restoring the cluster catalog from a file saved by a
+	 * previous process. Queries are planned from the restored catalog straight away while
+	 * it is validated against the cluster in the background. The file is updated after
+	 * each full refresh.
+	 * The file belongs to the catalog that is shared by all the QueryEngines of the client,
+	 * it must be the same file for all of them.
+	 *
+	 * @param client      An instance of AerospikeClient
+	 * @param asyncStart  Set to true to load the cluster catalog and register the UDF module in the background
+	 * @param catalogFile The file to restore the catalog from and save it to, may be null
+	 * @throws IllegalArgumentException if the catalog of the client is already saved to another file
+	 */
+	public void setClient(AerospikeClient client, boolean asyncStart, File catalogFile) {
+		ClusterCatalog catalog = ClusterCatalogRegistry.acquire(client, getInfoPolicy(), catalogFile);
 		this.client = client;
+		this.ownsClient = false;
 		this.updatePolicy = new WritePolicy(this.client.writePolicyDefault);
 		this.updatePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
 		this.insertPolicy = new WritePolicy(this.client.writePolicyDefault);
 		this.insertPolicy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
 		this.queryPolicy = client.queryPolicyDefault;
-		refreshCluster();
-		registerUDF();
+		this.catalog = catalog;
+		if (catalogFile != null && this.catalog.restore(catalogFile))
+			asyncStart = true; // validate in the background
+		if (asyncStart) {
+			this.ready = this.catalog.loadOnce().thenApply(new Function<CatalogSnapshot, CatalogSnapshot>() {
+				@Override
+				public CatalogSnapshot apply(CatalogSnapshot snapshot) {
+					registerUDF();
+					return getCatalog();
+				}
+			});
+		} else {
+			this.catalog.loadNow();
+			registerUDF();
+			this.ready = CompletableFuture.completedFuture(getCatalog());
+		}
+		this.catalog.start(ClusterCatalog.DEFAULT_REFRESH_INTERVAL);
+	}
+
+	/**
+	 * Gets a future that is completed when the cluster catalog has been loaded
+	 * and the UDF module is registered
+	 *
+	 * @return The readiness future, completed with the loaded CatalogSnapshot
+	 */
+	public CompletableFuture<CatalogSnapshot> whenReady() {
+		return this.ready;
+	}
+
+	/**
+	 * @return true if the cluster catalog has been loaded and the UDF module is registered
+	 */
+	public boolean isReady() {
+		return this.ready != null && this.ready.isDone() && !this.ready.isCompletedExceptionally();
 	}
 
 	/*
@@ -166,9 +345,22 @@ public class QueryEngine implements Closeable {
 	 * @return A KeyRecordIterator to iterate over the results
 	 */
 	public KeyRecordIterator select(Statement stmt, Map<String, String> sortMap, Qualifier... qualifiers) {
+		long start = System.nanoTime();
+		KeyRecordIterator results = null;
+		try {
+			results = selectSorted(stmt, sortMap, qualifiers);
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.SELECT, null, start, 0, 0, e);
+			throw e;
+		}
+		return instrument(results, QueryMetrics.Operation.SELECT, start);
+	}
+
+	private KeyRecordIterator selectSorted(Statement stmt, Map<String, String> sortMap, Qualifier... qualifiers) {
 		KeyRecordIterator results = null;
 
 		if (qualifiers != null && qualifiers.length > 0) {
+			awaitUDF();
 			Map<String, Object> originArgs = new HashMap<String, Object>();
 			originArgs.put("includeAllFields", 1);
 			String filterFuncStr = buildFilterFunction(qualifiers);
@@ -176,11 +368,16 @@ public class QueryEngine implements Closeable {
 			String sortFuncStr = buildSortFunction(sortMap);
 			originArgs.put("sortFuncStr", sortFuncStr);
 			stmt.setAggregateFunction(this.getClass().getClassLoader(), AS_UTILITY_PATH, QUERY_MODULE, "select_records", Value.get(originArgs));
+			QueryPlan plan = new QueryPlan(stmt.getNamespace(), stmt.getSetName());
+			plan.qualifiers = qualifiers.clone();
+			plan.residual = plan.qualifiers;
+			plan.luaFilter = filterFuncStr;
+			plan.path = QueryMetrics.Path.LUA;
 			ResultSet resultSet = this.client.queryAggregate(queryPolicy, stmt);
-			results = new KeyRecordIterator(stmt.getNamespace(), resultSet);
+			results = new KeyRecordIterator(stmt.getNamespace(), resultSet).plan(plan);
 		} else {
 			RecordSet recordSet = this.client.query(queryPolicy, stmt);
-			results = new KeyRecordIterator(stmt.getNamespace(), recordSet);
+			results = new KeyRecordIterator(stmt.getNamespace(), recordSet).path(filterPath(stmt));
 		}
 		return results;
 	}
@@ -238,106 +435,759 @@ public class QueryEngine implements Closeable {
 	 * @return A KeyRecordIterator to iterate over the results
 	 */
 	public KeyRecordIterator select(Statement stmt, boolean metaOnly, Node node, Qualifier... qualifiers) {
+		long start = System.nanoTime();
+		KeyRecordIterator results = null;
+		try {
+			results = query(stmt, metaOnly, node, qualifiers);
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.SELECT, null, start, 0, 0, e);
+			throw e;
+		}
+		return instrument(results, QueryMetrics.Operation.SELECT, start);
+	}
 
-		/*
-		 * no filters
-		 */
-		if (qualifiers == null || qualifiers.length == 0) {
-			RecordSet recordSet = null;
-			if (node != null)
-				recordSet = this.client.queryNode(queryPolicy, stmt, node);
-			else
-				recordSet = this.client.query(queryPolicy, stmt);
-			return new KeyRecordIterator(stmt.getNamespace(), recordSet);
+	/**
+	 * Select the records of a shard filtered by Qualifiers. The shard is sent as a
+	 * recDigestModulo PredExp together with the PredExp of the qualifiers and applied
+	 * after the secondary index Filter, so each of N workers reading one of the shards
+	 * 0 to N - 1 receives a disjoint slice of the records.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param shard	  The shard to read, or null for all records
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return A KeyRecordIterator to iterate over the results
+	 */
+	public KeyRecordIterator select(Statement stmt, ShardSpec shard, Qualifier... qualifiers) {
+		long start = System.nanoTime();
+		KeyRecordIterator results = null;
+		try {
+			QueryPlan plan = plan(stmt, false, qualifiers);
+			plan.shard = shard;
+			results = execute(plan, stmt, null);
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.SELECT, null, start, 0, 0, e);
+			throw e;
 		}
+		return instrument(results, QueryMetrics.Operation.SELECT, start);
+	}
+
+	/**
+	 * Streams the records filtered by Qualifiers. The spliterator of the stream splits the
+	 * query by node, and the scan of a node by digest modulo shard, so a parallel stream
+	 * reads the parts concurrently without a shared queue. A part is queried when the
+	 * stream reaches it. Close the stream to close the queries that are still open and to
+	 * record the select in the metrics.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return A sequential Stream, call parallel() to read the parts concurrently
+	 */
+	public Stream<KeyRecord> stream(Statement stmt, Qualifier... qualifiers) {
+		return stream(stmt, null, qualifiers);
+	}
+
+	/**
+	 * Streams the records of a shard filtered by Qualifiers. A parallel stream splits
+	 * the shard further into shards with a multiple of its count.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param shard	  The shard to read, or null for all records
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return A sequential Stream, call parallel() to read the parts concurrently
+	 * @see #select(Statement, ShardSpec, Qualifier...)
+	 */
+	public Stream<KeyRecord> stream(Statement stmt, ShardSpec shard, Qualifier... qualifiers) {
+		final long start = System.nanoTime();
+		final QueryPlan plan;
+		try {
+			plan = plan(stmt, false, qualifiers);
+			plan.shard = shard;
+			estimate(plan);
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.SELECT, null, start, 0, 0, e);
+			throw e;
+		}
+		final QuerySpliterator spliterator = new QuerySpliterator(this, plan, stmt, this.client.getNodes(), this.streamShards);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				QuerySpliterator.Results results = spliterator.getResults();
+				results.close();
+				record(QueryMetrics.Operation.SELECT, plan.getPath(), plan, start, results.getReturned(), 0, results.getError());
+			}
+		});
+	}
+
+	/**
+	 * Select records filtered by Qualifiers so that the select can be stopped and continued.
+	 * The query is read one digest modulo shard at a time, and {@link ResumableScan#getToken()}
+	 * returns the progress as a token. Continuing from the token reads only the records
+	 * that have not been returned, without holding a query open on the server in between.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param token	  The token to continue from, or null to start with {@link #resumableShards} shards
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return A ResumableScan to iterate over the results
+	 */
+	public ResumableScan resume(Statement stmt, ContinuationToken token, Qualifier... qualifiers) {
+		if (token == null)
+			token = ContinuationToken.start(this.resumableShards);
+		return new ResumableScan(this, stmt, token, qualifiers);
+	}
+
+	/**
+	 * Plans and runs a query. The returned iterator knows its execution path but is not
+	 * instrumented, so update and delete can run queries without counting them as selects.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param metaOnly   Set to true to return only the record meta data
+	 * @param node	   The node to query, or null for all nodes
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return A KeyRecordIterator to iterate over the results
+	 */
+	protected KeyRecordIterator query(Statement stmt, boolean metaOnly, Node node, Qualifier... qualifiers) {
+		return execute(plan(stmt, metaOnly, qualifiers), stmt, node);
+	}
+
+	/**
+	 * Explains how a select would be run, without running it. The plan shows which
+	 * qualifier is used as the secondary index Filter, which are sent as PredExp and
+	 * which are evaluated in Lua, and estimates how many records the server reads.
+	 * The estimate reads the statistics of the chosen index from each node.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return The QueryPlan
+	 */
+	public QueryPlan explain(Statement stmt, Qualifier... qualifiers) {
+		QueryPlan plan = plan(stmt, false, qualifiers);
+		estimate(plan);
+		return plan;
+	}
+
+	/**
+	 * Runs a select and reports how it performed. The records are read and discarded.
+	 * The query is run once on each node, the nodes concurrently, and each node reports
+	 * the records its filter stage read and returned. A client filter counts the records
+	 * it reads. The records read by a Lua filter are counted by a second aggregation on
+	 * the node once the query has run, which is not part of the timing.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return The QueryAnalysis
+	 */
+	public QueryAnalysis analyze(Statement stmt, Qualifier... qualifiers) {
+		return analyze(stmt, null, qualifiers);
+	}
+
+	/**
+	 * Runs a select of a shard and reports how it performed. The shard is applied as
+	 * in {@link #select(Statement, ShardSpec, Qualifier...)}, before the filter stage.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param shard	  The shard to read, or null for all records
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return The QueryAnalysis
+	 */
+	public QueryAnalysis analyze(Statement stmt, ShardSpec shard, Qualifier... qualifiers) {
+		QueryPlan plan = plan(stmt, false, qualifiers);
+		plan.shard = shard;
+		estimate(plan);
+		long start = System.nanoTime();
+		List<NodeRun> runs = new ArrayList<NodeRun>();
+		if (plan.getPath() == QueryMetrics.Path.KEY || plan.getPath() == QueryMetrics.Path.NONE) {
+			runs.add(new NodeRun(plan, stmt, null, start));
+		} else {
+			for (Node node : this.client.getNodes())
+				runs.add(new NodeRun(plan, stmt, node, start));
+		}
+		long count = 0;
+		try {
+			runAll(runs);
+			for (NodeRun run : runs)
+				count += run.returned;
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.SELECT, plan.getPath(), plan, start, count, 0, e);
+			throw e;
+		}
+		long nanos = System.nanoTime() - start;
+		record(QueryMetrics.Operation.SELECT, plan.getPath(), plan, start, count, 0, null);
+		long firstRecord = -1;
+		for (NodeRun run : runs) {
+			if (run.firstRecordNanos >= 0 && (firstRecord < 0 || run.firstRecordNanos < firstRecord))
+				firstRecord = run.firstRecordNanos;
+		}
+		QueryAnalysis analysis = new QueryAnalysis(plan, nanos, firstRecord, count);
+		for (NodeRun run : runs) {
+			if (run.node != null)
+				analysis.addNode(run.node.getName(), new QueryAnalysis.NodeCounts(run.scanned, run.returned));
+		}
+		return analysis;
+	}
+
+	/*
+	 * runs the queries of the nodes concurrently on the shared pool, a single query on the calling thread.
+	 * invokeAll cancels the queries that are still running if it is interrupted.
+	 */
+	private static void runAll(List<NodeRun> runs) {
+		if (runs.size() == 1) {
+			runs.get(0).call();
+			return;
+		}
+		try {
+			List<Future<Void>> futures = InfoExecutor.sharedExecutor().invokeAll(runs);
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AerospikeException("Interrupted while analyzing a query");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new AerospikeException(e.getCause());
+		}
+	}
+
+	/*
+	 * the query of one node in an analyze, reads and discards the records
+	 */
+	private final class NodeRun implements Callable<Void> {
+		private final QueryPlan plan;
+		private final Statement stmt;
+		private final Node node;
+		private final long start;
+		private long scanned;
+		private long returned;
+		private long firstRecordNanos = -1;
+
+		NodeRun(QueryPlan plan, Statement stmt, Node node, long start) {
+			this.plan = plan;
+			this.stmt = stmt;
+			this.node = node;
+			this.start = start;
+		}
+
+		@Override
+		public Void call() {
+			KeyRecordIterator results = execute(this.plan, this.stmt, this.node);
+			try {
+				while (results.hasNext()) {
+					results.next();
+					if (this.returned++ == 0)
+						this.firstRecordNanos = System.nanoTime() - this.start;
+				}
+				this.scanned = results.getScanned();
+			} finally {
+				try {
+					results.close();
+				} catch (IOException e) {
+					log.debug("Error closing query results", e);
+				}
+			}
+			if (this.plan.getPath() == QueryMetrics.Path.LUA)
+				this.scanned = countLuaScanned(this.plan, this.stmt, this.node);
+			return null;
+		}
+	}
+
+	/**
+	 * Decides how a query is run. The Statement and qualifiers are not changed.
+	 * <p>
+	 * The qualifiers are first rewritten by the {@link QualifierOptimizer}, unless
+	 * {@link #optimizeQualifiers} is false. Qualifiers that cannot match any record
+	 * are run as an empty result without reading from the cluster.
+	 * <p>
+	 * A single KeyQualifier is a primary key lookup. Otherwise the first qualifier on
+	 * an indexed bin becomes the secondary index Filter, unless the Statement already
+	 * has one, and is removed from the qualifiers. An indexed qualifier inside an AND
+	 * also becomes the Filter but the AND is kept. The remaining qualifiers are sent as
+	 * PredExp if they can all be expressed as PredExp, otherwise they are evaluated in Lua.
+	 *
+	 * @param stmt	   A Statement object containing Namespace, Set and the Bins to be returned.
+	 * @param metaOnly   Set to true to return only the record meta data
+	 * @param qualifiers Zero or more Qualifiers for the query
+	 * @return The QueryPlan
+	 */
+	protected QueryPlan plan(Statement stmt, boolean metaOnly, Qualifier... qualifiers) {
+		QueryPlan plan = new QueryPlan(stmt.getNamespace(), stmt.getSetName());
+		plan.metaOnly = metaOnly;
+		if (qualifiers != null)
+			plan.qualifiers = qualifiers.clone();
+		if (this.optimizeQualifiers && qualifiers != null) {
+			qualifiers = QualifierOptimizer.optimize(indexedBins(stmt), qualifiers);
+			plan.optimized = qualifiers;
+		}
+		if (QualifierOptimizer.matchesNothing(qualifiers)) {
+			plan.path = QueryMetrics.Path.NONE;
+			return plan;
+		}
+		plan.filter = statementFilter(stmt);
 		/*
 		 * singleton using primary key
 		 */
 		if (qualifiers != null && qualifiers.length == 1 && qualifiers[0] instanceof KeyQualifier) {
-			KeyQualifier kq = (KeyQualifier) qualifiers[0];
-			Key key = kq.makeKey(stmt.getNamespace(), stmt.getSetName());
-			Record record = null;
-			if (metaOnly)
-				record = this.client.getHeader(null, key);
-			else
-				record = this.client.get(null, key, stmt.getBinNames());
-			if (record == null) {
-				return new KeyRecordIterator(stmt.getNamespace());
-			} else {
-				KeyRecord keyRecord = new KeyRecord(key, record);
-				return new KeyRecordIterator(stmt.getNamespace(), keyRecord);
-			}
+			plan.keyQualifier = (KeyQualifier) qualifiers[0];
+			plan.path = QueryMetrics.Path.KEY;
+			return plan;
 		}
+		Qualifier[] residual = (qualifiers == null) ? new Qualifier[0] : qualifiers.clone();
+		if (plan.filter == null)
+			chooseFilter(stmt, plan, residual);
+		plan.residual = withoutNulls(residual);
 		/*
-		 *  query with filters
+		 * nothing left to evaluate, Lua is only needed to return the meta data
 		 */
-		for (int i = 0; i < qualifiers.length; i++) {
-			Qualifier qualifier = qualifiers[i];
-		
-			if(qualifier == null) continue;
-			if(qualifier.getOperation()==Qualifier.FilterOperation.AND){
-				for(Qualifier q: qualifier.getQualifiers()){
-					Filter filter = q == null ? null : q.asFilter();
+		if (plan.residual.length == 0) {
+			if (metaOnly && qualifiers != null && qualifiers.length > 0)
+				plan.path = QueryMetrics.Path.LUA;
+			else
+				plan.path = (plan.filter != null) ? QueryMetrics.Path.SINDEX : QueryMetrics.Path.SCAN;
+			return plan;
+		}
+		try {
+			List<PredExp> predexps = buildPredExp(plan.residual);
+			if (predexps.size() > 0) {
+				plan.predExp = predexps.toArray(new PredExp[predexps.size()]);
+				plan.path = QueryMetrics.Path.PREDEXP;
+				return plan;
+			}
+		} catch (PredExpException e) {
+			plan.fallbackReason = e.getMessage();
+		}
+		if (this.residualMode != ResidualMode.LUA && planClientResidual(plan))
+			return plan;
+		plan.luaFilter = buildFilterFunction(plan.residual);
+		plan.path = QueryMetrics.Path.LUA;
+		return plan;
+	}
+
+	/*
+	 * sends the residual qualifiers that can be PredExp to the server and
+	 * evaluates the others in the client, if the residual mode allows
+	 */
+	private boolean planClientResidual(QueryPlan plan) {
+		List<Qualifier> server = new ArrayList<Qualifier>();
+		List<Qualifier> client = new ArrayList<Qualifier>();
+		for (Qualifier qualifier : plan.residual) {
+			try {
+				qualifier.toPredExp();
+				server.add(qualifier);
+			} catch (PredExpException e) {
+				client.add(qualifier);
+			}
+		}
+		Qualifier[] clientQualifiers = client.toArray(new Qualifier[client.size()]);
+		if (!QualifierPredicates.supports(clientQualifiers))
+			return false;
+		if (this.residualMode == ResidualMode.AUTO && !prefersClientResidual(plan, clientQualifiers))
+			return false;
+		if (!server.isEmpty()) {
+			try {
+				List<PredExp> predexps = buildPredExp(server.toArray(new Qualifier[server.size()]));
+				plan.predExp = predexps.toArray(new PredExp[predexps.size()]);
+			} catch (PredExpException e) {
+				return false;
+			}
+		}
+		plan.clientQualifiers = clientQualifiers;
+		plan.clientFilter = QualifierPredicates.compile(clientQualifiers);
+		plan.path = QueryMetrics.Path.CLIENT;
+		return true;
+	}
+
+	/**
+	 * Decides whether qualifiers are evaluated by the client instead of the Lua
+	 * filter. Lua costs server time for every record it reads, the client has to
+	 * read the records that Lua would have dropped. The client is chosen when
+	 * transferring a record over {@link #networkBytesPerSecond} takes less time
+	 * than filtering it in Lua, weighted by the records that would not match.
+	 * The size of a record is the average of its set, or of its namespace when the
+	 * set statistics do not have it. When neither is known Lua is used.
+	 *
+	 * @param plan       The QueryPlan
+	 * @param qualifiers The qualifiers that cannot be sent as PredExp
+	 * @return true to evaluate the qualifiers in the client
+	 */
+	protected boolean prefersClientResidual(QueryPlan plan, Qualifier[] qualifiers) {
+		double recordBytes = averageRecordBytes(plan.getNamespace(), plan.getSetName());
+		if (recordBytes <= 0 || this.networkBytesPerSecond <= 0)
+			return false;
+		double selectivity = 1.0;
+		for (Qualifier qualifier : qualifiers)
+			selectivity *= selectivity(qualifier);
+		double transferNanos = recordBytes * 1e9 / this.networkBytesPerSecond;
+		return (1.0 - selectivity) * transferNanos < this.luaNanosPerRecord;
+	}
+
+	/*
+	 * the data of a set divided by its records, else that of the namespace, 0 if not known
+	 */
+	private double averageRecordBytes(String namespaceName, String setName) {
+		Namespace namespace = this.catalog.get().getNamespace(namespaceName);
+		if (namespace == null)
+			return 0;
+		com.aerospike.helper.model.Set set = (setName == null) ? null : namespace.findSet(setName);
+		if (set != null) {
+			long objects = set.getStats().get(SetStats.Counter.OBJECTS);
+			long bytes = set.getStats().get(SetStats.Counter.MEMORY_DATA_BYTES);
+			if (bytes == 0)
+				bytes = set.getStats().get(SetStats.Counter.DEVICE_DATA_BYTES);
+			if (objects > 0 && bytes > 0)
+				return (double) bytes / objects;
+		}
+		long objects = namespace.getStats().get(NamespaceStats.Counter.OBJECTS);
+		long bytes = namespace.getStats().get(NamespaceStats.Counter.DATA_USED_BYTES_MEMORY);
+		if (bytes == 0)
+			bytes = namespace.getStats().get(NamespaceStats.Counter.USED_BYTES_DISK);
+		return (objects > 0) ? (double) bytes / objects : 0;
+	}
+
+	/**
+	 * Estimates the fraction of the records that match a qualifier, without
+	 * statistics: an EQ matches few records, a range about a third.
+	 *
+	 * @param qualifier The Qualifier
+	 * @return The fraction between 0 and 1
+	 */
+	protected double selectivity(Qualifier qualifier) {
+		Qualifier[] qualifiers = qualifier.qualifiers();
+		switch (qualifier.getOperation()) {
+			case AND:
+				double and = 1.0;
+				for (Qualifier q : qualifiers)
+					and *= selectivity(q);
+				return and;
+			case OR:
+				double none = 1.0;
+				for (Qualifier q : qualifiers)
+					none *= 1.0 - selectivity(q);
+				return 1.0 - none;
+			case NOT:
+				return 1.0 - selectivity(qualifiers[0]);
+			case NOTEQ:
+				return 0.9;
+			case IN:
+				return Math.min(1.0, 0.1 * ((List<?>) qualifier.getValue1().getObject()).size());
+			case GT:
+			case GTEQ:
+			case LT:
+			case LTEQ:
+				return 0.33;
+			case BETWEEN:
+			case LIST_BETWEEN:
+			case MAP_KEYS_BETWEEN:
+			case MAP_VALUES_BETWEEN:
+				return 0.25;
+			default:
+				return 0.1;
+		}
+	}
+
+	/*
+	 * uses the first qualifier on an indexed bin as the Filter, the integer bounds
+	 * of its bin in the same AND are joined into one range
+	 */
+	private void chooseFilter(Statement stmt, QueryPlan plan, Qualifier[] residual) {
+		for (int i = 0; i < residual.length; i++) {
+			Qualifier qualifier = residual[i];
+			if (qualifier == null)
+				continue;
+			if (qualifier.getOperation() == Qualifier.FilterOperation.AND) {
+				Qualifier[] and = qualifier.qualifiers();
+				for (Qualifier q : and) {
+					Filter filter = (q != null && isIndexedBin(stmt, q)) ? q.asFilter() : null;
 					if (filter != null) {
-						stmt.setFilters(filter);
-						q.asFilter(true);;
-						break;
+						Filter range = QualifierOptimizer.indexRange(q, and);
+						useFilter(stmt, plan, q, (range != null) ? range : filter);
+						if (range != null && removeBounds(q.getField(), and.clone()))
+							residual[i] = null;
+						return;
 					}
 				}
-			}else if (isIndexedBin(stmt, qualifier)) {
+			} else if (isIndexedBin(stmt, qualifier)) {
 				Filter filter = qualifier.asFilter();
 				if (filter != null) {
-					stmt.setFilters(filter);
-					qualifiers[i] = null;
-					break;
+					Filter range = QualifierOptimizer.indexRange(qualifier, residual);
+					useFilter(stmt, plan, qualifier, (range != null) ? range : filter);
+					if (range != null)
+						removeBounds(qualifier.getField(), residual);
+					else
+						residual[i] = null;
+					return;
 				}
 			}
 		}
-		
-		try {
-			PredExp[] predexps;
-			predexps = buildPredExp(qualifiers).toArray(new PredExp[0]);
-			if(predexps.length > 0){
-				stmt.setPredExp(predexps);
-				RecordSet rs;
-				if(null == node){
-					rs = client.query(queryPolicy, stmt);
-				}else{
-					rs = client.queryNode(queryPolicy, stmt, node);					
+	}
+
+	private void useFilter(Statement stmt, QueryPlan plan, Qualifier qualifier, Filter filter) {
+		plan.filter = filter;
+		plan.filterQualifier = qualifier;
+		plan.index = findIndex(stmt, qualifier);
+	}
+
+	/*
+	 * removes the integer bounds of a bin that are covered by its index range, the
+	 * index holds integers only, so the range selects exactly the records they do
+	 */
+	private static boolean removeBounds(String field, Qualifier[] qualifiers) {
+		boolean all = true;
+		for (int i = 0; i < qualifiers.length; i++) {
+			if (QualifierOptimizer.isIntegerBound(field, qualifiers[i]))
+				qualifiers[i] = null;
+			else if (qualifiers[i] != null)
+				all = false;
+		}
+		return all;
+	}
+
+	private static Qualifier[] withoutNulls(Qualifier[] qualifiers) {
+		int count = 0;
+		for (Qualifier qualifier : qualifiers) {
+			if (qualifier != null)
+				count++;
+		}
+		Qualifier[] result = new Qualifier[count];
+		int i = 0;
+		for (Qualifier qualifier : qualifiers) {
+			if (qualifier != null)
+				result[i++] = qualifier;
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the records read by a planned query from the catalog statistics
+	 *
+	 * @param plan The QueryPlan to update
+	 */
+	protected void estimate(QueryPlan plan) {
+		if (plan.getPath() == QueryMetrics.Path.KEY) {
+			plan.estimatedRecords = 1;
+			return;
+		}
+		if (plan.getPath() == QueryMetrics.Path.NONE) {
+			plan.estimatedRecords = 0;
+			return;
+		}
+		Namespace namespace = this.catalog.get().getNamespace(plan.getNamespace());
+		if (namespace == null)
+			return;
+		/*
+		 * object counts include the replicas
+		 */
+		long objects = namespace.getStats().get(NamespaceStats.Counter.OBJECTS);
+		long masterObjects = namespace.getStats().get(NamespaceStats.Counter.MASTER_OBJECTS);
+		double copies = (masterObjects > 0 && objects > masterObjects) ? (double) objects / masterObjects : 1.0;
+		if (plan.getFilter() == null) {
+			long setObjects = objects;
+			if (plan.getSetName() != null) {
+				setObjects = 0;
+				for (com.aerospike.helper.model.Set set : namespace.getSets()) {
+					if (plan.getSetName().equals(set.getName()))
+						setObjects = set.getStats().get(SetStats.Counter.OBJECTS);
 				}
-				return new KeyRecordIterator(stmt.getNamespace(), rs);
-			}else{
-				return queryByLua(stmt, metaOnly, node, qualifiers);
 			}
-		} catch (PredExpException e) {
-			return queryByLua(stmt, metaOnly, node, qualifiers);
+			plan.estimatedRecords = Math.round(setObjects / copies);
+		} else if (plan.getIndex() != null) {
+			SindexStats stats = this.catalog.sindexStats(plan.getNamespace(), plan.getIndex().getName());
+			double entries = stats.get(SindexStats.Counter.ENTRIES);
+			if (plan.getFilterQualifier().getOperation() == Qualifier.FilterOperation.EQ) {
+				// each node holds about the same distinct values, so divide by the keys of one node
+				int nodes = Math.max(1, this.client.getNodes().length);
+				long keys = stats.get(SindexStats.Counter.KEYS) / nodes;
+				if (keys > 0)
+					entries = entries / keys;
+			}
+			plan.estimatedRecords = Math.round(entries / copies);
 		}
+		if (plan.shard != null && plan.estimatedRecords != QueryPlan.UNKNOWN)
+			plan.estimatedRecords = plan.estimatedRecords / plan.shard.getCount();
 	}
-	
-	private KeyRecordIterator queryByLua(Statement stmt, Boolean metaOnly, Node node, Qualifier[] qualifiers){
+
+	/**
+	 * Runs a planned query. The Statement is not changed, the query runs on a copy.
+	 *
+	 * @param plan The QueryPlan
+	 * @param stmt The Statement the plan was made for
+	 * @param node The node to query, or null for all nodes
+	 * @return A KeyRecordIterator to iterate over the results
+	 */
+	protected KeyRecordIterator execute(QueryPlan plan, Statement stmt, Node node) {
+		if (plan.getPath() == QueryMetrics.Path.NONE)
+			return new KeyRecordIterator(stmt.getNamespace()).plan(plan);
+		if (plan.getPath() == QueryMetrics.Path.KEY) {
+			Key key = plan.getKeyQualifier().makeKey(stmt.getNamespace(), stmt.getSetName());
+			if (plan.shard != null && !plan.shard.contains(key.digest))
+				return new KeyRecordIterator(stmt.getNamespace()).plan(plan);
+			Record record = null;
+			if (plan.isMetaOnly())
+				record = this.client.getHeader(null, key);
+			else
+				record = this.client.get(null, key, stmt.getBinNames());
+			if (record == null) {
+				return new KeyRecordIterator(stmt.getNamespace()).plan(plan);
+			} else {
+				KeyRecord keyRecord = new KeyRecord(key, record);
+				return new KeyRecordIterator(stmt.getNamespace(), keyRecord).plan(plan);
+			}
+		}
+		stmt = prepare(plan, stmt);
+		if (plan.getPath() == QueryMetrics.Path.LUA)
+			return queryByLua(plan, stmt, node);
+		List<String> extraBins = null;
+		if (plan.getPath() == QueryMetrics.Path.CLIENT)
+			extraBins = filterBins(stmt, plan.clientQualifiers);
+		if (extraBins != null) {
+			List<String> binNames = new ArrayList<String>(Arrays.asList(stmt.getBinNames()));
+			binNames.addAll(extraBins);
+			stmt.setBinNames(binNames.toArray(new String[binNames.size()]));
+		}
+		RecordSet recordSet = null;
+		if (node != null)
+			recordSet = this.client.queryNode(queryPolicy, stmt, node);
+		else
+			recordSet = this.client.query(queryPolicy, stmt);
+		KeyRecordIterator results = new KeyRecordIterator(stmt.getNamespace(), recordSet).plan(plan);
+		if (plan.getPath() == QueryMetrics.Path.CLIENT)
+			return results.filter(plan.getClientFilter(), extraBins);
+		return results;
+	}
+
+	/*
+	 * a copy of the Statement with the Filter and PredExp of the plan. The caller's
+	 * Statement is not changed, so planning it again starts from the caller's Filter.
+	 */
+	private static Statement prepare(QueryPlan plan, Statement stmt) {
+		Statement prepared = QuerySpliterator.copy(stmt);
+		if (plan.getFilterQualifier() != null)
+			prepared.setFilters(plan.getFilter());
+		PredExp[] predExp = plan.getPredExp();
+		if (plan.shard != null)
+			predExp = plan.shard.and(predExp);
+		if (predExp != null)
+			prepared.setPredExp(predExp);
+		return prepared;
+	}
+
+	/*
+	 * the bins the client filter reads that the Statement does not select, or null
+	 */
+	private static List<String> filterBins(Statement stmt, Qualifier[] qualifiers) {
+		String[] binNames = stmt.getBinNames();
+		if (binNames == null || binNames.length == 0)
+			return null;
+		Set<String> bins = new LinkedHashSet<String>(Arrays.asList(binNames));
+		List<String> extraBins = new ArrayList<String>();
+		filterBins(qualifiers, bins, extraBins);
+		return extraBins.isEmpty() ? null : extraBins;
+	}
+
+	private static void filterBins(Qualifier[] qualifiers, Set<String> bins, List<String> extraBins) {
+		for (Qualifier qualifier : qualifiers) {
+			if (qualifier == null)
+				continue;
+			if (qualifier.qualifiers() != null)
+				filterBins(qualifier.qualifiers(), bins, extraBins);
+			else if (qualifier.getClass() == Qualifier.class && bins.add(qualifier.getField()))
+				extraBins.add(qualifier.getField());
+		}
+	}
+
+	private KeyRecordIterator queryByLua(QueryPlan plan, Statement stmt, Node node){
+		awaitUDF();
 		Map<String, Object> originArgs = new HashMap<String, Object>();
 		originArgs.put("includeAllFields", 1);
-		ResultSet resultSet = null;
 
-		String filterFuncStr = buildFilterFunction(qualifiers);
-		originArgs.put("filterFuncStr", filterFuncStr);
+		if (plan.getLuaFilter() != null)
+			originArgs.put("filterFuncStr", plan.getLuaFilter());
 
-		if (metaOnly)
+		/*
+		 * compact rows leave out the bin names when the client knows them
+		 */
+		List<String> fields = null;
+		if (this.compactResults) {
+			originArgs.put("compact", 1);
+			String[] binNames = stmt.getBinNames();
+			if (!plan.isMetaOnly() && binNames != null && binNames.length > 0) {
+				fields = Arrays.asList(binNames);
+				originArgs.put("selectFields", fields);
+				originArgs.put("includeAllFields", 0);
+			}
+		}
+
+		if (plan.isMetaOnly())
 			stmt.setAggregateFunction(this.getClass().getClassLoader(), AS_UTILITY_PATH, QUERY_MODULE, "query_meta", Value.get(originArgs));
 		else
 			stmt.setAggregateFunction(this.getClass().getClassLoader(), AS_UTILITY_PATH, QUERY_MODULE, "select_records", Value.get(originArgs));
-		if (node != null) {
+		ResultSet resultSet = null;
+		if (node != null)
 			resultSet = this.client.queryAggregateNode(queryPolicy, stmt, node);
-		} else {
+		else
 			resultSet = this.client.queryAggregate(queryPolicy, stmt);
+		return new KeyRecordIterator(stmt.getNamespace(), resultSet).plan(plan).rows(stmt.getSetName(), fields);
+	}
+
+	/*
+	 * the records that reach the Lua filter stage of a query on a node, counted
+	 * by a separate aggregation after the query has run
+	 */
+	private long countLuaScanned(QueryPlan plan, Statement stmt, Node node) {
+		Statement count = prepare(plan, stmt);
+		count.setAggregateFunction(this.getClass().getClassLoader(), AS_UTILITY_PATH, QUERY_MODULE, "count_records");
+		ResultSet resultSet = null;
+		if (node != null)
+			resultSet = this.client.queryAggregateNode(queryPolicy, count, node);
+		else
+			resultSet = this.client.queryAggregate(queryPolicy, count);
+		long scanned = 0;
+		try {
+			while (resultSet.next())
+				scanned += ((Number) resultSet.getObject()).longValue();
+		} finally {
+			resultSet.close();
 		}
-		return new KeyRecordIterator(stmt.getNamespace(), resultSet);
+		return scanned;
+	}
+
+	/*
+	 * the path of a query without qualifiers to evaluate
+	 */
+	private static QueryMetrics.Path filterPath(Statement stmt) {
+		return (statementFilter(stmt) != null) ? QueryMetrics.Path.SINDEX : QueryMetrics.Path.SCAN;
+	}
+
+	/*
+	 * the Filter set on the Statement, or null. Newer clients return an array
+	 * holding null when no Filter is set.
+	 */
+	static Filter statementFilter(Statement stmt) {
+		Filter[] filters = stmt.getFilters();
+		return (filters != null && filters.length > 0) ? filters[0] : null;
+	}
+
+	private KeyRecordIterator instrument(KeyRecordIterator results, QueryMetrics.Operation operation, long start) {
+		return results.instrument(this.metrics, this.slowQueryLog, operation, start);
+	}
+
+	private void record(QueryMetrics.Operation operation, QueryMetrics.Path path, long start, long returned, long touched, Throwable error) {
+		record(operation, path, null, start, returned, touched, error);
+	}
 
+	private void record(QueryMetrics.Operation operation, QueryMetrics.Path path, QueryPlan plan, long start, long returned, long touched, Throwable error) {
+		long nanos = System.nanoTime() - start;
+		QueryMetrics current = this.metrics;
+		if (current != null)
+			current.record(operation, path, nanos, returned, touched, error);
+		SlowQueryLog slow = this.slowQueryLog;
+		if (slow != null)
+			slow.record(operation, path, plan, nanos, -1, returned, touched, error);
 	}
 
 	protected boolean isIndexedBin(Statement stmt, Qualifier qualifier) {
 		if(null == qualifier.getField()) return false;
-		Index index = this.indexCache.get(String.join(":", Arrays.asList(stmt.getNamespace(), stmt.getSetName(), qualifier.getField())));
+		if (!this.catalog.get().isLoaded()) // safe plan until the catalog arrives
+			return false;
+		Index index = findIndex(stmt, qualifier);
 		if (index == null)
 			return false;
 
@@ -349,6 +1199,28 @@ public class QueryEngine implements Closeable {
 		}
 	}
 
+	private Index findIndex(Statement stmt, Qualifier qualifier) {
+		return findIndex(stmt, qualifier.getField());
+	}
+
+	private Index findIndex(Statement stmt, String bin) {
+		return this.catalog.get().getIndex(String.join(":", Arrays.asList(stmt.getNamespace(), stmt.getSetName(), bin)));
+	}
+
+	/*
+	 * the bins of the statement's set that have a secondary index, for the QualifierOptimizer
+	 */
+	private Predicate<String> indexedBins(final Statement stmt) {
+		if (!this.catalog.get().isLoaded())
+			return null;
+		return new Predicate<String>() {
+			@Override
+			public boolean test(String bin) {
+				return findIndex(stmt, bin) != null;
+			}
+		};
+	}
+
 	/*
 	 * *****************************************************
 	 * 
@@ -379,7 +1251,18 @@ public class QueryEngine implements Closeable {
 	 * @param ttl	   The record time to live in seconds
 	 */
 	public void insert(String namespace, String set, Key key, List<Bin> bins, int ttl) {
-		this.client.put(this.insertPolicy, key, bins.toArray(new Bin[0]));
+		put(key, bins);
+	}
+
+	private void put(Key key, List<Bin> bins) {
+		long start = System.nanoTime();
+		try {
+			this.client.put(this.insertPolicy, key, bins.toArray(new Bin[0]));
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.INSERT, QueryMetrics.Path.KEY, start, 0, 0, e);
+			throw e;
+		}
+		record(QueryMetrics.Operation.INSERT, QueryMetrics.Path.KEY, start, 0, 1, null);
 	}
 
 	/**
@@ -404,7 +1287,7 @@ public class QueryEngine implements Closeable {
 	public void insert(Statement stmt, KeyQualifier keyQualifier, List<Bin> bins, int ttl) {
 		Key key = keyQualifier.makeKey(stmt.getNamespace(), stmt.getSetName());
 		//		Key key = new Key(stmt.getNamespace(), stmt.getSetName(), keyQualifier.getValue1());
-		this.client.put(this.insertPolicy, key, bins.toArray(new Bin[0]));
+		put(key, bins);
 	}
 
 
@@ -425,17 +1308,30 @@ public class QueryEngine implements Closeable {
 	 * @return returns a Map containing a number of successful updates. The Map will contain 2 keys "read" and "write", the values will be the count of successful operations
 	 */
 	public Map<String, Long> update(Statement stmt, List<Bin> bins, Qualifier... qualifiers) {
-		if (qualifiers != null && qualifiers.length == 1 && qualifiers[0] instanceof KeyQualifier) {
-			KeyQualifier keyQualifier = (KeyQualifier) qualifiers[0];
-			Key key = keyQualifier.makeKey(stmt.getNamespace(), stmt.getSetName());
-			this.client.put(this.updatePolicy, key, bins.toArray(new Bin[0]));
-			Map<String, Long> result = new HashMap<String, Long>();
-			result.put("read", 1L);
-			result.put("write", 1L);
+		long start = System.nanoTime();
+		QueryMetrics.Path path = null;
+		QueryPlan plan = null;
+		try {
+			Map<String, Long> result;
+			if (qualifiers != null && qualifiers.length == 1 && qualifiers[0] instanceof KeyQualifier) {
+				path = QueryMetrics.Path.KEY;
+				KeyQualifier keyQualifier = (KeyQualifier) qualifiers[0];
+				Key key = keyQualifier.makeKey(stmt.getNamespace(), stmt.getSetName());
+				this.client.put(this.updatePolicy, key, bins.toArray(new Bin[0]));
+				result = new HashMap<String, Long>();
+				result.put("read", 1L);
+				result.put("write", 1L);
+			} else {
+				KeyRecordIterator results = query(stmt, true, null, qualifiers);
+				path = results.getPath();
+				plan = results.getPlan();
+				result = update(results, bins);
+			}
+			record(QueryMetrics.Operation.UPDATE, path, plan, start, result.get("read"), result.get("write"), null);
 			return result;
-		} else {
-			KeyRecordIterator results = select(stmt, true, null, qualifiers);
-			return update(results, bins);
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.UPDATE, path, plan, start, 0, 0, e);
+			throw e;
 		}
 	}
 
@@ -476,27 +1372,44 @@ public class QueryEngine implements Closeable {
 	 * @return returns a Map containing a number of successful updates. The Map will contain 2 keys "read" and "write", the values will be the count of successful operations
 	 */
 	public Map<String, Long> delete(Statement stmt, Qualifier... qualifiers) {
-		if (qualifiers == null || qualifiers.length == 0) {
-			/*
-			 * There are no qualifiers, so delete every record in the set
-			 * using Scan UDF delete
-			 */
-			ExecuteTask task = client.execute(null, stmt, QUERY_MODULE, "delete_record");
-			task.waitTillComplete();
-			return null;
-		}
+		long start = System.nanoTime();
+		QueryMetrics.Path path = null;
+		QueryPlan plan = null;
+		try {
+			if (qualifiers == null || qualifiers.length == 0) {
+				/*
+				 * There are no qualifiers, so delete every record in the set
+				 * using Scan UDF delete
+				 */
+				path = QueryMetrics.Path.SCAN;
+				awaitUDF();
+				ExecuteTask task = client.execute(null, stmt, QUERY_MODULE, "delete_record");
+				task.waitTillComplete();
+				record(QueryMetrics.Operation.DELETE, path, plan, start, 0, 0, null);
+				return null;
+			}
 
-		if (qualifiers.length == 1 && qualifiers[0] instanceof KeyQualifier) {
-			KeyQualifier keyQualifier = (KeyQualifier) qualifiers[0];
-			Key key = keyQualifier.makeKey(stmt.getNamespace(), stmt.getSetName());
-			this.client.delete(null, key);
-			Map<String, Long> map = new HashMap<String, Long>();
-			map.put("read", 1L);
-			map.put("write", 1L);
+			Map<String, Long> map;
+			if (qualifiers.length == 1 && qualifiers[0] instanceof KeyQualifier) {
+				path = QueryMetrics.Path.KEY;
+				KeyQualifier keyQualifier = (KeyQualifier) qualifiers[0];
+				Key key = keyQualifier.makeKey(stmt.getNamespace(), stmt.getSetName());
+				this.client.delete(null, key);
+				map = new HashMap<String, Long>();
+				map.put("read", 1L);
+				map.put("write", 1L);
+			} else {
+				KeyRecordIterator results = query(stmt, true, null, qualifiers);
+				path = results.getPath();
+				plan = results.getPlan();
+				map = delete(results);
+			}
+			record(QueryMetrics.Operation.DELETE, path, plan, start, map.get("read"), map.get("write"), null);
 			return map;
+		} catch (RuntimeException e) {
+			record(QueryMetrics.Operation.DELETE, path, plan, start, 0, 0, e);
+			throw e;
 		}
-		KeyRecordIterator results = select(stmt, true, null, qualifiers);
-		return delete(results);
 	}
 
 	private Map<String, Long> delete(KeyRecordIterator results) {
@@ -527,7 +1440,7 @@ public class QueryEngine implements Closeable {
 		List<PredExp> pes = new ArrayList<PredExp>();
 		int qCount = 0;
 		for(Qualifier q : qualifiers){
-			if(null != q && !q.queryAsFilter()) {
+			if(null != q) {
 				List<PredExp> tpes = q.toPredExp();
 				if(tpes.size()>0){
 					pes.addAll(tpes);
@@ -559,16 +1472,107 @@ public class QueryEngine implements Closeable {
 		return sb.toString();
 	}
 
-	private void registerUDF() {
-		if (!this.moduleCache.containsKey(QUERY_MODULE + ".lua")) { // register the as_utility udf module
-
+	/*
+	 * registers the as_utility udf module if it is missing from the cluster,
+	 * or if the registered version differs from the one packaged in the JAR
+	 */
+	private synchronized void registerUDF() {
+		if (this.udfRegistered)
+			return;
+		Module module = this.catalog.get().getModule(AS_UTILITY_PATH);
+		String localHash = localModuleHash();
+		if (module == null || localHash == null || !localHash.equals(module.getHash())) {
 			RegisterTask task = this.client.register(null, this.getClass().getClassLoader(),
 					AS_UTILITY_PATH,
-					QUERY_MODULE + ".lua", Language.LUA);
-			task.isDone();
+					AS_UTILITY_PATH, Language.LUA);
+			task.waitTillComplete();
+			this.catalog.refreshModules();
+		}
+		this.udfRegistered = true;
+	}
+
+	/*
+	 * waits for the UDF module to be registered, registering it now if the
+	 * background start failed
+	 */
+	private void awaitUDF() {
+		if (this.udfRegistered)
+			return;
+		try {
+			this.ready.join();
+		} catch (CompletionException e) {
+			log.warn("Background start failed, registering " + AS_UTILITY_PATH, e.getCause());
+		}
+		registerUDF();
+	}
+
+	/*
+	 * the SHA-1 of the packaged module, as reported in the hash of "udf-list"
+	 */
+	private String localModuleHash() {
+		InputStream in = this.getClass().getClassLoader().getResourceAsStream(AS_UTILITY_PATH);
+		if (in == null)
+			return null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, length);
+			}
+			StringBuilder sb = new StringBuilder(40);
+			for (byte b : digest.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			log.warn("Cannot read " + AS_UTILITY_PATH, e);
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
 		}
 	}
 
+	/**
+	 * Gets the operation metrics of this QueryEngine
+	 *
+	 * @return The QueryMetrics, or null if metrics are disabled
+	 */
+	public QueryMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Sets the operation metrics, several QueryEngines can share one QueryMetrics
+	 *
+	 * @param metrics The QueryMetrics, or null to disable metrics
+	 */
+	public void setMetrics(QueryMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return The SlowQueryLog, or null if slow queries are not recorded
+	 */
+	public SlowQueryLog getSlowQueryLog() {
+		return this.slowQueryLog;
+	}
+
+	/**
+	 * Sets the log of slow and sampled operations, several QueryEngines can share one SlowQueryLog
+	 *
+	 * @param slowQueryLog The SlowQueryLog, or null to stop recording slow queries
+	 */
+	public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+		this.slowQueryLog = slowQueryLog;
+	}
+
 	/**
 	 * Gets the current InfoPolicy
 	 *
@@ -585,41 +1589,14 @@ public class QueryEngine implements Closeable {
 	 * refreshes the cached Cluster information
 	 */
 	public void refreshCluster() {
-		refreshNamespaces();
-		refreshIndexes();
-		refreshModules();
+		this.catalog.refresh();
 	}
 
 	/**
 	 * refreshes the cached Namespace information
 	 */
-	public synchronized void refreshNamespaces() {
-		/*
-		 * cache namespaces
-		 */
-		if (this.namespaceCache == null) {
-			this.namespaceCache = new TreeMap<String, Namespace>();
-			Node[] nodes = client.getNodes();
-			for (Node node : nodes) {
-				try {
-					String namespaceString = Info.request(getInfoPolicy(), node, "namespaces");
-					if (!namespaceString.isEmpty()) {
-						String[] namespaceList = namespaceString.split(";");
-						for (String namespace : namespaceList) {
-							Namespace ns = this.namespaceCache.get(namespace);
-							if (ns == null) {
-								ns = new Namespace(namespace);
-								this.namespaceCache.put(namespace, ns);
-							}
-							refreshNamespaceData(node, ns);
-						}
-					}
-				} catch (AerospikeException e) {
-					log.error("Error geting Namespaces ", e);
-				}
-
-			}
-		}
+	public void refreshNamespaces() {
+		this.catalog.refreshNamespaces();
 	}
 
 	public void refreshNamespaceData(Node node, Namespace namespace) {
@@ -627,15 +1604,7 @@ public class QueryEngine implements Closeable {
 		 * refresh namespace data
 		 */
 		try {
-			String nameSpaceString = Info.request(infoPolicy, node, "namespace/" + namespace);
-			namespace.mergeNamespaceInfo(nameSpaceString);
-			String setsString = Info.request(infoPolicy, node, "sets/" + namespace);
-			if (!setsString.isEmpty()) {
-				String[] sets = setsString.split(";");
-				for (String setData : sets) {
-					namespace.mergeSet(setData);
-				}
-			}
+			this.catalog.refreshNamespaceData(node, namespace);
 		} catch (AerospikeException e) {
 			log.error("Error geting Namespace details", e);
 		}
@@ -648,7 +1617,7 @@ public class QueryEngine implements Closeable {
 	 * @return The Namespace model object
 	 */
 	public Namespace getNamespace(String namespace) {
-		return namespaceCache.get(namespace);
+		return this.catalog.get().getNamespace(namespace);
 	}
 
 	/**
@@ -657,37 +1626,14 @@ public class QueryEngine implements Closeable {
 	 * @return A collection of Namespace model objects
 	 */
 	public Collection<Namespace> getNamespaces() {
-		return namespaceCache.values();
+		return this.catalog.get().getNamespaces();
 	}
 
 	/**
 	 * refreshes the Index cache from the Cluster
 	 */
-	public synchronized void refreshIndexes() {
-		/*
-		 * cache index by Bin name
-		 */
-		if (this.indexCache == null)
-			this.indexCache = new TreeMap<String, Index>();
-
-		Node[] nodes = client.getNodes();
-		for (Node node : nodes) {
-			if (node.isActive()) {
-				try {
-					String indexString = Info.request(getInfoPolicy(), node, "sindex");
-					if (!indexString.isEmpty()) {
-						String[] indexList = indexString.split(";");
-						for (String oneIndexString : indexList) {
-							Index index = new Index(oneIndexString);
-							this.indexCache.put(index.toKeyString(), index);
-						}
-					}
-					break;
-				} catch (AerospikeException e) {
-					log.error("Error geting Index informaton", e);
-				}
-			}
-		}
+	public void refreshIndexes() {
+		this.catalog.refreshIndexes();
 	}
 
 	/**
@@ -696,40 +1642,15 @@ public class QueryEngine implements Closeable {
 	 * @param key The key = namespace:set:bin built from the indexed Bin
 	 * @return An Index model object
 	 */
-	public synchronized Index getIndex(String key) {
-		return this.indexCache.get(key);
+	public Index getIndex(String key) {
+		return this.catalog.get().getIndex(key);
 	}
 
 	/**
 	 * refreshes the Module cache from the cluster. The Module cache contains a list of register UDF modules.
 	 */
-	public synchronized void refreshModules() {
-		if (this.moduleCache == null)
-			this.moduleCache = new TreeMap<String, Module>();
-		boolean loadedModules = false;
-		Node[] nodes = client.getNodes();
-		for (Node node : nodes) {
-			try {
-
-				String packagesString = Info.request(infoPolicy, node, "udf-list");
-				if (!packagesString.isEmpty()) {
-					String[] packagesList = packagesString.split(";");
-					for (String pkgString : packagesList) {
-						Module module = new Module(pkgString);
-						String udfString = Info.request(infoPolicy, node, "udf-get:filename=" + module.getName());
-						module.setDetailInfo(udfString);//gen=qgmyp0d8hQNvJdnR42X3BXgUGPE=;type=LUA;recordContent=bG9jYWwgZnVuY3Rpb24gcHV0QmluKHIsbmFtZSx2YWx1ZSkKICAgIGlmIG5vdCBhZXJvc3Bpa2U6ZXhpc3RzKHIpIHRoZW4gYWVyb3NwaWtlOmNyZWF0ZShyKSBlbmQKICAgIHJbbmFtZV0gPSB2YWx1ZQogICAgYWVyb3NwaWtlOnVwZGF0ZShyKQplbmQKCi0tIFNldCBhIHBhcnRpY3VsYXIgYmluCmZ1bmN0aW9uIHdyaXRlQmluKHIsbmFtZSx2YWx1ZSkKICAgIHB1dEJpbihyLG5hbWUsdmFsdWUpCmVuZAoKLS0gR2V0IGEgcGFydGljdWxhciBiaW4KZnVuY3Rpb24gcmVhZEJpbihyLG5hbWUpCiAgICByZXR1cm4gcltuYW1lXQplbmQKCi0tIFJldHVybiBnZW5lcmF0aW9uIGNvdW50IG9mIHJlY29yZApmdW5jdGlvbiBnZXRHZW5lcmF0aW9uKHIpCiAgICByZXR1cm4gcmVjb3JkLmdlbihyKQplbmQKCi0tIFVwZGF0ZSByZWNvcmQgb25seSBpZiBnZW4gaGFzbid0IGNoYW5nZWQKZnVuY3Rpb24gd3JpdGVJZkdlbmVyYXRpb25Ob3RDaGFuZ2VkKHIsbmFtZSx2YWx1ZSxnZW4pCiAgICBpZiByZWNvcmQuZ2VuKHIpID09IGdlbiB0aGVuCiAgICAgICAgcltuYW1lXSA9IHZhbHVlCiAgICAgICAgYWVyb3NwaWtlOnVwZGF0ZShyKQogICAgZW5kCmVuZAoKLS0gU2V0IGEgcGFydGljdWxhciBiaW4gb25seSBpZiByZWNvcmQgZG9lcyBub3QgYWxyZWFkeSBleGlzdC4KZnVuY3Rpb24gd3JpdGVVbmlxdWUocixuYW1lLHZhbHVlKQogICAgaWYgbm90IGFlcm9zcGlrZTpleGlzdHMocikgdGhlbiAKICAgICAgICBhZXJvc3Bpa2U6Y3JlYXRlKHIpIAogICAgICAgIHJbbmFtZV0gPSB2YWx1ZQogICAgICAgIGFlcm9zcGlrZTp1cGRhdGUocikKICAgIGVuZAplbmQKCi0tIFZhbGlkYXRlIHZhbHVlIGJlZm9yZSB3cml0aW5nLgpmdW5jdGlvbiB3cml0ZVdpdGhWYWxpZGF0aW9uKHIsbmFtZSx2YWx1ZSkKICAgIGlmICh2YWx1ZSA+PSAxIGFuZCB2YWx1ZSA8PSAxMCkgdGhlbgogICAgICAgIHB1dEJpbihyLG5hbWUsdmFsdWUpCiAgICBlbHNlCiAgICAgICAgZXJyb3IoIjEwMDA6SW52YWxpZCB2YWx1ZSIpIAogICAgZW5kCmVuZAoKLS0gUmVjb3JkIGNvbnRhaW5zIHR3byBpbnRlZ2VyIGJpbnMsIG5hbWUxIGFuZCBuYW1lMi4KLS0gRm9yIG5hbWUxIGV2ZW4gaW50ZWdlcnMsIGFkZCB2YWx1ZSB0byBleGlzdGluZyBuYW1lMSBiaW4uCi0tIEZvciBuYW1lMSBpbnRlZ2VycyB3aXRoIGEgbXVsdGlwbGUgb2YgNSwgZGVsZXRlIG5hbWUyIGJpbi4KLS0gRm9yIG5hbWUxIGludGVnZXJzIHdpdGggYSBtdWx0aXBsZSBvZiA5LCBkZWxldGUgcmVjb3JkLiAKZnVuY3Rpb24gcHJvY2Vzc1JlY29yZChyLG5hbWUxLG5hbWUyLGFkZFZhbHVlKQogICAgbG9jYWwgdiA9IHJbbmFtZTFdCgogICAgaWYgKHYgJSA5ID09IDApIHRoZW4KICAgICAgICBhZXJvc3Bpa2U6cmVtb3ZlKHIpCiAgICAgICAgcmV0dXJuCiAgICBlbmQKCiAgICBpZiAodiAlIDUgPT0gMCkgdGhlbgogICAgICAgIHJbbmFtZTJdID0gbmlsCiAgICAgICAgYWVyb3NwaWtlOnVwZGF0ZShyKQogICAgICAgIHJldHVybgogICAgZW5kCgogICAgaWYgKHYgJSAyID09IDApIHRoZW4KICAgICAgICByW25hbWUxXSA9IHYgKyBhZGRWYWx1ZQogICAgICAgIGFlcm9zcGlrZTp1cGRhdGUocikKICAgIGVuZAplbmQKCi0tIFNldCBleHBpcmF0aW9uIG9mIHJlY29yZAotLSBmdW5jdGlvbiBleHBpcmUocix0dGwpCi0tICAgIGlmIHJlY29yZC50dGwocikgPT0gZ2VuIHRoZW4KLS0gICAgICAgIHJbbmFtZV0gPSB2YWx1ZQotLSAgICAgICAgYWVyb3NwaWtlOnVwZGF0ZShyKQotLSAgICBlbmQKLS0gZW5kCg==;
-						this.moduleCache.put(module.getName(), module);
-					}
-				}
-				loadedModules = true;
-				break;
-			} catch (AerospikeException e) {
-
-			}
-		}
-		if (!loadedModules) {
-			throw new ClusterRefreshError("Cannot find UDF modules");
-		}
+	public void refreshModules() {
+		this.catalog.refreshModules();
 	}
 
 	/**
@@ -738,26 +1659,37 @@ public class QueryEngine implements Closeable {
 	 * @param moduleName The name of the module
 	 * @return A Module model object
 	 */
-	public synchronized Module getModule(String moduleName) {
-		return this.moduleCache.get(moduleName);
+	public Module getModule(String moduleName) {
+		return this.catalog.get().getModule(moduleName);
+	}
+
+	/**
+	 * Gets the current cluster catalog. The returned snapshot is immutable
+	 * and reading it never blocks a refresh.
+	 *
+	 * @return The current CatalogSnapshot
+	 */
+	public CatalogSnapshot getCatalog() {
+		return this.catalog.get();
 	}
 
 	/**
-	 * closes the QueryEngine, clearing the cached information are closing the AerospikeClient.
-	 * Once the QueryEngine is closed, it cannot be used, nor can the AerospikeClient.
+	 * closes the QueryEngine, releasing the shared cluster catalog. The AerospikeClient is
+	 * only closed if the QueryEngine created it, see {@link #QueryEngine(ClientPolicy, String, int)}.
+	 * A client passed in may be used by other QueryEngines, close it after the last of them.
+	 * Once the QueryEngine is closed, it cannot be used.
 	 */
 	@Override
 	public void close() throws IOException {
-		if (this.client != null)
+		if (this.catalog != null)
+			ClusterCatalogRegistry.release(this.catalog);
+		this.catalog = null;
+		if (this.client != null && this.ownsClient)
 			this.client.close();
-		indexCache.clear();
-		indexCache = null;
 		updatePolicy = null;
 		insertPolicy = null;
 		infoPolicy = null;
 		queryPolicy = null;
-		moduleCache.clear();
-		moduleCache = null;
 	}
 
 }
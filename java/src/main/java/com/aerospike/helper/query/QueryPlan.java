@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import com.aerospike.client.Record;
+import com.aerospike.client.query.Filter;
+import com.aerospike.client.query.PredExp;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.model.Index;
+
+/**
+ * How the {@link QueryEngine} runs a query: which qualifier is used as the
+ * secondary index Filter, and how the remaining qualifiers are evaluated.
+ * <p>
+ * The remaining qualifiers are either all sent as PredExp, or all evaluated by
+ * the Lua filter of the as_utility module. Lua is used when one of them cannot
+ * be expressed as a PredExp, this is reported as a fallback. Instead of Lua the
+ * qualifiers that cannot be expressed as PredExp can be evaluated by the client,
+ * while the others are still sent as PredExp.
+ *
+ * @author peter
+ * @see QueryEngine#explain(com.aerospike.client.query.Statement, Qualifier...)
+ */
+public class QueryPlan {
+
+	public static final long UNKNOWN = -1;
+
+	private static final Qualifier[] NO_QUALIFIERS = new Qualifier[0];
+
+	private final String namespace;
+	private final String setName;
+	QueryMetrics.Path path;
+	Qualifier[] qualifiers = NO_QUALIFIERS;
+	Qualifier[] optimized;
+	KeyQualifier keyQualifier;
+	Qualifier filterQualifier;
+	Filter filter;
+	Index index;
+	Qualifier[] residual = NO_QUALIFIERS;
+	PredExp[] predExp;
+	String luaFilter;
+	Qualifier[] clientQualifiers = NO_QUALIFIERS;
+	Predicate<Record> clientFilter;
+	boolean metaOnly;
+	String fallbackReason;
+	long estimatedRecords = UNKNOWN;
+	ShardSpec shard;
+
+	QueryPlan(String namespace, String setName) {
+		this.namespace = namespace;
+		this.setName = setName;
+	}
+
+	/*
+	 * a copy of the plan that reads only the records of the shard
+	 */
+	QueryPlan shard(ShardSpec shard) {
+		QueryPlan plan = new QueryPlan(this.namespace, this.setName);
+		plan.path = this.path;
+		plan.qualifiers = this.qualifiers;
+		plan.optimized = this.optimized;
+		plan.keyQualifier = this.keyQualifier;
+		plan.filterQualifier = this.filterQualifier;
+		plan.filter = this.filter;
+		plan.index = this.index;
+		plan.residual = this.residual;
+		plan.predExp = this.predExp;
+		plan.luaFilter = this.luaFilter;
+		plan.clientQualifiers = this.clientQualifiers;
+		plan.clientFilter = this.clientFilter;
+		plan.metaOnly = this.metaOnly;
+		plan.fallbackReason = this.fallbackReason;
+		plan.estimatedRecords = this.estimatedRecords;
+		plan.shard = shard;
+		return plan;
+	}
+
+	public String getNamespace() {
+		return this.namespace;
+	}
+
+	public String getSetName() {
+		return this.setName;
+	}
+
+	/**
+	 * @return The execution path of the query
+	 */
+	public QueryMetrics.Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * @return The qualifiers of the query
+	 */
+	public List<Qualifier> getQualifiers() {
+		return Collections.unmodifiableList(Arrays.asList(this.qualifiers));
+	}
+
+	/**
+	 * @return The qualifiers the query was planned with, after they were rewritten
+	 * by the {@link QualifierOptimizer}
+	 */
+	public List<Qualifier> getOptimizedQualifiers() {
+		Qualifier[] result = (this.optimized == null) ? this.qualifiers : this.optimized;
+		return Collections.unmodifiableList(Arrays.asList(result));
+	}
+
+	/**
+	 * @return The KeyQualifier of a primary key lookup, or null
+	 */
+	public KeyQualifier getKeyQualifier() {
+		return this.keyQualifier;
+	}
+
+	/**
+	 * @return The qualifier used as the secondary index Filter, or null if there is
+	 * no Filter or the Filter was set on the Statement
+	 */
+	public Qualifier getFilterQualifier() {
+		return this.filterQualifier;
+	}
+
+	/**
+	 * @return The secondary index Filter, or null for a scan
+	 */
+	public Filter getFilter() {
+		return this.filter;
+	}
+
+	/**
+	 * @return The index used by the Filter, or null if unknown
+	 */
+	public Index getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * @return The qualifiers evaluated after the Filter, as PredExp or in Lua
+	 */
+	public List<Qualifier> getResidualQualifiers() {
+		return Collections.unmodifiableList(Arrays.asList(this.residual));
+	}
+
+	/**
+	 * @return The qualifiers sent to the server as PredExp
+	 */
+	public List<Qualifier> getPredExpQualifiers() {
+		if (this.path == QueryMetrics.Path.CLIENT) {
+			List<Qualifier> result = new ArrayList<Qualifier>(getResidualQualifiers());
+			result.removeAll(Arrays.asList(this.clientQualifiers));
+			return Collections.unmodifiableList(result);
+		}
+		if (this.path != QueryMetrics.Path.PREDEXP)
+			return Collections.emptyList();
+		return getResidualQualifiers();
+	}
+
+	/**
+	 * @return The qualifiers evaluated by the client on the records the server returns
+	 */
+	public List<Qualifier> getClientQualifiers() {
+		return Collections.unmodifiableList(Arrays.asList(this.clientQualifiers));
+	}
+
+	/**
+	 * @return The Predicate compiled from the client qualifiers, or null
+	 */
+	public Predicate<Record> getClientFilter() {
+		return this.clientFilter;
+	}
+
+	/**
+	 * @return The qualifiers evaluated by the Lua filter
+	 */
+	public List<Qualifier> getLuaQualifiers() {
+		if (this.path != QueryMetrics.Path.LUA)
+			return Collections.emptyList();
+		return getResidualQualifiers();
+	}
+
+	/**
+	 * @return The PredExp sent to the server, or null if PredExp is not used
+	 */
+	public PredExp[] getPredExp() {
+		return this.predExp;
+	}
+
+	/**
+	 * @return The Lua filter function, or null if Lua is not used
+	 */
+	public String getLuaFilter() {
+		return this.luaFilter;
+	}
+
+	/**
+	 * @return The shard of the records the query reads, or null for all records
+	 */
+	public ShardSpec getShard() {
+		return this.shard;
+	}
+
+	/**
+	 * @return true if only the record meta data is returned
+	 */
+	public boolean isMetaOnly() {
+		return this.metaOnly;
+	}
+
+	/**
+	 * The qualifiers that cannot be sent as PredExp are evaluated by the client on
+	 * the {@link QueryMetrics.Path#CLIENT} path, this is not a fallback.
+	 *
+	 * @return true if the qualifiers could not be sent as PredExp and Lua is used instead
+	 */
+	public boolean isFallback() {
+		return this.path == QueryMetrics.Path.LUA && this.fallbackReason != null;
+	}
+
+	/**
+	 * @return Why PredExp could not be used for all the remaining qualifiers, or null
+	 */
+	public String getFallbackReason() {
+		return this.fallbackReason;
+	}
+
+	/**
+	 * The number of records the server is expected to read before the residual
+	 * qualifiers are applied, from the set and secondary index statistics. A range
+	 * Filter is estimated as the whole index.
+	 *
+	 * @return The estimate, or {@link #UNKNOWN}
+	 */
+	public long getEstimatedRecords() {
+		return this.estimatedRecords;
+	}
+
+	Qualifier[] qualifiers() {
+		return this.qualifiers;
+	}
+
+	Qualifier[] residual() {
+		return this.residual;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.path).append(" ").append(this.namespace);
+		if (this.setName != null)
+			sb.append(".").append(this.setName);
+		if (this.optimized != null && !QualifierOptimizer.same(this.qualifiers, this.optimized))
+			sb.append("\n  rewritten: ").append(Arrays.toString(this.optimized));
+		if (this.keyQualifier != null)
+			sb.append("\n  key: ").append(this.keyQualifier);
+		if (this.filter != null) {
+			sb.append("\n  filter: ").append(this.filterQualifier == null ? "from statement" : this.filterQualifier.toString());
+			if (this.index != null)
+				sb.append(" using ").append(this.index.getName());
+		}
+		if (this.path == QueryMetrics.Path.PREDEXP)
+			sb.append("\n  predexp: ").append(Arrays.toString(this.residual));
+		if (this.path == QueryMetrics.Path.CLIENT) {
+			if (this.predExp != null)
+				sb.append("\n  predexp: ").append(getPredExpQualifiers());
+			sb.append("\n  client: ").append(Arrays.toString(this.clientQualifiers));
+		}
+		if (this.path == QueryMetrics.Path.LUA)
+			sb.append("\n  lua: ").append(this.luaFilter);
+		if (this.shard != null)
+			sb.append("\n  ").append(this.shard);
+		if (isFallback())
+			sb.append("\n  fallback: ").append(this.fallbackReason);
+		if (this.estimatedRecords != UNKNOWN)
+			sb.append("\n  estimated records: ").append(this.estimatedRecords);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.query.Filter;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.QueryMetrics;
+
+/**
+ * Splits the records of a planned query for a parallel Stream. The query is
+ * divided into parts that are run on their own: one part per node, and a scan
+ * of a node is divided further into digest modulo shards. A part is run when
+ * it is first advanced, on a copy of the Statement, so the parts of a split
+ * do not share a queue or a Statement.
+ *
+ * @author peter
+ */
+final class QuerySpliterator implements Spliterator<KeyRecord> {
+
+	private static Logger log = Logger.getLogger(QuerySpliterator.class);
+
+	/*
+	 * a node, or all nodes, and a shard of its records, or all records
+	 */
+	static final class Part {
+		final Node node;
+		final ShardSpec shard;
+		final double share;
+
+		Part(Node node, ShardSpec shard, double share) {
+			this.node = node;
+			this.shard = shard;
+			this.share = share;
+		}
+	}
+
+	/*
+	 * the results of all the spliterators of one stream
+	 */
+	static final class Results {
+		private final List<KeyRecordIterator> open = new ArrayList<KeyRecordIterator>();
+		private final LongAdder returned = new LongAdder();
+		private volatile Throwable error;
+		private boolean closed;
+
+		synchronized boolean add(KeyRecordIterator results) {
+			if (this.closed)
+				return false;
+			this.open.add(results);
+			return true;
+		}
+
+		void close(KeyRecordIterator results) {
+			synchronized (this) {
+				this.open.remove(results);
+			}
+			try {
+				results.close();
+			} catch (IOException e) {
+				log.debug("Error closing query results", e);
+			}
+		}
+
+		/*
+		 * closes the results that are still open, parts that have not started
+		 * are not run
+		 */
+		void close() {
+			List<KeyRecordIterator> results;
+			synchronized (this) {
+				this.closed = true;
+				results = new ArrayList<KeyRecordIterator>(this.open);
+				this.open.clear();
+			}
+			for (KeyRecordIterator result : results) {
+				try {
+					result.close();
+				} catch (IOException e) {
+					log.debug("Error closing query results", e);
+				}
+			}
+		}
+
+		long getReturned() {
+			return this.returned.sum();
+		}
+
+		Throwable getError() {
+			return this.error;
+		}
+	}
+
+	private final QueryEngine engine;
+	private final QueryPlan plan;
+	private final Statement stmt;
+	private final int maxShards;
+	private final Results results;
+	private final Deque<Part> parts;
+	private Part part;
+	private KeyRecordIterator current;
+
+	/**
+	 * @param engine    The engine that runs the parts
+	 * @param plan      The plan of the query
+	 * @param stmt      The Statement, copied for each part
+	 * @param nodes     The nodes to split the query by, none to query all nodes at once
+	 * @param maxShards The most digest modulo shards a scan of a node is split into
+	 */
+	QuerySpliterator(QueryEngine engine, QueryPlan plan, Statement stmt, Node[] nodes, int maxShards) {
+		this(engine, plan, stmt, maxShards, new Results(), new ArrayDeque<Part>());
+		if (!splittable() || nodes == null || nodes.length == 0) {
+			this.parts.add(new Part(null, plan.getShard(), 1.0));
+		} else {
+			for (Node node : nodes)
+				this.parts.add(new Part(node, plan.getShard(), 1.0 / nodes.length));
+		}
+	}
+
+	private QuerySpliterator(QueryEngine engine, QueryPlan plan, Statement stmt, int maxShards, Results results, Deque<Part> parts) {
+		this.engine = engine;
+		this.plan = plan;
+		this.stmt = stmt;
+		this.maxShards = maxShards;
+		this.results = results;
+		this.parts = parts;
+	}
+
+	Results getResults() {
+		return this.results;
+	}
+
+	/*
+	 * primary key lookups and empty queries are a single part
+	 */
+	private boolean splittable() {
+		return this.plan.getPath() != QueryMetrics.Path.KEY && this.plan.getPath() != QueryMetrics.Path.NONE;
+	}
+
+	/*
+	 * a secondary index query of a shard would read the whole index of the
+	 * node, a scan is split into up to maxShards shards of the shard of the plan
+	 */
+	private boolean shardable(Part part) {
+		int count = (part.shard == null) ? 1 : part.shard.getCount();
+		int planCount = (this.plan.getShard() == null) ? 1 : this.plan.getShard().getCount();
+		return splittable() && this.plan.getFilter() == null && (long) count * 2 <= (long) planCount * this.maxShards;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super KeyRecord> action) {
+		try {
+			while (true) {
+				if (this.current == null) {
+					this.part = this.parts.pollFirst();
+					if (this.part == null || !start(this.part))
+						return false;
+				}
+				if (this.current.hasNext()) {
+					KeyRecord keyRecord = this.current.next();
+					if (keyRecord != null) {
+						this.results.returned.increment();
+						action.accept(keyRecord);
+						return true;
+					}
+				}
+				this.results.close(this.current);
+				this.current = null;
+				this.part = null;
+			}
+		} catch (RuntimeException e) {
+			this.results.error = e;
+			throw e;
+		}
+	}
+
+	private boolean start(Part part) {
+		Statement copy = copy(this.stmt);
+		QueryPlan partPlan = (part.shard == this.plan.getShard()) ? this.plan : this.plan.shard(part.shard);
+		KeyRecordIterator iterator = this.engine.execute(partPlan, copy, part.node);
+		if (!this.results.add(iterator)) {
+			try {
+				iterator.close();
+			} catch (IOException e) {
+				log.debug("Error closing query results", e);
+			}
+			return false;
+		}
+		this.current = iterator;
+		return true;
+	}
+
+	@Override
+	public Spliterator<KeyRecord> trySplit() {
+		Deque<Part> split = new ArrayDeque<Part>();
+		int size = this.parts.size();
+		if (size >= 2 || (size == 1 && this.current != null)) {
+			// the first half is kept, it may already be running
+			for (int i = 0; i < (size + 1) / 2; i++)
+				split.addFirst(this.parts.pollLast());
+		} else if (size == 1 && shardable(this.parts.peekFirst())) {
+			Part part = this.parts.pollFirst();
+			ShardSpec[] halves = (part.shard == null) ? new ShardSpec(0, 1).split() : part.shard.split();
+			this.parts.add(new Part(part.node, halves[0], part.share / 2));
+			split.add(new Part(part.node, halves[1], part.share / 2));
+		} else {
+			return null;
+		}
+		return new QuerySpliterator(this.engine, this.plan, this.stmt, this.maxShards, this.results, split);
+	}
+
+	@Override
+	public long estimateSize() {
+		long estimate = this.plan.getEstimatedRecords();
+		if (estimate == QueryPlan.UNKNOWN)
+			return Long.MAX_VALUE;
+		double share = (this.part == null) ? 0 : this.part.share;
+		for (Part part : this.parts)
+			share += part.share;
+		return Math.round(estimate * share);
+	}
+
+	@Override
+	public int characteristics() {
+		return NONNULL;
+	}
+
+	/*
+	 * the parts change the filters, PredExp, bins and aggregate function of
+	 * their Statement
+	 */
+	static Statement copy(Statement stmt) {
+		Statement copy = new Statement();
+		copy.setNamespace(stmt.getNamespace());
+		copy.setSetName(stmt.getSetName());
+		copy.setIndexName(stmt.getIndexName());
+		if (stmt.getBinNames() != null)
+			copy.setBinNames(stmt.getBinNames().clone());
+		Filter filter = QueryEngine.statementFilter(stmt);
+		if (filter != null)
+			copy.setFilters(filter);
+		if (stmt.getPredExp() != null)
+			copy.setPredExp(stmt.getPredExp().clone());
+		return copy;
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+
+/**
+ * Reads the records of a query one digest modulo shard at a time, so that it
+ * can be stopped and continued from a {@link ContinuationToken}. The records
+ * of a shard are returned in digest order, so a token can continue after the
+ * last record returned.
+ * <p>
+ * A shard is read in windows: each read of a shard streams its records and
+ * keeps only the next window of them in digest order, a page of
+ * {@link #nextPage(int)} is one window and {@link #next()} reads windows of
+ * {@value KeyRecordIterator#DEFAULT_BATCH_SIZE}. Only a window is held in memory,
+ * however many records a shard has. A shard that has more records than a window
+ * is read again for the next window. When the first read of a shard finds more
+ * than {@value #MAX_SHARD_WINDOWS} windows of records, the scan doubles its shard
+ * count until the shard would hold at most that many, up to {@value #MAX_SHARDS}
+ * shards, and reads the first half. No query is left open between the reads.
+ *
+ * @author peter
+ * @see QueryEngine#resume(Statement, ContinuationToken, Qualifier...)
+ */
+public class ResumableScan implements Iterator<KeyRecord> {
+
+	private static Logger log = Logger.getLogger(ResumableScan.class);
+
+	/**
+	 * The most windows a shard is read in before the scan splits its shards
+	 */
+	public static final int MAX_SHARD_WINDOWS = 4;
+	/**
+	 * The most shards a scan is split into, which bounds the size of a token
+	 */
+	public static final int MAX_SHARDS = 1024;
+
+	private static final Comparator<KeyRecord> DIGEST_ORDER = new Comparator<KeyRecord>() {
+		@Override
+		public int compare(KeyRecord a, KeyRecord b) {
+			return compareDigests(a.key.digest, b.key.digest);
+		}
+	};
+
+	private final QueryEngine engine;
+	private final Statement stmt;
+	private final Qualifier[] qualifiers;
+	private int shards;
+	private BitSet done;
+	private int resumeShard;
+	private byte[] resumeDigest;
+	private int shard = -1;
+	private byte[] after;
+	private boolean shardComplete;
+	private List<KeyRecord> records = Collections.emptyList();
+	private int position;
+
+	ResumableScan(QueryEngine engine, Statement stmt, ContinuationToken token, Qualifier... qualifiers) {
+		this.engine = engine;
+		this.stmt = stmt;
+		this.qualifiers = qualifiers;
+		this.shards = token.getShards();
+		this.done = token.done();
+		this.resumeShard = token.shard();
+		this.resumeDigest = token.digest();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return hasNext(KeyRecordIterator.DEFAULT_BATCH_SIZE);
+	}
+
+	/*
+	 * reads the next window of the shard, or of the next shard, when the records read are used up
+	 */
+	private boolean hasNext(int window) {
+		while (this.position >= this.records.size()) {
+			if (this.shard >= 0) {
+				if (!this.shardComplete) {
+					read(this.shard, lastDigest(), window);
+					continue;
+				}
+				this.done.set(this.shard);
+				this.shard = -1;
+				this.after = null;
+				this.records = Collections.emptyList();
+				this.position = 0;
+			}
+			int next = this.done.nextClearBit(0);
+			if (next >= this.shards)
+				return false;
+			byte[] after = null;
+			if (next == this.resumeShard) {
+				after = this.resumeDigest;
+				this.resumeShard = -1;
+				this.resumeDigest = null;
+			}
+			read(next, after, window);
+		}
+		return true;
+	}
+
+	@Override
+	public KeyRecord next() {
+		if (!hasNext())
+			return null;
+		return this.records.get(this.position++);
+	}
+
+	/**
+	 * Reads up to max records, for a page of a paginated API. Within a shard a page
+	 * is one read of the shard that holds at most max records in memory.
+	 *
+	 * @param max The most records to return
+	 * @return The records, empty when every record has been read
+	 * @throws IllegalArgumentException if max is less than 1
+	 */
+	public List<KeyRecord> nextPage(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("The page size must be at least 1: " + max);
+		List<KeyRecord> page = new ArrayList<KeyRecord>(Math.min(max, KeyRecordIterator.DEFAULT_BATCH_SIZE));
+		while (page.size() < max && hasNext(max))
+			page.add(this.records.get(this.position++));
+		return page;
+	}
+
+	/**
+	 * @return The token to continue after the last record returned
+	 */
+	public ContinuationToken getToken() {
+		BitSet done = (BitSet) this.done.clone();
+		if (this.shard >= 0) {
+			if (this.position >= this.records.size() && this.shardComplete)
+				done.set(this.shard);
+			else if (lastDigest() != null)
+				return new ContinuationToken(this.shards, done, this.shard, lastDigest());
+		} else if (this.resumeDigest != null) {
+			return new ContinuationToken(this.shards, done, this.resumeShard, this.resumeDigest);
+		}
+		return new ContinuationToken(this.shards, done, -1, null);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove");
+	}
+
+	/*
+	 * the digest of the last record returned from the shard, null if none has been
+	 */
+	private byte[] lastDigest() {
+		return (this.position > 0) ? this.records.get(this.position - 1).key.digest : this.after;
+	}
+
+	/*
+	 * reads the window of a shard that follows a digest: the records after it with the
+	 * lowest digests, in digest order. The shard is complete if no other record follows.
+	 */
+	private void read(int shard, byte[] after, int window) {
+		PriorityQueue<KeyRecord> lowest = new PriorityQueue<KeyRecord>(window + 1, Collections.reverseOrder(DIGEST_ORDER));
+		int following = 0;
+		KeyRecordIterator results = this.engine.select(QuerySpliterator.copy(this.stmt), new ShardSpec(shard, this.shards), this.qualifiers);
+		try {
+			while (results.hasNext()) {
+				KeyRecord keyRecord = results.next();
+				if (keyRecord == null || (after != null && compareDigests(keyRecord.key.digest, after) <= 0))
+					continue;
+				following++;
+				if (lowest.size() < window) {
+					lowest.add(keyRecord);
+				} else if (DIGEST_ORDER.compare(keyRecord, lowest.peek()) < 0) {
+					lowest.poll();
+					lowest.add(keyRecord);
+				}
+			}
+		} finally {
+			try {
+				results.close();
+			} catch (IOException e) {
+				log.debug("Error closing query results", e);
+			}
+		}
+		if (after == null && this.resumeShard < 0 && following > (long) window * MAX_SHARD_WINDOWS && this.shards < MAX_SHARDS) {
+			split(following, window);
+			return;
+		}
+		List<KeyRecord> records = new ArrayList<KeyRecord>(lowest);
+		Collections.sort(records, DIGEST_ORDER);
+		this.shard = shard;
+		this.after = after;
+		this.shardComplete = following <= window;
+		this.records = records;
+		this.position = 0;
+	}
+
+	/*
+	 * doubles the shard count until a shard of the given size holds at most the maximum
+	 * windows. A shard that is done becomes its two halves, and no shard is being read,
+	 * so the next read starts on the first half of the oversized shard.
+	 */
+	private void split(int following, int window) {
+		int shards = this.shards;
+		BitSet done = this.done;
+		while (following > (long) window * MAX_SHARD_WINDOWS && shards < MAX_SHARDS) {
+			BitSet halves = new BitSet(shards * 2);
+			for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+				for (ShardSpec half : new ShardSpec(i, shards).split())
+					halves.set(half.getIndex());
+			}
+			done = halves;
+			shards *= 2;
+			following = (following + 1) / 2;
+		}
+		if (log.isDebugEnabled())
+			log.debug("Splitting the " + this.shards + " shards of a resumable scan into " + shards);
+		this.shards = shards;
+		this.done = done;
+		this.shard = -1;
+		this.after = null;
+		this.records = Collections.emptyList();
+		this.position = 0;
+	}
+
+	private static int compareDigests(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (diff != 0)
+				return diff;
+		}
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.aerospike.client.query.PredExp;
+
+/**
+ * A slice of the records of a query: the records whose digest modulo the
+ * count is the index. The server drops the other records with a
+ * recDigestModulo PredExp, which is added to the PredExp of the qualifiers
+ * and applied after the secondary index Filter. Workers that each read one
+ * of the shards 0 to count - 1 together read every record exactly once.
+ * <p>
+ * Splitting a shard in two doubles the count, the halves hold exactly the
+ * records of the shard.
+ *
+ * @author peter
+ * @see QueryEngine#select(com.aerospike.client.query.Statement, ShardSpec, Qualifier...)
+ */
+public final class ShardSpec {
+
+	private final int index;
+	private final int count;
+
+	/**
+	 * @param index The shard, from 0 to count - 1
+	 * @param count The number of shards
+	 * @throws IllegalArgumentException if the count is less than 1 or the index is out of range
+	 */
+	public ShardSpec(int index, int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("The shard count must be at least 1: " + count);
+		if (index < 0 || index >= count)
+			throw new IllegalArgumentException("The shard index must be from 0 to " + (count - 1) + ": " + index);
+		this.index = index;
+		this.count = count;
+	}
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Evaluates the shard as the server does: the last four bytes of the
+	 * digest, as an unsigned little endian integer, modulo the count
+	 *
+	 * @param digest The digest of a key
+	 * @return true if the record of the digest is in the shard
+	 */
+	public boolean contains(byte[] digest) {
+		long value = (digest[16] & 0xFFL) | ((digest[17] & 0xFFL) << 8) | ((digest[18] & 0xFFL) << 16) | ((digest[19] & 0xFFL) << 24);
+		return value % this.count == this.index;
+	}
+
+	/*
+	 * the two shards with twice the count that together hold this shard
+	 */
+	ShardSpec[] split() {
+		return new ShardSpec[] { new ShardSpec(this.index, this.count * 2), new ShardSpec(this.index + this.count, this.count * 2) };
+	}
+
+	/*
+	 * adds the shard predicate to a PredExp, which may be null
+	 */
+	PredExp[] and(PredExp[] predExp) {
+		List<PredExp> result = new ArrayList<PredExp>();
+		if (predExp != null)
+			result.addAll(Arrays.asList(predExp));
+		result.add(PredExp.recDigestModulo(this.count));
+		result.add(PredExp.integerValue(this.index));
+		result.add(PredExp.integerEqual());
+		if (predExp != null && predExp.length > 0)
+			result.add(PredExp.and(2));
+		return result.toArray(new PredExp[result.size()]);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ShardSpec))
+			return false;
+		ShardSpec other = (ShardSpec) obj;
+		return this.index == other.index && this.count == other.count;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * this.index + this.count;
+	}
+
+	@Override
+	public String toString() {
+		return "shard " + this.index + " of " + this.count;
+	}
+}
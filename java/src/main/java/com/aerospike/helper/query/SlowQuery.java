@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.helper.metrics.QueryMetrics;
+
+/**
+ * An operation recorded by the {@link SlowQueryLog}, either because it took longer
+ * than the threshold or because it was sampled.
+ *
+ * @author peter
+ */
+public final class SlowQuery {
+
+	private final long timestamp;
+	private final QueryMetrics.Operation operation;
+	private final QueryMetrics.Path path;
+	private final String namespace;
+	private final String setName;
+	private final String qualifiers;
+	private final String index;
+	private final String luaFilter;
+	private final long nanos;
+	private final long firstRecordNanos;
+	private final long recordsReturned;
+	private final long recordsTouched;
+	private final String error;
+	private final boolean sampled;
+
+	SlowQuery(long timestamp, QueryMetrics.Operation operation, QueryMetrics.Path path, QueryPlan plan,
+			long nanos, long firstRecordNanos, long recordsReturned, long recordsTouched, Throwable error, boolean sampled) {
+		this.timestamp = timestamp;
+		this.operation = operation;
+		this.path = path;
+		this.namespace = (plan == null) ? null : plan.getNamespace();
+		this.setName = (plan == null) ? null : plan.getSetName();
+		this.qualifiers = (plan == null) ? null : SlowQueryLog.normalize(plan.qualifiers());
+		this.index = (plan == null || plan.getIndex() == null) ? null : plan.getIndex().getName();
+		this.luaFilter = (plan == null) ? null : plan.getLuaFilter();
+		this.nanos = nanos;
+		this.firstRecordNanos = firstRecordNanos;
+		this.recordsReturned = recordsReturned;
+		this.recordsTouched = recordsTouched;
+		this.error = (error == null) ? null : error.toString();
+		this.sampled = sampled;
+	}
+
+	/**
+	 * @return When the operation completed, in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	public QueryMetrics.Operation getOperation() {
+		return this.operation;
+	}
+
+	/**
+	 * @return The execution path, or null if the operation failed before it was planned
+	 */
+	public QueryMetrics.Path getPath() {
+		return this.path;
+	}
+
+	public String getNamespace() {
+		return this.namespace;
+	}
+
+	public String getSetName() {
+		return this.setName;
+	}
+
+	/**
+	 * @return The qualifier tree with the values removed, such as <code>AND(age GT ?, name EQ ?)</code>
+	 */
+	public String getQualifiers() {
+		return this.qualifiers;
+	}
+
+	/**
+	 * @return The name of the secondary index used, or null
+	 */
+	public String getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * @return The Lua filter function, or null if Lua was not used
+	 */
+	public String getLuaFilter() {
+		return this.luaFilter;
+	}
+
+	public long getNanos() {
+		return this.nanos;
+	}
+
+	/**
+	 * @return Nanoseconds to the first record of a select, or -1
+	 */
+	public long getFirstRecordNanos() {
+		return this.firstRecordNanos;
+	}
+
+	public long getRecordsReturned() {
+		return this.recordsReturned;
+	}
+
+	public long getRecordsTouched() {
+		return this.recordsTouched;
+	}
+
+	/**
+	 * @return The error, or null if the operation succeeded
+	 */
+	public String getError() {
+		return this.error;
+	}
+
+	/**
+	 * @return true if the operation was recorded by sampling rather than for exceeding the threshold
+	 */
+	public boolean isSampled() {
+		return this.sampled;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.operation).append(" ").append(this.path)
+				.append(" ").append(TimeUnit.NANOSECONDS.toMillis(this.nanos)).append(" ms");
+		if (this.firstRecordNanos >= 0)
+			sb.append(" first=").append(TimeUnit.NANOSECONDS.toMillis(this.firstRecordNanos)).append(" ms");
+		if (this.namespace != null) {
+			sb.append(" ").append(this.namespace);
+			if (this.setName != null)
+				sb.append(".").append(this.setName);
+		}
+		sb.append(" returned=").append(this.recordsReturned);
+		sb.append(" touched=").append(this.recordsTouched);
+		if (this.qualifiers != null)
+			sb.append(" qualifiers=").append(this.qualifiers);
+		if (this.index != null)
+			sb.append(" index=").append(this.index);
+		if (this.luaFilter != null)
+			sb.append(" lua=\"").append(this.luaFilter).append("\"");
+		if (this.error != null)
+			sb.append(" error=").append(this.error);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.helper.metrics.QueryMetrics;
+
+/**
+ * Records the operations of a {@link QueryEngine} that take longer than a threshold,
+ * and a random sample of the others.
+ * <p>
+ * Each entry holds the plan of the operation: the qualifier tree without its values,
+ * the execution path, the index and the Lua filter. The most recent entries are kept
+ * in a bounded ring, and every entry is passed to the {@link SlowQuerySink}s.
+ * Operations that are neither slow nor sampled cost one comparison.
+ *
+ * @author peter
+ */
+public class SlowQueryLog {
+
+	public static final long DEFAULT_THRESHOLD = 1000; // In milliseconds
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static Logger log = Logger.getLogger(SlowQueryLog.class);
+
+	private volatile long thresholdNanos;
+	private volatile double sampleRate;
+	private final SlowQuery[] entries;
+	private int next;
+	private int count;
+	private final List<SlowQuerySink> sinks = new CopyOnWriteArrayList<SlowQuerySink>();
+
+	/**
+	 * Creates a log of operations over {@link #DEFAULT_THRESHOLD}, without sampling
+	 */
+	public SlowQueryLog() {
+		this(DEFAULT_THRESHOLD, 0.0, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param thresholdMillis Operations that take at least this long are recorded
+	 * @param sampleRate      The fraction of the faster operations that are recorded, 0 for none
+	 * @param capacity        The number of entries kept in memory
+	 */
+	public SlowQueryLog(long thresholdMillis, double sampleRate, int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("SlowQueryLog capacity must be at least 1");
+		setThreshold(thresholdMillis);
+		setSampleRate(sampleRate);
+		this.entries = new SlowQuery[capacity];
+	}
+
+	/**
+	 * @return The threshold in milliseconds
+	 */
+	public long getThreshold() {
+		return TimeUnit.NANOSECONDS.toMillis(this.thresholdNanos);
+	}
+
+	/**
+	 * @param thresholdMillis Operations that take at least this long are recorded
+	 */
+	public void setThreshold(long thresholdMillis) {
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+	}
+
+	public double getSampleRate() {
+		return this.sampleRate;
+	}
+
+	/**
+	 * @param sampleRate The fraction of the operations under the threshold that are recorded, between 0 and 1
+	 */
+	public void setSampleRate(double sampleRate) {
+		if (sampleRate < 0.0 || sampleRate > 1.0)
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+		this.sampleRate = sampleRate;
+	}
+
+	public void addSink(SlowQuerySink sink) {
+		this.sinks.add(sink);
+	}
+
+	public void removeSink(SlowQuerySink sink) {
+		this.sinks.remove(sink);
+	}
+
+	/**
+	 * Records an operation if it is slow or sampled
+	 *
+	 * @param operation        The operation type
+	 * @param path             The execution path, may be null
+	 * @param plan             The plan of the operation, may be null
+	 * @param nanos            The latency in nanoseconds
+	 * @param firstRecordNanos Nanoseconds to the first record, or -1
+	 * @param recordsReturned  The number of records returned
+	 * @param recordsTouched   The number of records written or deleted, 0 for a select
+	 * @param error            The error, or null if the operation succeeded
+	 * @return true if the operation was recorded
+	 */
+	public boolean record(QueryMetrics.Operation operation, QueryMetrics.Path path, QueryPlan plan, long nanos,
+			long firstRecordNanos, long recordsReturned, long recordsTouched, Throwable error) {
+		boolean sampled = false;
+		if (nanos < this.thresholdNanos) {
+			double rate = this.sampleRate;
+			if (rate <= 0.0 || ThreadLocalRandom.current().nextDouble() >= rate)
+				return false;
+			sampled = true;
+		}
+		SlowQuery entry = new SlowQuery(System.currentTimeMillis(), operation, path, plan, nanos,
+				firstRecordNanos, recordsReturned, recordsTouched, error, sampled);
+		synchronized (this.entries) {
+			this.entries[this.next] = entry;
+			this.next = (this.next + 1) % this.entries.length;
+			if (this.count < this.entries.length)
+				this.count++;
+		}
+		for (SlowQuerySink sink : this.sinks) {
+			try {
+				sink.write(entry);
+			} catch (RuntimeException e) {
+				log.warn("SlowQuerySink failed", e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The entries held in memory, oldest first
+	 */
+	public List<SlowQuery> getEntries() {
+		synchronized (this.entries) {
+			List<SlowQuery> result = new ArrayList<SlowQuery>(this.count);
+			int oldest = (this.count < this.entries.length) ? 0 : this.next;
+			for (int i = 0; i < this.count; i++) {
+				result.add(this.entries[(oldest + i) % this.entries.length]);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Removes the entries held in memory
+	 */
+	public void clear() {
+		synchronized (this.entries) {
+			for (int i = 0; i < this.entries.length; i++)
+				this.entries[i] = null;
+			this.next = 0;
+			this.count = 0;
+		}
+	}
+
+	/**
+	 * Writes a qualifier tree without its values, so the same query with
+	 * different values gives the same text
+	 *
+	 * @param qualifiers The qualifiers
+	 * @return The normalized qualifiers
+	 */
+	static String normalize(Qualifier[] qualifiers) {
+		if (qualifiers == null || qualifiers.length == 0)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		normalize(qualifiers, sb);
+		return sb.toString();
+	}
+
+	private static void normalize(Qualifier[] qualifiers, StringBuilder sb) {
+		int count = 0;
+		for (Qualifier qualifier : qualifiers) {
+			if (qualifier == null)
+				continue;
+			if (count++ > 0)
+				sb.append(", ");
+			Qualifier.FilterOperation operation = qualifier.getOperation();
+			if (operation == Qualifier.FilterOperation.AND || operation == Qualifier.FilterOperation.OR
+					|| operation == Qualifier.FilterOperation.NOT) {
+				sb.append(operation).append("(");
+				normalize(qualifier.qualifiers(), sb);
+				sb.append(")");
+			} else {
+				sb.append(qualifier.getField()).append(" ").append(operation).append(" ?");
+			}
+		}
+	}
+}
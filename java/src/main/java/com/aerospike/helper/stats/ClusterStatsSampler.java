@@ -0,0 +1,437 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.stats;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.InfoPolicy;
+import com.aerospike.helper.InfoExecutor;
+import com.aerospike.helper.Utils;
+import com.aerospike.helper.model.InfoParser;
+import com.aerospike.helper.model.Namespace;
+import com.aerospike.helper.model.NamespaceStats;
+import com.aerospike.helper.model.Set;
+import com.aerospike.helper.model.SetStats;
+import com.aerospike.helper.model.SindexStats;
+
+/**
+ * Polls namespace, set and secondary index statistics from all nodes at a fixed
+ * interval, keeping the samples of each statistic in a {@link RingBuffer} so rates
+ * such as objects per second, memory growth and evictions per second can be derived.
+ * <p>
+ * The same model objects are reused on every poll, so steady state sampling
+ * allocates little beyond the Info responses themselves.
+ * <p>
+ * A sample is only recorded when every node answered, otherwise the statistics
+ * of the nodes that failed would be those of an earlier sample. The sample is
+ * skipped and the nodes are reported by {@link #getFailedNodes()}. The series of
+ * a namespace, set or secondary index that is no longer reported by any node
+ * are removed.
+ *
+ * @author peter
+ */
+public class ClusterStatsSampler implements Closeable {
+
+	public static final long DEFAULT_INTERVAL = 1000; // In milliseconds
+	public static final int DEFAULT_CAPACITY = 300; // 5 minutes at the default interval
+	public static final long DEFAULT_RATE_WINDOW = 60000; // In milliseconds
+
+	private static Logger log = Logger.getLogger(ClusterStatsSampler.class);
+
+	/**
+	 * The statistics sampled. The rate of each is exported as &lt;name&gt;_per_second.
+	 */
+	public enum Metric {
+		NAMESPACE_OBJECTS("aerospike_namespace_objects", "Objects in the namespace", false),
+		NAMESPACE_MEMORY_USED("aerospike_namespace_memory_used_bytes", "Memory used by the namespace", false),
+		NAMESPACE_DISK_USED("aerospike_namespace_disk_used_bytes", "Disk used by the namespace", false),
+		NAMESPACE_EVICTED("aerospike_namespace_evicted_objects", "Objects evicted from the namespace", true),
+		NAMESPACE_EXPIRED("aerospike_namespace_expired_objects", "Objects expired from the namespace", true),
+		SET_OBJECTS("aerospike_set_objects", "Objects in the set", false),
+		SET_MEMORY_DATA("aerospike_set_memory_data_bytes", "Memory used by the data of the set", false),
+		SINDEX_ENTRIES("aerospike_sindex_entries", "Entries in the secondary index", false),
+		SINDEX_MEMORY_USED("aerospike_sindex_memory_used_bytes", "Memory used by the secondary index", false);
+
+		private final String name;
+		private final String help;
+		private final boolean monotonic;
+
+		Metric(String name, String help, boolean monotonic) {
+			this.name = name;
+			this.help = help;
+			this.monotonic = monotonic;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public String getHelp() {
+			return this.help;
+		}
+
+		/**
+		 * @return true if the statistic is a counter that only increases
+		 */
+		public boolean isMonotonic() {
+			return this.monotonic;
+		}
+	}
+
+	private final AerospikeClient client;
+	private final InfoExecutor info;
+	private final long interval;
+	private final int capacity;
+	private volatile long rateWindow = DEFAULT_RATE_WINDOW;
+	private final Map<Metric, Map<String, StatSeries>> series = new EnumMap<Metric, Map<String, StatSeries>>(Metric.class);
+	private final Map<Metric, java.util.Set<String>> recorded = new EnumMap<Metric, java.util.Set<String>>(Metric.class);
+	private final Map<String, Namespace> namespaces = new TreeMap<String, Namespace>();
+	private final Map<String, Map<String, SindexStats>> sindexes = new TreeMap<String, Map<String, SindexStats>>();
+	private final SindexStats sindexTotal = new SindexStats();
+	private volatile java.util.Set<String> failedNodes = Collections.emptySet();
+	private final AtomicLong skippedSamples = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+
+	public ClusterStatsSampler(AerospikeClient client, InfoPolicy infoPolicy) {
+		this(client, infoPolicy, DEFAULT_INTERVAL, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param client     An instance of AerospikeClient
+	 * @param infoPolicy The InfoPolicy, pass in null for the default timeout
+	 * @param interval   The interval between samples in milliseconds
+	 * @param capacity   The number of samples kept for each statistic
+	 */
+	public ClusterStatsSampler(AerospikeClient client, InfoPolicy infoPolicy, long interval, int capacity) {
+		this.client = client;
+		this.info = new InfoExecutor(client, infoPolicy);
+		this.interval = interval;
+		this.capacity = capacity;
+		for (Metric metric : Metric.values()) {
+			this.series.put(metric, new ConcurrentSkipListMap<String, StatSeries>());
+			this.recorded.put(metric, new HashSet<String>());
+		}
+	}
+
+	/**
+	 * Starts sampling in the background
+	 */
+	public synchronized void start() {
+		if (this.scheduler != null)
+			return;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(Utils.daemonThreadFactory("aerospike-helper-stats"));
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sample();
+				} catch (RuntimeException e) {
+					log.error("Error sampling cluster statistics", e);
+				}
+			}
+		}, 0, this.interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes one sample of all statistics from all nodes. Each node is sent two requests.
+	 * The sample is skipped if a node does not answer.
+	 */
+	public synchronized void sample() {
+		java.util.Set<String> nodes = new HashSet<String>();
+		for (Node node : this.client.getNodes()) {
+			nodes.add(node.getName());
+		}
+		Map<String, Map<String, String>> lists = this.info.requestAll("namespaces", "sindex");
+		if (skipped(nodes, lists.keySet()))
+			return;
+		Map<String, String[]> commands = new HashMap<String, String[]>(lists.size() * 2);
+		for (Map.Entry<String, Map<String, String>> entry : lists.entrySet()) {
+			String[] nodeCommands = statsCommands(entry.getValue().get("namespaces"), entry.getValue().get("sindex"));
+			if (nodeCommands.length > 0)
+				commands.put(entry.getKey(), nodeCommands);
+		}
+		Map<String, Map<String, String>> responses = this.info.requestEach(commands);
+		if (skipped(commands.keySet(), responses.keySet()))
+			return;
+		long now = System.currentTimeMillis();
+
+		java.util.Set<String> sampled = new HashSet<String>();
+		for (Map.Entry<String, Map<String, String>> entry : responses.entrySet()) {
+			String node = entry.getKey();
+			for (Map.Entry<String, String> response : entry.getValue().entrySet()) {
+				String command = response.getKey();
+				String value = response.getValue();
+				if (command.startsWith("namespace/")) {
+					namespace(command.substring(10)).mergeNamespaceInfo(node, value);
+					sampled.add(command);
+				} else if (command.startsWith("sets/")) {
+					Namespace namespace = namespace(command.substring(5));
+					namespace.mergeSets(node, value);
+					removeMissingSets(namespace, node, value);
+				} else if (command.startsWith("sindex/")) {
+					Map<String, SindexStats> indexNodes = this.sindexes.get(command.substring(7));
+					if (indexNodes == null) {
+						indexNodes = new HashMap<String, SindexStats>();
+						this.sindexes.put(command.substring(7), indexNodes);
+					}
+					SindexStats stats = indexNodes.get(node);
+					if (stats == null) {
+						stats = new SindexStats();
+						indexNodes.put(node, stats);
+					}
+					stats.setInfo(value, ';');
+					sampled.add(command + "/" + node);
+				}
+			}
+		}
+		removeUnsampled(nodes, sampled);
+		record(now);
+	}
+
+	/*
+	 * true if a node that was asked did not answer, the sample is then skipped
+	 */
+	private boolean skipped(java.util.Set<String> asked, java.util.Set<String> answered) {
+		java.util.Set<String> failed = new HashSet<String>(asked);
+		failed.removeAll(answered);
+		if (asked.isEmpty() || !failed.isEmpty()) {
+			this.failedNodes = Collections.unmodifiableSet(failed);
+			this.skippedSamples.incrementAndGet();
+			log.warn("Skipped a statistics sample, nodes did not answer: " + (asked.isEmpty() ? "no nodes" : failed));
+			return true;
+		}
+		this.failedNodes = Collections.emptySet();
+		return false;
+	}
+
+	/*
+	 * builds the statistics commands for a node from its namespace and sindex lists
+	 */
+	private static String[] statsCommands(String namespaceList, String sindexList) {
+		List<String> commands = new ArrayList<String>();
+		if (namespaceList != null && !namespaceList.isEmpty()) {
+			for (String namespace : namespaceList.split(";")) {
+				commands.add("namespace/" + namespace);
+				commands.add("sets/" + namespace);
+			}
+		}
+		if (sindexList != null) {
+			int length = sindexList.length();
+			int start = 0;
+			while (start < length) {
+				int end = sindexList.indexOf(';', start);
+				if (end < 0)
+					end = length;
+				String ns = InfoParser.value(sindexList, start, end, ':', '=', "ns");
+				String indexName = InfoParser.value(sindexList, start, end, ':', '=', "indexname");
+				if (ns != null && indexName != null)
+					commands.add("sindex/" + ns + "/" + indexName);
+				start = end + 1;
+			}
+		}
+		return commands.toArray(new String[commands.size()]);
+	}
+
+	private Namespace namespace(String name) {
+		Namespace namespace = this.namespaces.get(name);
+		if (namespace == null) {
+			namespace = new Namespace(name);
+			this.namespaces.put(name, namespace);
+		}
+		return namespace;
+	}
+
+	/*
+	 * forgets the sets a node no longer reports
+	 */
+	private static void removeMissingSets(Namespace namespace, String node, String setsData) {
+		java.util.Set<String> reported = new HashSet<String>();
+		if (setsData != null) {
+			int length = setsData.length();
+			int start = 0;
+			while (start < length) {
+				int end = setsData.indexOf(';', start);
+				if (end < 0)
+					end = length;
+				if (end > start)
+					reported.add(Set.nameFromInfo(setsData, start, end));
+				start = end + 1;
+			}
+		}
+		for (Set set : namespace.getSets()) {
+			if (!reported.contains(set.getName()))
+				set.removeNode(node);
+		}
+	}
+
+	/*
+	 * forgets the nodes that left the cluster, and the namespaces and indexes that
+	 * were not in the sample
+	 */
+	private void removeUnsampled(java.util.Set<String> nodes, java.util.Set<String> sampled) {
+		Iterator<Namespace> namespaces = this.namespaces.values().iterator();
+		while (namespaces.hasNext()) {
+			Namespace namespace = namespaces.next();
+			if (!sampled.contains("namespace/" + namespace.getName())) {
+				namespaces.remove();
+				continue;
+			}
+			for (String node : new ArrayList<String>(namespace.getNodeStats().keySet())) {
+				if (!nodes.contains(node))
+					namespace.removeNode(node);
+			}
+			for (Set set : namespace.getSets()) {
+				for (String node : new ArrayList<String>(set.getNodeStats().keySet())) {
+					if (!nodes.contains(node))
+						set.removeNode(node);
+				}
+			}
+		}
+		Iterator<Map.Entry<String, Map<String, SindexStats>>> sindexes = this.sindexes.entrySet().iterator();
+		while (sindexes.hasNext()) {
+			Map.Entry<String, Map<String, SindexStats>> entry = sindexes.next();
+			Iterator<String> indexNodes = entry.getValue().keySet().iterator();
+			while (indexNodes.hasNext()) {
+				if (!sampled.contains("sindex/" + entry.getKey() + "/" + indexNodes.next()))
+					indexNodes.remove();
+			}
+			if (entry.getValue().isEmpty())
+				sindexes.remove();
+		}
+	}
+
+	/*
+	 * adds a sample to the series of every statistic, and removes the series that were not sampled
+	 */
+	private void record(long now) {
+		for (java.util.Set<String> labels : this.recorded.values()) {
+			labels.clear();
+		}
+		for (Namespace namespace : this.namespaces.values()) {
+			String labels = labels("namespace", namespace.getName());
+			NamespaceStats stats = namespace.getStats();
+			add(Metric.NAMESPACE_OBJECTS, labels, now, stats.get(NamespaceStats.Counter.OBJECTS));
+			add(Metric.NAMESPACE_MEMORY_USED, labels, now, stats.get(NamespaceStats.Counter.USED_BYTES_MEMORY));
+			add(Metric.NAMESPACE_DISK_USED, labels, now, stats.get(NamespaceStats.Counter.USED_BYTES_DISK));
+			add(Metric.NAMESPACE_EVICTED, labels, now, stats.get(NamespaceStats.Counter.EVICTED_OBJECTS));
+			add(Metric.NAMESPACE_EXPIRED, labels, now, stats.get(NamespaceStats.Counter.EXPIRED_OBJECTS));
+			for (Set set : namespace.getSets()) {
+				if (set.getNodeStats().isEmpty())
+					continue;
+				String setLabels = labels + "," + labels("set", set.getName());
+				SetStats setStats = set.getStats();
+				add(Metric.SET_OBJECTS, setLabels, now, setStats.get(SetStats.Counter.OBJECTS));
+				add(Metric.SET_MEMORY_DATA, setLabels, now, setStats.get(SetStats.Counter.MEMORY_DATA_BYTES));
+			}
+		}
+		for (Map.Entry<String, Map<String, SindexStats>> entry : this.sindexes.entrySet()) {
+			String[] parts = entry.getKey().split("/", 2);
+			String labels = labels("namespace", parts[0]) + "," + labels("index", parts[1]);
+			this.sindexTotal.clear();
+			for (SindexStats stats : entry.getValue().values()) {
+				this.sindexTotal.add(stats);
+			}
+			add(Metric.SINDEX_ENTRIES, labels, now, this.sindexTotal.get(SindexStats.Counter.ENTRIES));
+			add(Metric.SINDEX_MEMORY_USED, labels, now, this.sindexTotal.get(SindexStats.Counter.MEMORY_USED));
+		}
+		for (Metric metric : Metric.values()) {
+			this.series.get(metric).keySet().retainAll(this.recorded.get(metric));
+		}
+	}
+
+	private void add(Metric metric, String labels, long time, long value) {
+		Map<String, StatSeries> metricSeries = this.series.get(metric);
+		StatSeries statSeries = metricSeries.get(labels);
+		if (statSeries == null) {
+			statSeries = new StatSeries(metric, labels, this.capacity);
+			metricSeries.put(labels, statSeries);
+		}
+		statSeries.getSamples().add(time, value);
+		this.recorded.get(metric).add(labels);
+	}
+
+	private static String labels(String name, String value) {
+		String escaped = (value == null) ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return name + "=\"" + escaped + "\"";
+	}
+
+	/**
+	 * Gets the series of a statistic, one for each cluster object
+	 *
+	 * @param metric The statistic
+	 * @return The series, ordered by their labels
+	 */
+	public Collection<StatSeries> getSeries(Metric metric) {
+		return this.series.get(metric).values();
+	}
+
+	/**
+	 * @return The nodes that did not answer the last sample, empty if it was recorded
+	 */
+	public java.util.Set<String> getFailedNodes() {
+		return this.failedNodes;
+	}
+
+	/**
+	 * @return The number of samples skipped because a node did not answer
+	 */
+	public long getSkippedSamples() {
+		return this.skippedSamples.get();
+	}
+
+	/**
+	 * @return The window, in milliseconds, that rates are computed over
+	 */
+	public long getRateWindow() {
+		return this.rateWindow;
+	}
+
+	public void setRateWindow(long rateWindow) {
+		this.rateWindow = rateWindow;
+	}
+
+	/**
+	 * Stops sampling. The samples taken remain readable.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.scheduler != null) {
+			this.scheduler.shutdownNow();
+			this.scheduler = null;
+		}
+		this.info.close();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.stats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exports the statistics of a {@link ClusterStatsSampler} in the Prometheus
+ * text format from an embedded HTTP endpoint at <code>/metrics</code>.
+ * <p>
+ * For each statistic the latest value is exported, together with its rate
+ * per second as &lt;name&gt;_per_second. The samples the sampler skipped because
+ * a node did not answer are counted as {@value #SKIPPED_SAMPLES}.
+ *
+ * @author peter
+ */
+public class PrometheusExporter implements Closeable {
+
+	public static final int DEFAULT_PORT = 9145;
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	public static final String SKIPPED_SAMPLES = "aerospike_stats_skipped_samples";
+
+	private final ClusterStatsSampler sampler;
+	private final HttpServer server;
+
+	/**
+	 * Starts the HTTP endpoint
+	 *
+	 * @param sampler The sampler to export
+	 * @param port    The port to listen on
+	 * @throws IOException if the port cannot be bound
+	 */
+	public PrometheusExporter(ClusterStatsSampler sampler, int port) throws IOException {
+		this.sampler = sampler;
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		this.server.start();
+	}
+
+	/**
+	 * @return The port the endpoint is listening on
+	 */
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Renders the current statistics in the Prometheus text format
+	 *
+	 * @return The exposition text
+	 */
+	public String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		long window = this.sampler.getRateWindow();
+		header(sb, SKIPPED_SAMPLES, "Samples skipped because a node did not answer", "counter");
+		sb.append(SKIPPED_SAMPLES).append(' ').append(this.sampler.getSkippedSamples()).append('\n');
+		for (ClusterStatsSampler.Metric metric : ClusterStatsSampler.Metric.values()) {
+			Collection<StatSeries> series = this.sampler.getSeries(metric);
+			if (series.isEmpty())
+				continue;
+			String name = metric.getName();
+			header(sb, name, metric.getHelp(), metric.isMonotonic() ? "counter" : "gauge");
+			for (StatSeries one : series) {
+				sb.append(name).append('{').append(one.getLabels()).append("} ").append(one.latest()).append('\n');
+			}
+			header(sb, name + "_per_second", metric.getHelp() + ", change per second", "gauge");
+			for (StatSeries one : series) {
+				sb.append(name).append("_per_second{").append(one.getLabels()).append("} ").append(one.rate(window)).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String name, String help, String type) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Stops the HTTP endpoint
+	 */
+	@Override
+	public void close() {
+		this.server.stop(0);
+	}
+}
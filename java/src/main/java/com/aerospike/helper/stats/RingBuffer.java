@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.stats;
+
+/**
+ * A fixed size ring of timestamped samples held in primitive arrays.
+ * Once full, each new sample replaces the oldest.
+ *
+ * @author peter
+ */
+public class RingBuffer {
+	private final long[] times;
+	private final long[] values;
+	private int next;
+	private int count;
+
+	/**
+	 * @param capacity The number of samples kept
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("RingBuffer capacity must be at least 2");
+		this.times = new long[capacity];
+		this.values = new long[capacity];
+	}
+
+	/**
+	 * Adds a sample
+	 *
+	 * @param time  The time of the sample in milliseconds
+	 * @param value The value
+	 */
+	public synchronized void add(long time, long value) {
+		this.times[this.next] = time;
+		this.values[this.next] = value;
+		this.next = (this.next + 1) % this.times.length;
+		if (this.count < this.times.length)
+			this.count++;
+	}
+
+	/**
+	 * @return The number of samples held
+	 */
+	public synchronized int size() {
+		return this.count;
+	}
+
+	public int capacity() {
+		return this.times.length;
+	}
+
+	/**
+	 * @return The most recent value, or 0 if there are no samples
+	 */
+	public synchronized long latest() {
+		if (this.count == 0)
+			return 0L;
+		return this.values[index(this.count - 1)];
+	}
+
+	/**
+	 * @return The time of the most recent sample, or 0 if there are no samples
+	 */
+	public synchronized long latestTime() {
+		if (this.count == 0)
+			return 0L;
+		return this.times[index(this.count - 1)];
+	}
+
+	/**
+	 * Gets a sample value, oldest first
+	 *
+	 * @param i The position, 0 is the oldest sample held
+	 * @return The value
+	 */
+	public synchronized long value(int i) {
+		return this.values[index(i)];
+	}
+
+	/**
+	 * Gets a sample time, oldest first
+	 *
+	 * @param i The position, 0 is the oldest sample held
+	 * @return The time in milliseconds
+	 */
+	public synchronized long time(int i) {
+		return this.times[index(i)];
+	}
+
+	/**
+	 * Computes the change per second between the latest sample and the
+	 * oldest sample within the window
+	 *
+	 * @param window      The window in milliseconds
+	 * @param nonNegative True for counters that only increase, a decrease (such as a node restart) gives 0
+	 * @return The rate per second, or 0 if there are fewer than 2 samples in the window
+	 */
+	public synchronized double rate(long window, boolean nonNegative) {
+		if (this.count < 2)
+			return 0.0;
+		int last = this.count - 1;
+		long lastTime = this.times[index(last)];
+		int first = last;
+		while (first > 0 && lastTime - this.times[index(first - 1)] <= window)
+			first--;
+		if (first == last)
+			return 0.0;
+		long elapsed = lastTime - this.times[index(first)];
+		if (elapsed <= 0)
+			return 0.0;
+		long delta = this.values[index(last)] - this.values[index(first)];
+		if (nonNegative && delta < 0)
+			return 0.0;
+		return delta * 1000.0 / elapsed;
+	}
+
+	private int index(int i) {
+		int oldest = (this.count < this.times.length) ? 0 : this.next;
+		return (oldest + i) % this.times.length;
+	}
+}
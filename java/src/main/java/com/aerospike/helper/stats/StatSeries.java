@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012-2017 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.helper.stats;
+
+/**
+ * The samples of one statistic of one cluster object,
+ * for example the objects in namespace "test"
+ *
+ * @author peter
+ */
+public class StatSeries {
+	private final ClusterStatsSampler.Metric metric;
+	private final String labels;
+	private final RingBuffer samples;
+
+	public StatSeries(ClusterStatsSampler.Metric metric, String labels, int capacity) {
+		this.metric = metric;
+		this.labels = labels;
+		this.samples = new RingBuffer(capacity);
+	}
+
+	public ClusterStatsSampler.Metric getMetric() {
+		return this.metric;
+	}
+
+	/**
+	 * @return The labels in Prometheus form, for example <code>namespace="test",set="demo"</code>
+	 */
+	public String getLabels() {
+		return this.labels;
+	}
+
+	public RingBuffer getSamples() {
+		return this.samples;
+	}
+
+	public long latest() {
+		return this.samples.latest();
+	}
+
+	/**
+	 * @param window The window in milliseconds
+	 * @return The change per second over the window
+	 */
+	public double rate(long window) {
+		return this.samples.rate(window, this.metric.isMonotonic());
+	}
+
+	@Override
+	public String toString() {
+		return this.metric.getName() + "{" + this.labels + "}";
+	}
+}
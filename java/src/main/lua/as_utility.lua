@@ -66,7 +66,7 @@ end
 
 function containsKey(collection, key)
 	for k,_ in pairs(collection) do
-	  if k == value then
+	  if k == key then
 	    return true
 	  end
 	end
@@ -134,6 +134,66 @@ local function filter_record(rec, filterFuncStr, filterFunc)
   return true
 end
 
+------------------------------------------------------------------------------------------
+--  Filters generated by the QueryEngine have the form "if <condition> then selectedRec = true end".
+--  They are compiled once per stream into a function of the record that returns the
+--  condition, with one environment for every record. The meta data of the record is
+--  only read if the condition uses it. Other filters are run in a new context per record.
+------------------------------------------------------------------------------------------
+local function compile_filter(filterFuncStr)
+  local condition = string.match(filterFuncStr, "^%s*if%s+(.-)%s+then%s+selectedRec%s*=%s*true%s+end%s*$")
+  if condition == nil then
+    return nil
+  end
+  local prelude = ""
+  if string.find(condition, "generation", 1, true) then
+    prelude = prelude .. "local generation = record.gen(rec) "
+  end
+  if string.find(condition, "expiry", 1, true) then
+    prelude = prelude .. "local expiry = record.ttl(rec) "
+  end
+  if string.find(condition, "digest", 1, true) then
+    prelude = prelude .. "local digest = record.digest(rec) "
+  end
+  if string.find(condition, "set_name", 1, true) then
+    prelude = prelude .. "local set_name = record.setname(rec) "
+  end
+  local chunk = load("return function(rec) " .. prelude .. "if " .. condition .. " then return true end return false end")
+  if chunk == nil then
+    return nil
+  end
+  local env = {string = string,
+              record = record,
+              list = list,
+              map = map,
+              containsValue = containsValue,
+              containsKey = containsKey,
+              rangeValue = rangeValue,
+              rangeKey = rangeKey,
+              info = info}
+  -- the function returned by the chunk shares its environment
+  setfenv(chunk, env)
+  return chunk()
+end
+
+local function select_all(rec)
+  return true
+end
+
+local function make_filter(filterFuncStr)
+  if filterFuncStr == nil then
+    return select_all
+  end
+  local compiled = compile_filter(filterFuncStr)
+  if compiled ~= nil then
+    return compiled
+  end
+  local filterFunc = load(filterFuncStr)
+  return function(rec)
+    return filter_record(rec, filterFuncStr, filterFunc)
+  end
+end
+
 local function parseFieldStatements(fieldValueStatements)
   local fieldFuncs = nil
   if fieldValueStatements ~= nil then
@@ -151,6 +211,19 @@ function delete_record(rec)
     aerospike:remove(rec)
   end
 end
+------------------------------------------------------------------------------------------
+--  Compact results are lists: the digest, generation and expiry of the record, followed
+--  by the values of the selected fields, or by a list of the bin names and their values
+--  when every bin is returned
+------------------------------------------------------------------------------------------
+local function meta_row(rec)
+  local row = list()
+  list.append(row, record.digest(rec))
+  list.append(row, record.gen(rec))
+  list.append(row, record.ttl(rec))
+  return row
+end
+
 ------------------------------------------------------------------------------------------
 --  Returns Maps For Specified Filters
 ------------------------------------------------------------------------------------------
@@ -165,13 +238,24 @@ function select_records(stream, origArgs)
     includeAllFields = true
   end
 
-  local filterFunc = nil
-  if filterFuncStr ~= nil then
-    filterFunc = load(filterFuncStr)
-  end
+  local filter = make_filter(filterFuncStr)
+
+  local compact = origArgs["compact"] == 1
 
   local fieldFuncs = parseFieldStatements(fieldValueStatements)
 
+  local function field_value(rec, v)
+    if fieldFuncs ~= nil and fieldFuncs[v] ~= nil then
+      local context = {rec = rec, result = nil}
+      local f = fieldFuncs[v]
+      -- sandbox the function
+      setfenv(f, context)
+      f()
+      return context.result
+    end
+    return rec[v]
+  end
+
   local function map_record(rec)
 
     -- Could add other record bins here as well.
@@ -181,17 +265,7 @@ function select_records(stream, origArgs)
 
     if fields ~= nil then
       for v in list.iterator(fields) do
-        if fieldFuncs ~= nil and fieldFuncs[v] ~= nil then
-          local context = {rec = rec, result = nil}
-          local f = fieldFuncs[v]
-          -- sandbox the function
-          setfenv(f, context)
-          f()
-
-          result[v] = context.result
-        else
-          result[v] = rec[v]
-        end
+        result[v] = field_value(rec, v)
       end
     end
 
@@ -209,16 +283,37 @@ function select_records(stream, origArgs)
     return result
   end
 
+  local function map_row(rec)
+    local row = meta_row(rec)
+    if fields ~= nil and includeAllFields == false then
+      -- the client knows the field names
+      for v in list.iterator(fields) do
+        list.append(row, field_value(rec, v))
+      end
+    else
+      local names = record.bin_names(rec)
+      list.append(row, list(names))
+      for i, v in ipairs(names) do
+        list.append(row, rec[v])
+      end
+    end
+    return row
+  end
+
+  local mapper = map_record
+  if compact then
+    mapper = map_row
+  end
 
   local function filter_records(rec)
     --info("filterFuncStr:"..tostring(filterFuncStr))
-    return filter_record(rec, filterFuncStr, filterFunc)
+    return filter(rec)
   end
 
   if filterFuncStr ~= nil then
-    return stream : filter(filter_records) : map(map_record)
+    return stream : filter(filter_records) : map(mapper)
   else
-    return stream : map(map_record)
+    return stream : map(mapper)
   end
 end
 
@@ -228,10 +323,7 @@ end
 function query_meta(stream, origArgs)
   local filterFuncStr = origArgs["filterFuncStr"]
 
-  local filterFunc = nil
-  if filterFuncStr ~= nil then
-    filterFunc = load(filterFuncStr)
-  end
+  local filter = make_filter(filterFuncStr)
 
   local function add_records(rec)
 
@@ -246,9 +338,12 @@ function query_meta(stream, origArgs)
   end
 
   local function filter_records(rec)
-    return filter_record(rec, filterFuncStr, filterFunc)
+    return filter(rec)
   end
 
+  if origArgs["compact"] == 1 then
+    return stream : filter(filter_records) : map(meta_row)
+  end
   return stream : filter(filter_records) : map(add_records)
 end
 
@@ -258,10 +353,7 @@ end
 function query_bin_names(stream, origArgs)
   local filterFuncStr = origArgs["filterFuncStr"]
 
-  local filterFunc = nil
-  if filterFuncStr ~= nil then
-    filterFunc = load(filterFuncStr)
-  end
+  local filter = make_filter(filterFuncStr)
 
   local function map_bin_names(bin_names, rec)
 
@@ -279,10 +371,27 @@ function query_bin_names(stream, origArgs)
   end
 
   local function filter_records(rec)
-    return filter_record(rec, filterFuncStr, filterFunc)
+    return filter(rec)
   end
 
   return stream : filter(filter_records) : aggregate(map {}, map_bin_names) : reduce(reducer)
 end
 
+------------------------------------------------------------------------------------------
+--  Counts the records that reach the filter stage of select_records, the records read
+--  after the index Filter and the PredExp of the query
+------------------------------------------------------------------------------------------
+function count_records(stream)
+
+  local function one(rec)
+    return 1
+  end
+
+  local function add(a, b)
+    return a + b
+  end
+
+  return stream : map(one) : aggregate(0, add) : reduce(add)
+end
+
 -----------
@@ -0,0 +1,120 @@
+package com.aerospike.helper.load;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aerospike.helper.query.InMemoryCluster;
+import com.aerospike.helper.query.QueryEngine;
+
+public class LoadGeneratorTests {
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+	private LoadGenerator generator;
+
+	@Before
+	public void setUp() {
+		this.cluster = new InMemoryCluster(2, "test");
+		this.engine = this.cluster.newQueryEngine();
+		this.generator = new LoadGenerator(this.engine, null);
+		this.generator.keys = 200;
+		this.generator.distinctAges = 10;
+		this.generator.reportIntervalMillis = 0;
+		this.generator.out = null;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static long[] histogram(KeyDistribution distribution, int samples) {
+		long[] counts = new long[(int) distribution.getKeys()];
+		Random random = new Random(42);
+		for (int i = 0; i < samples; i++) {
+			long key = distribution.next(random);
+			Assert.assertTrue(key >= 0 && key < distribution.getKeys());
+			counts[(int) key]++;
+		}
+		return counts;
+	}
+
+	@Test
+	public void zipfianFavoursLowKeys() {
+		long[] counts = histogram(KeyDistribution.zipfian(1000, KeyDistribution.DEFAULT_THETA), 100000);
+		for (int i = 1; i < counts.length; i++) {
+			Assert.assertTrue(counts[0] >= counts[i]);
+		}
+		Assert.assertTrue(counts[0] > counts[999] * 10);
+	}
+
+	@Test
+	public void hotSetShare() {
+		long[] counts = histogram(KeyDistribution.parse("hotset:0.1:0.9", 1000), 100000);
+		long hot = 0;
+		for (int i = 0; i < 100; i++) {
+			hot += counts[i];
+		}
+		Assert.assertEquals(0.9, hot / 100000.0, 0.02);
+	}
+
+	@Test
+	public void parseMix() {
+		WorkloadMix mix = WorkloadMix.parse("key_select=3, update=1");
+		Map<LoadOperation, Double> shares = mix.getShares();
+		Assert.assertEquals(0.75, shares.get(LoadOperation.KEY_SELECT), 1e-9);
+		Assert.assertEquals(0.25, shares.get(LoadOperation.UPDATE), 1e-9);
+		Assert.assertFalse(mix.hasCollections());
+		Assert.assertTrue(WorkloadMix.parse("list_add=1").hasCollections());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parseUnknownOperation() {
+		WorkloadMix.parse("key_select=1,scan=1");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void collectionsNeedClient() throws InterruptedException {
+		this.generator.mix = WorkloadMix.parse("list_find=1");
+		this.generator.run();
+	}
+
+	@Test
+	public void mixedRun() throws InterruptedException {
+		Assert.assertEquals(200L, this.generator.populate());
+		Assert.assertEquals(0L, this.generator.populate());
+		this.generator.mix = WorkloadMix.parse("key_select=40,predexp_select=20,lua_select=10,insert=10,update=10,delete=10");
+		this.generator.distribution = KeyDistribution.zipfian(200, KeyDistribution.DEFAULT_THETA);
+		this.generator.threads = 4;
+		this.generator.targetRate = 2000;
+		this.generator.durationMillis = 200;
+		LoadReport report = this.generator.run();
+		Assert.assertEquals(400L, report.getCount());
+		Assert.assertEquals(0L, report.getErrors());
+		Assert.assertEquals(6, report.getOperations().size());
+		Assert.assertTrue(report.toJson().contains("\"predexp_select\""));
+	}
+
+	@Test
+	public void latencyIncludesQueueingDelay() throws InterruptedException {
+		this.generator.populate();
+		this.cluster.setLatency(20, TimeUnit.MILLISECONDS);
+		this.generator.threads = 1;
+		this.generator.targetRate = 100;
+		this.generator.durationMillis = 200;
+		LoadReport report = this.generator.run();
+		LoadReport.OperationStats stats = report.get(LoadOperation.KEY_SELECT);
+		Assert.assertEquals(20L, stats.getCount());
+		// each read takes twice its schedule interval, so the backlog grows
+		Assert.assertTrue(stats.getServiceTime().getMaxNanos() < TimeUnit.MILLISECONDS.toNanos(100));
+		Assert.assertTrue(stats.getLatency().getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(150));
+	}
+}
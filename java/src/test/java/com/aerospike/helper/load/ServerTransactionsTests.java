@@ -0,0 +1,36 @@
+package com.aerospike.helper.load;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ServerTransactionsTests {
+
+	private static final String NAMESPACE = "objects=12;client_tsvc_error=0;client_read_success=40;client_read_not_found=2;"
+			+ "client_write_success=30;client_delete_success=5;client_udf_complete=1;client_lang_read_success=1;"
+			+ "client_proxy_complete=7;batch_sub_read_success=300;batch_sub_read_not_found=4;memory_used_bytes=1024";
+	private static final String STATISTICS = "cluster_size=1;batch_index_initiate=3;batch_index_complete=3";
+
+	@Test
+	public void parseCountsTransactionsAndBatches() {
+		ServerTransactions transactions = ServerTransactions.parse(NAMESPACE, STATISTICS);
+		Assert.assertEquals(78L, transactions.getTransactions());
+		Assert.assertEquals(3L, transactions.getBatches());
+		Assert.assertEquals(304L, transactions.getBatchRecords());
+		Assert.assertEquals(81L, transactions.getRoundTrips());
+		Assert.assertEquals(382L, transactions.getRecords());
+	}
+
+	@Test
+	public void difference() {
+		ServerTransactions before = ServerTransactions.parse(NAMESPACE, STATISTICS);
+		ServerTransactions after = before.plus(ServerTransactions.parse("client_write_success=2", "batch_index_initiate=1"));
+		ServerTransactions delta = after.minus(before);
+		Assert.assertEquals(3L, delta.getRoundTrips());
+		Assert.assertEquals(2L, delta.getRecords());
+	}
+
+	@Test
+	public void missingResponses() {
+		Assert.assertEquals(0L, ServerTransactions.parse(null, null).getRoundTrips());
+	}
+}
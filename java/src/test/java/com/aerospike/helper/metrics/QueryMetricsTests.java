@@ -0,0 +1,73 @@
+package com.aerospike.helper.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryMetricsTests {
+
+	@Test
+	public void histogramBuckets() {
+		Assert.assertEquals(0, LatencyHistogram.bucket(0));
+		Assert.assertEquals(1, LatencyHistogram.bucket(1));
+		Assert.assertEquals(2, LatencyHistogram.bucket(3));
+		Assert.assertEquals(11, LatencyHistogram.bucket(1024));
+		Assert.assertEquals(63, LatencyHistogram.bucket(Long.MAX_VALUE));
+		Assert.assertEquals(2047L, LatencyHistogram.upperBound(11));
+	}
+
+	@Test
+	public void histogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++)
+			histogram.record(1000);
+		histogram.record(1000000);
+		Assert.assertEquals(100L, histogram.getCount());
+		Assert.assertEquals(1000000L, histogram.getMaxNanos());
+		Assert.assertEquals(1023L, histogram.percentile(50));
+		Assert.assertEquals(1023L, histogram.percentile(99));
+		Assert.assertEquals(1000000L, histogram.percentile(100));
+		histogram.reset();
+		Assert.assertEquals(0L, histogram.percentile(99));
+	}
+
+	@Test
+	public void recordsPerPathAndNotifiesListeners() {
+		QueryMetrics metrics = new QueryMetrics();
+		final long[] notified = new long[1];
+		metrics.addListener(new MetricsListener() {
+			@Override
+			public void operationCompleted(QueryMetrics.Operation operation, QueryMetrics.Path path, long nanos,
+					long recordsReturned, long recordsTouched, Throwable error) {
+				notified[0] += recordsReturned;
+			}
+		});
+		metrics.record(QueryMetrics.Operation.SELECT, QueryMetrics.Path.LUA, 5000, 10, 0, null);
+		metrics.record(QueryMetrics.Operation.SELECT, QueryMetrics.Path.LUA, 7000, 5, 0, null);
+		metrics.record(QueryMetrics.Operation.DELETE, null, 100, 0, 0, new RuntimeException());
+
+		OperationMetrics lua = metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.LUA);
+		Assert.assertEquals(2L, lua.getCount());
+		Assert.assertEquals(15L, lua.getRecordsReturned());
+		Assert.assertEquals(1L, metrics.get(QueryMetrics.Operation.DELETE, QueryMetrics.Path.UNKNOWN).getErrors());
+		Assert.assertEquals(15L, notified[0]);
+		Assert.assertEquals(Long.valueOf(2L), metrics.getCounts().get("select.lua"));
+		Assert.assertEquals(2, metrics.getRecorded().size());
+	}
+
+	@Test
+	public void registersWithJmx() throws Exception {
+		QueryMetrics metrics = new QueryMetrics();
+		metrics.record(QueryMetrics.Operation.INSERT, QueryMetrics.Path.KEY, 100, 0, 1, null);
+		metrics.registerMBean("test");
+		try {
+			ObjectName name = new ObjectName(QueryMetrics.JMX_DOMAIN + ":type=QueryMetrics,name=\"test\"");
+			Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		} finally {
+			metrics.unregisterMBean();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.aerospike.helper.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CatalogSnapshotStoreTests {
+
+	@Test
+	public void saveAndLoad() throws Exception {
+		Namespace namespace = new Namespace("test");
+		namespace.addSet("ns=test:set=selector:objects=1000");
+		Map<String, Namespace> namespaces = new TreeMap<String, Namespace>();
+		namespaces.put(namespace.getName(), namespace);
+		Index index = new Index("ns=test:set=selector:indexname=age_index:bin=age:type=NUMERIC:sync_state=synced:state=RW");
+		Map<String, Index> indexes = new TreeMap<String, Index>();
+		indexes.put(index.toKeyString(), index);
+		Module module = new Module("filename=as_utility.lua,hash=874473d6583f6c4d16ce5ff3e14f2dca75bee062,type=LUA");
+		Map<String, Module> modules = new TreeMap<String, Module>();
+		modules.put(module.getName(), module);
+		CatalogSnapshot snapshot = new CatalogSnapshot(namespaces, indexes, modules, "BB9,BBA", 1234L);
+
+		File file = File.createTempFile("catalog", ".bin");
+		try {
+			CatalogSnapshotStore.save(snapshot, file);
+			CatalogSnapshot loaded = CatalogSnapshotStore.load(file);
+			Assert.assertNotNull(loaded);
+			Assert.assertTrue(loaded.isLoaded());
+			Assert.assertEquals(1234L, loaded.getTimestamp());
+			Assert.assertEquals("BB9,BBA", loaded.getMembership());
+			Assert.assertNotNull(loaded.getNamespace("test").findSet("selector"));
+			Index loadedIndex = loaded.getIndex("test:selector:age");
+			Assert.assertEquals("age_index", loadedIndex.getName());
+			Assert.assertTrue(loadedIndex.sameAs(index));
+			Assert.assertEquals(module.getHash(), loaded.getModule("as_utility.lua").getHash());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void unknownFormatIsIgnored() throws Exception {
+		File file = File.createTempFile("catalog", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+			out.close();
+			Assert.assertNull(CatalogSnapshotStore.load(file));
+			Assert.assertNull(CatalogSnapshotStore.load(new File(file.getPath() + ".missing")));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.aerospike.helper.model;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.helper.Utils;
+
+public class InfoParserTests {
+
+	private static final String NODE_1 = "type=device;objects=10;master-objects=5;free-pct-memory=99;stop-writes=false";
+	private static final String NODE_2 = "type=device;objects=32;master-objects=16;free-pct-memory=97;stop-writes=false";
+	private static final String SETS = "ns=test:set=selector:objects=1000:memory_data_bytes=0:deleting=false;"
+			+ "ns=test:set=users:objects=20:memory_data_bytes=10:deleting=false;";
+
+	@Test
+	public void parseLong() {
+		String source = "a=1234;b=-56;c=abc;d=";
+		Assert.assertEquals(1234L, InfoParser.parseLong(source, 2, 6, -1L));
+		Assert.assertEquals(-56L, InfoParser.parseLong(source, 9, 12, -1L));
+		Assert.assertEquals(-1L, InfoParser.parseLong(source, 15, 18, -1L));
+		Assert.assertEquals(-1L, InfoParser.parseLong(source, 21, 21, -1L));
+		Assert.assertEquals(-1L, InfoParser.parseLong("99999999999999999999", 0, 20, -1L));
+	}
+
+	@Test
+	public void namesAreInterned() {
+		String first = InfoParser.intern("xx-objects=1", 0, 10);
+		String second = InfoParser.intern("objects=2;xx-objects=3", 10, 20);
+		Assert.assertEquals("xx-objects", first);
+		Assert.assertSame(first, second);
+	}
+
+	@Test
+	public void toMap() {
+		Map<String, String> map = Utils.toMap("type=LUA;empty");
+		Assert.assertEquals("LUA", map.get("type"));
+		Assert.assertTrue(map.containsKey("empty"));
+		Assert.assertNull(map.get("empty"));
+	}
+
+	@Test
+	public void toMapKeepsTheFirstValue() {
+		Assert.assertEquals("b", Utils.toMap("a=b=c").get("a"));
+		Assert.assertEquals("qgmyp0d8hQNvJdnR42X3BXgUGPE", Utils.toMap("gen=qgmyp0d8hQNvJdnR42X3BXgUGPE=").get("gen"));
+	}
+
+	@Test
+	public void toMapEmptyValueIsNull() {
+		Map<String, String> map = Utils.toMap("a=;b=1");
+		Assert.assertTrue(map.containsKey("a"));
+		Assert.assertNull(map.get("a"));
+		Assert.assertEquals("1", map.get("b"));
+	}
+
+	@Test
+	public void namespaceTotalsPerNode() {
+		Namespace namespace = new Namespace("test");
+		namespace.mergeNamespaceInfo("node1", NODE_1);
+		namespace.mergeNamespaceInfo("node2", NODE_2);
+		Assert.assertEquals(42L, namespace.getStats().get(NamespaceStats.Counter.OBJECTS));
+		Assert.assertEquals(21L, namespace.getStats().get(NamespaceStats.Counter.MASTER_OBJECTS));
+		Assert.assertEquals(10L, namespace.getNodeStats().get("node1").get(NamespaceStats.Counter.OBJECTS));
+		Assert.assertEquals("device", namespace.getStats().getValue("type"));
+
+		// a refresh replaces the node values rather than adding to them
+		namespace.mergeNamespaceInfo("node1", NODE_1);
+		Assert.assertEquals(42L, namespace.getStats().get(NamespaceStats.Counter.OBJECTS));
+
+		namespace.removeNode("node2");
+		Assert.assertEquals(10L, namespace.getStats().get(NamespaceStats.Counter.OBJECTS));
+	}
+
+	@Test
+	public void setsPerNode() {
+		Namespace namespace = new Namespace("test");
+		namespace.mergeSets("node1", SETS);
+		namespace.mergeSets("node2", SETS);
+		Assert.assertEquals(2, namespace.getSets().size());
+		Set users = namespace.findSet("users");
+		Assert.assertEquals("users", users.getName());
+		Assert.assertEquals(40L, users.getStats().get(SetStats.Counter.OBJECTS));
+		Assert.assertEquals(2000L, namespace.findSet("selector").getStats().get(SetStats.Counter.OBJECTS));
+	}
+
+	@Test
+	public void legacyMerge() {
+		Namespace namespace = new Namespace("test");
+		namespace.mergeNamespaceInfo(NODE_1);
+		namespace.mergeNamespaceInfo(NODE_2);
+		Assert.assertEquals(42L, namespace.getStats().get(NamespaceStats.Counter.OBJECTS));
+		namespace.mergeSet("ns=test:set_name=demo:n_objects=1");
+		namespace.mergeSet("ns=test:set_name=demo:n_objects=2");
+		Assert.assertEquals(3L, namespace.findSet("demo").getStats().get(SetStats.Counter.OBJECTS));
+	}
+}
@@ -0,0 +1,33 @@
+package com.aerospike.helper.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ModuleTests {
+
+	private static final String PACKAGE = "filename=a_test_udf.lua,hash=874473d6583f6c4d16ce5ff3e14f2dca75bee062,type=LUA";
+	// "function readBin(r,name)\n    return r[name]\nend\n"
+	private static final String DETAIL = "gen=qgmyp0d8hQNvJdnR42X3BXgUGPE=;type=LUA;content=ZnVuY3Rpb24gcmVhZEJpbihyLG5hbWUpCiAgICByZXR1cm4gcltuYW1lXQplbmQK";
+
+	@Test
+	public void sourceIsLoadedOnDemand() {
+		final int[] loads = new int[1];
+		Module module = new Module(PACKAGE);
+		module.setSourceLoader(new Module.SourceLoader() {
+			@Override
+			public String load(Module module) {
+				loads[0]++;
+				return DETAIL;
+			}
+		});
+		Assert.assertEquals("a_test_udf.lua", module.getName());
+		Assert.assertEquals("874473d6583f6c4d16ce5ff3e14f2dca75bee062", module.getHash());
+		Assert.assertEquals(0, loads[0]);
+
+		Assert.assertTrue(module.getSource().startsWith("function readBin(r,name)"));
+		Assert.assertEquals(1, module.getFunctions().size());
+		Assert.assertEquals(1, loads[0]);
+		Assert.assertEquals("qgmyp0d8hQNvJdnR42X3BXgUGPE=", module.values.get("gen"));
+		Assert.assertNull(module.values.get("content"));
+	}
+}
@@ -0,0 +1,61 @@
+package com.aerospike.helper.query;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.policy.ClientPolicy;
+
+public class ClusterCatalogRegistryTests {
+
+	@Test
+	public void sharedUntilLastRelease() {
+		AerospikeClient client = new AerospikeClient(new ClientPolicy()) {
+		};
+		AerospikeClient other = new AerospikeClient(new ClientPolicy()) {
+		};
+		ClusterCatalog first = ClusterCatalogRegistry.acquire(client, null);
+		ClusterCatalog second = ClusterCatalogRegistry.acquire(client, null);
+		ClusterCatalog third = ClusterCatalogRegistry.acquire(other, null);
+		Assert.assertSame(first, second);
+		Assert.assertNotSame(first, third);
+		Assert.assertEquals(2, ClusterCatalogRegistry.references(client));
+
+		ClusterCatalogRegistry.release(first);
+		Assert.assertEquals(1, ClusterCatalogRegistry.references(client));
+		ClusterCatalogRegistry.release(second);
+		Assert.assertEquals(0, ClusterCatalogRegistry.references(client));
+
+		// a closed catalog is not handed out again
+		ClusterCatalog fresh = ClusterCatalogRegistry.acquire(client, null);
+		Assert.assertNotSame(first, fresh);
+		ClusterCatalogRegistry.release(fresh);
+
+		ClusterCatalogRegistry.release(third);
+		Assert.assertEquals(0, ClusterCatalogRegistry.references(other));
+	}
+
+	@Test
+	public void catalogFileBelongsToTheSharedCatalog() {
+		AerospikeClient client = new AerospikeClient(new ClientPolicy()) {
+		};
+		File file = new File("catalog.bin");
+		ClusterCatalog first = ClusterCatalogRegistry.acquire(client, null);
+		ClusterCatalog second = ClusterCatalogRegistry.acquire(client, null, file);
+		ClusterCatalog third = ClusterCatalogRegistry.acquire(client, null, new File(file.getAbsolutePath()));
+		Assert.assertSame(first, second);
+		Assert.assertSame(first, third);
+		try {
+			ClusterCatalogRegistry.acquire(client, null, new File("other.bin"));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals(3, ClusterCatalogRegistry.references(client));
+		}
+		ClusterCatalogRegistry.release(first);
+		ClusterCatalogRegistry.release(second);
+		ClusterCatalogRegistry.release(third);
+		Assert.assertEquals(0, ClusterCatalogRegistry.references(client));
+	}
+}
@@ -63,6 +63,7 @@ public class HelperTests {
 		client.truncate(null, TestQueryEngine.NAMESPACE, TestQueryEngine.SET_NAME, null);
 		client.truncate(null, TestQueryEngine.NAMESPACE, geoSet, null);
 		queryEngine.close();
+		client.close();
 	}
 
 	private static String buildGeoValue(double lg, double lat) {
@@ -0,0 +1,621 @@
+package com.aerospike.helper.query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Host;
+import com.aerospike.client.Value;
+import com.aerospike.client.policy.ClientPolicy;
+import com.aerospike.client.query.IndexType;
+
+/**
+ * An in-process stand-in for an Aerospike cluster, so the QueryEngine can be
+ * tested and benchmarked without a server.
+ * <p>
+ * Each node listens on a loopback port and speaks the wire protocol of a
+ * server, so an unchanged AerospikeClient and QueryEngine run against it. The
+ * client finds the nodes through the "services" of the seed node and routes
+ * keys by the partition map, which gives each node the partitions whose number
+ * modulo the node count is its index. Aggregations and background UDFs run the
+ * registered Lua modules in an embedded Lua interpreter, the same as_utility
+ * module the QueryEngine registers on a server.
+ * <p>
+ * Each node has a latency that is added to every record command it answers, so
+ * batches and queries that fan out to several nodes wait for the slowest one.
+ * Info requests are answered without the latency.
+ * <p>
+ * Not supported are geo filters and predicates, and CDT operations.
+ */
+public class InMemoryCluster implements Closeable {
+
+	public static final String HOST = "127.0.0.1";
+	public static final int PARTITIONS = 4096;
+
+	/*
+	 * the void times of records are seconds since 2010-01-01
+	 */
+	static final long CITRUSLEAF_EPOCH = 1262304000L;
+
+	/**
+	 * A record as stored, replaced as a whole on each write
+	 */
+	static final class StoredRecord {
+		final byte[] digest;
+		final String setName;
+		final Value userKey;
+		final Map<String, Object> bins;
+		final int generation;
+		final int voidTime;
+		final long lastUpdateMillis;
+		final int node;
+
+		StoredRecord(byte[] digest, String setName, Value userKey, Map<String, Object> bins, int generation, int voidTime, int node) {
+			this.digest = digest;
+			this.setName = setName;
+			this.userKey = userKey;
+			this.bins = bins;
+			this.generation = generation;
+			this.voidTime = voidTime;
+			this.lastUpdateMillis = System.currentTimeMillis();
+			this.node = node;
+		}
+
+		/*
+		 * the seconds the record has left to live, 0 if it does not expire
+		 */
+		int ttl() {
+			if (this.voidTime == 0)
+				return 0;
+			return (int) Math.max(1, this.voidTime - now());
+		}
+
+		boolean expired() {
+			return this.voidTime != 0 && this.voidTime <= now();
+		}
+	}
+
+	private final String[] nodeNames;
+	private final InMemoryNode[] nodes;
+	private final long[] latencyNanos;
+	private final Map<String, ConcurrentSkipListMap<String, StoredRecord>> namespaces = new TreeMap<String, ConcurrentSkipListMap<String, StoredRecord>>();
+	private final Map<String, String> indexes = new TreeMap<String, String>();
+	private final Map<String, byte[]> modules = new ConcurrentHashMap<String, byte[]>();
+	private final LuaRunner lua;
+	private volatile long recordBytes;
+
+	/**
+	 * Starts the nodes. The as_utility module of the QueryEngine is already
+	 * registered, so the QueryEngine finds it with the hash of its own copy.
+	 *
+	 * @param nodeCount  The number of nodes
+	 * @param namespaces The namespaces, "test" if none are given
+	 */
+	public InMemoryCluster(int nodeCount, String... namespaces) {
+		if (nodeCount < 1)
+			throw new IllegalArgumentException("A cluster needs at least one node");
+		if (namespaces.length == 0)
+			namespaces = new String[] { "test" };
+		for (String namespace : namespaces) {
+			this.namespaces.put(namespace, new ConcurrentSkipListMap<String, StoredRecord>());
+		}
+		this.modules.put(QueryEngine.AS_UTILITY_PATH, resource(QueryEngine.AS_UTILITY_PATH));
+		this.lua = new LuaRunner(this);
+		this.nodeNames = new String[nodeCount];
+		this.nodes = new InMemoryNode[nodeCount];
+		this.latencyNanos = new long[nodeCount];
+		try {
+			for (int i = 0; i < nodeCount; i++) {
+				this.nodeNames[i] = String.format("BB9%012X", i + 1);
+				this.nodes[i] = new InMemoryNode(this, i);
+			}
+		} catch (IOException e) {
+			close();
+			throw new IllegalStateException("Cannot start the nodes", e);
+		}
+		for (InMemoryNode node : this.nodes) {
+			node.start();
+		}
+	}
+
+	private static byte[] resource(String name) {
+		InputStream in = InMemoryCluster.class.getClassLoader().getResourceAsStream(name);
+		if (in == null)
+			throw new IllegalStateException(name + " is not on the class path");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Stops the nodes and closes their connections
+	 */
+	@Override
+	public void close() {
+		for (InMemoryNode node : this.nodes) {
+			if (node != null)
+				node.close();
+		}
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Clients
+	 *
+	 * *****************************************************
+	 */
+
+	/**
+	 * @return The host of every node
+	 */
+	public Host[] getHosts() {
+		Host[] hosts = new Host[this.nodes.length];
+		for (int i = 0; i < this.nodes.length; i++) {
+			hosts[i] = new Host(HOST, getPort(i));
+		}
+		return hosts;
+	}
+
+	/**
+	 * @param node The index of the node
+	 * @return The port the node listens on
+	 */
+	public int getPort(int node) {
+		return this.nodes[node].getPort();
+	}
+
+	/**
+	 * Connects a client through the first node, the client finds the others
+	 *
+	 * @param policy The ClientPolicy, null for the defaults
+	 * @return The AerospikeClient, to be closed by the caller
+	 */
+	public AerospikeClient newClient(ClientPolicy policy) {
+		return new AerospikeClient(policy, HOST, getPort(0));
+	}
+
+	/**
+	 * @return A QueryEngine with a client of its own, which is closed with the QueryEngine
+	 */
+	public QueryEngine newQueryEngine() {
+		return new QueryEngine(null, HOST, getPort(0));
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Nodes
+	 *
+	 * *****************************************************
+	 */
+
+	public String[] getNodeNames() {
+		return this.nodeNames.clone();
+	}
+
+	public String getNodeName(int node) {
+		return this.nodeNames[node];
+	}
+
+	/**
+	 * @param name The name of a node
+	 * @return The index of the node, or -1
+	 */
+	public int nodeIndex(String name) {
+		for (int i = 0; i < this.nodeNames.length; i++) {
+			if (this.nodeNames[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param digest The digest of a key
+	 * @return The index of the node that owns the partition of the digest
+	 */
+	public int nodeOf(byte[] digest) {
+		return partition(digest) % this.nodes.length;
+	}
+
+	static int partition(byte[] digest) {
+		return ((digest[0] & 0xFF) | ((digest[1] & 0xFF) << 8)) % PARTITIONS;
+	}
+
+	int nodeCount() {
+		return this.nodes.length;
+	}
+
+	/**
+	 * Sets the size of a record reported in the namespace statistics, 0 to
+	 * report no data size
+	 *
+	 * @param recordBytes The bytes of a record
+	 */
+	public void setRecordBytes(long recordBytes) {
+		this.recordBytes = recordBytes;
+	}
+
+	/**
+	 * Sets the latency added by every node
+	 *
+	 * @param latency The latency
+	 * @param unit    The unit of the latency
+	 */
+	public void setLatency(long latency, TimeUnit unit) {
+		for (int i = 0; i < this.nodes.length; i++) {
+			setLatency(i, latency, unit);
+		}
+	}
+
+	/**
+	 * Sets the latency added by one node
+	 *
+	 * @param node    The index of the node
+	 * @param latency The latency
+	 * @param unit    The unit of the latency
+	 */
+	public synchronized void setLatency(int node, long latency, TimeUnit unit) {
+		this.latencyNanos[node] = unit.toNanos(latency);
+	}
+
+	synchronized long getLatencyNanos(int node) {
+		return this.latencyNanos[node];
+	}
+
+	LuaRunner getLua() {
+		return this.lua;
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Records
+	 *
+	 * *****************************************************
+	 */
+
+	/*
+	 * the current time as a void time
+	 */
+	static long now() {
+		return System.currentTimeMillis() / 1000 - CITRUSLEAF_EPOCH;
+	}
+
+	boolean hasNamespace(String namespace) {
+		return this.namespaces.containsKey(namespace);
+	}
+
+	/*
+	 * the records of a namespace, which must exist
+	 */
+	ConcurrentSkipListMap<String, StoredRecord> records(String namespace) {
+		return this.namespaces.get(namespace);
+	}
+
+	static String digestKey(byte[] digest) {
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param namespace The namespace
+	 * @param digest    The digest of the key
+	 * @return The record, or null if it does not exist
+	 */
+	StoredRecord get(String namespace, byte[] digest) {
+		StoredRecord record = records(namespace).get(digestKey(digest));
+		return (record == null || record.expired()) ? null : record;
+	}
+
+	/**
+	 * @param namespace The namespace
+	 * @param digest    The digest of the key
+	 * @return true if the record existed
+	 */
+	boolean delete(String namespace, byte[] digest) {
+		StoredRecord record = records(namespace).remove(digestKey(digest));
+		return record != null && !record.expired();
+	}
+
+	/*
+	 * replaces a record, or deletes it when it has no bins
+	 */
+	void put(String namespace, StoredRecord record) {
+		if (record.bins.isEmpty())
+			records(namespace).remove(digestKey(record.digest));
+		else
+			records(namespace).put(digestKey(record.digest), record);
+	}
+
+	/**
+	 * Reads the records of a set in digest order, as a scan does
+	 *
+	 * @param namespace The namespace
+	 * @param set       The set, or null for the whole namespace
+	 * @param node      The index of the node to scan, or -1 for all nodes
+	 * @return The stored records
+	 */
+	List<StoredRecord> scan(String namespace, String set, int node) {
+		List<StoredRecord> result = new ArrayList<StoredRecord>();
+		for (StoredRecord record : records(namespace).values()) {
+			if ((set == null || set.equals(record.setName)) && (node < 0 || record.node == node) && !record.expired())
+				result.add(record);
+		}
+		return result;
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Indexes and modules
+	 *
+	 * *****************************************************
+	 */
+
+	/**
+	 * Creates a secondary index. Filters are evaluated against the records, the
+	 * index only tells the nodes which bins can be used as a Filter.
+	 */
+	public synchronized void createIndex(String namespace, String set, String indexName, String binName, IndexType indexType) {
+		if (!hasNamespace(namespace))
+			throw new IllegalArgumentException("Namespace not found: " + namespace);
+		this.indexes.put(namespace + ":" + indexName, "ns=" + namespace + ":set=" + set + ":indexname=" + indexName
+				+ ":bin=" + binName + ":type=" + indexType + ":sync_state=synced:state=RW");
+	}
+
+	public synchronized void dropIndex(String namespace, String indexName) {
+		this.indexes.remove(namespace + ":" + indexName);
+	}
+
+	/*
+	 * true if a bin of the namespace is indexed
+	 */
+	synchronized boolean isIndexed(String namespace, String binName) {
+		for (Map.Entry<String, String> entry : this.indexes.entrySet()) {
+			if (entry.getKey().startsWith(namespace + ":") && binName.equals(valueOf(entry.getValue(), "bin")))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param filename The file name of a registered UDF module
+	 * @return The source of the module, or null
+	 */
+	byte[] getModule(String filename) {
+		return this.modules.get(filename);
+	}
+
+	void putModule(String filename, byte[] source) {
+		this.modules.put(filename, source);
+		this.lua.clear(filename);
+	}
+
+	private static String sha1(byte[] content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder sb = new StringBuilder(40);
+			for (byte b : digest.digest(content)) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Info
+	 *
+	 * *****************************************************
+	 */
+
+	/**
+	 * Answers an Info command the way one node of a server does. Supported are
+	 * the commands the client uses to find the nodes and partitions,
+	 * "namespaces", "namespace/&lt;ns&gt;", "sets/&lt;ns&gt;", "sindex",
+	 * "sindex/&lt;ns&gt;/&lt;index&gt;", "udf-list", "udf-get", "udf-put" and
+	 * the status of background jobs, which run to completion before they are
+	 * acknowledged.
+	 *
+	 * @param node    The index of the node
+	 * @param command The Info command
+	 * @return The response, empty for an unknown command
+	 */
+	public String info(int node, String command) {
+		if (command.equals("node"))
+			return this.nodeNames[node];
+		if (command.equals("features"))
+			return "float;batch-index;replicas-all";
+		if (command.equals("partition-generation"))
+			return "1";
+		if (command.equals("services"))
+			return services(node);
+		if (command.equals("replicas-master"))
+			return replicas(node, "");
+		if (command.equals("replicas-all"))
+			return replicas(node, "1,");
+		if (command.equals("namespaces"))
+			return String.join(";", this.namespaces.keySet());
+		if (command.equals("udf-list"))
+			return udfList();
+		if (command.startsWith("udf-get:"))
+			return udfGet(command);
+		if (command.startsWith("udf-put:"))
+			return udfPut(command);
+		if (command.startsWith("jobs:"))
+			return job(command);
+		if (command.equals("sindex")) {
+			synchronized (this) {
+				return String.join(";", this.indexes.values());
+			}
+		}
+		if (command.startsWith("namespace/")) {
+			String namespace = command.substring("namespace/".length());
+			if (!hasNamespace(namespace))
+				return "type=unknown";
+			long objects = scan(namespace, null, node).size();
+			String info = "objects=" + objects + ";master-objects=" + objects + ";prole-objects=0;replication-factor=1";
+			if (this.recordBytes > 0)
+				info += ";memory_used_data_bytes=" + (objects * this.recordBytes);
+			return info;
+		}
+		if (command.startsWith("sets/")) {
+			String namespace = command.substring("sets/".length());
+			if (!hasNamespace(namespace))
+				return "";
+			Map<String, Long> sets = new LinkedHashMap<String, Long>();
+			for (StoredRecord record : scan(namespace, null, node)) {
+				String set = record.setName;
+				if (set != null)
+					sets.put(set, sets.containsKey(set) ? sets.get(set) + 1 : 1L);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, Long> entry : sets.entrySet()) {
+				sb.append("ns=").append(namespace).append(":set=").append(entry.getKey())
+						.append(":objects=").append(entry.getValue()).append(":tombstones=0");
+				if (this.recordBytes > 0)
+					sb.append(":memory_data_bytes=").append(entry.getValue() * this.recordBytes);
+				sb.append(";");
+			}
+			return sb.toString();
+		}
+		if (command.startsWith("sindex/")) {
+			String[] parts = command.split("/");
+			String definition;
+			synchronized (this) {
+				definition = (parts.length == 3) ? this.indexes.get(parts[1] + ":" + parts[2]) : null;
+			}
+			if (definition == null)
+				return "";
+			String set = valueOf(definition, "set");
+			String bin = valueOf(definition, "bin");
+			List<Object> keys = new ArrayList<Object>();
+			long entries = 0;
+			for (StoredRecord record : scan(parts[1], set, node)) {
+				Object value = record.bins.get(bin);
+				if (value != null) {
+					entries++;
+					if (!keys.contains(value))
+						keys.add(value);
+				}
+			}
+			return "keys=" + keys.size() + ";entries=" + entries + ";indexname=" + parts[2];
+		}
+		return "";
+	}
+
+	/*
+	 * every other node, so each node is referenced by the others
+	 */
+	private String services(int node) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < this.nodes.length; i++) {
+			if (i == node)
+				continue;
+			if (sb.length() > 0)
+				sb.append(';');
+			sb.append(HOST).append(':').append(getPort(i));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * a bitmap of the partitions the node owns, for every namespace; the
+	 * nodes keep no replicas, so "replicas-all" lists the master only
+	 */
+	private String replicas(int node, String replicaCount) {
+		byte[] bitmap = new byte[PARTITIONS / 8];
+		for (int partition = node; partition < PARTITIONS; partition += this.nodes.length) {
+			bitmap[partition >> 3] |= 0x80 >> (partition & 7);
+		}
+		String encoded = Base64.getEncoder().encodeToString(bitmap);
+		StringBuilder sb = new StringBuilder();
+		for (String namespace : this.namespaces.keySet()) {
+			sb.append(namespace).append(':').append(replicaCount).append(encoded).append(';');
+		}
+		return sb.toString();
+	}
+
+	private String udfList() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, byte[]> entry : new TreeMap<String, byte[]>(this.modules).entrySet()) {
+			sb.append("filename=").append(entry.getKey()).append(",hash=").append(sha1(entry.getValue())).append(",type=LUA;");
+		}
+		return sb.toString();
+	}
+
+	private String udfGet(String command) {
+		byte[] source = this.modules.get(valueOf(command.substring("udf-get:".length()), "filename", ";"));
+		if (source == null)
+			return "error=not_found";
+		return "type=LUA;content=" + Base64.getEncoder().encodeToString(source);
+	}
+
+	private String udfPut(String command) {
+		String arguments = command.substring("udf-put:".length());
+		String filename = valueOf(arguments, "filename", ";");
+		String content = valueOf(arguments, "content", ";");
+		if (filename == null || content == null)
+			return "error=invalid_arguments;file=" + filename + ";line=0;message=" + Base64.getEncoder().encodeToString("missing filename or content".getBytes());
+		byte[] source = Base64.getDecoder().decode(content);
+		String error = this.lua.compile(filename, source);
+		if (error != null)
+			return "error=compile_error;file=" + filename + ";line=0;message=" + Base64.getEncoder().encodeToString(error.getBytes());
+		putModule(filename, source);
+		return "";
+	}
+
+	/*
+	 * background jobs run before they are acknowledged, so they are done
+	 */
+	private static String job(String command) {
+		String trid = valueOf(command.substring("jobs:".length()), "trid", ";");
+		return "trid=" + trid + ":job-type=background:status=done(ok):";
+	}
+
+	private static String valueOf(String definition, String name) {
+		return valueOf(definition, name, ":");
+	}
+
+	private static String valueOf(String definition, String name, String separator) {
+		for (String pair : definition.split(separator)) {
+			if (pair.startsWith(name + "="))
+				return pair.substring(name.length() + 1);
+		}
+		return null;
+	}
+}
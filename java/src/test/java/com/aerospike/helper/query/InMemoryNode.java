@@ -0,0 +1,807 @@
+package com.aerospike.helper.query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.LockSupport;
+
+import org.luaj.vm2.LuaError;
+
+import com.aerospike.client.Value;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.ParticleType;
+import com.aerospike.client.util.Unpacker;
+import com.aerospike.helper.query.InMemoryCluster.StoredRecord;
+
+/**
+ * One node of an {@link InMemoryCluster}. It accepts connections on a loopback
+ * port and answers Info requests and the record, batch, query and UDF commands
+ * of the wire protocol, one request at a time per connection.
+ */
+final class InMemoryNode {
+
+	private static final int PROTO_VERSION = 2;
+	private static final int INFO_MESSAGE = 1;
+	private static final int AS_MESSAGE = 3;
+	private static final int HEADER_SIZE = 22;
+
+	private static final int INFO1_READ = 1;
+	private static final int INFO1_GET_ALL = 2;
+	private static final int INFO1_NOBINDATA = 32;
+	private static final int INFO2_WRITE = 1;
+	private static final int INFO2_DELETE = 2;
+	private static final int INFO2_GENERATION = 4;
+	private static final int INFO2_GENERATION_GT = 8;
+	private static final int INFO2_CREATE_ONLY = 32;
+	private static final int INFO3_LAST = 1;
+	private static final int INFO3_UPDATE_ONLY = 8;
+	private static final int INFO3_CREATE_OR_REPLACE = 16;
+	private static final int INFO3_REPLACE_ONLY = 32;
+
+	private static final int FIELD_NAMESPACE = 0;
+	private static final int FIELD_TABLE = 1;
+	private static final int FIELD_KEY = 2;
+	private static final int FIELD_DIGEST = 4;
+	private static final int FIELD_TRAN_ID = 7;
+	private static final int FIELD_SCAN_OPTIONS = 8;
+	private static final int FIELD_INDEX_RANGE = 22;
+	private static final int FIELD_INDEX_TYPE = 26;
+	private static final int FIELD_UDF_PACKAGE_NAME = 30;
+	private static final int FIELD_UDF_FUNCTION = 31;
+	private static final int FIELD_UDF_ARGLIST = 32;
+	private static final int FIELD_UDF_OP = 33;
+	private static final int FIELD_QUERY_BINLIST = 40;
+	private static final int FIELD_BATCH_INDEX = 41;
+	private static final int FIELD_BATCH_INDEX_WITH_SET = 42;
+	private static final int FIELD_PREDEXP = 43;
+
+	private static final int OP_READ = 1;
+	private static final int OP_WRITE = 2;
+	private static final int OP_ADD = 5;
+	private static final int OP_APPEND = 9;
+	private static final int OP_PREPEND = 10;
+	private static final int OP_TOUCH = 11;
+
+	private static final int UDF_OP_AGGREGATE = 1;
+	private static final int UDF_OP_BACKGROUND = 2;
+
+	private static final int OK = 0;
+	private static final int KEY_NOT_FOUND_ERROR = 2;
+	private static final int GENERATION_ERROR = 3;
+	private static final int PARAMETER_ERROR = 4;
+	private static final int KEY_EXISTS_ERROR = 5;
+	private static final int BIN_TYPE_ERROR = 12;
+	private static final int NAMESPACE_NOT_FOUND = 20;
+	private static final int INDEX_NOTFOUND = 201;
+
+	/*
+	 * the groups of a multi record response are sent when they reach this size
+	 */
+	private static final int GROUP_SIZE = 128 * 1024;
+
+	/*
+	 * a decoded message
+	 */
+	private static final class Request {
+		int info1;
+		int info2;
+		int info3;
+		int generation;
+		int expiration;
+		final Map<Integer, byte[]> fields = new HashMap<Integer, byte[]>();
+		final List<Operation> operations = new ArrayList<Operation>();
+
+		String string(int type) {
+			byte[] data = this.fields.get(type);
+			return (data == null || data.length == 0) ? null : Buffer.utf8ToString(data, 0, data.length);
+		}
+	}
+
+	private static final class Operation {
+		final int type;
+		final String name;
+		final Object value;
+
+		Operation(int type, String name, Object value) {
+			this.type = type;
+			this.name = name;
+			this.value = value;
+		}
+	}
+
+	/*
+	 * the filter of a secondary index query
+	 */
+	private static final class IndexFilter {
+		String bin;
+		int particleType;
+		Object begin;
+		Object end;
+		int collectionType;
+
+		boolean matches(Object value) {
+			switch (this.collectionType) {
+			case 1:
+				if (value instanceof List) {
+					for (Object element : (List<?>) value) {
+						if (matchesValue(element))
+							return true;
+					}
+				}
+				return false;
+			case 2:
+				return (value instanceof Map) && matchesAny(((Map<?, ?>) value).keySet());
+			case 3:
+				return (value instanceof Map) && matchesAny(((Map<?, ?>) value).values());
+			default:
+				return matchesValue(value);
+			}
+		}
+
+		private boolean matchesAny(Iterable<?> values) {
+			for (Object value : values) {
+				if (matchesValue(value))
+					return true;
+			}
+			return false;
+		}
+
+		private boolean matchesValue(Object value) {
+			if (this.particleType == ParticleType.INTEGER) {
+				if (!(value instanceof Long))
+					return false;
+				long number = (Long) value;
+				return number >= (Long) this.begin && number <= (Long) this.end;
+			}
+			return this.begin.equals(value);
+		}
+	}
+
+	/*
+	 * builds the messages of a response into proto groups
+	 */
+	private static final class Response {
+		private byte[] buffer = new byte[8192];
+		private int length = 8;
+		private int header;
+
+		void begin(int info3, int resultCode, int generation, int voidTime, int batchIndex) {
+			ensure(HEADER_SIZE);
+			this.header = this.length;
+			Arrays.fill(this.buffer, this.length, this.length + HEADER_SIZE, (byte) 0);
+			this.buffer[this.length] = HEADER_SIZE;
+			this.buffer[this.length + 3] = (byte) info3;
+			this.buffer[this.length + 5] = (byte) resultCode;
+			Buffer.intToBytes(generation, this.buffer, this.length + 6);
+			Buffer.intToBytes(voidTime, this.buffer, this.length + 10);
+			Buffer.intToBytes(batchIndex, this.buffer, this.length + 14);
+			this.length += HEADER_SIZE;
+		}
+
+		void field(int type, byte[] data) {
+			ensure(5 + data.length);
+			Buffer.intToBytes(data.length + 1, this.buffer, this.length);
+			this.buffer[this.length + 4] = (byte) type;
+			System.arraycopy(data, 0, this.buffer, this.length + 5, data.length);
+			this.length += 5 + data.length;
+			increment(18);
+		}
+
+		void bin(String name, Object value) {
+			Value particle = Value.get(value);
+			byte[] nameBytes = Buffer.stringToUtf8(name);
+			int size = particle.estimateSize();
+			ensure(8 + nameBytes.length + size);
+			Buffer.intToBytes(4 + nameBytes.length + size, this.buffer, this.length);
+			this.buffer[this.length + 4] = OP_READ;
+			this.buffer[this.length + 5] = (byte) particle.getType();
+			this.buffer[this.length + 6] = 0;
+			this.buffer[this.length + 7] = (byte) nameBytes.length;
+			System.arraycopy(nameBytes, 0, this.buffer, this.length + 8, nameBytes.length);
+			particle.write(this.buffer, this.length + 8 + nameBytes.length);
+			this.length += 8 + nameBytes.length + size;
+			increment(20);
+		}
+
+		void bins(StoredRecord record, List<String> binNames) {
+			if (binNames == null) {
+				for (Map.Entry<String, Object> entry : record.bins.entrySet()) {
+					bin(entry.getKey(), entry.getValue());
+				}
+			} else {
+				for (String name : binNames) {
+					Object value = record.bins.get(name);
+					if (value != null)
+						bin(name, value);
+				}
+			}
+		}
+
+		private void increment(int offset) {
+			int count = Buffer.bytesToShort(this.buffer, this.header + offset);
+			Buffer.shortToBytes(count + 1, this.buffer, this.header + offset);
+		}
+
+		private void ensure(int size) {
+			if (this.length + size > this.buffer.length)
+				this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + size));
+		}
+
+		boolean isFull() {
+			return this.length >= GROUP_SIZE;
+		}
+
+		void send(OutputStream out) throws IOException {
+			if (this.length == 8)
+				return;
+			writeProto(this.buffer, AS_MESSAGE, this.length - 8);
+			out.write(this.buffer, 0, this.length);
+			this.length = 8;
+		}
+	}
+
+	private final InMemoryCluster cluster;
+	private final int index;
+	private final ServerSocket server;
+	private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private volatile boolean closed;
+
+	InMemoryNode(InMemoryCluster cluster, int index) throws IOException {
+		this.cluster = cluster;
+		this.index = index;
+		this.server = new ServerSocket(0, 50, InetAddress.getByName(InMemoryCluster.HOST));
+	}
+
+	int getPort() {
+		return this.server.getLocalPort();
+	}
+
+	void start() {
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "in-memory-node-" + this.index);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	void close() {
+		this.closed = true;
+		try {
+			this.server.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		for (Socket socket : this.connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void accept() {
+		while (!this.closed) {
+			final Socket socket;
+			try {
+				socket = this.server.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException e) {
+				return;
+			}
+			this.connections.add(socket);
+			Thread connection = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "in-memory-node-" + this.index + "-connection");
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	/*
+	 * answers the requests of one connection until it is closed
+	 */
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			byte[] proto = new byte[8];
+			while (true) {
+				try {
+					in.readFully(proto);
+				} catch (EOFException e) {
+					return;
+				}
+				int type = proto[1];
+				int size = (int) (Buffer.bytesToLong(proto, 0) & 0xFFFFFFFFFFFFL);
+				byte[] body = new byte[size];
+				in.readFully(body);
+				if (type == INFO_MESSAGE)
+					info(body, out);
+				else if (type == AS_MESSAGE)
+					message(parse(body), out);
+				else
+					return;
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the connection is closed
+		} finally {
+			this.connections.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private static void writeProto(byte[] buffer, int type, long size) {
+		Buffer.longToBytes(((long) PROTO_VERSION << 56) | ((long) type << 48) | size, buffer, 0);
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Info
+	 *
+	 * *****************************************************
+	 */
+
+	private void info(byte[] body, OutputStream out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String command : Buffer.utf8ToString(body, 0, body.length).split("\n")) {
+			if (command.isEmpty())
+				continue;
+			sb.append(command).append('\t').append(this.cluster.info(this.index, command)).append('\n');
+		}
+		byte[] response = Buffer.stringToUtf8(sb.toString());
+		byte[] proto = new byte[8];
+		writeProto(proto, INFO_MESSAGE, response.length);
+		out.write(proto);
+		out.write(response);
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Messages
+	 *
+	 * *****************************************************
+	 */
+
+	private static Request parse(byte[] body) {
+		Request request = new Request();
+		request.info1 = body[1] & 0xFF;
+		request.info2 = body[2] & 0xFF;
+		request.info3 = body[3] & 0xFF;
+		request.generation = Buffer.bytesToInt(body, 6);
+		request.expiration = Buffer.bytesToInt(body, 10);
+		int fieldCount = Buffer.bytesToShort(body, 18);
+		int operationCount = Buffer.bytesToShort(body, 20);
+		int offset = body[0];
+		for (int i = 0; i < fieldCount; i++) {
+			int size = Buffer.bytesToInt(body, offset);
+			request.fields.put(body[offset + 4] & 0xFF, Arrays.copyOfRange(body, offset + 5, offset + 4 + size));
+			offset += 4 + size;
+		}
+		for (int i = 0; i < operationCount; i++) {
+			offset += parseOperation(body, offset, request.operations);
+		}
+		return request;
+	}
+
+	/*
+	 * returns the bytes of the operation
+	 */
+	private static int parseOperation(byte[] buffer, int offset, List<Operation> operations) {
+		int size = Buffer.bytesToInt(buffer, offset);
+		int type = buffer[offset + 4] & 0xFF;
+		int particleType = buffer[offset + 5] & 0xFF;
+		int nameLength = buffer[offset + 7] & 0xFF;
+		String name = Buffer.utf8ToString(buffer, offset + 8, nameLength);
+		int valueLength = size - 4 - nameLength;
+		Object value = (valueLength > 0) ? Buffer.bytesToParticle(particleType, buffer, offset + 8 + nameLength, valueLength) : null;
+		operations.add(new Operation(type, name, normalize(value)));
+		return 4 + size;
+	}
+
+	/*
+	 * integers are stored as Long, as a server returns them
+	 */
+	private static Object normalize(Object value) {
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return ((Number) value).longValue();
+		return value;
+	}
+
+	private void message(Request request, OutputStream out) throws IOException {
+		long latency = this.cluster.getLatencyNanos(this.index);
+		if (latency > 0)
+			LockSupport.parkNanos(latency);
+		Response response = new Response();
+		if (request.fields.containsKey(FIELD_BATCH_INDEX) || request.fields.containsKey(FIELD_BATCH_INDEX_WITH_SET)) {
+			batch(request, response);
+		} else if (request.fields.containsKey(FIELD_TRAN_ID) || request.fields.containsKey(FIELD_SCAN_OPTIONS)
+				|| request.fields.containsKey(FIELD_INDEX_RANGE) || request.fields.containsKey(FIELD_UDF_OP)) {
+			query(request, response, out);
+		} else {
+			single(request, response);
+		}
+		response.send(out);
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Single record commands
+	 *
+	 * *****************************************************
+	 */
+
+	private void single(Request request, Response response) {
+		String namespace = request.string(FIELD_NAMESPACE);
+		byte[] digest = request.fields.get(FIELD_DIGEST);
+		if (namespace == null || !this.cluster.hasNamespace(namespace)) {
+			response.begin(0, NAMESPACE_NOT_FOUND, 0, 0, 0);
+			return;
+		}
+		if (digest == null || request.fields.containsKey(FIELD_UDF_FUNCTION)) {
+			response.begin(0, PARAMETER_ERROR, 0, 0, 0);
+			return;
+		}
+		ConcurrentSkipListMap<String, StoredRecord> records = this.cluster.records(namespace);
+		synchronized (records) {
+			StoredRecord existing = this.cluster.get(namespace, digest);
+			if ((request.info2 & INFO2_WRITE) == 0) {
+				read(request, existing, response);
+			} else if ((request.info2 & INFO2_DELETE) != 0) {
+				if (existing != null && !generationMatches(request, existing)) {
+					response.begin(0, GENERATION_ERROR, 0, 0, 0);
+					return;
+				}
+				response.begin(0, this.cluster.delete(namespace, digest) ? OK : KEY_NOT_FOUND_ERROR, 0, 0, 0);
+			} else {
+				write(request, namespace, digest, existing, response);
+			}
+		}
+	}
+
+	private static boolean generationMatches(Request request, StoredRecord existing) {
+		if ((request.info2 & INFO2_GENERATION) != 0)
+			return request.generation == existing.generation;
+		if ((request.info2 & INFO2_GENERATION_GT) != 0)
+			return request.generation > existing.generation;
+		return true;
+	}
+
+	private static void read(Request request, StoredRecord record, Response response) {
+		if (record == null) {
+			response.begin(0, KEY_NOT_FOUND_ERROR, 0, 0, 0);
+			return;
+		}
+		response.begin(0, OK, record.generation, record.voidTime, 0);
+		if ((request.info1 & INFO1_NOBINDATA) != 0)
+			return;
+		response.bins(record, ((request.info1 & INFO1_GET_ALL) != 0 || request.operations.isEmpty()) ? null : binNames(request.operations));
+	}
+
+	private static List<String> binNames(List<Operation> operations) {
+		List<String> names = new ArrayList<String>();
+		for (Operation operation : operations) {
+			if (operation.type == OP_READ && !operation.name.isEmpty())
+				names.add(operation.name);
+		}
+		return names;
+	}
+
+	/*
+	 * applies the write operations, the read operations of an operate command
+	 * are answered after the writes
+	 */
+	private void write(Request request, String namespace, byte[] digest, StoredRecord existing, Response response) {
+		if (existing == null && (request.info3 & (INFO3_UPDATE_ONLY | INFO3_REPLACE_ONLY)) != 0) {
+			response.begin(0, KEY_NOT_FOUND_ERROR, 0, 0, 0);
+			return;
+		}
+		if (existing != null && (request.info2 & INFO2_CREATE_ONLY) != 0) {
+			response.begin(0, KEY_EXISTS_ERROR, 0, 0, 0);
+			return;
+		}
+		if (existing != null && !generationMatches(request, existing)) {
+			response.begin(0, GENERATION_ERROR, 0, 0, 0);
+			return;
+		}
+		Map<String, Object> bins = new LinkedHashMap<String, Object>();
+		boolean replace = (request.info3 & (INFO3_CREATE_OR_REPLACE | INFO3_REPLACE_ONLY)) != 0;
+		if (existing != null && !replace)
+			bins.putAll(existing.bins);
+		List<Operation> reads = new ArrayList<Operation>();
+		for (Operation operation : request.operations) {
+			Object current = bins.get(operation.name);
+			switch (operation.type) {
+			case OP_READ:
+				reads.add(operation);
+				break;
+			case OP_WRITE:
+				if (operation.value == null)
+					bins.remove(operation.name);
+				else
+					bins.put(operation.name, operation.value);
+				break;
+			case OP_ADD:
+				if (current == null)
+					bins.put(operation.name, operation.value);
+				else if (current instanceof Long && operation.value instanceof Long)
+					bins.put(operation.name, (Long) current + (Long) operation.value);
+				else if (current instanceof Double && operation.value instanceof Double)
+					bins.put(operation.name, (Double) current + (Double) operation.value);
+				else {
+					response.begin(0, BIN_TYPE_ERROR, 0, 0, 0);
+					return;
+				}
+				break;
+			case OP_APPEND:
+			case OP_PREPEND:
+				if (current == null)
+					bins.put(operation.name, operation.value);
+				else if (current instanceof String && operation.value instanceof String)
+					bins.put(operation.name, (operation.type == OP_APPEND) ? current + (String) operation.value : operation.value + (String) current);
+				else {
+					response.begin(0, BIN_TYPE_ERROR, 0, 0, 0);
+					return;
+				}
+				break;
+			case OP_TOUCH:
+				if (existing == null) {
+					response.begin(0, KEY_NOT_FOUND_ERROR, 0, 0, 0);
+					return;
+				}
+				break;
+			default:
+				// CDT operations are not supported
+				response.begin(0, PARAMETER_ERROR, 0, 0, 0);
+				return;
+			}
+		}
+		String setName = request.string(FIELD_TABLE);
+		Value userKey = null;
+		byte[] key = request.fields.get(FIELD_KEY);
+		if (key != null)
+			userKey = Value.get(normalize(Buffer.bytesToParticle(key[0], key, 1, key.length - 1)));
+		if (existing != null) {
+			setName = existing.setName;
+			if (userKey == null)
+				userKey = existing.userKey;
+		}
+		StoredRecord record = new StoredRecord(digest, setName, userKey, bins, (existing == null) ? 1 : existing.generation + 1,
+				voidTime(request.expiration, existing), this.cluster.nodeOf(digest));
+		this.cluster.put(namespace, record);
+		response.begin(0, OK, record.generation, record.voidTime, 0);
+		for (Operation operation : reads) {
+			Object value = bins.get(operation.name);
+			if (value != null)
+				response.bin(operation.name, value);
+		}
+	}
+
+	/*
+	 * 0 is the default time to live, which is never, -1 is never and -2 keeps the time to live
+	 */
+	private static int voidTime(int expiration, StoredRecord existing) {
+		if (expiration == -2)
+			return (existing == null) ? 0 : existing.voidTime;
+		if (expiration <= 0)
+			return 0;
+		return (int) (InMemoryCluster.now() + expiration);
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Batch reads
+	 *
+	 * *****************************************************
+	 */
+
+	private void batch(Request request, Response response) {
+		boolean withSet = request.fields.containsKey(FIELD_BATCH_INDEX_WITH_SET);
+		byte[] data = request.fields.get(withSet ? FIELD_BATCH_INDEX_WITH_SET : FIELD_BATCH_INDEX);
+		int count = Buffer.bytesToInt(data, 0);
+		int offset = 5;
+		String namespace = null;
+		int info1 = 0;
+		List<String> binNames = null;
+		for (int i = 0; i < count; i++) {
+			int batchIndex = Buffer.bytesToInt(data, offset);
+			byte[] digest = Arrays.copyOfRange(data, offset + 4, offset + 24);
+			offset += 24;
+			if (data[offset++] == 0) {
+				// the key has its own namespace and bins, instead of those of the previous key
+				info1 = data[offset] & 0xFF;
+				int fieldCount = Buffer.bytesToShort(data, offset + 1);
+				int operationCount = Buffer.bytesToShort(data, offset + 3);
+				offset += 5;
+				for (int j = 0; j < fieldCount; j++) {
+					int size = Buffer.bytesToInt(data, offset);
+					if (data[offset + 4] == FIELD_NAMESPACE)
+						namespace = Buffer.utf8ToString(data, offset + 5, size - 1);
+					offset += 4 + size;
+				}
+				List<Operation> operations = new ArrayList<Operation>();
+				for (int j = 0; j < operationCount; j++) {
+					offset += parseOperation(data, offset, operations);
+				}
+				binNames = operations.isEmpty() ? null : binNames(operations);
+			}
+			StoredRecord record = (namespace != null && this.cluster.hasNamespace(namespace)) ? this.cluster.get(namespace, digest) : null;
+			if (record == null) {
+				response.begin(0, KEY_NOT_FOUND_ERROR, 0, 0, batchIndex);
+				response.field(FIELD_DIGEST, digest);
+				continue;
+			}
+			response.begin(0, OK, record.generation, record.voidTime, batchIndex);
+			response.field(FIELD_DIGEST, digest);
+			if ((info1 & INFO1_NOBINDATA) == 0)
+				response.bins(record, ((info1 & INFO1_GET_ALL) != 0) ? null : binNames);
+		}
+		response.begin(INFO3_LAST, OK, 0, 0, 0);
+	}
+
+	/*
+	 * *****************************************************
+	 *
+	 * Queries and scans
+	 *
+	 * *****************************************************
+	 */
+
+	/*
+	 * runs a query over the records this node owns, the records are sent in groups as they are read
+	 */
+	private void query(Request request, Response response, OutputStream out) throws IOException {
+		String namespace = request.string(FIELD_NAMESPACE);
+		if (namespace == null || !this.cluster.hasNamespace(namespace)) {
+			response.begin(INFO3_LAST, NAMESPACE_NOT_FOUND, 0, 0, 0);
+			return;
+		}
+		IndexFilter filter;
+		PredExpEvaluator predExp = null;
+		try {
+			filter = indexFilter(request);
+			if (request.fields.containsKey(FIELD_PREDEXP))
+				predExp = new PredExpEvaluator(request.fields.get(FIELD_PREDEXP));
+		} catch (IllegalArgumentException e) {
+			response.begin(INFO3_LAST, PARAMETER_ERROR, 0, 0, 0);
+			return;
+		}
+		if (filter != null && !this.cluster.isIndexed(namespace, filter.bin)) {
+			response.begin(INFO3_LAST, INDEX_NOTFOUND, 0, 0, 0);
+			return;
+		}
+		List<StoredRecord> records = new ArrayList<StoredRecord>();
+		for (StoredRecord record : this.cluster.scan(namespace, request.string(FIELD_TABLE), this.index)) {
+			if ((filter == null || filter.matches(record.bins.get(filter.bin))) && (predExp == null || predExp.matches(record)))
+				records.add(record);
+		}
+		byte[] udfOp = request.fields.get(FIELD_UDF_OP);
+		if (udfOp != null) {
+			udf(request, namespace, udfOp[0], records, response, out);
+			return;
+		}
+		List<String> binNames = null;
+		byte[] binList = request.fields.get(FIELD_QUERY_BINLIST);
+		if (binList != null) {
+			binNames = new ArrayList<String>();
+			int offset = 1;
+			for (int i = 0; i < (binList[0] & 0xFF); i++) {
+				int length = binList[offset] & 0xFF;
+				binNames.add(Buffer.utf8ToString(binList, offset + 1, length));
+				offset += 1 + length;
+			}
+		} else if (!request.operations.isEmpty()) {
+			binNames = binNames(request.operations);
+		}
+		byte[] namespaceBytes = Buffer.stringToUtf8(namespace);
+		for (StoredRecord record : records) {
+			response.begin(0, OK, record.generation, record.voidTime, 0);
+			response.field(FIELD_DIGEST, record.digest);
+			response.field(FIELD_NAMESPACE, namespaceBytes);
+			if (record.setName != null)
+				response.field(FIELD_TABLE, Buffer.stringToUtf8(record.setName));
+			if ((request.info1 & INFO1_NOBINDATA) == 0)
+				response.bins(record, binNames);
+			if (response.isFull())
+				response.send(out);
+		}
+		response.begin(INFO3_LAST, OK, 0, 0, 0);
+	}
+
+	private static IndexFilter indexFilter(Request request) {
+		byte[] range = request.fields.get(FIELD_INDEX_RANGE);
+		if (range == null)
+			return null;
+		IndexFilter filter = new IndexFilter();
+		int offset = 1;
+		int nameLength = range[offset] & 0xFF;
+		filter.bin = Buffer.utf8ToString(range, offset + 1, nameLength);
+		offset += 1 + nameLength;
+		filter.particleType = range[offset++] & 0xFF;
+		if (filter.particleType != ParticleType.INTEGER && filter.particleType != ParticleType.STRING)
+			throw new IllegalArgumentException("Unsupported filter type " + filter.particleType);
+		int beginLength = Buffer.bytesToInt(range, offset);
+		filter.begin = Buffer.bytesToParticle(filter.particleType, range, offset + 4, beginLength);
+		offset += 4 + beginLength;
+		int endLength = Buffer.bytesToInt(range, offset);
+		filter.end = Buffer.bytesToParticle(filter.particleType, range, offset + 4, endLength);
+		byte[] indexType = request.fields.get(FIELD_INDEX_TYPE);
+		filter.collectionType = (indexType == null) ? 0 : indexType[0];
+		return filter;
+	}
+
+	/*
+	 * runs the stream UDF of an aggregation, or the record UDF of a background query on each record
+	 */
+	@SuppressWarnings("unchecked")
+	private void udf(Request request, String namespace, int op, List<StoredRecord> records, Response response, OutputStream out) throws IOException {
+		String packageName = request.string(FIELD_UDF_PACKAGE_NAME);
+		String function = request.string(FIELD_UDF_FUNCTION);
+		List<Object> args = Collections.emptyList();
+		byte[] argList = request.fields.get(FIELD_UDF_ARGLIST);
+		if (argList != null)
+			args = (List<Object>) Unpacker.unpackObjectList(argList, 0, argList.length);
+		if (op == UDF_OP_BACKGROUND) {
+			for (StoredRecord record : records) {
+				try {
+					this.cluster.getLua().apply(namespace, packageName, function, args, record);
+				} catch (LuaError e) {
+					// a background job skips the records it fails on
+				}
+			}
+			response.begin(INFO3_LAST, OK, 0, 0, 0);
+			return;
+		}
+		if (op != UDF_OP_AGGREGATE) {
+			response.begin(INFO3_LAST, PARAMETER_ERROR, 0, 0, 0);
+			return;
+		}
+		List<Object> values;
+		try {
+			values = this.cluster.getLua().aggregate(namespace, packageName, function, args, records);
+		} catch (LuaError e) {
+			response.begin(0, OK, 0, 0, 0);
+			response.bin("FAILURE", String.valueOf(e.getMessage()));
+			response.begin(INFO3_LAST, OK, 0, 0, 0);
+			return;
+		}
+		for (Object value : values) {
+			response.begin(0, OK, 0, 0, 0);
+			response.bin("SUCCESS", value);
+			if (response.isFull())
+				response.send(out);
+		}
+		response.begin(INFO3_LAST, OK, 0, 0, 0);
+	}
+}
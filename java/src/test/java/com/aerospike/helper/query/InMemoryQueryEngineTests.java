@@ -0,0 +1,235 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.query.Filter;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.QueryMetrics;
+
+public class InMemoryQueryEngineTests {
+
+	private static final String NAMESPACE = "test";
+	private static final String SET_NAME = "users";
+	private static final String[] NAMES = { "alice", "bob", "carol", "dave", "erin", "frank" };
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+
+	@Before
+	public void setUp() {
+		this.cluster = new InMemoryCluster(3, NAMESPACE);
+		this.cluster.createIndex(NAMESPACE, SET_NAME, "age_idx", "age", IndexType.NUMERIC);
+		this.engine = this.cluster.newQueryEngine();
+		for (int i = 0; i < NAMES.length; i++) {
+			Key key = new Key(NAMESPACE, SET_NAME, NAMES[i]);
+			this.engine.insert(NAMESPACE, SET_NAME, key, Arrays.asList(new Bin("name", NAMES[i]), new Bin("age", 20 + (i % 3))));
+		}
+		this.engine.refreshCluster();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(NAMESPACE);
+		stmt.setSetName(SET_NAME);
+		return stmt;
+	}
+
+	private static Set<String> names(KeyRecordIterator it) throws IOException {
+		Set<String> names = new HashSet<String>();
+		try {
+			while (it.hasNext()) {
+				KeyRecord keyRecord = it.next();
+				names.add((String) keyRecord.record.getValue("name"));
+			}
+		} finally {
+			it.close();
+		}
+		return names;
+	}
+
+	@Test
+	public void catalogIsReadFromInfo() {
+		Assert.assertTrue(this.engine.isReady());
+		Assert.assertNotNull(this.engine.getIndex("test:users:age"));
+		Assert.assertEquals(3, this.engine.getCatalog().getMembership().split(",").length);
+		QueryPlan plan = this.engine.explain(statement());
+		Assert.assertEquals((long) NAMES.length, plan.getEstimatedRecords());
+	}
+
+	@Test
+	public void primaryKey() throws IOException {
+		QueryPlan plan = this.engine.explain(statement(), new KeyQualifier(Value.get("bob")));
+		Assert.assertEquals(QueryMetrics.Path.KEY, plan.getPath());
+		Set<String> names = names(this.engine.select(statement(), new KeyQualifier(Value.get("bob"))));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("bob")), names);
+	}
+
+	@Test
+	public void filterAndPredExp() throws IOException {
+		Qualifier age = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(21));
+		Qualifier name = new Qualifier("name", Qualifier.FilterOperation.NOTEQ, Value.get("bob"));
+		KeyRecordIterator it = this.engine.select(statement(), age, name);
+		Assert.assertEquals(QueryMetrics.Path.PREDEXP, it.getPath());
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("erin")), names(it));
+	}
+
+	@Test
+	public void reusedStatementIsPlannedAgain() throws IOException {
+		Statement stmt = statement();
+		Qualifier age21 = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(21));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("bob", "erin")), names(this.engine.select(stmt, age21)));
+		Assert.assertNull(QueryEngine.statementFilter(stmt));
+		Assert.assertNull(stmt.getPredExp());
+
+		Qualifier age22 = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(22));
+		Assert.assertEquals(Filter.equal("age", 22), this.engine.explain(stmt, age22).getFilter());
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("carol", "frank")), names(this.engine.select(stmt, age22)));
+	}
+
+	@Test
+	public void luaFallbackDecodesMaps() throws IOException {
+		Qualifier prefix = new Qualifier("name", Qualifier.FilterOperation.START_WITH, true, Value.get("C"));
+		KeyRecordIterator it = this.engine.select(statement(), prefix);
+		Assert.assertEquals(QueryMetrics.Path.LUA, it.getPath());
+		try {
+			Assert.assertTrue(it.hasNext());
+			KeyRecord keyRecord = it.next();
+			Assert.assertEquals("carol", keyRecord.record.getValue("name"));
+			Assert.assertEquals(1, keyRecord.record.generation);
+			Assert.assertArrayEquals(new Key(NAMESPACE, SET_NAME, "carol").digest, keyRecord.key.digest);
+			Assert.assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void analyzeCountsEveryNode() {
+		Qualifier age = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(20));
+		Qualifier name = new Qualifier("name", Qualifier.FilterOperation.ENDS_WITH, Value.get("ce"));
+		QueryAnalysis analysis = this.engine.analyze(statement(), age, name);
+		Assert.assertEquals(3, analysis.getNodes().size());
+		Assert.assertEquals(2L, analysis.getRecordsScanned());
+		Assert.assertEquals(1L, analysis.getRecordsReturned());
+	}
+
+	@Test
+	public void analyzeCountsTheSelectThatIsTimed() {
+		QueryMetrics metrics = new QueryMetrics();
+		this.engine.setMetrics(metrics);
+		Qualifier name = new Qualifier("name", Qualifier.FilterOperation.ENDS_WITH, Value.get("e"));
+		QueryAnalysis lua = this.engine.analyze(statement(), name);
+		Assert.assertEquals(QueryMetrics.Path.LUA, lua.getPlan().getPath());
+		Assert.assertEquals(1L, metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.LUA).getCount());
+		Assert.assertEquals(lua.getRecordsReturned(), metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.LUA).getRecordsReturned());
+		Assert.assertEquals(NAMES.length, lua.getRecordsScanned());
+
+		this.engine.residualMode = QueryEngine.ResidualMode.CLIENT;
+		QueryAnalysis client = this.engine.analyze(statement(), name);
+		Assert.assertEquals(QueryMetrics.Path.CLIENT, client.getPlan().getPath());
+		Assert.assertEquals(NAMES.length, client.getRecordsScanned());
+		Assert.assertEquals(lua.getRecordsReturned(), client.getRecordsReturned());
+		for (String node : lua.getNodes().keySet())
+			Assert.assertEquals(lua.getNodes().get(node).getReturned(), client.getNodes().get(node).getReturned());
+
+		// the shard is applied before the filter stage
+		long scanned = 0;
+		for (int i = 0; i < 3; i++)
+			scanned += this.engine.analyze(statement(), new ShardSpec(i, 3), name).getRecordsScanned();
+		Assert.assertEquals(NAMES.length, scanned);
+	}
+
+	@Test
+	public void updateAndDelete() throws IOException {
+		Qualifier age = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(22));
+		Assert.assertEquals(Long.valueOf(2), this.engine.update(statement(), Arrays.asList(new Bin("age", 30)), age).get("write"));
+		Qualifier older = new Qualifier("age", Qualifier.FilterOperation.GT, Value.get(25));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("carol", "frank")), names(this.engine.select(statement(), older)));
+
+		Assert.assertEquals(Long.valueOf(2), this.engine.delete(statement(), older).get("write"));
+		Assert.assertEquals(NAMES.length - 2, names(this.engine.select(statement())).size());
+		this.engine.delete(statement());
+		Assert.assertTrue(names(this.engine.select(statement())).isEmpty());
+	}
+
+	@Test(expected = AerospikeException.class)
+	public void insertExisting() {
+		Key key = new Key(NAMESPACE, SET_NAME, "alice");
+		this.engine.insert(NAMESPACE, SET_NAME, key, Arrays.asList(new Bin("name", "alice")));
+	}
+
+	@Test
+	public void deleteAllRunsTheUdfOnEveryNode() throws IOException {
+		this.engine.delete(statement());
+		Assert.assertTrue(names(this.engine.select(statement())).isEmpty());
+		Assert.assertNull(this.engine.client.get(null, new Key(NAMESPACE, SET_NAME, "alice")));
+	}
+
+	@Test
+	public void nextBatchTakesWhatIsBuffered() throws IOException {
+		this.cluster.setLatency(2, 500, TimeUnit.MILLISECONDS);
+		KeyRecordIterator it = this.engine.select(statement());
+		try {
+			List<KeyRecord> batch = new ArrayList<KeyRecord>();
+			long start = System.nanoTime();
+			int first = it.nextBatch(batch, NAMES.length);
+			// the records of the fast nodes are returned without waiting for the slow node
+			Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+			Assert.assertTrue(first > 0 && first < NAMES.length);
+			Set<String> names = new HashSet<String>();
+			do {
+				for (KeyRecord keyRecord : batch)
+					names.add((String) keyRecord.record.getValue("name"));
+			} while (it.nextBatch(batch, NAMES.length) > 0);
+			Assert.assertEquals(new HashSet<String>(Arrays.asList(NAMES)), names);
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void batchWaitsForSlowestNode() {
+		this.cluster.setLatency(30, TimeUnit.MILLISECONDS);
+		this.cluster.setLatency(2, 60, TimeUnit.MILLISECONDS);
+		Key[] keys = new Key[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			keys[i] = new Key(NAMESPACE, SET_NAME, NAMES[i]);
+		}
+		BatchPolicy policy = new BatchPolicy();
+		policy.maxConcurrentThreads = 0;
+		long start = System.nanoTime();
+		Record[] records = this.engine.client.get(policy, keys);
+		long nanos = System.nanoTime() - start;
+		for (int i = 0; i < NAMES.length; i++) {
+			Assert.assertEquals(NAMES[i], records[i].getValue("name"));
+		}
+		// the nodes are read in parallel
+		Assert.assertTrue(nanos >= TimeUnit.MILLISECONDS.toNanos(60));
+		Assert.assertTrue(nanos < TimeUnit.MILLISECONDS.toNanos(120));
+	}
+}
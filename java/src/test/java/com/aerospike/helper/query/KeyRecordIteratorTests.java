@@ -0,0 +1,72 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.helper.metrics.QueryMetrics;
+
+public class KeyRecordIteratorTests {
+
+	private static KeyRecordIterator iterator(int count) {
+		List<KeyRecord> records = new ArrayList<KeyRecord>();
+		for (int i = 0; i < count; i++) {
+			Record record = new Record(Collections.<String, Object> singletonMap("id", (long) i), 1, 0);
+			records.add(new KeyRecord(new Key("test", "users", "user" + i), record));
+		}
+		return KeyRecordIterator.of("test", records.iterator());
+	}
+
+	@Test
+	public void batchesReuseTheList() throws IOException {
+		KeyRecordIterator it = iterator(25);
+		try {
+			List<KeyRecord> batch = new ArrayList<KeyRecord>();
+			Assert.assertEquals(10, it.nextBatch(batch, 10));
+			Assert.assertEquals(0L, batch.get(0).record.getValue("id"));
+			Assert.assertEquals(10, it.nextBatch(batch, 10));
+			Assert.assertEquals(10L, batch.get(0).record.getValue("id"));
+			Assert.assertEquals(5, it.nextBatch(batch, 10));
+			Assert.assertEquals(0, it.nextBatch(batch, 10));
+			Assert.assertTrue(batch.isEmpty());
+			Assert.assertTrue(it.nextBatch(10).isEmpty());
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void forEachBatchRecordsMetrics() throws IOException {
+		QueryMetrics metrics = new QueryMetrics();
+		KeyRecordIterator it = iterator(250).path(QueryMetrics.Path.SCAN).instrument(metrics, null, QueryMetrics.Operation.SELECT, System.nanoTime());
+		final List<Integer> sizes = new ArrayList<Integer>();
+		try {
+			Assert.assertNotNull(it.next());
+			it.forEachBatch(new Consumer<List<KeyRecord>>() {
+				@Override
+				public void accept(List<KeyRecord> batch) {
+					sizes.add(batch.size());
+				}
+			});
+		} finally {
+			it.close();
+		}
+		Assert.assertEquals(Arrays.asList(100, 100, 49), sizes);
+		Assert.assertEquals(1L, metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.SCAN).getCount());
+		Assert.assertEquals(250L, metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.SCAN).getRecordsReturned());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void batchSizeMustBePositive() {
+		iterator(1).nextBatch(0);
+	}
+}
@@ -0,0 +1,75 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.client.query.KeyRecord;
+
+public class LuaRecordBinsTests {
+
+	private static Map<String, Object> result(String name, long age) {
+		Map<String, Object> meta = new HashMap<String, Object>();
+		meta.put("digest", new byte[20]);
+		meta.put("generation", 4L);
+		meta.put("set_name", "users");
+		meta.put("expiry", 100L);
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("name", name);
+		map.put("age", age);
+		map.put("meta_data", meta);
+		return map;
+	}
+
+	@Test
+	public void viewHidesMetaData() {
+		Map<String, Object> map = result("carol", 22);
+		Map<String, Object> bins = new LuaRecordBins(map, "meta_data");
+		Assert.assertEquals(2, bins.size());
+		Assert.assertNull(bins.get("meta_data"));
+		Assert.assertFalse(bins.containsKey("meta_data"));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("name", "age")), bins.keySet());
+		Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("name", "carol");
+		expected.put("age", 22L);
+		Assert.assertEquals(expected, bins);
+
+		// nothing is copied
+		map.put("color", "red");
+		Assert.assertEquals("red", bins.get("color"));
+		bins.remove("age");
+		Assert.assertFalse(map.containsKey("age"));
+		Iterator<String> keys = bins.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().equals("color"))
+				keys.remove();
+		}
+		Assert.assertEquals(1, bins.size());
+		Assert.assertTrue(map.containsKey("meta_data"));
+	}
+
+	@Test
+	public void iteratorDecodesResultMaps() throws IOException {
+		Map<String, Object> map = result("dave", 21);
+		KeyRecordIterator it = new KeyRecordIterator("test", Arrays.<Object> asList(map).iterator());
+		try {
+			KeyRecord keyRecord = it.next();
+			Assert.assertEquals(4, keyRecord.record.generation);
+			Assert.assertEquals(100, keyRecord.record.expiration);
+			Assert.assertEquals("users", keyRecord.key.setName);
+			Assert.assertEquals("dave", keyRecord.record.getValue("name"));
+			Assert.assertEquals(2, keyRecord.record.bins.size());
+			// the result map is not changed
+			Assert.assertTrue(map.containsKey("meta_data"));
+			Assert.assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package com.aerospike.helper.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.TwoArgFunction;
+
+import com.aerospike.client.lua.LuaBytes;
+import com.aerospike.client.lua.LuaInstance;
+import com.aerospike.client.lua.LuaStream;
+import com.aerospike.client.lua.LuaUtil;
+import com.aerospike.helper.query.InMemoryCluster.StoredRecord;
+
+/**
+ * Runs the registered UDF modules of an {@link InMemoryCluster} in the Lua
+ * interpreter of the client. Each interpreter has the system modules of the
+ * client, and a "record" module and "aerospike" functions that give the UDF
+ * access to the stored records, as on a server. Interpreters are pooled per
+ * module and dropped when the module is registered again.
+ */
+final class LuaRunner {
+
+	private static final int SCOPE_SERVER = 1;
+
+	/*
+	 * an interpreter with one module loaded
+	 */
+	private static final class Interpreter {
+		final byte[] source;
+		final LuaInstance instance;
+		Globals globals;
+
+		Interpreter(byte[] source) {
+			this.source = source;
+			this.instance = new LuaInstance();
+		}
+	}
+
+	private final InMemoryCluster cluster;
+	private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Interpreter>> pool = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Interpreter>>();
+
+	LuaRunner(InMemoryCluster cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * @param filename The file name of the module
+	 * @param source   The source of the module
+	 * @return The compile error, or null if the module compiles
+	 */
+	String compile(String filename, byte[] source) {
+		try {
+			LuaC.instance.compile(new ByteArrayInputStream(source), filename);
+			return null;
+		} catch (IOException e) {
+			return e.getMessage();
+		} catch (LuaError e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Drops the interpreters of a module
+	 *
+	 * @param filename The file name of the module
+	 */
+	void clear(String filename) {
+		this.pool.remove(filename);
+	}
+
+	/**
+	 * Runs the server part of a stream UDF over records
+	 *
+	 * @param namespace   The namespace of the records
+	 * @param packageName The module
+	 * @param function    The function of the module
+	 * @param args        The arguments of the function
+	 * @param records     The records of the stream
+	 * @return The values the stream returns
+	 * @throws LuaError if the function fails
+	 */
+	List<Object> aggregate(String namespace, String packageName, String function, List<Object> args, List<StoredRecord> records) {
+		Interpreter interpreter = borrow(packageName);
+		try {
+			LuaInstance instance = interpreter.instance;
+			OutputStream out = new OutputStream();
+			LuaValue[] values = new LuaValue[4 + args.size()];
+			values[0] = function(interpreter, function);
+			values[1] = LuaInteger.valueOf(SCOPE_SERVER);
+			values[2] = new InputStream(instance, namespace, records.iterator());
+			values[3] = out;
+			for (int i = 0; i < args.size(); i++) {
+				values[4 + i] = instance.getLuaValue(args.get(i));
+			}
+			instance.getFunction("apply_stream").invoke(LuaValue.varargsOf(values));
+			return out.values;
+		} finally {
+			release(packageName, interpreter);
+		}
+	}
+
+	/**
+	 * Runs a record UDF on one record
+	 *
+	 * @param namespace   The namespace of the record
+	 * @param packageName The module
+	 * @param function    The function of the module
+	 * @param args        The arguments of the function
+	 * @param record      The record
+	 * @throws LuaError if the function fails
+	 */
+	void apply(String namespace, String packageName, String function, List<Object> args, StoredRecord record) {
+		Interpreter interpreter = borrow(packageName);
+		try {
+			LuaInstance instance = interpreter.instance;
+			LuaValue[] values = new LuaValue[2 + args.size()];
+			values[0] = function(interpreter, function);
+			values[1] = new LuaRecord(instance, namespace, record);
+			for (int i = 0; i < args.size(); i++) {
+				values[2 + i] = instance.getLuaValue(args.get(i));
+			}
+			instance.getFunction("apply_record").invoke(LuaValue.varargsOf(values));
+		} finally {
+			release(packageName, interpreter);
+		}
+	}
+
+	private static LuaValue function(Interpreter interpreter, String name) {
+		LuaValue function = interpreter.globals.get(name);
+		if (function.isnil())
+			throw new LuaError("function not found: " + name);
+		return function;
+	}
+
+	private Interpreter borrow(String packageName) {
+		String filename = packageName + ".lua";
+		byte[] source = this.cluster.getModule(filename);
+		if (source == null)
+			throw new LuaError("module not found: " + filename);
+		ConcurrentLinkedQueue<Interpreter> interpreters = this.pool.get(filename);
+		if (interpreters != null) {
+			Interpreter interpreter;
+			while ((interpreter = interpreters.poll()) != null) {
+				if (interpreter.source == source)
+					return interpreter;
+			}
+		}
+		return load(filename, source);
+	}
+
+	private void release(String packageName, Interpreter interpreter) {
+		String filename = packageName + ".lua";
+		if (this.cluster.getModule(filename) != interpreter.source)
+			return;
+		ConcurrentLinkedQueue<Interpreter> interpreters = this.pool.get(filename);
+		if (interpreters == null) {
+			interpreters = new ConcurrentLinkedQueue<Interpreter>();
+			ConcurrentLinkedQueue<Interpreter> existing = this.pool.putIfAbsent(filename, interpreters);
+			if (existing != null)
+				interpreters = existing;
+		}
+		interpreters.add(interpreter);
+	}
+
+	/*
+	 * a new interpreter with the server modules and the module loaded
+	 */
+	private Interpreter load(String filename, byte[] source) {
+		final Interpreter interpreter = new Interpreter(source);
+		final LuaInstance instance = interpreter.instance;
+		// a library is called with the globals as its environment
+		instance.load(new TwoArgFunction() {
+			@Override
+			public LuaValue call(LuaValue name, LuaValue globals) {
+				interpreter.globals = (Globals) globals;
+				return NIL;
+			}
+		});
+		interpreter.globals.set("record", recordModule(instance));
+		LuaValue aerospike = interpreter.globals.get("aerospike");
+		aerospike.set("exists", new TwoArgFunction() {
+			@Override
+			public LuaValue call(LuaValue self, LuaValue rec) {
+				LuaRecord record = record(rec);
+				return valueOf(LuaRunner.this.cluster.get(record.namespace, record.record.digest) != null);
+			}
+		});
+		aerospike.set("remove", new TwoArgFunction() {
+			@Override
+			public LuaValue call(LuaValue self, LuaValue rec) {
+				LuaRecord record = record(rec);
+				LuaRunner.this.cluster.delete(record.namespace, record.record.digest);
+				return valueOf(0);
+			}
+		});
+		try {
+			interpreter.globals.load(new ByteArrayInputStream(source), filename, "t", interpreter.globals).call();
+		} catch (LuaError e) {
+			throw new LuaError("cannot load " + filename + ": " + e.getMessage());
+		}
+		return interpreter;
+	}
+
+	private static LuaRecord record(LuaValue value) {
+		if (!(value instanceof LuaRecord))
+			throw new LuaError("not a record: " + value);
+		return (LuaRecord) value;
+	}
+
+	/*
+	 * the "record" module of a server
+	 */
+	private static LuaTable recordModule(final LuaInstance instance) {
+		LuaTable module = new LuaTable();
+		module.set("gen", new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaValue rec) {
+				return valueOf(record(rec).record.generation);
+			}
+		});
+		module.set("ttl", new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaValue rec) {
+				return valueOf(record(rec).record.ttl());
+			}
+		});
+		module.set("setname", new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaValue rec) {
+				String setName = record(rec).record.setName;
+				return (setName == null) ? NIL : valueOf(setName);
+			}
+		});
+		module.set("digest", new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaValue rec) {
+				return new LuaBytes(instance, record(rec).record.digest);
+			}
+		});
+		module.set("bin_names", new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaValue rec) {
+				LuaTable names = new LuaTable();
+				int i = 1;
+				for (String name : record(rec).record.bins.keySet()) {
+					names.set(i++, valueOf(name));
+				}
+				return names;
+			}
+		});
+		return module;
+	}
+
+	/*
+	 * a record, its bins are read by name
+	 */
+	private static final class LuaRecord extends LuaUserdata {
+		final LuaInstance instance;
+		final String namespace;
+		final StoredRecord record;
+
+		LuaRecord(LuaInstance instance, String namespace, StoredRecord record) {
+			super(record);
+			this.instance = instance;
+			this.namespace = namespace;
+			this.record = record;
+		}
+
+		@Override
+		public LuaValue get(LuaValue key) {
+			Object value = this.record.bins.get(key.tojstring());
+			return (value == null) ? NIL : this.instance.getLuaValue(value);
+		}
+
+		@Override
+		public void set(LuaValue key, LuaValue value) {
+			throw new LuaError("records are read only");
+		}
+	}
+
+	/*
+	 * the records of a stream, read by stream.read
+	 */
+	private static final class InputStream extends LuaUserdata implements LuaStream {
+		private final LuaInstance instance;
+		private final String namespace;
+		private final Iterator<StoredRecord> records;
+
+		InputStream(LuaInstance instance, String namespace, Iterator<StoredRecord> records) {
+			super(records);
+			this.instance = instance;
+			this.namespace = namespace;
+			this.records = records;
+		}
+
+		@Override
+		public LuaValue read() {
+			return this.records.hasNext() ? new LuaRecord(this.instance, this.namespace, this.records.next()) : NIL;
+		}
+
+		@Override
+		public void write(LuaValue value) {
+			throw new LuaError("the input stream is not writeable");
+		}
+
+		@Override
+		public boolean readable() {
+			return true;
+		}
+
+		@Override
+		public boolean writeable() {
+			return false;
+		}
+
+		@Override
+		public LuaValue toLuaString() {
+			return valueOf("InputStream");
+		}
+	}
+
+	/*
+	 * the values the stream returns, written by stream.write
+	 */
+	private static final class OutputStream extends LuaUserdata implements LuaStream {
+		final List<Object> values = new ArrayList<Object>();
+
+		OutputStream() {
+			super(Boolean.TRUE);
+		}
+
+		@Override
+		public LuaValue read() {
+			throw new LuaError("the output stream is not readable");
+		}
+
+		@Override
+		public void write(LuaValue value) {
+			this.values.add(LuaUtil.luaToObject(value));
+		}
+
+		@Override
+		public boolean readable() {
+			return false;
+		}
+
+		@Override
+		public boolean writeable() {
+			return true;
+		}
+
+		@Override
+		public LuaValue toLuaString() {
+			return valueOf("OutputStream");
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.client.query.KeyRecord;
+
+public class PositionalBinsTests {
+
+	private static final byte[] DIGEST = new byte[20];
+
+	@Test
+	public void rowIsReadInPlace() {
+		List<Object> row = Arrays.<Object> asList(DIGEST, 2L, 50L, "carol", null, 22L);
+		Map<String, Object> bins = new PositionalBins(Arrays.asList("name", "color", "age"), row, 3);
+		Assert.assertEquals(2, bins.size());
+		Assert.assertEquals("carol", bins.get("name"));
+		Assert.assertFalse(bins.containsKey("color"));
+		Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("name", "carol");
+		expected.put("age", 22L);
+		Assert.assertEquals(expected, bins);
+
+		// a change copies the bins, the row stays as it is
+		bins.put("color", "red");
+		Assert.assertEquals("red", bins.get("color"));
+		Assert.assertEquals(3, bins.size());
+		Assert.assertNull(row.get(4));
+	}
+
+	@Test
+	public void iteratorDecodesRows() throws IOException {
+		List<Object> named = Arrays.<Object> asList(DIGEST, 3L, 10L, Arrays.asList("name", "age"), "dave", 21L);
+		List<Object> meta = Arrays.<Object> asList(DIGEST, 1L, 0L);
+		KeyRecordIterator it = new KeyRecordIterator("test", Arrays.<Object> asList(named, meta).iterator()).rows("users", null);
+		try {
+			KeyRecord keyRecord = it.next();
+			Assert.assertEquals("users", keyRecord.key.setName);
+			Assert.assertEquals(3, keyRecord.record.generation);
+			Assert.assertEquals(10, keyRecord.record.expiration);
+			Assert.assertEquals(21L, keyRecord.record.getValue("age"));
+			keyRecord = it.next();
+			Assert.assertNull(keyRecord.record.bins);
+			Assert.assertEquals(1, keyRecord.record.generation);
+		} finally {
+			it.close();
+		}
+
+		List<Object> positional = Arrays.<Object> asList(DIGEST, 3L, 10L, 21L);
+		it = new KeyRecordIterator("test", Arrays.<Object> asList(positional).iterator()).rows("users", Arrays.asList("age"));
+		try {
+			Assert.assertEquals(21L, it.next().record.getValue("age"));
+		} finally {
+			it.close();
+		}
+	}
+}
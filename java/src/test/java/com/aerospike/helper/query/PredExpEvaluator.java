@@ -0,0 +1,292 @@
+package com.aerospike.helper.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.aerospike.client.command.Buffer;
+import com.aerospike.helper.query.InMemoryCluster.StoredRecord;
+
+/**
+ * Evaluates the predicate expressions of a query the way a node does. The
+ * expressions arrive in postfix order and are built into a tree once per
+ * query, then evaluated for each record.
+ * <p>
+ * A bin that is missing or holds another type makes its comparison false.
+ * Geo predicates are not supported.
+ */
+final class PredExpEvaluator {
+
+	private static final int AND = 1;
+	private static final int OR = 2;
+	private static final int NOT = 3;
+	private static final int INTEGER_VALUE = 10;
+	private static final int STRING_VALUE = 11;
+	private static final int GEOJSON_VALUE = 12;
+	private static final int INTEGER_BIN = 100;
+	private static final int STRING_BIN = 101;
+	private static final int GEOJSON_BIN = 102;
+	private static final int LIST_BIN = 103;
+	private static final int MAP_BIN = 104;
+	private static final int INTEGER_VAR = 120;
+	private static final int STRING_VAR = 121;
+	private static final int GEOJSON_VAR = 122;
+	private static final int RECSIZE = 150;
+	private static final int LAST_UPDATE = 151;
+	private static final int VOID_TIME = 152;
+	private static final int DIGEST_MODULO = 153;
+	private static final int INTEGER_EQUAL = 200;
+	private static final int INTEGER_UNEQUAL = 201;
+	private static final int INTEGER_GREATER = 202;
+	private static final int INTEGER_GREATEREQ = 203;
+	private static final int INTEGER_LESS = 204;
+	private static final int INTEGER_LESSEQ = 205;
+	private static final int STRING_EQUAL = 210;
+	private static final int STRING_UNEQUAL = 211;
+	private static final int STRING_REGEX = 212;
+	private static final int LIST_ITERATE_OR = 250;
+	private static final int MAPKEY_ITERATE_OR = 251;
+	private static final int MAPVAL_ITERATE_OR = 252;
+	private static final int LIST_ITERATE_AND = 253;
+	private static final int MAPKEY_ITERATE_AND = 254;
+	private static final int MAPVAL_ITERATE_AND = 255;
+
+	private static final int REG_ICASE = 2;
+
+	/*
+	 * one expression with the expressions it takes its arguments from
+	 */
+	private static final class Expression {
+		final int tag;
+		final Object value;
+		final Expression[] children;
+
+		Expression(int tag, Object value, Expression[] children) {
+			this.tag = tag;
+			this.value = value;
+			this.children = children;
+		}
+	}
+
+	private final Expression root;
+
+	/**
+	 * @param data The predicate expression field of a query
+	 * @throws IllegalArgumentException if an expression is not supported
+	 */
+	PredExpEvaluator(byte[] data) {
+		Deque<Expression> stack = new ArrayDeque<Expression>();
+		int offset = 0;
+		while (offset < data.length) {
+			int tag = Buffer.bytesToShort(data, offset);
+			int length = Buffer.bytesToInt(data, offset + 2);
+			offset += 6;
+			stack.push(expression(tag, data, offset, length, stack));
+			offset += length;
+		}
+		if (stack.size() != 1)
+			throw new IllegalArgumentException("Predicate expressions do not form one expression");
+		this.root = stack.pop();
+	}
+
+	private static Expression expression(int tag, byte[] data, int offset, int length, Deque<Expression> stack) {
+		switch (tag) {
+		case AND:
+		case OR:
+			return new Expression(tag, null, pop(stack, Buffer.bytesToShort(data, offset)));
+		case NOT:
+			return new Expression(tag, null, pop(stack, 1));
+		case INTEGER_VALUE:
+			return new Expression(tag, Buffer.bytesToLong(data, offset), null);
+		case STRING_VALUE:
+		case INTEGER_BIN:
+		case STRING_BIN:
+		case LIST_BIN:
+		case MAP_BIN:
+		case INTEGER_VAR:
+		case STRING_VAR:
+			return new Expression(tag, Buffer.utf8ToString(data, offset, length), null);
+		case RECSIZE:
+		case LAST_UPDATE:
+		case VOID_TIME:
+			return new Expression(tag, null, null);
+		case DIGEST_MODULO:
+			return new Expression(tag, Buffer.bytesToInt(data, offset), null);
+		case INTEGER_EQUAL:
+		case INTEGER_UNEQUAL:
+		case INTEGER_GREATER:
+		case INTEGER_GREATEREQ:
+		case INTEGER_LESS:
+		case INTEGER_LESSEQ:
+		case STRING_EQUAL:
+		case STRING_UNEQUAL:
+			return new Expression(tag, null, pop(stack, 2));
+		case STRING_REGEX:
+			return new Expression(tag, Buffer.bytesToInt(data, offset), pop(stack, 2));
+		case LIST_ITERATE_OR:
+		case MAPKEY_ITERATE_OR:
+		case MAPVAL_ITERATE_OR:
+		case LIST_ITERATE_AND:
+		case MAPKEY_ITERATE_AND:
+		case MAPVAL_ITERATE_AND:
+			return new Expression(tag, Buffer.utf8ToString(data, offset, length), pop(stack, 2));
+		case GEOJSON_VALUE:
+		case GEOJSON_BIN:
+		case GEOJSON_VAR:
+		default:
+			throw new IllegalArgumentException("Unsupported predicate expression " + tag);
+		}
+	}
+
+	/*
+	 * the arguments of an expression, in the order they were written
+	 */
+	private static Expression[] pop(Deque<Expression> stack, int count) {
+		if (stack.size() < count)
+			throw new IllegalArgumentException("Missing predicate expression arguments");
+		Expression[] children = new Expression[count];
+		for (int i = count - 1; i >= 0; i--) {
+			children[i] = stack.pop();
+		}
+		return children;
+	}
+
+	/**
+	 * @param record The stored record
+	 * @return true if the record matches
+	 */
+	boolean matches(StoredRecord record) {
+		return Boolean.TRUE.equals(evaluate(this.root, record, new HashMap<String, Object>()));
+	}
+
+	private Object evaluate(Expression expression, StoredRecord record, Map<String, Object> vars) {
+		switch (expression.tag) {
+		case AND:
+			for (Expression child : expression.children) {
+				if (!Boolean.TRUE.equals(evaluate(child, record, vars)))
+					return false;
+			}
+			return true;
+		case OR:
+			for (Expression child : expression.children) {
+				if (Boolean.TRUE.equals(evaluate(child, record, vars)))
+					return true;
+			}
+			return false;
+		case NOT:
+			return !Boolean.TRUE.equals(evaluate(expression.children[0], record, vars));
+		case INTEGER_VALUE:
+		case STRING_VALUE:
+			return expression.value;
+		case INTEGER_BIN:
+			return typed(record.bins.get(expression.value), Long.class);
+		case STRING_BIN:
+			return typed(record.bins.get(expression.value), String.class);
+		case LIST_BIN:
+			return typed(record.bins.get(expression.value), List.class);
+		case MAP_BIN:
+			return typed(record.bins.get(expression.value), Map.class);
+		case INTEGER_VAR:
+			return typed(vars.get(expression.value), Long.class);
+		case STRING_VAR:
+			return typed(vars.get(expression.value), String.class);
+		case RECSIZE:
+			return 0L;
+		case LAST_UPDATE:
+			return record.lastUpdateMillis * 1000000L;
+		case VOID_TIME:
+			return (record.voidTime == 0) ? 0L : (record.voidTime + InMemoryCluster.CITRUSLEAF_EPOCH) * 1000000000L;
+		case DIGEST_MODULO: {
+			byte[] digest = record.digest;
+			long value = (digest[16] & 0xFFL) | ((digest[17] & 0xFFL) << 8) | ((digest[18] & 0xFFL) << 16) | ((digest[19] & 0xFFL) << 24);
+			return value % (Integer) expression.value;
+		}
+		case INTEGER_EQUAL:
+		case INTEGER_UNEQUAL:
+		case INTEGER_GREATER:
+		case INTEGER_GREATEREQ:
+		case INTEGER_LESS:
+		case INTEGER_LESSEQ:
+			return compare(expression.tag, evaluate(expression.children[0], record, vars), evaluate(expression.children[1], record, vars));
+		case STRING_EQUAL:
+		case STRING_UNEQUAL: {
+			Object left = evaluate(expression.children[0], record, vars);
+			Object right = evaluate(expression.children[1], record, vars);
+			if (!(left instanceof String) || !(right instanceof String))
+				return false;
+			return left.equals(right) == (expression.tag == STRING_EQUAL);
+		}
+		case STRING_REGEX: {
+			Object left = evaluate(expression.children[0], record, vars);
+			Object right = evaluate(expression.children[1], record, vars);
+			if (!(left instanceof String) || !(right instanceof String))
+				return false;
+			int flags = (((Integer) expression.value & REG_ICASE) != 0) ? Pattern.CASE_INSENSITIVE : 0;
+			return Pattern.compile((String) right, flags).matcher((String) left).find();
+		}
+		default:
+			return iterate(expression, record, vars);
+		}
+	}
+
+	private static Object typed(Object value, Class<?> type) {
+		return type.isInstance(value) ? value : null;
+	}
+
+	private static boolean compare(int tag, Object left, Object right) {
+		if (!(left instanceof Long) || !(right instanceof Long))
+			return false;
+		int comparison = ((Long) left).compareTo((Long) right);
+		switch (tag) {
+		case INTEGER_EQUAL:
+			return comparison == 0;
+		case INTEGER_UNEQUAL:
+			return comparison != 0;
+		case INTEGER_GREATER:
+			return comparison > 0;
+		case INTEGER_GREATEREQ:
+			return comparison >= 0;
+		case INTEGER_LESS:
+			return comparison < 0;
+		default:
+			return comparison <= 0;
+		}
+	}
+
+	/*
+	 * applies the predicate to each element of a collection, with the element bound to the variable
+	 */
+	private Object iterate(Expression expression, StoredRecord record, Map<String, Object> vars) {
+		Object collection = evaluate(expression.children[1], record, vars);
+		Collection<?> elements;
+		if (expression.tag == LIST_ITERATE_OR || expression.tag == LIST_ITERATE_AND) {
+			if (!(collection instanceof List))
+				return false;
+			elements = (List<?>) collection;
+		} else {
+			if (!(collection instanceof Map))
+				return false;
+			boolean keys = expression.tag == MAPKEY_ITERATE_OR || expression.tag == MAPKEY_ITERATE_AND;
+			elements = keys ? ((Map<?, ?>) collection).keySet() : ((Map<?, ?>) collection).values();
+		}
+		boolean and = expression.tag >= LIST_ITERATE_AND;
+		String name = (String) expression.value;
+		Object previous = vars.get(name);
+		try {
+			for (Object element : new ArrayList<Object>(elements)) {
+				vars.put(name, element);
+				boolean matches = Boolean.TRUE.equals(evaluate(expression.children[0], record, vars));
+				if (matches != and)
+					return matches;
+			}
+			return and;
+		} finally {
+			vars.put(name, previous);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.query.Qualifier.FilterOperation;
+
+public class QualifierOptimizerTests {
+
+	private static final String NAMESPACE = "test";
+	private static final String SET_NAME = "users";
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+
+	@Before
+	public void setUp() {
+		this.cluster = new InMemoryCluster(2, NAMESPACE);
+		this.cluster.createIndex(NAMESPACE, SET_NAME, "age_idx", "age", IndexType.NUMERIC);
+		this.engine = this.cluster.newQueryEngine();
+		for (int i = 0; i < 20; i++) {
+			Key key = new Key(NAMESPACE, SET_NAME, "user" + i);
+			this.engine.insert(NAMESPACE, SET_NAME, key, Arrays.asList(new Bin("name", "user" + i), new Bin("age", 20 + i), new Bin("color", (i % 2 == 0) ? "red" : "blue")));
+		}
+		this.engine.refreshCluster();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(NAMESPACE);
+		stmt.setSetName(SET_NAME);
+		return stmt;
+	}
+
+	private static Qualifier age(FilterOperation op, long value) {
+		return new Qualifier("age", op, Value.get(value));
+	}
+
+	private static Qualifier color(String value) {
+		return new Qualifier("color", FilterOperation.EQ, Value.get(value));
+	}
+
+	private Set<String> select(Qualifier... qualifiers) throws IOException {
+		Set<String> names = new HashSet<String>();
+		KeyRecordIterator it = this.engine.select(statement(), qualifiers);
+		try {
+			while (it.hasNext()) {
+				KeyRecord keyRecord = it.next();
+				names.add((String) keyRecord.record.getValue("name"));
+			}
+		} finally {
+			it.close();
+		}
+		return names;
+	}
+
+	/*
+	 * the optimized query returns the same records as the qualifiers taken literally
+	 */
+	private void assertSameRecords(Qualifier... qualifiers) throws IOException {
+		Set<String> optimized = select(qualifiers);
+		this.engine.optimizeQualifiers = false;
+		try {
+			Assert.assertEquals(select(qualifiers), optimized);
+		} finally {
+			this.engine.optimizeQualifiers = true;
+		}
+	}
+
+	@Test
+	public void rangeBecomesFilter() throws IOException {
+		Qualifier[] qualifiers = { age(FilterOperation.GTEQ, 25), new Qualifier(FilterOperation.AND, age(FilterOperation.LTEQ, 29), color("red")), age(FilterOperation.GT, 20) };
+		Qualifier[] optimized = QualifierOptimizer.optimize(qualifiers);
+		Assert.assertEquals(2, optimized.length);
+		Assert.assertEquals(FilterOperation.BETWEEN, optimized[0].getOperation());
+		Assert.assertEquals(25L, optimized[0].getValue1().toLong());
+		Assert.assertEquals(29L, optimized[0].getValue2().toLong());
+
+		QueryPlan plan = this.engine.explain(statement(), qualifiers);
+		Assert.assertEquals(optimized.length, plan.getOptimizedQualifiers().size());
+		Assert.assertEquals(FilterOperation.BETWEEN, plan.getFilterQualifier().getOperation());
+		Assert.assertEquals(QueryMetrics.Path.PREDEXP, plan.getPath());
+		Assert.assertTrue(plan.toString().contains("rewritten"));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("user6", "user8")), select(qualifiers));
+		assertSameRecords(qualifiers);
+	}
+
+	@Test
+	public void strictBoundsAreKept() throws IOException {
+		// 24.5 is between the bounds of a double bin
+		Qualifier[] qualifiers = { age(FilterOperation.GT, 24), age(FilterOperation.LT, 25) };
+		Qualifier[] optimized = QualifierOptimizer.optimize(qualifiers);
+		Assert.assertFalse(QualifierOptimizer.matchesNothing(optimized));
+		Assert.assertEquals(2, optimized.length);
+		Assert.assertEquals(FilterOperation.GT, optimized[0].getOperation());
+		Assert.assertEquals(24L, optimized[0].getValue1().toLong());
+		Assert.assertEquals(FilterOperation.LT, optimized[1].getOperation());
+		Assert.assertEquals(25L, optimized[1].getValue1().toLong());
+
+		optimized = QualifierOptimizer.optimize(age(FilterOperation.GT, 24), age(FilterOperation.GT, 20), age(FilterOperation.LTEQ, 30));
+		Assert.assertEquals(2, optimized.length);
+		Assert.assertEquals(FilterOperation.GT, optimized[0].getOperation());
+		Assert.assertEquals(24L, optimized[0].getValue1().toLong());
+		Assert.assertEquals(FilterOperation.LTEQ, optimized[1].getOperation());
+
+		// 24.5 is in neither range
+		Qualifier gap = new Qualifier(FilterOperation.OR, age(FilterOperation.LTEQ, 24), age(FilterOperation.GTEQ, 25));
+		optimized = QualifierOptimizer.optimize(gap);
+		Assert.assertEquals(FilterOperation.OR, optimized[0].getOperation());
+		Assert.assertEquals(2, optimized[0].getQualifiers().length);
+		assertSameRecords(gap);
+		Assert.assertTrue(QualifierOptimizer.matchesNothing(QualifierOptimizer.optimize(age(FilterOperation.GT, 24), age(FilterOperation.LTEQ, 24))));
+	}
+
+	@Test
+	public void orOfEqualsBecomesIn() throws IOException {
+		Qualifier strings = new Qualifier(FilterOperation.OR, color("red"), color("green"), color("red"));
+		Qualifier[] optimized = QualifierOptimizer.optimize(strings);
+		Assert.assertEquals(FilterOperation.IN, optimized[0].getOperation());
+		Assert.assertEquals(Arrays.asList("red", "green"), optimized[0].getValue1().getObject());
+		Assert.assertTrue(optimized[0].luaFilterString().contains("rec['color'] == 'green'"));
+		Assert.assertEquals(QueryMetrics.Path.PREDEXP, this.engine.explain(statement(), strings).getPath());
+		assertSameRecords(strings);
+
+		Qualifier ages = new Qualifier(FilterOperation.OR, age(FilterOperation.EQ, 21), age(FilterOperation.EQ, 25), age(FilterOperation.EQ, 21));
+		optimized = QualifierOptimizer.optimize(ages);
+		Assert.assertEquals(FilterOperation.IN, optimized[0].getOperation());
+		Assert.assertEquals(Arrays.asList(21L, 25L), optimized[0].getValue1().getObject());
+
+		// age has an index, its EQs are kept
+		List<Qualifier> planned = this.engine.explain(statement(), ages).getOptimizedQualifiers();
+		Assert.assertEquals(1, planned.size());
+		Assert.assertEquals(FilterOperation.OR, planned.get(0).getOperation());
+		Assert.assertEquals(2, planned.get(0).getQualifiers().length);
+		Assert.assertEquals(FilterOperation.EQ, planned.get(0).getQualifiers()[0].getOperation());
+		assertSameRecords(ages);
+
+		Qualifier overlapping = new Qualifier(FilterOperation.OR, age(FilterOperation.LT, 22), new Qualifier("age", FilterOperation.BETWEEN, Value.get(22), Value.get(24)), age(FilterOperation.GT, 35));
+		optimized = QualifierOptimizer.optimize(overlapping);
+		Assert.assertEquals(FilterOperation.OR, optimized[0].getOperation());
+		List<Qualifier> ranges = Arrays.asList(optimized[0].getQualifiers());
+		Assert.assertEquals(2, ranges.size());
+		Assert.assertEquals(FilterOperation.LTEQ, ranges.get(0).getOperation());
+		Assert.assertEquals(24L, ranges.get(0).getValue1().toLong());
+		Assert.assertEquals(FilterOperation.GT, ranges.get(1).getOperation());
+		Assert.assertEquals(35L, ranges.get(1).getValue1().toLong());
+		assertSameRecords(overlapping);
+	}
+
+	@Test
+	public void notIsPushedInward() throws IOException {
+		Qualifier not = new Qualifier(FilterOperation.NOT, new Qualifier(FilterOperation.OR, age(FilterOperation.LT, 25), new Qualifier(FilterOperation.NOT, color("red"))));
+		Qualifier[] optimized = QualifierOptimizer.optimize(not);
+		// NOT(age < 25) AND color = red, the negated comparison is kept
+		Assert.assertEquals(2, optimized.length);
+		Assert.assertEquals(FilterOperation.NOT, optimized[0].getOperation());
+		Assert.assertEquals(FilterOperation.EQ, optimized[1].getOperation());
+		Assert.assertEquals("color", optimized[1].getField());
+		Assert.assertTrue(this.engine.explain(statement(), not).getLuaFilter() == null);
+		assertSameRecords(not);
+	}
+
+	@Test
+	public void contradictionReadsNothing() throws IOException {
+		Qualifier[] qualifiers = { age(FilterOperation.GT, 30), new Qualifier(FilterOperation.AND, age(FilterOperation.LTEQ, 30), color("red")) };
+		Assert.assertTrue(QualifierOptimizer.matchesNothing(QualifierOptimizer.optimize(qualifiers)));
+		Assert.assertTrue(QualifierOptimizer.matchesNothing(QualifierOptimizer.optimize(color("red"), color("blue"))));
+		Assert.assertFalse(QualifierOptimizer.matchesNothing(QualifierOptimizer.optimize(color("red"), color("red"))));
+
+		QueryPlan plan = this.engine.explain(statement(), qualifiers);
+		Assert.assertEquals(QueryMetrics.Path.NONE, plan.getPath());
+		Assert.assertEquals(0L, plan.getEstimatedRecords());
+		Assert.assertTrue(select(qualifiers).isEmpty());
+		Assert.assertEquals(Long.valueOf(0), this.engine.delete(statement(), qualifiers).get("write"));
+		Assert.assertEquals(20, select().size());
+	}
+
+	@Test
+	public void qualifiersAreNotChanged() {
+		Qualifier gt = age(FilterOperation.GTEQ, 25);
+		Qualifier lt = age(FilterOperation.LTEQ, 29);
+		Qualifier[] qualifiers = { gt, lt };
+		QueryPlan plan = this.engine.explain(statement(), qualifiers);
+		Assert.assertSame(gt, qualifiers[0]);
+		Assert.assertEquals(Arrays.asList(gt, lt), plan.getQualifiers());
+		Assert.assertEquals(1, plan.getOptimizedQualifiers().size());
+
+		this.engine.optimizeQualifiers = false;
+		plan = this.engine.explain(statement(), qualifiers);
+		Assert.assertEquals(Arrays.asList(gt, lt), plan.getOptimizedQualifiers());
+		Assert.assertEquals(FilterOperation.GTEQ, plan.getFilterQualifier().getOperation());
+		Assert.assertFalse(plan.toString().contains("rewritten"));
+	}
+}
@@ -0,0 +1,177 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.query.Qualifier.FilterOperation;
+
+public class QualifierPredicatesTests {
+
+	private static final String NAMESPACE = "test";
+	private static final String SET_NAME = "users";
+	private static final String[] NAMES = { "alice", "bob", "carol", "dave", "erin", "frank" };
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+
+	@Before
+	public void setUp() {
+		this.cluster = new InMemoryCluster(2, NAMESPACE);
+		this.cluster.createIndex(NAMESPACE, SET_NAME, "age_idx", "age", IndexType.NUMERIC);
+		this.engine = this.cluster.newQueryEngine();
+		for (int i = 0; i < NAMES.length; i++) {
+			Key key = new Key(NAMESPACE, SET_NAME, NAMES[i]);
+			this.engine.insert(NAMESPACE, SET_NAME, key, Arrays.asList(new Bin("name", NAMES[i]), new Bin("age", 20 + (i % 3)), new Bin("color", (i % 2 == 0) ? "red" : "blue")));
+		}
+		this.engine.refreshCluster();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(NAMESPACE);
+		stmt.setSetName(SET_NAME);
+		return stmt;
+	}
+
+	private static Record record(Object... binsAndValues) {
+		Map<String, Object> bins = new HashMap<String, Object>();
+		for (int i = 0; i < binsAndValues.length; i += 2)
+			bins.put((String) binsAndValues[i], binsAndValues[i + 1]);
+		return new Record(bins, 3, 0);
+	}
+
+	@Test
+	public void comparesLikeTheLuaFilter() {
+		Record record = record("age", 25L, "name", "Carol", "tags", Arrays.asList("a", "b"));
+		Predicate<Record> range = QualifierPredicates.compile(new Qualifier("age", FilterOperation.BETWEEN, Value.get(20), Value.get(30)));
+		Assert.assertTrue(range.test(record));
+		Assert.assertFalse(range.test(record("age", "25")));
+		Assert.assertFalse(range.test(record()));
+
+		Assert.assertTrue(QualifierPredicates.compile(new Qualifier("name", FilterOperation.START_WITH, true, Value.get("ca"))).test(record));
+		Assert.assertFalse(QualifierPredicates.compile(new Qualifier("name", FilterOperation.START_WITH, Value.get("ca"))).test(record));
+		Assert.assertTrue(QualifierPredicates.compile(new Qualifier("name", FilterOperation.NOTEQ, Value.get("bob"))).test(record()));
+		Assert.assertTrue(QualifierPredicates.compile(new Qualifier("tags", FilterOperation.LIST_CONTAINS, Value.get("b"))).test(record));
+		Assert.assertTrue(QualifierPredicates.compile(new Qualifier("age", FilterOperation.IN, Value.get(Arrays.asList(24, 25)))).test(record));
+		Assert.assertTrue(QualifierPredicates.compile(new GenerationQualifier(FilterOperation.GTEQ, Value.get(3))).test(record));
+
+		Predicate<Record> tree = QualifierPredicates.compile(new Qualifier(FilterOperation.OR,
+				new Qualifier(FilterOperation.NOT, new Qualifier("age", FilterOperation.GT, Value.get(20))),
+				new Qualifier("name", FilterOperation.ENDS_WITH, Value.get("ol"))));
+		Assert.assertTrue(tree.test(record));
+		Assert.assertFalse(tree.test(record("age", 21L, "name", "Dave")));
+
+		Assert.assertFalse(QualifierPredicates.supports(new KeyQualifier(Value.get("bob"))));
+		Assert.assertFalse(QualifierPredicates.supports(new Qualifier("loc", FilterOperation.GEO_WITHIN, Value.getAsGeoJSON("{}"))));
+	}
+
+	@Test
+	public void clientEvaluatesWhatPredExpCannot() throws IOException {
+		this.engine.residualMode = QueryEngine.ResidualMode.CLIENT;
+		Qualifier prefix = new Qualifier("name", FilterOperation.START_WITH, true, Value.get("C"));
+		Qualifier color = new Qualifier("color", FilterOperation.EQ, Value.get("red"));
+		QueryPlan plan = this.engine.explain(statement(), prefix, color);
+		Assert.assertEquals(QueryMetrics.Path.CLIENT, plan.getPath());
+		Assert.assertEquals(Arrays.asList(color), plan.getPredExpQualifiers());
+		Assert.assertEquals(Arrays.asList(prefix), plan.getClientQualifiers());
+		Assert.assertNotNull(plan.getPredExp());
+		Assert.assertNull(plan.getLuaFilter());
+		Assert.assertFalse(plan.isFallback());
+		Assert.assertNotNull(plan.getFallbackReason());
+		Assert.assertFalse(plan.toString().contains("fallback"));
+
+		Statement stmt = statement();
+		stmt.setBinNames("age");
+		KeyRecordIterator it = this.engine.select(stmt, prefix, color);
+		Assert.assertEquals(QueryMetrics.Path.CLIENT, it.getPath());
+		try {
+			Assert.assertTrue(it.hasNext());
+			KeyRecord keyRecord = it.next();
+			// the name bin was read for the filter only
+			Assert.assertEquals(new HashSet<String>(Arrays.asList("age")), keyRecord.record.bins.keySet());
+			Assert.assertArrayEquals(new Key(NAMESPACE, SET_NAME, "carol").digest, keyRecord.key.digest);
+			Assert.assertFalse(it.hasNext());
+			Assert.assertNull(it.next());
+		} finally {
+			it.close();
+		}
+
+		Qualifier ends = new Qualifier("name", FilterOperation.ENDS_WITH, Value.get("e"));
+		Assert.assertEquals(Long.valueOf(2), this.engine.delete(statement(), ends).get("write"));
+		Set<String> names = new HashSet<String>();
+		it = this.engine.select(statement());
+		try {
+			while (it.hasNext())
+				names.add((String) it.next().record.getValue("name"));
+		} finally {
+			it.close();
+		}
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("bob", "carol", "erin", "frank")), names);
+	}
+
+	@Test
+	public void reusedStatementKeepsItsBins() throws IOException {
+		this.engine.residualMode = QueryEngine.ResidualMode.CLIENT;
+		Qualifier prefix = new Qualifier("name", FilterOperation.START_WITH, true, Value.get("C"));
+		Statement stmt = statement();
+		stmt.setBinNames("age");
+		for (int run = 0; run < 2; run++) {
+			KeyRecordIterator it = this.engine.select(stmt, prefix);
+			Assert.assertEquals(QueryMetrics.Path.CLIENT, it.getPath());
+			try {
+				Assert.assertTrue(it.hasNext());
+				Assert.assertEquals(new HashSet<String>(Arrays.asList("age")), it.next().record.bins.keySet());
+				Assert.assertFalse(it.hasNext());
+			} finally {
+				it.close();
+			}
+			Assert.assertArrayEquals(new String[] { "age" }, stmt.getBinNames());
+		}
+	}
+
+	@Test
+	public void autoWeighsLuaAgainstTransfer() {
+		Qualifier contains = new Qualifier("name", FilterOperation.CONTAINING, Value.get("a"));
+		// without a record size Lua is kept
+		Assert.assertEquals(QueryMetrics.Path.LUA, this.engine.explain(statement(), contains).getPath());
+
+		this.cluster.setRecordBytes(200);
+		this.engine.refreshCluster();
+		Assert.assertEquals(QueryMetrics.Path.CLIENT, this.engine.explain(statement(), contains).getPath());
+
+		// a record takes 80 microseconds on a 100 Mbit network
+		this.engine.networkBytesPerSecond = 12500000L;
+		this.cluster.setRecordBytes(1000);
+		this.engine.refreshCluster();
+		Assert.assertEquals(QueryMetrics.Path.LUA, this.engine.explain(statement(), contains).getPath());
+
+		this.engine.residualMode = QueryEngine.ResidualMode.LUA;
+		this.cluster.setRecordBytes(200);
+		this.engine.refreshCluster();
+		Assert.assertEquals(QueryMetrics.Path.LUA, this.engine.explain(statement(), contains).getPath());
+	}
+}
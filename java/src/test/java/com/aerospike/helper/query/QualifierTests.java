@@ -0,0 +1,99 @@
+package com.aerospike.helper.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.client.Value;
+
+public class QualifierTests {
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void mapViewIsReadOnly() {
+		Qualifier qualifier = new Qualifier("name", Qualifier.FilterOperation.START_WITH, true, Value.get("bo"));
+		Assert.assertEquals("name", qualifier.get("field"));
+		Assert.assertEquals(Qualifier.FilterOperation.START_WITH, qualifier.get("operation"));
+		Assert.assertEquals(Boolean.TRUE, qualifier.get("ignoreCase"));
+		Assert.assertFalse(qualifier.containsKey("value2"));
+		try {
+			qualifier.put("field", "age");
+			Assert.fail("put changed a qualifier");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		Assert.assertEquals("name", qualifier.getField());
+	}
+
+	@Test
+	public void nestedQualifiersAreCopied() {
+		Qualifier[] nested = { new Qualifier("age", Qualifier.FilterOperation.GT, Value.get(20)),
+				new Qualifier("age", Qualifier.FilterOperation.LT, Value.get(30)) };
+		Qualifier and = new Qualifier(Qualifier.FilterOperation.AND, nested);
+		nested[0] = null;
+		and.getQualifiers()[1] = null;
+		Assert.assertNotNull(and.getQualifiers()[0]);
+		Assert.assertNotNull(and.getQualifiers()[1]);
+		byte[] digest = new byte[20];
+		KeyQualifier key = new KeyQualifier(digest);
+		digest[0] = 1;
+		Assert.assertEquals(0, key.getDigest()[0]);
+	}
+
+	@Test
+	public void compactSerialization() throws Exception {
+		byte[] digest = new byte[20];
+		digest[3] = 7;
+		Qualifier tree = new Qualifier(Qualifier.FilterOperation.OR,
+				new Qualifier(Qualifier.FilterOperation.AND,
+						new Qualifier("age", Qualifier.FilterOperation.BETWEEN, Value.get(20), Value.get(30)),
+						new Qualifier("name", Qualifier.FilterOperation.ENDS_WITH, true, Value.get("ob"))),
+				new Qualifier("score", Qualifier.FilterOperation.GT, Value.get(1.5)),
+				new Qualifier("tags", Qualifier.FilterOperation.IN, Value.get(Arrays.asList("a", "b"))),
+				new GenerationQualifier(Qualifier.FilterOperation.GTEQ, Value.get(2)),
+				new KeyQualifier(digest));
+		byte[] bytes = serialize(tree);
+		Qualifier copy = (Qualifier) deserialize(bytes);
+
+		Assert.assertEquals(Qualifier.FilterOperation.OR, copy.getOperation());
+		Qualifier[] nested = copy.getQualifiers();
+		Assert.assertEquals(5, nested.length);
+		Qualifier between = nested[0].getQualifiers()[0];
+		Assert.assertEquals("age", between.getField());
+		Assert.assertEquals(Value.get(20), between.getValue1());
+		Assert.assertEquals(Value.get(30), between.getValue2());
+		Assert.assertTrue(nested[0].getQualifiers()[1].isIgnoreCase());
+		Assert.assertEquals(Value.get(1.5), nested[1].getValue1());
+		Assert.assertEquals(Arrays.asList("a", "b"), nested[2].getValue1().getObject());
+		Assert.assertTrue(nested[3] instanceof GenerationQualifier);
+		Assert.assertEquals(Qualifier.FilterOperation.GTEQ, nested[3].getOperation());
+		Assert.assertArrayEquals(digest, ((KeyQualifier) nested[4]).getDigest());
+		Assert.assertEquals(tree.luaFilterString(), copy.luaFilterString());
+
+		// a bin qualifier is its field and value, with the one class descriptor of the stream
+		int single = serialize(new Qualifier("name", Qualifier.FilterOperation.EQ, Value.get("bob"))).length;
+		Assert.assertTrue("serialized to " + single + " bytes", single < 120);
+	}
+}
@@ -0,0 +1,133 @@
+package com.aerospike.helper.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Value;
+import com.aerospike.client.policy.ClientPolicy;
+import com.aerospike.client.query.Filter;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.model.CatalogSnapshot;
+import com.aerospike.helper.model.CatalogSnapshotStore;
+import com.aerospike.helper.model.Index;
+import com.aerospike.helper.model.Module;
+import com.aerospike.helper.model.Namespace;
+
+public class QueryPlanTests {
+
+	private static final String AGE_INDEX = "ns=test:set=users:indexname=age_idx:bin=age:type=NUMERIC:sync_state=synced:state=RW";
+
+	private QueryEngine engine(boolean indexed) throws IOException {
+		QueryEngine engine = new QueryEngine();
+		engine.catalog = new ClusterCatalog(new AerospikeClient(new ClientPolicy()) {
+		}, null);
+		if (indexed) {
+			Map<String, Index> indexes = new TreeMap<String, Index>();
+			Index index = new Index(AGE_INDEX);
+			indexes.put(index.toKeyString(), index);
+			CatalogSnapshot snapshot = new CatalogSnapshot(new TreeMap<String, Namespace>(), indexes,
+					new TreeMap<String, Module>(), "", System.currentTimeMillis());
+			File file = File.createTempFile("catalog", ".bin");
+			file.deleteOnExit();
+			CatalogSnapshotStore.save(snapshot, file);
+			Assert.assertTrue(engine.catalog.restore(file));
+		}
+		return engine;
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace("test");
+		stmt.setSetName("users");
+		return stmt;
+	}
+
+	@Test
+	public void primaryKey() throws IOException {
+		QueryPlan plan = engine(false).explain(statement(), new KeyQualifier(Value.get("bob")));
+		Assert.assertEquals(QueryMetrics.Path.KEY, plan.getPath());
+		Assert.assertEquals(1L, plan.getEstimatedRecords());
+	}
+
+	@Test
+	public void indexedQualifierBecomesFilter() throws IOException {
+		Qualifier age = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(25));
+		Qualifier name = new Qualifier("name", Qualifier.FilterOperation.EQ, Value.get("bob"));
+		Qualifier[] qualifiers = { name, age };
+		QueryPlan plan = engine(true).explain(statement(), qualifiers);
+		Assert.assertEquals(QueryMetrics.Path.PREDEXP, plan.getPath());
+		Assert.assertSame(age, plan.getFilterQualifier());
+		Assert.assertEquals("age_idx", plan.getIndex().getName());
+		Assert.assertEquals(1, plan.getPredExpQualifiers().size());
+		Assert.assertSame(name, plan.getPredExpQualifiers().get(0));
+		Assert.assertTrue(plan.getLuaQualifiers().isEmpty());
+		Assert.assertFalse(plan.isFallback());
+		// the caller's qualifiers are left alone
+		Assert.assertSame(age, qualifiers[1]);
+	}
+
+	@Test
+	public void strictBoundsAreOneIndexRange() throws IOException {
+		Qualifier older = new Qualifier("age", Qualifier.FilterOperation.GT, Value.get(24));
+		Qualifier younger = new Qualifier("age", Qualifier.FilterOperation.LT, Value.get(30));
+		QueryPlan plan = engine(true).explain(statement(), older, younger);
+		Assert.assertEquals(Filter.range("age", 25, 29), plan.getFilter());
+		Assert.assertEquals(QueryMetrics.Path.SINDEX, plan.getPath());
+
+		Qualifier name = new Qualifier("name", Qualifier.FilterOperation.EQ, Value.get("bob"));
+		Qualifier atLeast = new Qualifier("age", Qualifier.FilterOperation.GTEQ, Value.get(20));
+		plan = engine(true).explain(statement(), younger, name, atLeast);
+		Assert.assertEquals(Filter.range("age", 20, 29), plan.getFilter());
+		Assert.assertEquals(QueryMetrics.Path.PREDEXP, plan.getPath());
+		Assert.assertEquals(1, plan.getPredExpQualifiers().size());
+	}
+
+	@Test
+	public void doubleBoundIsNotNarrowed() throws IOException {
+		Qualifier older = new Qualifier("age", Qualifier.FilterOperation.GT, Value.get(24));
+		Qualifier younger = new Qualifier("age", Qualifier.FilterOperation.LT, Value.get(29.5));
+		QueryPlan plan = engine(true).explain(statement(), older, younger);
+		Assert.assertEquals(Filter.range("age", 25, Long.MAX_VALUE), plan.getFilter());
+		Assert.assertNotEquals(QueryMetrics.Path.SINDEX, plan.getPath());
+	}
+
+	@Test
+	public void indexOnlyQuery() throws IOException {
+		Qualifier age = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(25));
+		QueryEngine engine = engine(true);
+		Assert.assertEquals(QueryMetrics.Path.SINDEX, engine.plan(statement(), false, age).getPath());
+		// meta data is returned by Lua, without a filter function
+		QueryPlan metaPlan = engine.plan(statement(), true, age);
+		Assert.assertEquals(QueryMetrics.Path.LUA, metaPlan.getPath());
+		Assert.assertNull(metaPlan.getLuaFilter());
+	}
+
+	@Test
+	public void unindexedBinIsNotAFilter() throws IOException {
+		Qualifier age = new Qualifier("age", Qualifier.FilterOperation.EQ, Value.get(25));
+		QueryPlan plan = engine(false).explain(statement(), age);
+		Assert.assertNull(plan.getFilter());
+		Assert.assertEquals(QueryMetrics.Path.PREDEXP, plan.getPath());
+		Assert.assertEquals(QueryPlan.UNKNOWN, plan.getEstimatedRecords());
+	}
+
+	@Test
+	public void fallbackToLua() throws IOException {
+		Qualifier name = new Qualifier("name", Qualifier.FilterOperation.START_WITH, false, Value.get("bo"));
+		Qualifier age = new Qualifier("age", Qualifier.FilterOperation.GT, Value.get(20));
+		QueryPlan plan = engine(false).explain(statement(), name, age);
+		Assert.assertEquals(QueryMetrics.Path.LUA, plan.getPath());
+		Assert.assertTrue(plan.isFallback());
+		Assert.assertEquals(2, plan.getLuaQualifiers().size());
+		Assert.assertNull(plan.getPredExp());
+		Assert.assertTrue(plan.getLuaFilter().startsWith("if string.sub(rec['name']"));
+		Assert.assertTrue(plan.toString().contains("fallback: PredExp Unsupported Operation: START_WITH"));
+	}
+}
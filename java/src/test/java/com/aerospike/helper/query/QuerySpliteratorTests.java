@@ -0,0 +1,150 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.OperationMetrics;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.query.Qualifier.FilterOperation;
+
+public class QuerySpliteratorTests {
+
+	private static final String NAMESPACE = "test";
+	private static final String SET_NAME = "users";
+	private static final int RECORDS = 200;
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+
+	@Before
+	public void setUp() {
+		this.cluster = new InMemoryCluster(2, NAMESPACE);
+		this.cluster.createIndex(NAMESPACE, SET_NAME, "age_idx", "age", IndexType.NUMERIC);
+		this.engine = this.cluster.newQueryEngine();
+		for (int i = 0; i < RECORDS; i++) {
+			Key key = new Key(NAMESPACE, SET_NAME, "user" + i);
+			this.engine.insert(NAMESPACE, SET_NAME, key, Arrays.asList(new Bin("name", "user" + i), new Bin("age", i % 50), new Bin("color", (i % 2 == 0) ? "red" : "blue")));
+		}
+		this.engine.refreshCluster();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(NAMESPACE);
+		stmt.setSetName(SET_NAME);
+		return stmt;
+	}
+
+	private List<String> names(Qualifier... qualifiers) {
+		Stream<KeyRecord> stream = this.engine.stream(statement(), qualifiers);
+		try {
+			return stream.parallel().map(new Function<KeyRecord, String>() {
+				@Override
+				public String apply(KeyRecord keyRecord) {
+					return (String) keyRecord.record.getValue("name");
+				}
+			}).collect(Collectors.toList());
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void parallelStreamReadsEveryRecordOnce() {
+		List<String> names = names();
+		Assert.assertEquals(RECORDS, names.size());
+		Assert.assertEquals(RECORDS, new HashSet<String>(names).size());
+
+		// Lua, client and secondary index paths
+		Qualifier contains = new Qualifier("name", FilterOperation.CONTAINING, Value.get("1"));
+		List<String> lua = names(contains);
+		this.engine.residualMode = QueryEngine.ResidualMode.CLIENT;
+		List<String> client = names(contains);
+		Assert.assertEquals(new HashSet<String>(lua), new HashSet<String>(client));
+		Assert.assertEquals(lua.size(), new HashSet<String>(lua).size());
+		for (String name : lua)
+			Assert.assertTrue(name.contains("1"));
+
+		Assert.assertEquals(8, names(new Qualifier("age", FilterOperation.BETWEEN, Value.get(10), Value.get(11))).size());
+		Assert.assertTrue(names(new Qualifier("age", FilterOperation.GT, Value.get(60))).isEmpty());
+	}
+
+	@Test
+	public void scanSplitsIntoDisjointShards() {
+		this.engine.streamShards = 4;
+		Spliterator<KeyRecord> first = this.engine.stream(statement()).spliterator();
+		List<Spliterator<KeyRecord>> parts = new ArrayList<Spliterator<KeyRecord>>();
+		parts.add(first);
+		for (int i = 0; i < parts.size(); i++) {
+			Spliterator<KeyRecord> split = parts.get(i).trySplit();
+			while (split != null) {
+				parts.add(split);
+				split = parts.get(i).trySplit();
+			}
+		}
+		// two nodes of four shards
+		Assert.assertEquals(8, parts.size());
+		Assert.assertEquals(RECORDS / 8, first.estimateSize());
+
+		final Set<String> names = new HashSet<String>();
+		for (Spliterator<KeyRecord> part : parts) {
+			final List<String> partNames = new ArrayList<String>();
+			part.forEachRemaining(new Consumer<KeyRecord>() {
+				@Override
+				public void accept(KeyRecord keyRecord) {
+					partNames.add((String) keyRecord.record.getValue("name"));
+				}
+			});
+			Assert.assertFalse(partNames.isEmpty());
+			for (String name : partNames)
+				Assert.assertTrue(names.add(name));
+		}
+		Assert.assertEquals(RECORDS, names.size());
+
+		// a secondary index query is split by node but not by shard
+		Spliterator<KeyRecord> query = this.engine.stream(statement(), new Qualifier("age", FilterOperation.LT, Value.get(5))).spliterator();
+		Assert.assertNotNull(query.trySplit());
+		Assert.assertNull(query.trySplit());
+	}
+
+	@Test
+	public void closeRecordsTheSelect() {
+		QueryMetrics metrics = new QueryMetrics();
+		this.engine.setMetrics(metrics);
+		Stream<KeyRecord> stream = this.engine.stream(statement());
+		Iterator<KeyRecord> it = stream.iterator();
+		for (int i = 0; i < 5; i++)
+			Assert.assertNotNull(it.next());
+		stream.close();
+		OperationMetrics scans = metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.SCAN);
+		Assert.assertEquals(1L, scans.getCount());
+		Assert.assertEquals(5L, scans.getRecordsReturned());
+	}
+}
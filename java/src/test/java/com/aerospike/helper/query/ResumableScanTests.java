@@ -0,0 +1,152 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.query.Qualifier.FilterOperation;
+
+public class ResumableScanTests {
+
+	private static final String NAMESPACE = "test";
+	private static final String SET_NAME = "users";
+	private static final int RECORDS = 150;
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+
+	@Before
+	public void setUp() {
+		this.cluster = new InMemoryCluster(2, NAMESPACE);
+		this.engine = this.cluster.newQueryEngine();
+		this.engine.resumableShards = 8;
+		for (int i = 0; i < RECORDS; i++) {
+			Key key = new Key(NAMESPACE, SET_NAME, "user" + i);
+			this.engine.insert(NAMESPACE, SET_NAME, key, Arrays.asList(new Bin("name", "user" + i), new Bin("color", (i % 3 == 0) ? "red" : "blue")));
+		}
+		this.engine.refreshCluster();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(NAMESPACE);
+		stmt.setSetName(SET_NAME);
+		return stmt;
+	}
+
+	/*
+	 * reads every page from a new scan with the encoded token of the previous page
+	 */
+	private Set<String> pages(int pageSize, Qualifier... qualifiers) {
+		Set<String> names = new HashSet<String>();
+		String token = null;
+		int pages = 0;
+		while (true) {
+			ResumableScan scan = this.engine.resume(statement(), (token == null) ? null : ContinuationToken.decode(token), qualifiers);
+			List<KeyRecord> page = scan.nextPage(pageSize);
+			Assert.assertTrue(page.size() <= pageSize);
+			for (KeyRecord keyRecord : page)
+				Assert.assertTrue(names.add((String) keyRecord.record.getValue("name")));
+			ContinuationToken next = scan.getToken();
+			if (page.isEmpty()) {
+				Assert.assertTrue(next.isComplete());
+				break;
+			}
+			token = next.encode();
+			Assert.assertTrue(++pages <= RECORDS);
+		}
+		return names;
+	}
+
+	@Test
+	public void pagesReturnEveryRecordOnce() {
+		Assert.assertEquals(RECORDS, pages(7).size());
+		Assert.assertEquals(RECORDS, pages(1000).size());
+
+		Set<String> red = pages(4, new Qualifier("color", FilterOperation.EQ, Value.get("red")));
+		Assert.assertEquals(RECORDS / 3, red.size());
+		Assert.assertEquals(red, pages(4, new Qualifier("name", FilterOperation.CONTAINING, Value.get("user")), new Qualifier("color", FilterOperation.EQ, Value.get("red"))));
+	}
+
+	@Test
+	public void resumeReadsOnlyRemainingShards() {
+		ResumableScan scan = this.engine.resume(statement(), null);
+		Set<String> names = new HashSet<String>();
+		while (scan.getToken().getRemainingShards() > 5)
+			names.add((String) scan.next().record.getValue("name"));
+		ContinuationToken token = scan.getToken();
+		Assert.assertEquals(8, token.getShards());
+		Assert.assertEquals(token, ContinuationToken.decode(token.encode()));
+		Assert.assertTrue(token.encode().length() < 64);
+
+		QueryMetrics metrics = new QueryMetrics();
+		this.engine.setMetrics(metrics);
+		scan = this.engine.resume(statement(), token);
+		while (scan.hasNext())
+			Assert.assertTrue(names.add((String) scan.next().record.getValue("name")));
+		Assert.assertEquals(RECORDS, names.size());
+		Assert.assertEquals(5L, metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.SCAN).getCount());
+		Assert.assertTrue(scan.getToken().isComplete());
+		Assert.assertNull(scan.next());
+	}
+
+	@Test
+	public void pageIsOneWindowOfAShard() {
+		this.engine.resumableShards = 1;
+		QueryMetrics metrics = new QueryMetrics();
+		this.engine.setMetrics(metrics);
+		Set<String> names = new HashSet<String>();
+		String token = null;
+		for (int i = 1; i <= RECORDS / 50; i++) {
+			ResumableScan scan = this.engine.resume(statement(), (token == null) ? null : ContinuationToken.decode(token));
+			List<KeyRecord> page = scan.nextPage(50);
+			Assert.assertEquals(50, page.size());
+			for (KeyRecord keyRecord : page)
+				Assert.assertTrue(names.add((String) keyRecord.record.getValue("name")));
+			Assert.assertEquals(i, metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.SCAN).getCount());
+			token = scan.getToken().encode();
+		}
+		Assert.assertEquals(RECORDS, names.size());
+		Assert.assertTrue(ContinuationToken.decode(token).isComplete());
+	}
+
+	@Test
+	public void oversizedShardIsSplit() {
+		this.engine.resumableShards = 1;
+		ResumableScan scan = this.engine.resume(statement(), null);
+		Assert.assertEquals(10, scan.nextPage(10).size());
+		// 150 records are more than 4 windows of 10, a shard of a quarter of them is not
+		Assert.assertTrue(scan.getToken().getShards() >= 4);
+
+		QueryMetrics metrics = new QueryMetrics();
+		this.engine.setMetrics(metrics);
+		Assert.assertEquals(RECORDS, pages(10).size());
+		// a window per read of the single shard would stream all of it for every page
+		long streamed = metrics.get(QueryMetrics.Operation.SELECT, QueryMetrics.Path.SCAN).getRecordsReturned();
+		Assert.assertTrue(streamed < (RECORDS / 10) * RECORDS / 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidTokenIsRejected() {
+		ContinuationToken.decode("AQAAAAg");
+	}
+}
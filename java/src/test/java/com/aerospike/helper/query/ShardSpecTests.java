@@ -0,0 +1,135 @@
+package com.aerospike.helper.query;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.KeyRecord;
+import com.aerospike.client.query.Statement;
+import com.aerospike.helper.metrics.QueryMetrics;
+import com.aerospike.helper.query.Qualifier.FilterOperation;
+
+public class ShardSpecTests {
+
+	private static final String NAMESPACE = "test";
+	private static final String SET_NAME = "users";
+	private static final int RECORDS = 120;
+
+	private InMemoryCluster cluster;
+	private QueryEngine engine;
+
+	@Before
+	public void setUp() {
+		this.cluster = new InMemoryCluster(2, NAMESPACE);
+		this.cluster.createIndex(NAMESPACE, SET_NAME, "age_idx", "age", IndexType.NUMERIC);
+		this.engine = this.cluster.newQueryEngine();
+		for (int i = 0; i < RECORDS; i++) {
+			Key key = new Key(NAMESPACE, SET_NAME, "user" + i);
+			this.engine.insert(NAMESPACE, SET_NAME, key, Arrays.asList(new Bin("name", "user" + i), new Bin("age", i % 30), new Bin("color", (i % 2 == 0) ? "red" : "blue")));
+		}
+		this.engine.refreshCluster();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.engine.close();
+		this.cluster.close();
+	}
+
+	private static Statement statement() {
+		Statement stmt = new Statement();
+		stmt.setNamespace(NAMESPACE);
+		stmt.setSetName(SET_NAME);
+		return stmt;
+	}
+
+	private Set<String> select(ShardSpec shard, Qualifier... qualifiers) throws IOException {
+		Set<String> names = new HashSet<String>();
+		KeyRecordIterator it = this.engine.select(statement(), shard, qualifiers);
+		try {
+			while (it.hasNext())
+				Assert.assertTrue(names.add((String) it.next().record.getValue("name")));
+		} finally {
+			it.close();
+		}
+		return names;
+	}
+
+	/*
+	 * the shards of the workers are disjoint and together hold every record of the query
+	 */
+	private void assertWorkersSplit(int workers, Qualifier... qualifiers) throws IOException {
+		Set<String> all = select(null, qualifiers);
+		Set<String> union = new HashSet<String>();
+		for (int i = 0; i < workers; i++) {
+			for (String name : select(new ShardSpec(i, workers), qualifiers))
+				Assert.assertTrue(union.add(name));
+		}
+		Assert.assertEquals(all, union);
+	}
+
+	@Test
+	public void workersReadDisjointSlices() throws IOException {
+		assertWorkersSplit(3);
+		Assert.assertTrue(select(new ShardSpec(1, 3)).size() < RECORDS / 2);
+
+		// composes with the PredExp, the Lua filter and the secondary index Filter
+		assertWorkersSplit(3, new Qualifier("color", FilterOperation.EQ, Value.get("red")));
+		assertWorkersSplit(4, new Qualifier("name", FilterOperation.CONTAINING, Value.get("1")));
+		assertWorkersSplit(2, new Qualifier("age", FilterOperation.BETWEEN, Value.get(5), Value.get(9)));
+
+		// a primary key lookup is in exactly one shard
+		int found = 0;
+		for (int i = 0; i < 5; i++)
+			found += select(new ShardSpec(i, 5), new KeyQualifier(Value.get("user7"))).size();
+		Assert.assertEquals(1, found);
+	}
+
+	@Test
+	public void planShowsTheShard() throws IOException {
+		Qualifier red = new Qualifier("color", FilterOperation.EQ, Value.get("red"));
+		KeyRecordIterator it = this.engine.select(statement(), new ShardSpec(2, 4), red);
+		try {
+			Assert.assertEquals(QueryMetrics.Path.PREDEXP, it.getPath());
+			Assert.assertEquals(new ShardSpec(2, 4), it.getPlan().getShard());
+			Assert.assertTrue(it.getPlan().toString().contains("shard 2 of 4"));
+		} finally {
+			it.close();
+		}
+
+		Stream<KeyRecord> stream = this.engine.stream(statement(), new ShardSpec(2, 4), red);
+		try {
+			Assert.assertEquals(select(new ShardSpec(2, 4), red).size(), stream.parallel().count());
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void splitHalvesTheShard() {
+		ShardSpec shard = new ShardSpec(1, 3);
+		ShardSpec[] halves = shard.split();
+		Assert.assertEquals(new ShardSpec(1, 6), halves[0]);
+		Assert.assertEquals(new ShardSpec(4, 6), halves[1]);
+		for (int i = 0; i < RECORDS; i++) {
+			byte[] digest = new Key(NAMESPACE, SET_NAME, "user" + i).digest;
+			Assert.assertEquals(shard.contains(digest), halves[0].contains(digest) || halves[1].contains(digest));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void indexMustBeBelowCount() {
+		new ShardSpec(3, 3);
+	}
+}
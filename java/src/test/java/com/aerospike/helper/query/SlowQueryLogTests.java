@@ -0,0 +1,88 @@
+package com.aerospike.helper.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.aerospike.client.Value;
+import com.aerospike.helper.metrics.QueryMetrics;
+
+public class SlowQueryLogTests {
+
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static QueryPlan plan() {
+		QueryPlan plan = new QueryPlan("test", "users");
+		plan.qualifiers = new Qualifier[] {
+				new Qualifier(Qualifier.FilterOperation.OR,
+						new Qualifier("age", Qualifier.FilterOperation.GT, Value.get(20)),
+						new Qualifier("name", Qualifier.FilterOperation.EQ, Value.get("bob"))),
+				new Qualifier("name", Qualifier.FilterOperation.START_WITH, false, Value.get("b")) };
+		plan.luaFilter = "if rec['name'] == 'bob' then selectedRec = true end";
+		plan.path = QueryMetrics.Path.LUA;
+		return plan;
+	}
+
+	@Test
+	public void recordsOverThreshold() {
+		SlowQueryLog slowLog = new SlowQueryLog(10, 0.0, 4);
+		final List<SlowQuery> written = new ArrayList<SlowQuery>();
+		slowLog.addSink(new SlowQuerySink() {
+			@Override
+			public void write(SlowQuery query) {
+				written.add(query);
+			}
+		});
+		Assert.assertFalse(slowLog.record(QueryMetrics.Operation.SELECT, QueryMetrics.Path.LUA, plan(), FAST, -1, 1, 0, null));
+		Assert.assertTrue(slowLog.record(QueryMetrics.Operation.SELECT, QueryMetrics.Path.LUA, plan(), SLOW, 100, 3, 0, null));
+
+		Assert.assertEquals(1, written.size());
+		SlowQuery entry = slowLog.getEntries().get(0);
+		Assert.assertSame(written.get(0), entry);
+		Assert.assertFalse(entry.isSampled());
+		Assert.assertEquals("OR(age GT ?, name EQ ?), name START_WITH ?", entry.getQualifiers());
+		Assert.assertEquals(QueryMetrics.Path.LUA, entry.getPath());
+		Assert.assertEquals("users", entry.getSetName());
+		Assert.assertEquals(3L, entry.getRecordsReturned());
+		Assert.assertTrue(entry.toString().contains("lua=\"if rec['name'] == 'bob' then selectedRec = true end\""));
+	}
+
+	@Test
+	public void samplesFastOperations() {
+		SlowQueryLog slowLog = new SlowQueryLog(10, 1.0, 4);
+		Assert.assertTrue(slowLog.record(QueryMetrics.Operation.INSERT, QueryMetrics.Path.KEY, null, FAST, -1, 0, 1, null));
+		SlowQuery entry = slowLog.getEntries().get(0);
+		Assert.assertTrue(entry.isSampled());
+		Assert.assertNull(entry.getQualifiers());
+	}
+
+	@Test
+	public void ringKeepsNewest() {
+		SlowQueryLog slowLog = new SlowQueryLog(0, 0.0, 2);
+		for (int i = 1; i <= 3; i++)
+			slowLog.record(QueryMetrics.Operation.DELETE, QueryMetrics.Path.SCAN, null, FAST, -1, 0, i, null);
+		List<SlowQuery> entries = slowLog.getEntries();
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals(2L, entries.get(0).getRecordsTouched());
+		Assert.assertEquals(3L, entries.get(1).getRecordsTouched());
+		slowLog.clear();
+		Assert.assertTrue(slowLog.getEntries().isEmpty());
+	}
+
+	@Test
+	public void failingSinkIsIgnored() {
+		SlowQueryLog slowLog = new SlowQueryLog(0, 0.0, 2);
+		slowLog.addSink(new SlowQuerySink() {
+			@Override
+			public void write(SlowQuery query) {
+				throw new IllegalStateException("full");
+			}
+		});
+		Assert.assertTrue(slowLog.record(QueryMetrics.Operation.SELECT, null, null, SLOW, -1, 0, 0, new RuntimeException("timeout")));
+		Assert.assertEquals("java.lang.RuntimeException: timeout", slowLog.getEntries().get(0).getError());
+	}
+}
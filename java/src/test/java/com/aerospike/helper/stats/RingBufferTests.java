@@ -0,0 +1,42 @@
+package com.aerospike.helper.stats;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RingBufferTests {
+
+	@Test
+	public void wrapsOldestFirst() {
+		RingBuffer ring = new RingBuffer(3);
+		for (int i = 1; i <= 5; i++) {
+			ring.add(i * 1000L, i * 10L);
+		}
+		Assert.assertEquals(3, ring.size());
+		Assert.assertEquals(30L, ring.value(0));
+		Assert.assertEquals(50L, ring.value(2));
+		Assert.assertEquals(50L, ring.latest());
+		Assert.assertEquals(5000L, ring.latestTime());
+	}
+
+	@Test
+	public void rateOverWindow() {
+		RingBuffer ring = new RingBuffer(10);
+		Assert.assertEquals(0.0, ring.rate(60000, false), 0.0);
+		ring.add(0L, 0L);
+		ring.add(1000L, 100L);
+		ring.add(2000L, 300L);
+		ring.add(3000L, 600L);
+		Assert.assertEquals(200.0, ring.rate(60000, false), 0.001);
+		// only the last two samples are within the window
+		Assert.assertEquals(300.0, ring.rate(1000, false), 0.001);
+	}
+
+	@Test
+	public void counterResetGivesZero() {
+		RingBuffer ring = new RingBuffer(4);
+		ring.add(0L, 500L);
+		ring.add(1000L, 20L);
+		Assert.assertEquals(0.0, ring.rate(60000, true), 0.0);
+		Assert.assertEquals(-480.0, ring.rate(60000, false), 0.001);
+	}
+}